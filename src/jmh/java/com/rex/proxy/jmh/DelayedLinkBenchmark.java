@@ -0,0 +1,285 @@
+package com.rex.proxy.jmh;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput of one tunnel through a link with the delay of a transpacific path, with and without the
+ * buffers tuned to the bandwidth-delay product. Every operation reads 1MB, ops/s is MB/s.
+ *
+ * The link between wsl-local and wsl-server is a relay in user space: it delays each chunk by DELAY_MILLIS, sends
+ * at most RATE bytes per second and queues up to a bandwidth-delay product before it stops reading. It terminates
+ * TCP on both sides, the kernel windows of the proxies only cover loopback, so the socket buffers make no
+ * difference here, SocketBufferBenchmark measures them over a kernel delay. The HTTP/2 flow control windows are
+ * end to end: with the 64KB defaults a stream moves 64KB per round trip, tuned they grow to cover the link.
+ *
+ * Both proxies classify the traffic, the chunks of the link arrive milliseconds apart as over a WAN, the trial
+ * fails unless the download tunnel was classified bulk on both sides.
+ *
+ * gradle jmh -PjmhInclude=DelayedLink
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(1)
+public class DelayedLinkBenchmark {
+
+    private static final byte[] INITIAL = { 0x05, 0x01, 0x00 }; // NO_AUTH
+    private static final int CHUNK = 1 << 20; // Bytes read per operation
+    private static final long DELAY_MILLIS = 100; // One way, both ways of the link
+    private static final long RATE = 12_500_000; // Bytes per second of the link, 100Mbit/s
+    private static final int QUEUE = (int) (RATE * DELAY_MILLIS * 2 / 1000); // Bytes queued on the link at most
+
+    @Param({ "ws", "h2" })
+    public String transport;
+
+    @Param({ "false", "true" })
+    public boolean bdpTuning;
+
+    private SourceServer mTarget;
+    private TcpRelay mRelay;
+    private WslServer mServer;
+    private WslLocal mLocal;
+    private Socket mSocket;
+    private DataInputStream mInput;
+    private final byte[] mChunk = new byte[CHUNK];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mTarget = new SourceServer();
+
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0);
+        serverConf.http2 = "h2".equals(transport);
+        serverConf.bdpTuning = bdpTuning;
+        serverConf.trafficClassify = true;
+        mServer = new WslServer().config(serverConf).start();
+        mRelay = new TcpRelay(new InetSocketAddress("127.0.0.1", mServer.port()));
+
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0,
+                URI.create("ws://127.0.0.1:" + mRelay.port() + "/"), null);
+        localConf.proxyHttp2 = "h2".equals(transport);
+        localConf.keepaliveInterval = 1; // Measures the round trip time of the tunnel
+        localConf.bdpTuning = bdpTuning;
+        localConf.trafficClassify = true;
+        mLocal = new WslLocal().config(localConf).start();
+
+        // One tunnel for the whole trial, its buffers tuned during the warmup
+        int target = mTarget.port();
+        mSocket = new Socket();
+        mSocket.setSoTimeout(30000);
+        mSocket.connect(new InetSocketAddress("127.0.0.1", mLocal.port()));
+        OutputStream output = mSocket.getOutputStream();
+        mInput = new DataInputStream(mSocket.getInputStream());
+        byte[] response = new byte[10];
+        output.write(INITIAL);
+        mInput.readFully(response, 0, 2);
+        output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (target >> 8), (byte) target });
+        mInput.readFully(response, 0, 10);
+        if (response[1] != 0x00) {
+            throw new IOException("tunnel failed " + response[1]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        long local = mLocal.metrics().value("traffic.bulk");
+        long server = mServer.metrics().value("traffic.bulk");
+        mSocket.close();
+        mLocal.stop();
+        mServer.stop();
+        mRelay.close();
+        mTarget.close();
+        if (local == 0 || server == 0) {
+            throw new IllegalStateException("Download not classified bulk, wsl-local " + local + " wsl-server " + server);
+        }
+    }
+
+    @Benchmark
+    public byte download() throws IOException {
+        mInput.readFully(mChunk);
+        return mChunk[0];
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Destination of the tunnels, writes to every connection as fast as it could
+    private static final class SourceServer implements Closeable {
+        private final ServerSocket mSocket;
+
+        SourceServer() throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            final Socket socket = mSocket.accept();
+                            daemon(new Runnable() {
+                                @Override
+                                public void run() {
+                                    send(socket);
+                                }
+                            }, "source");
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "target");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        private static void send(Socket socket) {
+            byte[] buffer = new byte[65536];
+            try (Socket s = socket) {
+                OutputStream output = s.getOutputStream();
+                while (true) {
+                    output.write(buffer);
+                }
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final long releaseAt;
+        final byte[] data; // Null once the connection closed
+
+        Chunk(long releaseAt, byte[] data) {
+            this.releaseAt = releaseAt;
+            this.data = data;
+        }
+    }
+
+    // TCP through the link, each direction delayed and paced in order, the reader stops once the queue is full
+    private static final class TcpRelay implements Closeable {
+        private final ServerSocket mSocket;
+
+        TcpRelay(final InetSocketAddress server) throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            Socket client = mSocket.accept();
+                            Socket upstream = new Socket();
+                            client.setTcpNoDelay(true);
+                            upstream.setTcpNoDelay(true);
+                            upstream.connect(server);
+                            relay(client, upstream);
+                            relay(upstream, client);
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "tcp-relay");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        // Reader stamps each chunk with the time its last byte leaves the link, the writer sends them once due
+        private void relay(final Socket from, final Socket to) {
+            final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+            final Semaphore room = new Semaphore(QUEUE);
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16384];
+                    long sentAt = 0; // Time the link finished sending the chunk ahead
+                    try (InputStream input = from.getInputStream()) {
+                        for (int read; (read = input.read(buffer)) >= 0; ) {
+                            room.acquire(read);
+                            long now = System.nanoTime();
+                            sentAt = Math.max(now, sentAt) + TimeUnit.SECONDS.toNanos(read) / RATE;
+                            queue.add(new Chunk(sentAt + TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS), Arrays.copyOf(buffer, read)));
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        // Closed
+                    }
+                    queue.add(new Chunk(sentAt, null));
+                }
+            }, "tcp-link");
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        OutputStream output = to.getOutputStream();
+                        for (Chunk chunk; (chunk = queue.take()).data != null; ) {
+                            TimeUnit.NANOSECONDS.sleep(chunk.releaseAt - System.nanoTime());
+                            output.write(chunk.data);
+                            room.release(chunk.data.length);
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        // Closed
+                    }
+                    close(from, to);
+                }
+            }, "tcp-link");
+        }
+
+        private void close(Socket a, Socket b) {
+            try {
+                a.close();
+                b.close();
+            } catch (IOException ex) {
+                // Closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.rex.proxy.jmh;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of small messages over tunnels already open, through a link that delays and loses packets.
+ * Every thread echoes on its own tunnel, all tunnels share the connections to the server where the transport does.
+ *
+ * The QUIC packets go through a UDP relay dropping them at random, QUIC retransmits and only the stream of the lost
+ * packet waits. TCP is relayed by a stream relay, a chunk lost holds it and everything after it on the connection
+ * for a retransmission timeout, as TCP delivers in order, so over HTTP/2 every tunnel of the connection waits.
+ * Compare the p99 of the sample time between the transports.
+ *
+ * gradle jmh -PjmhInclude=LossyLink
+ *
+ * Runs from the project directory, the server uses the test certificate in src/test/resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(8)
+public class LossyLinkBenchmark {
+
+    private static final String CERT = "src/test/resources/test.cert.pem";
+    private static final String KEY = "src/test/resources/test.key.p8.pem";
+    private static final byte[] INITIAL = { 0x05, 0x01, 0x00 }; // NO_AUTH
+    private static final int MESSAGE = 64; // Bytes echoed per round trip
+    private static final long DELAY_MILLIS = 10; // One way, both ways of the link
+    private static final long RTO_MILLIS = 200; // Minimum retransmission timeout of Linux TCP
+
+    @Param({ "wss", "h2", "quic" })
+    public String transport;
+
+    @Param({ "0", "0.02" })
+    public double loss; // Probability of a packet or chunk lost
+
+    private ScheduledExecutorService mLink; // Delays the datagrams
+    private EchoServer mTarget;
+    private Closeable mRelay;
+    private WslServer mServer;
+    private WslLocal mLocal;
+    private byte[] mCommand; // CONNECT 127.0.0.1:port
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mLink = Executors.newSingleThreadScheduledExecutor();
+        mTarget = new EchoServer();
+
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0, CERT, KEY);
+        serverConf.http2 = "h2".equals(transport);
+        serverConf.quic = "quic".equals(transport);
+        mServer = new WslServer().config(serverConf).start();
+
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", mServer.port());
+        int port;
+        if ("quic".equals(transport)) {
+            UdpRelay relay = new UdpRelay(server);
+            port = relay.port();
+            mRelay = relay;
+        } else {
+            TcpRelay relay = new TcpRelay(server);
+            port = relay.port();
+            mRelay = relay;
+        }
+
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0,
+                URI.create(("quic".equals(transport) ? "quic" : "wss") + "://127.0.0.1:" + port + "/"), null);
+        localConf.proxyCertVerify = false;
+        localConf.proxyHttp2 = "h2".equals(transport);
+        mLocal = new WslLocal().config(localConf).start();
+
+        int target = mTarget.port();
+        mCommand = new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (target >> 8), (byte) target };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mLocal.stop();
+        mServer.stop();
+        mRelay.close();
+        mTarget.close();
+        mLink.shutdownNow();
+    }
+
+    // Tunnel of one thread, open for the whole trial
+    @State(Scope.Thread)
+    public static class Tunnel {
+        private Socket mSocket;
+        private OutputStream mOutput;
+        private DataInputStream mInput;
+        private final byte[] mMessage = new byte[MESSAGE];
+
+        @Setup(Level.Trial)
+        public void open(LossyLinkBenchmark link) throws IOException {
+            mSocket = new Socket();
+            mSocket.setTcpNoDelay(true);
+            mSocket.setSoTimeout(30000);
+            mSocket.connect(new InetSocketAddress("127.0.0.1", link.mLocal.port()));
+            mOutput = mSocket.getOutputStream();
+            mInput = new DataInputStream(mSocket.getInputStream());
+            byte[] response = new byte[10];
+            mOutput.write(INITIAL);
+            mInput.readFully(response, 0, 2);
+            mOutput.write(link.mCommand);
+            mInput.readFully(response, 0, 10);
+            if (response[1] != 0x00) {
+                throw new IOException("tunnel failed " + response[1]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    @Benchmark
+    public byte echo(Tunnel tunnel) throws IOException {
+        tunnel.mOutput.write(tunnel.mMessage);
+        tunnel.mInput.readFully(tunnel.mMessage);
+        return tunnel.mMessage[0];
+    }
+
+    private boolean lost() {
+        return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Destination of the tunnels, echoes what it reads
+    private static final class EchoServer implements Closeable {
+        private final ServerSocket mSocket;
+
+        EchoServer() throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            final Socket socket = mSocket.accept();
+                            socket.setTcpNoDelay(true);
+                            daemon(new Runnable() {
+                                @Override
+                                public void run() {
+                                    pump(socket, socket);
+                                }
+                            }, "echo");
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "target");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        private static void pump(Socket from, Socket to) {
+            byte[] buffer = new byte[16384];
+            try (InputStream input = from.getInputStream()) {
+                OutputStream output = to.getOutputStream();
+                for (int read; (read = input.read(buffer)) >= 0; ) {
+                    output.write(buffer, 0, read);
+                }
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final long releaseAt;
+        final byte[] data; // Null once the connection closed
+
+        Chunk(long releaseAt, byte[] data) {
+            this.releaseAt = releaseAt;
+            this.data = data;
+        }
+    }
+
+    // TCP through the link, both directions delayed in order, a lost chunk stalls the direction for a timeout
+    private final class TcpRelay implements Closeable {
+        private final ServerSocket mSocket;
+
+        TcpRelay(final InetSocketAddress server) throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            Socket client = mSocket.accept();
+                            Socket upstream = new Socket();
+                            client.setTcpNoDelay(true);
+                            upstream.setTcpNoDelay(true);
+                            upstream.connect(server);
+                            relay(client, upstream);
+                            relay(upstream, client);
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "tcp-relay");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        // Reader stamps each chunk with its release time, the writer sends them in order once due
+        private void relay(final Socket from, final Socket to) {
+            final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16384];
+                    long releaseAt = 0; // Nothing passes before the chunk ahead of it
+                    try (InputStream input = from.getInputStream()) {
+                        for (int read; (read = input.read(buffer)) >= 0; ) {
+                            releaseAt = Math.max(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS), releaseAt);
+                            if (lost()) {
+                                releaseAt += TimeUnit.MILLISECONDS.toNanos(RTO_MILLIS);
+                            }
+                            queue.add(new Chunk(releaseAt, Arrays.copyOf(buffer, read)));
+                        }
+                    } catch (IOException ex) {
+                        // Closed
+                    }
+                    queue.add(new Chunk(releaseAt, null));
+                }
+            }, "tcp-link");
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        OutputStream output = to.getOutputStream();
+                        for (Chunk chunk; (chunk = queue.take()).data != null; ) {
+                            TimeUnit.NANOSECONDS.sleep(chunk.releaseAt - System.nanoTime());
+                            output.write(chunk.data);
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        // Closed
+                    }
+                    close(from, to);
+                }
+            }, "tcp-link");
+        }
+
+        private void close(Socket a, Socket b) {
+            try {
+                a.close();
+                b.close();
+            } catch (IOException ex) {
+                // Closed anyway
+            }
+        }
+    }
+
+    // UDP through the link, each datagram delayed or dropped on its own, one upstream socket per client address
+    private final class UdpRelay implements Closeable {
+        private final DatagramSocket mSocket;
+        private final InetSocketAddress mServer;
+        private final ConcurrentMap<SocketAddress, DatagramSocket> mUpstreams = new ConcurrentHashMap<>();
+
+        UdpRelay(InetSocketAddress server) throws IOException {
+            mServer = server;
+            mSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[65536];
+                    while (! mSocket.isClosed()) {
+                        try {
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            mSocket.receive(packet);
+                            DatagramSocket upstream = upstream(packet.getSocketAddress());
+                            send(upstream, packet, mServer);
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "udp-relay");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+            for (DatagramSocket upstream : mUpstreams.values()) {
+                upstream.close();
+            }
+        }
+
+        private DatagramSocket upstream(final SocketAddress client) throws IOException {
+            DatagramSocket upstream = mUpstreams.get(client);
+            if (upstream != null) {
+                return upstream;
+            }
+            final DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            mUpstreams.put(client, socket);
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[65536];
+                    while (! socket.isClosed()) {
+                        try {
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            socket.receive(packet);
+                            send(mSocket, packet, client);
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "udp-link");
+            return socket;
+        }
+
+        private void send(final DatagramSocket socket, DatagramPacket packet, SocketAddress to) {
+            if (lost()) {
+                return;
+            }
+            final DatagramPacket copy = new DatagramPacket(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()), packet.getLength(), to);
+            try {
+                mLink.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            socket.send(copy);
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Torn down
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.rex.proxy.jmh;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of small requests and responses through wsl-local and wsl-server over loopback, the way RPC
+ * writes them: a header then a body, each its own write. With Nagle on, the body waits for the ACK of the header,
+ * which the peer delays, on every hop.
+ *
+ * - nagle: TCP_NODELAY off on all the hops, the destination port pinned bulk
+ * - nodelay: TCP_NODELAY on, the destination port pinned interactive
+ * - adaptive: classified by the traffic, the trial fails unless the tunnels stayed interactive
+ *
+ * gradle jmh -PjmhInclude=RequestResponse
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(4)
+public class RequestResponseBenchmark {
+
+    private static final byte[] INITIAL = { 0x05, 0x01, 0x00 }; // NO_AUTH
+    private static final int HEADER = 16; // Bytes of the header of a request or response
+    private static final int BODY = 48; // Bytes of the body
+
+    @Param({ "nagle", "nodelay", "adaptive" })
+    public String mode;
+
+    private RpcServer mTarget;
+    private WslServer mServer;
+    private WslLocal mLocal;
+    private byte[] mCommand; // CONNECT 127.0.0.1:port
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mTarget = new RpcServer(!"nagle".equals(mode));
+        int target = mTarget.port();
+
+        boolean adaptive = "adaptive".equals(mode);
+        String ports = adaptive ? null : target + ":" + ("nagle".equals(mode) ? "bulk" : "interactive");
+
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0);
+        serverConf.trafficClassify = adaptive;
+        serverConf.trafficClassPorts = ports;
+        mServer = new WslServer().config(serverConf).start();
+
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0,
+                URI.create("ws://127.0.0.1:" + mServer.port() + "/"), null);
+        localConf.trafficClassify = adaptive;
+        localConf.trafficClassPorts = ports;
+        mLocal = new WslLocal().config(localConf).start();
+
+        mCommand = new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (target >> 8), (byte) target };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        long bulk = mLocal.metrics().value("traffic.bulk") + mServer.metrics().value("traffic.bulk");
+        mLocal.stop();
+        mServer.stop();
+        mTarget.close();
+        if ("adaptive".equals(mode) && bulk > 0) {
+            throw new IllegalStateException(bulk + " request and response tunnels classified bulk");
+        }
+    }
+
+    // Tunnel of one thread, open for the whole trial
+    @State(Scope.Thread)
+    public static class Tunnel {
+        private Socket mSocket;
+        private OutputStream mOutput;
+        private DataInputStream mInput;
+        private final byte[] mHeader = new byte[HEADER];
+        private final byte[] mBody = new byte[BODY];
+
+        @Setup(Level.Trial)
+        public void open(RequestResponseBenchmark bench) throws IOException {
+            mSocket = new Socket();
+            mSocket.setTcpNoDelay(!"nagle".equals(bench.mode));
+            mSocket.setSoTimeout(30000);
+            mSocket.connect(new InetSocketAddress("127.0.0.1", bench.mLocal.port()));
+            mOutput = mSocket.getOutputStream();
+            mInput = new DataInputStream(mSocket.getInputStream());
+            byte[] response = new byte[10];
+            mOutput.write(INITIAL);
+            mInput.readFully(response, 0, 2);
+            mOutput.write(bench.mCommand);
+            mInput.readFully(response, 0, 10);
+            if (response[1] != 0x00) {
+                throw new IOException("tunnel failed " + response[1]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    @Benchmark
+    public byte call(Tunnel tunnel) throws IOException {
+        tunnel.mOutput.write(tunnel.mHeader);
+        tunnel.mOutput.write(tunnel.mBody);
+        tunnel.mInput.readFully(tunnel.mHeader);
+        tunnel.mInput.readFully(tunnel.mBody);
+        return tunnel.mBody[0];
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Destination of the tunnels, answers every request with a header and a body written apart
+    private static final class RpcServer implements Closeable {
+        private final ServerSocket mSocket;
+
+        RpcServer(final boolean noDelay) throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            final Socket socket = mSocket.accept();
+                            socket.setTcpNoDelay(noDelay);
+                            daemon(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            }, "rpc");
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "target");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        private static void serve(Socket socket) {
+            byte[] header = new byte[HEADER];
+            byte[] body = new byte[BODY];
+            try (Socket s = socket) {
+                DataInputStream input = new DataInputStream(s.getInputStream());
+                OutputStream output = s.getOutputStream();
+                while (true) {
+                    input.readFully(header);
+                    input.readFully(body);
+                    output.write(header);
+                    output.write(body);
+                }
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+}
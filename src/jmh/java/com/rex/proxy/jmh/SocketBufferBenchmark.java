@@ -0,0 +1,242 @@
+package com.rex.proxy.jmh;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput of one tunnel with and without the socket buffers tuned to the bandwidth-delay product, the
+ * effect of SO_SNDBUF and SO_RCVBUF alone. Every operation reads 1MB, ops/s is MB/s.
+ *
+ * The tunnel is the raw tcp:// transport, no HTTP/2 windows nor websocket frames, straight on the NIO transport
+ * without keepalive, so the tuner only has the round trip of the control handshake. The delay must be in the
+ * kernel, a relay in user space terminates TCP and the windows of the proxies would only cover loopback. If
+ * loopback is not delayed already the trial delays it by netem itself and removes the delay after, which needs root,
+ * tc and the sch_netem module, let the sizes set go past the default caps of the kernel too:
+ *
+ * sysctl -w net.core.rmem_max=33554432 net.core.wmem_max=33554432
+ * gradle jmh -PjmhInclude=SocketBuffer
+ *
+ * The trial fails if loopback could not be delayed, or if tuned and the buffers never grew.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(1)
+public class SocketBufferBenchmark {
+
+    private static final byte[] INITIAL = { 0x05, 0x01, 0x00 }; // NO_AUTH
+    private static final int CHUNK = 1 << 20; // Bytes read per operation
+    private static final long MIN_RTT_MILLIS = 20; // Loopback slower than this is delayed
+    private static final int DELAY_MILLIS = 25; // Each way, added by netem
+    private static final int MAX_BUFFER = 32 << 20;
+
+    @Param({ "false", "true" })
+    public boolean bdpTuning;
+
+    private boolean mDelayed; // Delay added by the trial, removed by its tear down
+    private SourceServer mTarget;
+    private WslServer mServer;
+    private WslLocal mLocal;
+    private Socket mSocket;
+    private DataInputStream mInput;
+    private final byte[] mChunk = new byte[CHUNK];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mTarget = new SourceServer();
+        if (connectMillis(mTarget.port()) < MIN_RTT_MILLIS) {
+            try {
+                mDelayed = tc("add", "dev", "lo", "root", "netem", "delay", DELAY_MILLIS + "ms", "limit", "100000");
+            } catch (IOException ex) {
+                mTarget.close();
+                throw ex;
+            }
+            long rtt = connectMillis(mTarget.port());
+            if (rtt < MIN_RTT_MILLIS) {
+                tearDown();
+                throw new IllegalStateException("Loopback round trip " + rtt + "ms, netem delay not applied");
+            }
+        }
+
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0);
+        serverConf.transport = "raw";
+        serverConf.bdpTuning = bdpTuning;
+        serverConf.bdpMaxBuffer = MAX_BUFFER;
+        mServer = new WslServer().config(serverConf).start();
+
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0,
+                URI.create("tcp://127.0.0.1:" + mServer.port() + "/"), null);
+        localConf.keepaliveInterval = 0;
+        localConf.bdpTuning = bdpTuning;
+        localConf.bdpMaxBuffer = MAX_BUFFER;
+        mLocal = new WslLocal().config(localConf).start();
+
+        // One tunnel for the whole trial, its buffers tuned during the warmup
+        int target = mTarget.port();
+        mSocket = new Socket();
+        mSocket.setSoTimeout(30000);
+        mSocket.connect(new InetSocketAddress("127.0.0.1", mLocal.port()));
+        OutputStream output = mSocket.getOutputStream();
+        mInput = new DataInputStream(mSocket.getInputStream());
+        byte[] response = new byte[10];
+        output.write(INITIAL);
+        mInput.readFully(response, 0, 2);
+        output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (target >> 8), (byte) target });
+        mInput.readFully(response, 0, 10);
+        if (response[1] != 0x00) {
+            throw new IOException("tunnel failed " + response[1]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        long local = (mLocal != null) ? mLocal.metrics().value("bdp.grow") : 0;
+        long server = (mServer != null) ? mServer.metrics().value("bdp.grow") : 0;
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mLocal != null) {
+            mLocal.stop();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mTarget.close();
+        if (mDelayed) {
+            mDelayed = false;
+            tc("del", "dev", "lo", "root");
+        }
+        if (bdpTuning && mServer != null && (local == 0 || server == 0)) {
+            throw new IllegalStateException("Buffers not grown, wsl-local " + local + " wsl-server " + server);
+        }
+    }
+
+    @Benchmark
+    public byte download() throws IOException {
+        mInput.readFully(mChunk);
+        return mChunk[0];
+    }
+
+    // Round trip of the TCP handshake, the delay netem adds to loopback
+    private static long connectMillis(int port) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    // Change the queueing discipline of an interface, fails with the output of tc
+    private static boolean tc(String... args) throws IOException {
+        String[] command = new String[args.length + 2];
+        command[0] = "tc";
+        command[1] = "qdisc";
+        System.arraycopy(args, 0, command, 2, args.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = readAll(process.getInputStream());
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(String.join(" ", command) + " failed: " + new String(output).trim());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.join(" ", command) + " interrupted");
+        }
+        return true;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = input.read(buffer)) > 0) {
+            output.write(buffer, 0, len);
+        }
+        return output.toByteArray();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Destination of the tunnels, writes to every connection as fast as it could
+    private static final class SourceServer implements Closeable {
+        private final ServerSocket mSocket;
+
+        SourceServer() throws IOException {
+            mSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    while (! mSocket.isClosed()) {
+                        try {
+                            final Socket socket = mSocket.accept();
+                            daemon(new Runnable() {
+                                @Override
+                                public void run() {
+                                    send(socket);
+                                }
+                            }, "source");
+                        } catch (IOException ex) {
+                            // Closed by tear down
+                        }
+                    }
+                }
+            }, "target");
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        private static void send(Socket socket) {
+            byte[] buffer = new byte[65536];
+            try (Socket s = socket) {
+                OutputStream output = s.getOutputStream();
+                while (true) {
+                    output.write(buffer);
+                }
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+}
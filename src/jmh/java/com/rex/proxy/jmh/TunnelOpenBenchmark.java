@@ -0,0 +1,120 @@
+package com.rex.proxy.jmh;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of opening a tunnel through wss, from the socks CONNECT request to its success reply, with many tunnels
+ * opening at the same time. Over HTTP/1.1 each tunnel pays its own TCP and TLS handshakes and the upgrade, over
+ * HTTP/2 it is one extended CONNECT stream on a connection already open, the raw transport skips the upgrade.
+ *
+ * gradle jmh -PjmhInclude=TunnelOpen
+ *
+ * Runs from the project directory, the server uses the test certificate in src/test/resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class TunnelOpenBenchmark {
+
+    private static final String CERT = "src/test/resources/test.cert.pem";
+    private static final String KEY = "src/test/resources/test.key.p8.pem";
+    private static final byte[] INITIAL = { 0x05, 0x01, 0x00 }; // NO_AUTH
+
+    @Param({ "ws", "h2", "tls" })
+    public String transport;
+
+    private ServerSocket mTarget;
+    private Thread mAcceptor;
+    private WslServer mServer;
+    private WslLocal mLocal;
+    private byte[] mCommand; // CONNECT 127.0.0.1:port
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Destination of the tunnels, accepts and closes, only the open is measured
+        mTarget = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        mAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (! mTarget.isClosed()) {
+                    try {
+                        mTarget.accept().close();
+                    } catch (IOException ex) {
+                        // Closed by tear down
+                    }
+                }
+            }
+        }, "target");
+        mAcceptor.start();
+
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0, CERT, KEY);
+        serverConf.http2 = "h2".equals(transport);
+        serverConf.transport = "tls".equals(transport) ? "raw" : "ws";
+        mServer = new WslServer().config(serverConf).start();
+
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0,
+                URI.create(("tls".equals(transport) ? "tls" : "wss") + "://127.0.0.1:" + mServer.port() + "/"), null);
+        localConf.proxyCertVerify = false;
+        localConf.proxyHttp2 = "h2".equals(transport);
+        mLocal = new WslLocal().config(localConf).start();
+
+        int port = mTarget.getLocalPort();
+        mCommand = new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (port >> 8), (byte) port };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mLocal.stop();
+        mServer.stop();
+        mTarget.close();
+        mAcceptor.join();
+    }
+
+    @Benchmark
+    public byte open() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(10000);
+            socket.connect(new InetSocketAddress("127.0.0.1", mLocal.port()));
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[10];
+            output.write(INITIAL);
+            input.readFully(response, 0, 2);
+            output.write(mCommand);
+            input.readFully(response, 0, 10);
+            if (response[1] != 0x00) {
+                throw new IOException("tunnel failed " + response[1]);
+            }
+            return response[1];
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.rex.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Signal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch the properties file, reload it when modified or SIGHUP received
+ *
+ * Editors usually write a file in several steps, the file is loaded after SETTLE_DELAY without further events,
+ * listener is called only if the loaded properties differ from the last ones. The file failed to load is skipped,
+ * keep running with the last good one.
+ */
+public class ConfigWatcher {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    private static final long SETTLE_DELAY = 200; // milliseconds
+
+    public interface Listener {
+        void onChanged(Properties config);
+    }
+
+    private final File mFile;
+    private final Listener mListener;
+    private Properties mLast;
+    private WatchService mWatchService;
+    private Thread mThread;
+
+    /**
+     * @param config The properties already applied, null to always notify the first load
+     */
+    public ConfigWatcher(File file, Properties config, Listener listener) {
+        sLogger.trace("<init> {}", file);
+        mFile = file.getAbsoluteFile();
+        mLast = (config != null) ? (Properties) config.clone() : null;
+        mListener = listener;
+    }
+
+    /**
+     * Start watching the file in a daemon thread
+     */
+    synchronized public ConfigWatcher start() throws IOException {
+        if (mThread != null) {
+            sLogger.warn("already started");
+            return this;
+        }
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        // Watch the directory, the file may be replaced by rename
+        mFile.getParentFile().toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        mWatchService = watchService;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(watchService);
+            }
+        }, "wsl-config");
+        mThread.setDaemon(true);
+        mThread.start();
+        return this;
+    }
+
+    /**
+     * Reload on the signal too, e.g. "HUP", ignored if the platform not support it
+     */
+    public ConfigWatcher signal(String name) {
+        try {
+            Signal.handle(new Signal(name), sig -> {
+                sLogger.info("Received SIG{}", sig.getName());
+                reload();
+            });
+        } catch (IllegalArgumentException ex) {
+            sLogger.warn("Signal {} not supported", name);
+        }
+        return this;
+    }
+
+    synchronized public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mWatchService.close();
+        } catch (IOException ex) {
+            sLogger.warn("Failed to close watch service\n", ex);
+        }
+        mThread.interrupt();
+        mThread = null;
+        mWatchService = null;
+    }
+
+    /**
+     * Load the file now, notify the listener if changed
+     *
+     * @return true if changed
+     */
+    public boolean reload() {
+        Properties config = new Properties();
+        try (InputStream is = new FileInputStream(mFile)) {
+            config.load(is);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.warn("Failed to load config file {}, keep the last one\n", mFile, ex);
+            return false;
+        }
+        synchronized (this) {
+            if (config.equals(mLast)) {
+                sLogger.debug("Config file {} not changed", mFile);
+                return false;
+            }
+            mLast = config;
+        }
+        sLogger.info("Config file {} changed", mFile);
+        try {
+            mListener.onChanged(config);
+        } catch (RuntimeException ex) {
+            sLogger.warn("Failed to apply config\n", ex);
+        }
+        return true;
+    }
+
+    private void watch(WatchService watchService) {
+        Path name = mFile.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= name.equals(event.context());
+                    }
+                    key.reset();
+                    // Wait until the writer finished
+                    key = watchService.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            sLogger.trace("watch stopped");
+        }
+    }
+}
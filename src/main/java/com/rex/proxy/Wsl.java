@@ -1,10 +1,16 @@
 package com.rex.proxy;
 
+import com.rex.proxy.route.IpDatabase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -85,6 +91,18 @@ public class Wsl {
     // Start proxy server
     public WslServer server(Properties config) {
         WslServer server = new WslServer();
+        try {
+            server.config(serverConfig(config));
+            server.start();
+            return server;
+        } catch (Throwable tr) {
+            sLogger.error("Failed to start server\n", tr);
+        }
+        return null;
+    }
+
+    // Parse proxy server configuration
+    public WslServer.Configuration serverConfig(Properties config) {
         WslServer.Configuration serverConf = new WslServer.Configuration();
         for (String name : config.stringPropertyNames()) {
             switch (name) {
@@ -106,27 +124,170 @@ public class Wsl {
             case "sslKeyPassword":
                 serverConf.sslKeyPassword = config.getProperty(name);
                 break;
+            case "transport":
+                serverConf.transport = config.getProperty(name);
+                break;
+            case "http2":
+                serverConf.http2 = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "quic":
+                serverConf.quic = Boolean.parseBoolean(config.getProperty(name));
+                break;
             case "proxyUid":
                 serverConf.proxyUid = config.getProperty(name);
                 break;
             case "proxyPath":
                 serverConf.proxyPath = config.getProperty(name);
                 break;
+            case "proxyUsers":
+                serverConf.proxyUsers = config.getProperty(name);
+                break;
+            case "proxyAuthAlgorithm":
+                serverConf.proxyAuthAlgorithm = config.getProperty(name);
+                break;
+            case "accountingFile":
+                serverConf.accountingFile = config.getProperty(name);
+                break;
+            case "accountingInterval":
+                serverConf.accountingInterval = Long.parseLong(config.getProperty(name));
+                break;
+            case "aclFile":
+                serverConf.aclFile = config.getProperty(name);
+                break;
+            case "aclDefault":
+                serverConf.aclDefault = config.getProperty(name);
+                break;
+            case "limitConnectionRate":
+                serverConf.limitConnectionRate = Double.parseDouble(config.getProperty(name));
+                break;
+            case "limitConnectionBurst":
+                serverConf.limitConnectionBurst = Integer.parseInt(config.getProperty(name));
+                break;
+            case "limitHandshakeRate":
+                serverConf.limitHandshakeRate = Double.parseDouble(config.getProperty(name));
+                break;
+            case "limitHandshakeBurst":
+                serverConf.limitHandshakeBurst = Integer.parseInt(config.getProperty(name));
+                break;
+            case "limitTunnelRate":
+                serverConf.limitTunnelRate = Double.parseDouble(config.getProperty(name));
+                break;
+            case "limitTunnelBurst":
+                serverConf.limitTunnelBurst = Integer.parseInt(config.getProperty(name));
+                break;
+            case "limitUserTunnelRate":
+                serverConf.limitUserTunnelRate = Double.parseDouble(config.getProperty(name));
+                break;
+            case "limitUserTunnelBurst":
+                serverConf.limitUserTunnelBurst = Integer.parseInt(config.getProperty(name));
+                break;
+            case "limitTunnels":
+                serverConf.limitTunnels = Integer.parseInt(config.getProperty(name));
+                break;
+            case "shapeGlobalUpload":
+                serverConf.shapeGlobalUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeGlobalDownload":
+                serverConf.shapeGlobalDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeUserUpload":
+                serverConf.shapeUserUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeUserDownload":
+                serverConf.shapeUserDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeTunnelUpload":
+                serverConf.shapeTunnelUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeTunnelDownload":
+                serverConf.shapeTunnelDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "idleTunnelTimeout":
+                serverConf.idleTunnelTimeout = Integer.parseInt(config.getProperty(name));
+                break;
+            case "idleOutboundTimeout":
+                serverConf.idleOutboundTimeout = Integer.parseInt(config.getProperty(name));
+                break;
+            case "keepaliveInterval":
+                serverConf.keepaliveInterval = Integer.parseInt(config.getProperty(name));
+                break;
+            case "keepaliveMisses":
+                serverConf.keepaliveMisses = Integer.parseInt(config.getProperty(name));
+                break;
+            case "overloadLagMillis":
+                serverConf.overloadLagMillis = Long.parseLong(config.getProperty(name));
+                break;
+            case "overloadPendingTasks":
+                serverConf.overloadPendingTasks = Integer.parseInt(config.getProperty(name));
+                break;
+            case "overloadDirectMemory":
+                serverConf.overloadDirectMemory = Long.parseLong(config.getProperty(name));
+                break;
+            case "loopThreads":
+                serverConf.loopThreads = Integer.parseInt(config.getProperty(name));
+                break;
+            case "loopMonitor":
+                serverConf.loopMonitor = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "loopChooser":
+                serverConf.loopChooser = config.getProperty(name);
+                break;
+            case "reusePort":
+                serverConf.reusePort = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "allocatorType":
+                serverConf.allocatorType = config.getProperty(name);
+                break;
+            case "allocatorDirect":
+                serverConf.allocatorDirect = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "allocatorArenas":
+                serverConf.allocatorArenas = Integer.parseInt(config.getProperty(name));
+                break;
+            case "allocatorChunkSize":
+                serverConf.allocatorChunkSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "allocatorThreadCache":
+                serverConf.allocatorThreadCache = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "bufferAccounting":
+                serverConf.bufferAccounting = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "trafficClassify":
+                serverConf.trafficClassify = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "trafficClassPorts":
+                serverConf.trafficClassPorts = config.getProperty(name);
+                break;
+            case "bdpTuning":
+                serverConf.bdpTuning = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "bdpMaxBuffer":
+                serverConf.bdpMaxBuffer = Integer.parseInt(config.getProperty(name));
+                break;
+            case "bdpMemoryLimit":
+                serverConf.bdpMemoryLimit = Long.parseLong(config.getProperty(name));
+                break;
             }
         }
+        return serverConf;
+    }
+
+    // Start proxy local
+    public WslLocal local(Properties config) {
+        WslLocal local = new WslLocal();
         try {
-            server.config(serverConf);
-            server.start();
-            return server;
+            local.config(localConfig(config));
+            local.start();
+            return local;
         } catch (Throwable tr) {
-            sLogger.error("Failed to start server\n", tr);
+            sLogger.error("Failed to start local\n", tr);
         }
         return null;
     }
 
-    // Start proxy local
-    public WslLocal local(Properties config) {
-        WslLocal local = new WslLocal();
+    // Parse proxy local configuration
+    public WslLocal.Configuration localConfig(Properties config) {
         WslLocal.Configuration localConf = new WslLocal.Configuration();
         for (String name : config.stringPropertyNames()) {
             switch (name) {
@@ -148,19 +309,131 @@ public class Wsl {
             case "proxyUid":
                 localConf.proxyUid = config.getProperty(name);
                 break;
+            case "proxyUser":
+                localConf.proxyUser = config.getProperty(name);
+                break;
             case "proxyCertVerify":
                 localConf.proxyCertVerify = Boolean.parseBoolean(config.getProperty(name));
                 break;
+            case "proxyHttp2":
+                localConf.proxyHttp2 = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "proxyUris":
+                localConf.proxyUris = new ArrayList<>();
+                for (String uri : config.getProperty(name).split(",")) {
+                    if (! uri.trim().isEmpty()) {
+                        localConf.proxyUris.add(URI.create(uri.trim()));
+                    }
+                }
+                break;
+            case "proxyBalance":
+                localConf.proxyBalance = config.getProperty(name);
+                break;
+            case "proxyHealthInterval":
+                localConf.proxyHealthInterval = Long.parseLong(config.getProperty(name));
+                break;
+            case "proxyRetries":
+                localConf.proxyRetries = Integer.parseInt(config.getProperty(name));
+                break;
+            case "proxyConnectTimeout":
+                localConf.proxyConnectTimeout = Integer.parseInt(config.getProperty(name));
+                break;
+            case "routeFile":
+                localConf.routeFile = config.getProperty(name);
+                break;
+            case "routeDefault":
+                localConf.routeDefault = config.getProperty(name);
+                break;
+            case "routeDatabase":
+                localConf.routeDatabase = config.getProperty(name);
+                break;
+            case "shapeGlobalUpload":
+                localConf.shapeGlobalUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeGlobalDownload":
+                localConf.shapeGlobalDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeUserUpload":
+                localConf.shapeUserUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeUserDownload":
+                localConf.shapeUserDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeTunnelUpload":
+                localConf.shapeTunnelUpload = Long.parseLong(config.getProperty(name));
+                break;
+            case "shapeTunnelDownload":
+                localConf.shapeTunnelDownload = Long.parseLong(config.getProperty(name));
+                break;
+            case "idleSocksTimeout":
+                localConf.idleSocksTimeout = Integer.parseInt(config.getProperty(name));
+                break;
+            case "idleTunnelTimeout":
+                localConf.idleTunnelTimeout = Integer.parseInt(config.getProperty(name));
+                break;
+            case "keepaliveInterval":
+                localConf.keepaliveInterval = Integer.parseInt(config.getProperty(name));
+                break;
+            case "keepaliveMisses":
+                localConf.keepaliveMisses = Integer.parseInt(config.getProperty(name));
+                break;
+            case "overloadLagMillis":
+                localConf.overloadLagMillis = Long.parseLong(config.getProperty(name));
+                break;
+            case "overloadPendingTasks":
+                localConf.overloadPendingTasks = Integer.parseInt(config.getProperty(name));
+                break;
+            case "overloadDirectMemory":
+                localConf.overloadDirectMemory = Long.parseLong(config.getProperty(name));
+                break;
+            case "loopThreads":
+                localConf.loopThreads = Integer.parseInt(config.getProperty(name));
+                break;
+            case "loopMonitor":
+                localConf.loopMonitor = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "loopChooser":
+                localConf.loopChooser = config.getProperty(name);
+                break;
+            case "reusePort":
+                localConf.reusePort = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "allocatorType":
+                localConf.allocatorType = config.getProperty(name);
+                break;
+            case "allocatorDirect":
+                localConf.allocatorDirect = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "allocatorArenas":
+                localConf.allocatorArenas = Integer.parseInt(config.getProperty(name));
+                break;
+            case "allocatorChunkSize":
+                localConf.allocatorChunkSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "allocatorThreadCache":
+                localConf.allocatorThreadCache = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "bufferAccounting":
+                localConf.bufferAccounting = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "trafficClassify":
+                localConf.trafficClassify = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "trafficClassPorts":
+                localConf.trafficClassPorts = config.getProperty(name);
+                break;
+            case "bdpTuning":
+                localConf.bdpTuning = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "bdpMaxBuffer":
+                localConf.bdpMaxBuffer = Integer.parseInt(config.getProperty(name));
+                break;
+            case "bdpMemoryLimit":
+                localConf.bdpMemoryLimit = Long.parseLong(config.getProperty(name));
+                break;
             }
         }
-        try {
-            local.config(localConf);
-            local.start();
-            return local;
-        } catch (Throwable tr) {
-            sLogger.error("Failed to start local\n", tr);
-        }
-        return null;
+        return localConf;
     }
 
     public static void main(String[] args) {
@@ -180,6 +453,10 @@ public class Wsl {
                 printHelp();
                 return;
             }
+            if ("--ipdb".equals(key) && idx + 1 < args.length) {
+                convert(args[idx], Arrays.asList(args).subList(idx + 1, args.length));
+                return;
+            }
         }
 
         try {
@@ -187,9 +464,15 @@ public class Wsl {
             config.load(new FileInputStream(configFile));
             String mode = config.getProperty("mode");
             if ("server".equalsIgnoreCase(mode)) {
-                wsl.server(config);
+                final WslServer server = wsl.server(config);
+                if (server != null) {
+                    watch(configFile, config, props -> server.reload(wsl.serverConfig(props)));
+                }
             } else if ("local".equalsIgnoreCase(mode)) {
-                wsl.local(config);
+                final WslLocal local = wsl.local(config);
+                if (local != null) {
+                    watch(configFile, config, props -> local.reload(wsl.localConfig(props)));
+                }
             } else {
                 sLogger.warn("Not specify mode");
             }
@@ -199,9 +482,30 @@ public class Wsl {
         }
     }
 
+    // Reload the config file when modified or SIGHUP received, mode could not be changed
+    private static void watch(String configFile, Properties config, ConfigWatcher.Listener listener) {
+        try {
+            new ConfigWatcher(new File(configFile), config, listener)
+                    .signal("HUP")
+                    .start();
+        } catch (IOException ex) {
+            sLogger.warn("Failed to watch config file " + configFile + "\n", ex);
+        }
+    }
+
+    // Convert text CIDR lists into the memory-mapped IP database for routeDatabase
+    private static void convert(String output, List<String> inputs) {
+        try {
+            IpDatabase.convert(new File(output), inputs);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.error("Failed to convert IP database - {}", ex.getMessage());
+        }
+    }
+
     private static void printHelp() {
         System.out.println("Usage: WslSocks [options]");
         System.out.println("    -c | --config   Configuration file");
         System.out.println("    -h | --help     Help page");
+        System.out.println("    --ipdb OUTPUT TAG=FILE|FILE...  Convert CIDR lists into IP database");
     }
 }
@@ -1,20 +1,36 @@
 package com.rex.proxy;
 
+import com.rex.proxy.buffer.Allocators;
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.buffer.BufferAccounting;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.metrics.Metrics;
+import com.rex.proxy.route.IpDatabase;
+import com.rex.proxy.route.RouteAction;
+import com.rex.proxy.route.Router;
 import com.rex.proxy.socks.SocksServerInitializer;
+import com.rex.proxy.socks.TrafficClassifier;
+import com.rex.proxy.websocket.WsUpstreamGroup;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Socks server
@@ -23,10 +39,16 @@ public class WslLocal {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WslLocal.class);
 
-    private final EventLoopGroup mBossGroup = new NioEventLoopGroup(1);
-    private final EventLoopGroup mWorkerGroup = new NioEventLoopGroup(); // Default use Runtime.getRuntime().availableProcessors() * 2
+    private WslRuntime mRuntime; // Event loops, allocator and timer, retained while started
 
+    private final Metrics mMetrics = new Metrics();
     private ChannelFuture mChannelFuture;
+    private final List<Channel> mAcceptors = new ArrayList<>(); // All the listening channels in reusePort mode
+    private TrafficShaping mShaping;
+    private OverloadDetector mOverload;
+    private WsUpstreamGroup mUpstreams;
+    private Router mRouter;
+    private SocksServerInitializer mInitializer;
 
     // Used for vpn support, protect form loop route to tun interface
     public interface SocketCallback {
@@ -40,8 +62,47 @@ public class WslLocal {
         public String authPassword;
         public URI proxyUri;
         public String proxyUid;
+        public String proxyUser; // Name in the proxyUsers of the server, proxyUid is then the secret of the user
         public Boolean proxyCertVerify; // Only works for WSS scheme
+        public Boolean proxyHttp2; // Open the tunnels as websocket streams over one shared HTTP/2 connection per upstream and event loop
+        public List<URI> proxyUris; // More upstreams besides proxyUri
+        public String proxyBalance; // "roundRobin", "leastActive", "ewma" or "hash" to choose the upstream of new tunnels
+        public Long proxyHealthInterval; // Milliseconds between the echo probes of every upstream, leave it null to skip
+        public Integer proxyRetries; // Retries on other upstreams if the tunnel failed to open, default 1
+        public Integer proxyConnectTimeout; // Milliseconds, default 15000
+        public String routeFile; // Split routing rules, leave it null to route everything by proxyUri
+        public String routeDefault; // "direct", "proxy" or "block" for destinations matched no rule, default proxy
+        public String routeDatabase; // IP database converted by Wsl --ipdb for geoip rules, memory-mapped
         public SocketCallback callback;
+        public Long shapeGlobalUpload; // Bytes per second of all clients, leave it null if unlimited
+        public Long shapeGlobalDownload;
+        public Long shapeUserUpload; // Bytes per second of each authUser
+        public Long shapeUserDownload;
+        public Long shapeTunnelUpload; // Bytes per second of each tunnel
+        public Long shapeTunnelDownload;
+        public Integer idleSocksTimeout; // Seconds neither read nor write to close a socks connection, default 900, 0 to keep
+        public Integer idleTunnelTimeout; // Seconds neither read nor write to close a websocket tunnel, default 900, 0 to keep
+        public Integer keepaliveInterval; // Seconds between the pings of each websocket tunnel, default 30, 0 to disable
+        public Integer keepaliveMisses; // Pings in a row without pong to close the tunnel, default 3
+        public Long overloadLagMillis; // Shed new tunnels when any worker event loop lag behind, leave it null to skip
+        public Integer overloadPendingTasks; // Shed new tunnels when any worker event loop queued too many tasks
+        public Long overloadDirectMemory; // Shed new tunnels when used direct memory in bytes exceeded
+        public Integer loopThreads; // Worker event loops, leave it null to use the netty default
+        public Boolean loopMonitor; // Track channels, bytes per second and task latency of each worker event loop
+        public String loopChooser; // "roundRobin" or "leastLoaded" to assign new connections, leastLoaded implies loopMonitor
+        public Boolean reusePort; // Bind one acceptor per worker event loop with SO_REUSEPORT, requires epoll
+        public String allocatorType; // "pooled" or "unpooled" buffer allocator, leave all allocator* null to use the netty default
+        public Boolean allocatorDirect; // Prefer direct buffers, default follows the platform
+        public Integer allocatorArenas; // Arenas of the pooled allocator, fewer arenas hold less memory while idle
+        public Integer allocatorChunkSize; // Bytes per chunk of the pooled allocator, page size times a power of 2
+        public Boolean allocatorThreadCache; // Cache freed buffers per event loop in the pooled allocator, default true
+        public Boolean bufferAccounting; // Count buffer references taken and given away by the relay handlers in metrics
+        public Boolean trafficClassify; // Classify tunnels as interactive or bulk, TCP_NODELAY and flush per read for interactive, Nagle and batched flush for bulk
+        public String trafficClassPorts; // Pin the class by destination port, like "22:interactive,873:bulk"
+        public Boolean bdpTuning; // Size the socket buffers, receive allocator, HTTP/2 windows and watermarks of each tunnel to its bandwidth-delay product
+        public Integer bdpMaxBuffer; // Bytes of the largest buffer of a tunnel, 8MB by default
+        public Long bdpMemoryLimit; // Bytes the tuned buffers of all the tunnels could reserve together, 256MB by default
+        public WslRuntime runtime; // Shared event loops, loop* and allocator* options above are ignored if set
         public Configuration() {
         }
         public Configuration(int port) {
@@ -63,7 +124,7 @@ public class WslLocal {
             authPassword = password;
         }
     }
-    private final Configuration mConfig = new Configuration("0.0.0.0", 1080);
+    private volatile Configuration mConfig = new Configuration("0.0.0.0", 1080); // Never modified once assigned
 
     /**
      * Construct the server
@@ -72,18 +133,163 @@ public class WslLocal {
         sLogger.trace("<init>");
     }
 
+    /**
+     * Configure before start, fields left null keep the current values
+     */
     synchronized public WslLocal config(Configuration conf) {
-        if (conf.bindAddress != null) mConfig.bindAddress = conf.bindAddress;
-        if (conf.bindPort != null) mConfig.bindPort = conf.bindPort;
-        if (conf.authUser != null) mConfig.authUser = conf.authUser;
-        if (conf.authPassword != null) mConfig.authPassword = conf.authPassword;
-        if (conf.proxyUri != null) mConfig.proxyUri = conf.proxyUri;
-        if (conf.proxyUid != null) mConfig.proxyUid = conf.proxyUid;
-        if (conf.proxyCertVerify != null) mConfig.proxyCertVerify = conf.proxyCertVerify;
-        if (conf.callback != null) mConfig.callback = conf.callback;
+        Configuration next = new Configuration();
+        merge(next, mConfig);
+        merge(next, conf);
+        mConfig = next;
+        return this;
+    }
+
+    private static void merge(Configuration dst, Configuration src) {
+        if (src.bindAddress != null) dst.bindAddress = src.bindAddress;
+        if (src.bindPort != null) dst.bindPort = src.bindPort;
+        if (src.authUser != null) dst.authUser = src.authUser;
+        if (src.authPassword != null) dst.authPassword = src.authPassword;
+        if (src.proxyUri != null) dst.proxyUri = src.proxyUri;
+        if (src.proxyUid != null) dst.proxyUid = src.proxyUid;
+        if (src.proxyUser != null) dst.proxyUser = src.proxyUser;
+        if (src.proxyCertVerify != null) dst.proxyCertVerify = src.proxyCertVerify;
+        if (src.proxyHttp2 != null) dst.proxyHttp2 = src.proxyHttp2;
+        if (src.proxyUris != null) dst.proxyUris = src.proxyUris;
+        if (src.proxyBalance != null) dst.proxyBalance = src.proxyBalance;
+        if (src.proxyHealthInterval != null) dst.proxyHealthInterval = src.proxyHealthInterval;
+        if (src.proxyRetries != null) dst.proxyRetries = src.proxyRetries;
+        if (src.proxyConnectTimeout != null) dst.proxyConnectTimeout = src.proxyConnectTimeout;
+        if (src.routeFile != null) dst.routeFile = src.routeFile;
+        if (src.routeDefault != null) dst.routeDefault = src.routeDefault;
+        if (src.routeDatabase != null) dst.routeDatabase = src.routeDatabase;
+        if (src.callback != null) dst.callback = src.callback;
+        if (src.shapeGlobalUpload != null) dst.shapeGlobalUpload = src.shapeGlobalUpload;
+        if (src.shapeGlobalDownload != null) dst.shapeGlobalDownload = src.shapeGlobalDownload;
+        if (src.shapeUserUpload != null) dst.shapeUserUpload = src.shapeUserUpload;
+        if (src.shapeUserDownload != null) dst.shapeUserDownload = src.shapeUserDownload;
+        if (src.shapeTunnelUpload != null) dst.shapeTunnelUpload = src.shapeTunnelUpload;
+        if (src.shapeTunnelDownload != null) dst.shapeTunnelDownload = src.shapeTunnelDownload;
+        if (src.idleSocksTimeout != null) dst.idleSocksTimeout = src.idleSocksTimeout;
+        if (src.idleTunnelTimeout != null) dst.idleTunnelTimeout = src.idleTunnelTimeout;
+        if (src.keepaliveInterval != null) dst.keepaliveInterval = src.keepaliveInterval;
+        if (src.keepaliveMisses != null) dst.keepaliveMisses = src.keepaliveMisses;
+        if (src.overloadLagMillis != null) dst.overloadLagMillis = src.overloadLagMillis;
+        if (src.overloadPendingTasks != null) dst.overloadPendingTasks = src.overloadPendingTasks;
+        if (src.overloadDirectMemory != null) dst.overloadDirectMemory = src.overloadDirectMemory;
+        if (src.loopThreads != null) dst.loopThreads = src.loopThreads;
+        if (src.loopMonitor != null) dst.loopMonitor = src.loopMonitor;
+        if (src.loopChooser != null) dst.loopChooser = src.loopChooser;
+        if (src.reusePort != null) dst.reusePort = src.reusePort;
+        if (src.allocatorType != null) dst.allocatorType = src.allocatorType;
+        if (src.allocatorDirect != null) dst.allocatorDirect = src.allocatorDirect;
+        if (src.allocatorArenas != null) dst.allocatorArenas = src.allocatorArenas;
+        if (src.allocatorChunkSize != null) dst.allocatorChunkSize = src.allocatorChunkSize;
+        if (src.allocatorThreadCache != null) dst.allocatorThreadCache = src.allocatorThreadCache;
+        if (src.bufferAccounting != null) dst.bufferAccounting = src.bufferAccounting;
+        if (src.trafficClassify != null) dst.trafficClassify = src.trafficClassify;
+        if (src.trafficClassPorts != null) dst.trafficClassPorts = src.trafficClassPorts;
+        if (src.bdpTuning != null) dst.bdpTuning = src.bdpTuning;
+        if (src.bdpMaxBuffer != null) dst.bdpMaxBuffer = src.bdpMaxBuffer;
+        if (src.bdpMemoryLimit != null) dst.bdpMemoryLimit = src.bdpMemoryLimit;
+        if (src.runtime != null) dst.runtime = src.runtime;
+    }
+
+    /**
+     * Replace the configuration of the running server, fields left null fall back to the defaults
+     *
+     * Only new connections use the new configuration, existing tunnels are left alone.
+     * auth*, proxy*, route*, idle*, keepalive*, callback and shape* are applied, changes of the others require restart,
+     * they are ignored with a warning. The route rules file is loaded again on every reload.
+     */
+    synchronized public WslLocal reload(Configuration conf) {
+        if (mChannelFuture == null) {
+            return config(conf);
+        }
+        Configuration current = mConfig;
+        Configuration next = new Configuration("0.0.0.0", 1080);
+        merge(next, conf);
+        next.bindAddress = fixed("bindAddress", current.bindAddress, next.bindAddress);
+        next.bindPort = fixed("bindPort", current.bindPort, next.bindPort);
+        next.overloadLagMillis = fixed("overloadLagMillis", current.overloadLagMillis, next.overloadLagMillis);
+        next.overloadPendingTasks = fixed("overloadPendingTasks", current.overloadPendingTasks, next.overloadPendingTasks);
+        next.overloadDirectMemory = fixed("overloadDirectMemory", current.overloadDirectMemory, next.overloadDirectMemory);
+        next.loopThreads = fixed("loopThreads", current.loopThreads, next.loopThreads);
+        next.loopMonitor = fixed("loopMonitor", current.loopMonitor, next.loopMonitor);
+        next.loopChooser = fixed("loopChooser", current.loopChooser, next.loopChooser);
+        next.reusePort = fixed("reusePort", current.reusePort, next.reusePort);
+        next.allocatorType = fixed("allocatorType", current.allocatorType, next.allocatorType);
+        next.allocatorDirect = fixed("allocatorDirect", current.allocatorDirect, next.allocatorDirect);
+        next.allocatorArenas = fixed("allocatorArenas", current.allocatorArenas, next.allocatorArenas);
+        next.allocatorChunkSize = fixed("allocatorChunkSize", current.allocatorChunkSize, next.allocatorChunkSize);
+        next.allocatorThreadCache = fixed("allocatorThreadCache", current.allocatorThreadCache, next.allocatorThreadCache);
+        next.bufferAccounting = fixed("bufferAccounting", current.bufferAccounting, next.bufferAccounting);
+        next.trafficClassify = fixed("trafficClassify", current.trafficClassify, next.trafficClassify);
+        next.trafficClassPorts = fixed("trafficClassPorts", current.trafficClassPorts, next.trafficClassPorts);
+        next.bdpTuning = fixed("bdpTuning", current.bdpTuning, next.bdpTuning);
+        next.bdpMaxBuffer = fixed("bdpMaxBuffer", current.bdpMaxBuffer, next.bdpMaxBuffer);
+        next.bdpMemoryLimit = fixed("bdpMemoryLimit", current.bdpMemoryLimit, next.bdpMemoryLimit);
+        next.runtime = fixed("runtime", current.runtime, next.runtime);
+
+        WsUpstreamGroup upstreams = mUpstreams;
+        if (! Objects.equals(current.proxyUri, next.proxyUri)
+                || !Objects.equals(current.proxyUris, next.proxyUris)
+                || !Objects.equals(current.proxyBalance, next.proxyBalance)
+                || !Objects.equals(current.proxyCertVerify, next.proxyCertVerify)
+                || !Objects.equals(current.proxyHttp2, next.proxyHttp2)
+                || !Objects.equals(current.proxyHealthInterval, next.proxyHealthInterval)) {
+            List<URI> uris = upstreamUris(next);
+            if (uris == null || !isValidBalance(next.proxyBalance)) {
+                sLogger.warn("Keep the current upstreams {}", (mUpstreams != null) ? mUpstreams.upstreams() : null);
+                next.proxyUri = current.proxyUri;
+                next.proxyUris = current.proxyUris;
+                next.proxyBalance = current.proxyBalance;
+                next.proxyCertVerify = current.proxyCertVerify;
+                next.proxyHttp2 = current.proxyHttp2;
+                next.proxyHealthInterval = current.proxyHealthInterval;
+            } else {
+                // Stop the old one first, it removes the metrics with the same names
+                if (mUpstreams != null) {
+                    mUpstreams.stop();
+                }
+                upstreams = newUpstreams(next, uris);
+            }
+        }
+
+        Router router;
+        try {
+            router = newRouter(next);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.warn("Keep the current route rules, failed to load {} - {}", next.routeFile, ex.getMessage());
+            next.routeFile = current.routeFile;
+            next.routeDefault = current.routeDefault;
+            next.routeDatabase = current.routeDatabase;
+            router = mRouter;
+        }
+
+        mShaping.update(next.shapeGlobalUpload, next.shapeGlobalDownload,
+                next.shapeUserUpload, next.shapeUserDownload,
+                next.shapeTunnelUpload, next.shapeTunnelDownload);
+        WsUpstreamGroup retired = (upstreams != mUpstreams) ? mUpstreams : null;
+        mConfig = next;
+        mUpstreams = upstreams;
+        mRouter = router;
+        mInitializer.update(next, upstreams, router);
+        if (retired != null) {
+            // New tunnels choose from the new group now, the ones on the old connections finish first
+            retired.close();
+        }
+        mMetrics.counter("config.reload").increment();
+        sLogger.info("Configuration reloaded");
         return this;
     }
 
+    private static <T> T fixed(String name, T current, T next) {
+        if (! Objects.equals(current, next)) {
+            sLogger.warn("{} changed from {} to {}, ignored until restart", name, current, next);
+        }
+        return current;
+    }
+
     /**
      * Start the socks5 server
      */
@@ -93,47 +299,177 @@ public class WslLocal {
             return this;
         }
 
-        if (mConfig.proxyUri != null) {
-            String scheme = mConfig.proxyUri.getScheme() == null ? "ws" : mConfig.proxyUri.getScheme();
-            final String host = mConfig.proxyUri.getHost() == null ? "127.0.0.1" : mConfig.proxyUri.getHost();
-            final int port;
-            if (mConfig.proxyUri.getPort() == -1) {
-                if ("ws".equalsIgnoreCase(scheme)) {
-                    port = 80;
-                } else if ("wss".equalsIgnoreCase(scheme)) {
-                    port = 443;
-                } else {
-                    port = -1;
-                }
-            } else {
-                port = mConfig.proxyUri.getPort();
-            }
-            if (port == -1) {
-                sLogger.error("Unknown port");
-                return this;
+        List<URI> uris = upstreamUris(mConfig);
+        if (uris == null || !isValidBalance(mConfig.proxyBalance)) {
+            return this;
+        }
+        try {
+            mRouter = newRouter(mConfig);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.error("Failed to load route rules {} - {}", mConfig.routeFile, ex.getMessage());
+            return this;
+        }
+
+        TrafficClassifier.Policy trafficPolicy;
+        try {
+            trafficPolicy = TrafficClassifier.newPolicy(mConfig.trafficClassify, mConfig.trafficClassPorts, mMetrics);
+        } catch (IllegalArgumentException ex) {
+            sLogger.error("Invalid traffic class ports {} - {}", mConfig.trafficClassPorts, ex.getMessage());
+            return this;
+        }
+        BdpTuner.Policy bdpPolicy;
+        try {
+            bdpPolicy = BdpTuner.newPolicy(mConfig.bdpTuning, mConfig.bdpMaxBuffer, mConfig.bdpMemoryLimit, mMetrics);
+        } catch (IllegalArgumentException ex) {
+            sLogger.error("Invalid bdp tuning options - {}", ex.getMessage());
+            return this;
+        }
+
+        if (mConfig.runtime != null) {
+            mRuntime = mConfig.runtime.retain();
+            if (Boolean.TRUE.equals(mConfig.reusePort) && !mRuntime.isEpoll()) {
+                sLogger.warn("reusePort requires runtime with epoll transport, fallback to single acceptor");
             }
-            if (!"ws".equalsIgnoreCase(scheme) && !"wss".equalsIgnoreCase(scheme)) {
-                sLogger.error("Only WS(S) is supported.");
+        } else {
+            WslRuntime.Configuration runtimeConf = new WslRuntime.Configuration();
+            runtimeConf.workerThreads = mConfig.loopThreads;
+            runtimeConf.loopMonitor = mConfig.loopMonitor;
+            runtimeConf.loopChooser = mConfig.loopChooser;
+            runtimeConf.epoll = mConfig.reusePort;
+            try {
+                runtimeConf.allocator = Allocators.newAllocator(mConfig.allocatorType, mConfig.allocatorDirect,
+                        mConfig.allocatorArenas, mConfig.allocatorChunkSize, mConfig.allocatorThreadCache);
+            } catch (IllegalArgumentException ex) {
+                sLogger.error("Invalid allocator options - {}", ex.getMessage());
                 return this;
             }
-            sLogger.trace("scheme:{} host:{} port:{}", scheme, host, port);
+            mRuntime = new WslRuntime(runtimeConf, mMetrics);
         }
+        EventLoopGroup workerGroup = mRuntime.workerGroup();
+        mShaping = new TrafficShaping(workerGroup,
+                mConfig.shapeGlobalUpload, mConfig.shapeGlobalDownload,
+                mConfig.shapeUserUpload, mConfig.shapeUserDownload,
+                mConfig.shapeTunnelUpload, mConfig.shapeTunnelDownload,
+                mMetrics);
+        mOverload = new OverloadDetector(workerGroup, mRuntime.bossGroup().next(), mRuntime.allocator(),
+                mConfig.overloadLagMillis, mConfig.overloadPendingTasks, mConfig.overloadDirectMemory,
+                mMetrics)
+                .start();
+        mUpstreams = newUpstreams(mConfig, uris);
 
+        mInitializer = new SocksServerInitializer(mConfig, mShaping, mOverload, mRuntime.loopMonitor(), mRuntime.idleSweeper(), mRuntime.keepalive(), mUpstreams, mRouter);
+        BufferAccounting bufferAccounting = Boolean.TRUE.equals(mConfig.bufferAccounting) ? new BufferAccounting(mMetrics) : null;
         ServerBootstrap bootstrap = new ServerBootstrap()
-                .group(mBossGroup, mWorkerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(EventLoops.serverSocketChannel(workerGroup))
+                .option(ChannelOption.ALLOCATOR, mRuntime.allocator())
                 .handler(new LoggingHandler(LogLevel.INFO))
-                .childHandler(new SocksServerInitializer(mConfig))
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .childHandler(mInitializer)
+                .childOption(ChannelOption.ALLOCATOR, mRuntime.allocator())
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childAttr(BufferAccounting.KEY, bufferAccounting)
+                .childAttr(TrafficClassifier.POLICY, trafficPolicy)
+                .childAttr(BdpTuner.POLICY, bdpPolicy);
 
-        mChannelFuture = bootstrap
-                .bind(new InetSocketAddress(mConfig.bindAddress, mConfig.bindPort))
-                .syncUninterruptibly();
+        InetSocketAddress address = new InetSocketAddress(mConfig.bindAddress, mConfig.bindPort);
+        try {
+            if (Boolean.TRUE.equals(mConfig.reusePort) && mRuntime.isEpoll()) {
+                mAcceptors.addAll(EventLoops.bindReusePort(bootstrap, workerGroup, address));
+                mChannelFuture = mAcceptors.get(0).newSucceededFuture();
+            } else {
+                mChannelFuture = bootstrap
+                        .group(mRuntime.bossGroup(), workerGroup)
+                        .bind(address)
+                        .syncUninterruptibly();
+            }
+        } catch (Throwable tr) {
+            // Bind failed, give back the runtime
+            release();
+            throw tr;
+        }
 
         sLogger.info("Bind address:{}", mChannelFuture.channel().localAddress());
         return this;
     }
 
+    // Upstreams in configured order, proxyUri first, empty if direct mode, null if any invalid
+    private static List<URI> upstreamUris(Configuration conf) {
+        List<URI> uris = new ArrayList<>();
+        if (conf.proxyUri != null) {
+            uris.add(conf.proxyUri);
+        }
+        if (conf.proxyUris != null) {
+            uris.addAll(conf.proxyUris);
+        }
+        for (URI uri : uris) {
+            if (! isValidProxyUri(uri)) {
+                return null;
+            }
+        }
+        return uris;
+    }
+
+    private static boolean isValidBalance(String balance) {
+        if (balance == null || "roundRobin".equalsIgnoreCase(balance) || "leastActive".equalsIgnoreCase(balance)
+                || "ewma".equalsIgnoreCase(balance) || "hash".equalsIgnoreCase(balance)) {
+            return true;
+        }
+        sLogger.error("Unknown proxyBalance {}", balance);
+        return false;
+    }
+
+    private WsUpstreamGroup newUpstreams(Configuration conf, List<URI> uris) {
+        if (uris.isEmpty()) {
+            return null;
+        }
+        WsUpstreamGroup upstreams = new WsUpstreamGroup(uris, conf.proxyBalance, Boolean.TRUE.equals(conf.proxyCertVerify),
+                Boolean.TRUE.equals(conf.proxyHttp2), mMetrics);
+        if (conf.proxyHealthInterval != null && conf.proxyHealthInterval > 0) {
+            upstreams.startHealthCheck(mRuntime.workerGroup(), conf.proxyHealthInterval);
+        } else if ("ewma".equalsIgnoreCase(conf.proxyBalance)) {
+            sLogger.warn("ewma balance measures the round trip time by health check, set proxyHealthInterval");
+        }
+        return upstreams;
+    }
+
+    private Router newRouter(Configuration conf) throws IOException {
+        if (conf.routeFile == null && conf.routeDefault == null) {
+            return null;
+        }
+        RouteAction defaultAction = (conf.routeDefault != null) ? RouteAction.parse(conf.routeDefault) : RouteAction.PROXY;
+        // Map again on every load, the converter replaces the file instead of writing in place
+        IpDatabase database = (conf.routeDatabase != null) ? IpDatabase.open(new File(conf.routeDatabase)) : null;
+        return Router.load((conf.routeFile != null) ? new File(conf.routeFile) : null, database, defaultAction, mMetrics);
+    }
+
+    private static boolean isValidProxyUri(URI uri) {
+        String scheme = uri.getScheme() == null ? "ws" : uri.getScheme();
+        final String host = uri.getHost() == null ? "127.0.0.1" : uri.getHost();
+        final int port;
+        if (uri.getPort() == -1) {
+            if ("ws".equalsIgnoreCase(scheme)) {
+                port = 80;
+            } else if ("wss".equalsIgnoreCase(scheme)) {
+                port = 443;
+            } else {
+                port = -1;
+            }
+        } else {
+            port = uri.getPort();
+        }
+        if (port == -1) {
+            sLogger.error("Unknown port");
+            return false;
+        }
+        if (!"ws".equalsIgnoreCase(scheme) && !"wss".equalsIgnoreCase(scheme)
+                && !"tls".equalsIgnoreCase(scheme) && !"tcp".equalsIgnoreCase(scheme)
+                && !"quic".equalsIgnoreCase(scheme)) {
+            sLogger.error("Only WS(S), TLS, TCP and QUIC are supported.");
+            return false;
+        }
+        sLogger.trace("scheme:{} host:{} port:{}", scheme, host, port);
+        return true;
+    }
+
     /**
      * Stop the socks5 server
      */
@@ -147,9 +483,37 @@ public class WslLocal {
                 .close()
                 .syncUninterruptibly();
         mChannelFuture = null;
+        for (Channel acceptor : mAcceptors) {
+            acceptor.close().syncUninterruptibly();
+        }
+        mAcceptors.clear();
+        // The runtime may be shared, its loops outlive this instance
+        mInitializer.close().awaitUninterruptibly();
+
+        release();
         return this;
     }
 
+    private void release() {
+        if (mUpstreams != null) {
+            mUpstreams.stop();
+            mUpstreams.close();
+            mUpstreams = null;
+        }
+        mShaping.release();
+        mShaping = null;
+        mOverload.stop();
+        mOverload = null;
+        mInitializer = null;
+        mRouter = null;
+        mRuntime.release(); // Event loops shutdown gracefully if it is the last reference
+        mRuntime = null;
+    }
+
+    public Metrics metrics() {
+        return mMetrics;
+    }
+
     public int port() {
         try {
             return ((InetSocketAddress) mChannelFuture.channel().localAddress()).getPort();
@@ -0,0 +1,184 @@
+package com.rex.proxy;
+
+import com.rex.proxy.buffer.Allocators;
+import com.rex.proxy.loop.EventLoopMonitor;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.websocket.WsKeepalive;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop groups, allocator, timer, idle sweeper and websocket keepalive shared by WslLocal and WslServer instances in one process
+ *
+ * Reference counted, the creator owns the first reference. Every WslLocal or WslServer configured with it
+ * retains it when started and releases it when stopped, the event loops are shut down gracefully and the timer
+ * stopped once the last reference released.
+ *
+ * WslLocal and WslServer create a private runtime from their own configuration if none configured.
+ */
+public class WslRuntime extends AbstractReferenceCounted {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WslRuntime.class);
+
+    private static final long SHUTDOWN_QUIET_PERIOD = 100; // milliseconds
+    private static final long SHUTDOWN_TIMEOUT = 5000; // milliseconds
+    private static final long IDLE_TICK = 1000; // milliseconds
+
+    public static class Configuration {
+        public Integer bossThreads; // Event loops accept connections, default 1
+        public Integer workerThreads; // Worker event loops, leave it null to use the netty default
+        public Boolean loopMonitor; // Track channels, bytes per second and task latency of each worker event loop
+        public String loopChooser; // "roundRobin" or "leastLoaded" to assign new connections, leastLoaded implies loopMonitor
+        public Boolean epoll; // Use native epoll transport if available, required by reusePort
+        public ByteBufAllocator allocator; // Leave it null to use the netty default
+        public Configuration() {
+        }
+        public Configuration(int workers) {
+            workerThreads = workers;
+        }
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("<@");
+            builder.append(Integer.toHexString(hashCode()));
+            builder.append(" bossThreads:").append(bossThreads);
+            builder.append(" workerThreads:").append(workerThreads);
+            builder.append(" loopMonitor:").append(loopMonitor);
+            builder.append(" loopChooser:").append(loopChooser);
+            builder.append(" epoll:").append(epoll);
+            builder.append(" allocator:").append(allocator);
+            builder.append(">");
+            return builder.toString();
+        }
+    }
+
+    private final Metrics mMetrics;
+    private final boolean mEpoll;
+    private final EventLoopGroup mBossGroup;
+    private final EventLoopGroup mWorkerGroup;
+    private final EventLoopMonitor mLoopMonitor;
+    private final ByteBufAllocator mAllocator;
+    private final HashedWheelTimer mTimer;
+    private final IdleSweeper mIdleSweeper;
+    private final WsKeepalive mKeepalive;
+
+    public WslRuntime() {
+        this(new Configuration());
+    }
+
+    public WslRuntime(Configuration conf) {
+        this(conf, new Metrics());
+    }
+
+    /**
+     * @param metrics Export the allocator usage, and the event loop stats if monitored
+     */
+    public WslRuntime(Configuration conf, Metrics metrics) {
+        sLogger.trace("<init> {}", conf);
+        mMetrics = metrics;
+        mEpoll = Boolean.TRUE.equals(conf.epoll) && EventLoops.isEpollAvailable();
+        if (Boolean.TRUE.equals(conf.epoll) && !mEpoll) {
+            sLogger.warn("epoll transport not available, fallback to NIO");
+        }
+
+        boolean leastLoaded = "leastLoaded".equalsIgnoreCase(conf.loopChooser);
+        mLoopMonitor = (leastLoaded || Boolean.TRUE.equals(conf.loopMonitor)) ? new EventLoopMonitor(metrics) : null;
+        mBossGroup = EventLoops.newEventLoopGroup((conf.bossThreads != null) ? conf.bossThreads : 1, null, mEpoll);
+        mWorkerGroup = EventLoops.newEventLoopGroup(conf.workerThreads, leastLoaded ? mLoopMonitor : null, mEpoll);
+        if (mLoopMonitor != null) {
+            mLoopMonitor.register(mWorkerGroup)
+                    .start(mBossGroup.next());
+        }
+        mAllocator = (conf.allocator != null) ? conf.allocator : ByteBufAllocator.DEFAULT;
+        Allocators.export(mAllocator, metrics);
+        mTimer = new HashedWheelTimer(new DefaultThreadFactory("wsl-timer", true));
+        mIdleSweeper = new IdleSweeper(mTimer, IDLE_TICK, metrics).start();
+        mKeepalive = new WsKeepalive(mTimer, metrics);
+    }
+
+    public EventLoopGroup bossGroup() {
+        return mBossGroup;
+    }
+
+    public EventLoopGroup workerGroup() {
+        return mWorkerGroup;
+    }
+
+    /**
+     * @return null if event loops not monitored
+     */
+    public EventLoopMonitor loopMonitor() {
+        return mLoopMonitor;
+    }
+
+    public ByteBufAllocator allocator() {
+        return mAllocator;
+    }
+
+    public Timer timer() {
+        return mTimer;
+    }
+
+    /**
+     * Close idle channels of all the instances on this runtime
+     */
+    public IdleSweeper idleSweeper() {
+        return mIdleSweeper;
+    }
+
+    /**
+     * Ping the websocket tunnels of all the instances on this runtime
+     */
+    public WsKeepalive keepalive() {
+        return mKeepalive;
+    }
+
+    public Metrics metrics() {
+        return mMetrics;
+    }
+
+    public boolean isEpoll() {
+        return mEpoll;
+    }
+
+    /**
+     * Completed once all the event loops terminated after the last reference released
+     */
+    public Future<?> terminationFuture() {
+        return mWorkerGroup.terminationFuture();
+    }
+
+    @Override
+    public WslRuntime retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public WslRuntime touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        sLogger.trace("deallocate");
+        if (mLoopMonitor != null) {
+            mLoopMonitor.stop();
+        }
+        mIdleSweeper.stop();
+        mTimer.stop();
+        mBossGroup.shutdownGracefully(SHUTDOWN_QUIET_PERIOD, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        mWorkerGroup.shutdownGracefully(SHUTDOWN_QUIET_PERIOD, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,28 +1,57 @@
 package com.rex.proxy;
 
+import com.rex.proxy.auth.UserAccounting;
+import com.rex.proxy.auth.UserStore;
+import com.rex.proxy.buffer.Allocators;
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.buffer.BufferAccounting;
+import com.rex.proxy.limit.AdmissionControl;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.metrics.Metrics;
+import com.rex.proxy.route.DestinationAcl;
+import com.rex.proxy.socks.TrafficClassifier;
+import com.rex.proxy.websocket.WsQuic;
+import com.rex.proxy.websocket.WsServerDrain;
 import com.rex.proxy.websocket.WsServerInitializer;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.quic.Quic;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * WebSocket proxy server
@@ -31,10 +60,22 @@ public class WslServer {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WslServer.class);
 
-    private final EventLoopGroup mBossGroup = new NioEventLoopGroup(1);
-    private final EventLoopGroup mWorkerGroup = new NioEventLoopGroup(); // Default use Runtime.getRuntime().availableProcessors() * 2
+    private WslRuntime mRuntime; // Event loops, allocator and timer, retained while started
 
+    private final Metrics mMetrics = new Metrics();
     private ChannelFuture mChannelFuture;
+    private final List<Channel> mAcceptors = new ArrayList<>(); // All the listening channels in reusePort mode
+    private Channel mQuicChannel; // UDP socket of QUIC, null if not enabled
+    private TrafficShaping mShaping;
+    private OverloadDetector mOverload;
+    private WsServerDrain mDrain;
+    private AdmissionControl mAdmission;
+    private SslContext mSslContext;
+    private UserStore mUsers;
+    private ControlAuthenticator mAuth; // Of proxyUid, null if not set
+    private UserAccounting mAccounting;
+    private DestinationAcl mAcl;
+    private WsServerInitializer mInitializer;
 
     public static class Configuration {
         public String bindAddress;
@@ -43,8 +84,55 @@ public class WslServer {
         public String sslCert;
         public String sslKey; // In PKCS8 format
         public String sslKeyPassword; // Leave it null if key not encrypted
+        public String transport; // "ws" (default) websocket tunnels, "raw" binary control messages then the bytes as is, over TLS with ssl
+        public Boolean http2; // Accept tunnels as websocket streams over HTTP/2, negotiated by ALPN with ssl or prior knowledge without
+        public Boolean quic; // Also accept raw tunnels as QUIC streams on the same port number by UDP, TLS by sslCert and sslKey or self-signed
         public String proxyUid; // Leave it null if do not need auth
         public String proxyPath; // Leave it null if accept all http path upgrading
+        public String proxyUsers; // Users file of "name,secret" lines, clients send the name with the token signed by the secret
+        public String proxyAuthAlgorithm; // "hs256" (default), "hs384" or "hs512" to sign the tokens, sent to clients in hello
+        public String accountingFile; // Persist the tunnels and bytes of each user, leave it null to count in memory only
+        public Long accountingInterval; // Milliseconds between the flushes of accountingFile, default 10000
+        public String aclFile; // Destination ACL rules of the tunnels, leave it null to allow all
+        public String aclDefault; // "allow" or "deny" for destinations matched no rule, default allow
+        public Double limitConnectionRate; // New connections per second from one address, leave it null if unlimited
+        public Integer limitConnectionBurst; // Default same as the rate
+        public Double limitHandshakeRate; // WebSocket handshakes per second from one address
+        public Integer limitHandshakeBurst;
+        public Double limitTunnelRate; // Tunnel opens per second from one address
+        public Integer limitTunnelBurst;
+        public Double limitUserTunnelRate; // Tunnel opens per second by one user
+        public Integer limitUserTunnelBurst;
+        public Integer limitTunnels; // Concurrent tunnels in total
+        public Long shapeGlobalUpload; // Bytes per second of all clients, leave it null if unlimited
+        public Long shapeGlobalDownload;
+        public Long shapeUserUpload; // Bytes per second of each user
+        public Long shapeUserDownload;
+        public Long shapeTunnelUpload; // Bytes per second of each tunnel
+        public Long shapeTunnelDownload;
+        public Integer idleTunnelTimeout; // Seconds neither read nor write to close a client connection, default 900, 0 to keep
+        public Integer idleOutboundTimeout; // Seconds neither read nor write to close a connection to the destination, default 900
+        public Integer keepaliveInterval; // Seconds between the pings of each client connection, default 30, 0 to disable
+        public Integer keepaliveMisses; // Pings in a row without pong to close the connection, default 3
+        public Long overloadLagMillis; // Shed new tunnels when any worker event loop lag behind, leave it null to skip
+        public Integer overloadPendingTasks; // Shed new tunnels when any worker event loop queued too many tasks
+        public Long overloadDirectMemory; // Shed new tunnels when used direct memory in bytes exceeded
+        public Integer loopThreads; // Worker event loops, leave it null to use the netty default
+        public Boolean loopMonitor; // Track channels, bytes per second and task latency of each worker event loop
+        public String loopChooser; // "roundRobin" or "leastLoaded" to assign new connections, leastLoaded implies loopMonitor
+        public Boolean reusePort; // Bind one acceptor per worker event loop with SO_REUSEPORT, requires epoll
+        public String allocatorType; // "pooled" or "unpooled" buffer allocator, leave all allocator* null to use the netty default
+        public Boolean allocatorDirect; // Prefer direct buffers, default follows the platform
+        public Integer allocatorArenas; // Arenas of the pooled allocator, fewer arenas hold less memory while idle
+        public Integer allocatorChunkSize; // Bytes per chunk of the pooled allocator, page size times a power of 2
+        public Boolean allocatorThreadCache; // Cache freed buffers per event loop in the pooled allocator, default true
+        public Boolean bufferAccounting; // Count buffer references taken and given away by the relay handlers in metrics
+        public Boolean trafficClassify; // Classify tunnels as interactive or bulk, TCP_NODELAY and flush per read for interactive, Nagle and batched flush for bulk
+        public String trafficClassPorts; // Pin the class by destination port, like "22:interactive,873:bulk"
+        public Boolean bdpTuning; // Size the socket buffers, receive allocator, HTTP/2 windows and watermarks of each tunnel to its bandwidth-delay product
+        public Integer bdpMaxBuffer; // Bytes of the largest buffer of a tunnel, 8MB by default
+        public Long bdpMemoryLimit; // Bytes the tuned buffers of all the tunnels could reserve together, 256MB by default
+        public WslRuntime runtime; // Shared event loops, loop* and allocator* options above are ignored if set
         public Configuration() {
         }
         public Configuration(int port) {
@@ -75,13 +163,60 @@ public class WslServer {
             builder.append(" sslCert:").append(sslCert);
             builder.append(" sslKey:").append(sslKey);
             builder.append(" sslKeyPassword:").append(sslKeyPassword);
+            builder.append(" transport:").append(transport);
+            builder.append(" http2:").append(http2);
+            builder.append(" quic:").append(quic);
             builder.append(" proxyUid:").append(proxyUid);
             builder.append(" proxyPath:").append(proxyPath);
+            builder.append(" proxyUsers:").append(proxyUsers);
+            builder.append(" proxyAuthAlgorithm:").append(proxyAuthAlgorithm);
+            builder.append(" accountingFile:").append(accountingFile);
+            builder.append(" accountingInterval:").append(accountingInterval);
+            builder.append(" aclFile:").append(aclFile);
+            builder.append(" aclDefault:").append(aclDefault);
+            builder.append(" limitConnectionRate:").append(limitConnectionRate);
+            builder.append(" limitConnectionBurst:").append(limitConnectionBurst);
+            builder.append(" limitHandshakeRate:").append(limitHandshakeRate);
+            builder.append(" limitHandshakeBurst:").append(limitHandshakeBurst);
+            builder.append(" limitTunnelRate:").append(limitTunnelRate);
+            builder.append(" limitTunnelBurst:").append(limitTunnelBurst);
+            builder.append(" limitUserTunnelRate:").append(limitUserTunnelRate);
+            builder.append(" limitUserTunnelBurst:").append(limitUserTunnelBurst);
+            builder.append(" limitTunnels:").append(limitTunnels);
+            builder.append(" shapeGlobalUpload:").append(shapeGlobalUpload);
+            builder.append(" shapeGlobalDownload:").append(shapeGlobalDownload);
+            builder.append(" shapeUserUpload:").append(shapeUserUpload);
+            builder.append(" shapeUserDownload:").append(shapeUserDownload);
+            builder.append(" shapeTunnelUpload:").append(shapeTunnelUpload);
+            builder.append(" shapeTunnelDownload:").append(shapeTunnelDownload);
+            builder.append(" idleTunnelTimeout:").append(idleTunnelTimeout);
+            builder.append(" idleOutboundTimeout:").append(idleOutboundTimeout);
+            builder.append(" keepaliveInterval:").append(keepaliveInterval);
+            builder.append(" keepaliveMisses:").append(keepaliveMisses);
+            builder.append(" overloadLagMillis:").append(overloadLagMillis);
+            builder.append(" overloadPendingTasks:").append(overloadPendingTasks);
+            builder.append(" overloadDirectMemory:").append(overloadDirectMemory);
+            builder.append(" loopThreads:").append(loopThreads);
+            builder.append(" loopMonitor:").append(loopMonitor);
+            builder.append(" loopChooser:").append(loopChooser);
+            builder.append(" reusePort:").append(reusePort);
+            builder.append(" allocatorType:").append(allocatorType);
+            builder.append(" allocatorDirect:").append(allocatorDirect);
+            builder.append(" allocatorArenas:").append(allocatorArenas);
+            builder.append(" allocatorChunkSize:").append(allocatorChunkSize);
+            builder.append(" allocatorThreadCache:").append(allocatorThreadCache);
+            builder.append(" bufferAccounting:").append(bufferAccounting);
+            builder.append(" trafficClassify:").append(trafficClassify);
+            builder.append(" trafficClassPorts:").append(trafficClassPorts);
+            builder.append(" bdpTuning:").append(bdpTuning);
+            builder.append(" bdpMaxBuffer:").append(bdpMaxBuffer);
+            builder.append(" bdpMemoryLimit:").append(bdpMemoryLimit);
+            builder.append(" runtime:").append(runtime);
             builder.append(">");
             return builder.toString();
         }
     }
-    private final Configuration mConfig = new Configuration("0.0.0.0", 9777);
+    private volatile Configuration mConfig = new Configuration("0.0.0.0", 9777); // Never modified once assigned
 
     /**
      * Construct the server
@@ -90,18 +225,181 @@ public class WslServer {
         sLogger.trace("<init>");
     }
 
+    /**
+     * Configure before start, fields left null keep the current values
+     */
     synchronized public WslServer config(Configuration conf) {
-        if (conf.bindAddress != null) mConfig.bindAddress = conf.bindAddress;
-        if (conf.bindPort != null) mConfig.bindPort = conf.bindPort;
-        if (conf.ssl != null) mConfig.ssl = conf.ssl;
-        if (conf.sslCert != null) mConfig.sslCert = conf.sslCert;
-        if (conf.sslKey != null) mConfig.sslKey = conf.sslKey;
-        if (conf.sslKeyPassword != null) mConfig.sslKeyPassword = conf.sslKeyPassword;
-        if (conf.proxyUid != null) mConfig.proxyUid = conf.proxyUid;
-        if (conf.proxyPath != null) mConfig.proxyPath = conf.proxyPath;
+        Configuration next = new Configuration();
+        merge(next, mConfig);
+        merge(next, conf);
+        mConfig = next;
+        return this;
+    }
+
+    private static void merge(Configuration dst, Configuration src) {
+        if (src.bindAddress != null) dst.bindAddress = src.bindAddress;
+        if (src.bindPort != null) dst.bindPort = src.bindPort;
+        if (src.ssl != null) dst.ssl = src.ssl;
+        if (src.sslCert != null) dst.sslCert = src.sslCert;
+        if (src.sslKey != null) dst.sslKey = src.sslKey;
+        if (src.sslKeyPassword != null) dst.sslKeyPassword = src.sslKeyPassword;
+        if (src.transport != null) dst.transport = src.transport;
+        if (src.http2 != null) dst.http2 = src.http2;
+        if (src.quic != null) dst.quic = src.quic;
+        if (src.proxyUid != null) dst.proxyUid = src.proxyUid;
+        if (src.proxyPath != null) dst.proxyPath = src.proxyPath;
+        if (src.proxyUsers != null) dst.proxyUsers = src.proxyUsers;
+        if (src.proxyAuthAlgorithm != null) dst.proxyAuthAlgorithm = src.proxyAuthAlgorithm;
+        if (src.accountingFile != null) dst.accountingFile = src.accountingFile;
+        if (src.accountingInterval != null) dst.accountingInterval = src.accountingInterval;
+        if (src.aclFile != null) dst.aclFile = src.aclFile;
+        if (src.aclDefault != null) dst.aclDefault = src.aclDefault;
+        if (src.limitConnectionRate != null) dst.limitConnectionRate = src.limitConnectionRate;
+        if (src.limitConnectionBurst != null) dst.limitConnectionBurst = src.limitConnectionBurst;
+        if (src.limitHandshakeRate != null) dst.limitHandshakeRate = src.limitHandshakeRate;
+        if (src.limitHandshakeBurst != null) dst.limitHandshakeBurst = src.limitHandshakeBurst;
+        if (src.limitTunnelRate != null) dst.limitTunnelRate = src.limitTunnelRate;
+        if (src.limitTunnelBurst != null) dst.limitTunnelBurst = src.limitTunnelBurst;
+        if (src.limitUserTunnelRate != null) dst.limitUserTunnelRate = src.limitUserTunnelRate;
+        if (src.limitUserTunnelBurst != null) dst.limitUserTunnelBurst = src.limitUserTunnelBurst;
+        if (src.limitTunnels != null) dst.limitTunnels = src.limitTunnels;
+        if (src.shapeGlobalUpload != null) dst.shapeGlobalUpload = src.shapeGlobalUpload;
+        if (src.shapeGlobalDownload != null) dst.shapeGlobalDownload = src.shapeGlobalDownload;
+        if (src.shapeUserUpload != null) dst.shapeUserUpload = src.shapeUserUpload;
+        if (src.shapeUserDownload != null) dst.shapeUserDownload = src.shapeUserDownload;
+        if (src.shapeTunnelUpload != null) dst.shapeTunnelUpload = src.shapeTunnelUpload;
+        if (src.shapeTunnelDownload != null) dst.shapeTunnelDownload = src.shapeTunnelDownload;
+        if (src.idleTunnelTimeout != null) dst.idleTunnelTimeout = src.idleTunnelTimeout;
+        if (src.idleOutboundTimeout != null) dst.idleOutboundTimeout = src.idleOutboundTimeout;
+        if (src.keepaliveInterval != null) dst.keepaliveInterval = src.keepaliveInterval;
+        if (src.keepaliveMisses != null) dst.keepaliveMisses = src.keepaliveMisses;
+        if (src.overloadLagMillis != null) dst.overloadLagMillis = src.overloadLagMillis;
+        if (src.overloadPendingTasks != null) dst.overloadPendingTasks = src.overloadPendingTasks;
+        if (src.overloadDirectMemory != null) dst.overloadDirectMemory = src.overloadDirectMemory;
+        if (src.loopThreads != null) dst.loopThreads = src.loopThreads;
+        if (src.loopMonitor != null) dst.loopMonitor = src.loopMonitor;
+        if (src.loopChooser != null) dst.loopChooser = src.loopChooser;
+        if (src.reusePort != null) dst.reusePort = src.reusePort;
+        if (src.allocatorType != null) dst.allocatorType = src.allocatorType;
+        if (src.allocatorDirect != null) dst.allocatorDirect = src.allocatorDirect;
+        if (src.allocatorArenas != null) dst.allocatorArenas = src.allocatorArenas;
+        if (src.allocatorChunkSize != null) dst.allocatorChunkSize = src.allocatorChunkSize;
+        if (src.allocatorThreadCache != null) dst.allocatorThreadCache = src.allocatorThreadCache;
+        if (src.bufferAccounting != null) dst.bufferAccounting = src.bufferAccounting;
+        if (src.trafficClassify != null) dst.trafficClassify = src.trafficClassify;
+        if (src.trafficClassPorts != null) dst.trafficClassPorts = src.trafficClassPorts;
+        if (src.bdpTuning != null) dst.bdpTuning = src.bdpTuning;
+        if (src.bdpMaxBuffer != null) dst.bdpMaxBuffer = src.bdpMaxBuffer;
+        if (src.bdpMemoryLimit != null) dst.bdpMemoryLimit = src.bdpMemoryLimit;
+        if (src.runtime != null) dst.runtime = src.runtime;
+    }
+
+    /**
+     * Replace the configuration of the running server, fields left null fall back to the defaults
+     *
+     * Only new connections use the new configuration, existing tunnels are left alone.
+     * proxyUid, proxyPath, proxyUsers, proxyAuthAlgorithm, acl*, limit*, shape*, idle*, keepalive* and the SSL cert
+     * and key files are applied, the SSL context is rebuilt from the files even if the paths not changed, the users and ACL rules
+     * files are loaded again on every reload.
+     * Changes of the others require restart, they are ignored with a warning. QUIC keeps its SSL context and idle
+     * timeout until restart.
+     */
+    synchronized public WslServer reload(Configuration conf) {
+        if (mChannelFuture == null) {
+            return config(conf);
+        }
+        Configuration current = mConfig;
+        Configuration next = new Configuration("0.0.0.0", 9777);
+        merge(next, conf);
+        next.bindAddress = fixed("bindAddress", current.bindAddress, next.bindAddress);
+        next.bindPort = fixed("bindPort", current.bindPort, next.bindPort);
+        next.ssl = fixed("ssl", current.ssl, next.ssl);
+        next.transport = fixed("transport", current.transport, next.transport);
+        next.http2 = fixed("http2", current.http2, next.http2);
+        next.quic = fixed("quic", current.quic, next.quic);
+        next.accountingFile = fixed("accountingFile", current.accountingFile, next.accountingFile);
+        next.accountingInterval = fixed("accountingInterval", current.accountingInterval, next.accountingInterval);
+        next.overloadLagMillis = fixed("overloadLagMillis", current.overloadLagMillis, next.overloadLagMillis);
+        next.overloadPendingTasks = fixed("overloadPendingTasks", current.overloadPendingTasks, next.overloadPendingTasks);
+        next.overloadDirectMemory = fixed("overloadDirectMemory", current.overloadDirectMemory, next.overloadDirectMemory);
+        next.loopThreads = fixed("loopThreads", current.loopThreads, next.loopThreads);
+        next.loopMonitor = fixed("loopMonitor", current.loopMonitor, next.loopMonitor);
+        next.loopChooser = fixed("loopChooser", current.loopChooser, next.loopChooser);
+        next.reusePort = fixed("reusePort", current.reusePort, next.reusePort);
+        next.allocatorType = fixed("allocatorType", current.allocatorType, next.allocatorType);
+        next.allocatorDirect = fixed("allocatorDirect", current.allocatorDirect, next.allocatorDirect);
+        next.allocatorArenas = fixed("allocatorArenas", current.allocatorArenas, next.allocatorArenas);
+        next.allocatorChunkSize = fixed("allocatorChunkSize", current.allocatorChunkSize, next.allocatorChunkSize);
+        next.allocatorThreadCache = fixed("allocatorThreadCache", current.allocatorThreadCache, next.allocatorThreadCache);
+        next.bufferAccounting = fixed("bufferAccounting", current.bufferAccounting, next.bufferAccounting);
+        next.trafficClassify = fixed("trafficClassify", current.trafficClassify, next.trafficClassify);
+        next.trafficClassPorts = fixed("trafficClassPorts", current.trafficClassPorts, next.trafficClassPorts);
+        next.bdpTuning = fixed("bdpTuning", current.bdpTuning, next.bdpTuning);
+        next.bdpMaxBuffer = fixed("bdpMaxBuffer", current.bdpMaxBuffer, next.bdpMaxBuffer);
+        next.bdpMemoryLimit = fixed("bdpMemoryLimit", current.bdpMemoryLimit, next.bdpMemoryLimit);
+        next.runtime = fixed("runtime", current.runtime, next.runtime);
+
+        SslContext sslContext = mSslContext;
+        if (Boolean.TRUE.equals(next.ssl) && next.sslCert != null && next.sslKey != null) {
+            SslContext reloaded = sslContext(next);
+            if (reloaded != null) {
+                sslContext = reloaded;
+            } else {
+                sLogger.warn("Keep the current SSL context");
+                next.sslCert = current.sslCert;
+                next.sslKey = current.sslKey;
+                next.sslKeyPassword = current.sslKeyPassword;
+            }
+        }
+
+        if (next.proxyAuthAlgorithm != null && ControlAuthenticator.jceName(next.proxyAuthAlgorithm) == null) {
+            sLogger.warn("Keep the current auth algorithm, {} not supported", next.proxyAuthAlgorithm);
+            next.proxyAuthAlgorithm = current.proxyAuthAlgorithm;
+        }
+        UserStore users;
+        try {
+            users = (next.proxyUsers != null) ? UserStore.load(new File(next.proxyUsers), algorithm(next)) : null;
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.warn("Keep the current users, failed to load {} - {}", next.proxyUsers, ex.getMessage());
+            next.proxyUsers = current.proxyUsers;
+            next.proxyAuthAlgorithm = current.proxyAuthAlgorithm; // The users keep the algorithm they loaded with
+            users = mUsers;
+        }
+        ControlAuthenticator auth = newAuth(next);
+
+        DestinationAcl acl;
+        try {
+            acl = newAcl(next);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.warn("Keep the current acl rules, failed to load {} - {}", next.aclFile, ex.getMessage());
+            next.aclFile = current.aclFile;
+            next.aclDefault = current.aclDefault;
+            acl = mAcl;
+        }
+
+        mAdmission.update(next);
+        mShaping.update(next.shapeGlobalUpload, next.shapeGlobalDownload,
+                next.shapeUserUpload, next.shapeUserDownload,
+                next.shapeTunnelUpload, next.shapeTunnelDownload);
+        mConfig = next;
+        mSslContext = sslContext;
+        mUsers = users;
+        mAuth = auth;
+        mAcl = acl;
+        mInitializer.update(next, sslContext, auth, users, acl);
+        mMetrics.counter("config.reload").increment();
+        sLogger.info("Configuration reloaded");
+        sLogger.trace("reload config:{}", next);
         return this;
     }
 
+    private static <T> T fixed(String name, T current, T next) {
+        if (! Objects.equals(current, next)) {
+            sLogger.warn("{} changed from {} to {}, ignored until restart", name, current, next);
+        }
+        return current;
+    }
+
     /**
      * Start the proxy server
      */
@@ -111,56 +409,253 @@ public class WslServer {
             return this;
         }
 
-        SslContext sslContext = null; // Make sure always update it
-        if (Boolean.TRUE.equals(mConfig.ssl)) {
-            if (mConfig.sslCert != null && mConfig.sslKey != null) {
-                try {
-                    FileInputStream is = new FileInputStream(mConfig.sslCert);
-                    Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(is);
-                    sLogger.info("Cert s:{}", ((X509Certificate) cert).getSubjectX500Principal().getName());
-                    sLogger.info("     i:{}", ((X509Certificate) cert).getIssuerX500Principal().getName());
-                } catch (FileNotFoundException | CertificateException e) {
-                    sLogger.warn("Failed to load certificate\n", e);
-                }
-
-                SslContextBuilder sslCtxBuilder = (mConfig.sslKeyPassword != null) ?
-                        SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey), mConfig.sslKeyPassword) :
-                        SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey));
-                try {
-                    sslContext = sslCtxBuilder.build();
-                } catch (SSLException ex) {
-                    sLogger.warn("Failed to init ssl\n", ex);
-                }
-            } else {
-                try {
-                    SelfSignedCertificate ssc = new SelfSignedCertificate();
-                    sLogger.info("Cert s:{}", ssc.cert().getSubjectX500Principal().getName());
-                    sLogger.info("     i:{}", ssc.cert().getIssuerX500Principal().getName());
-                    sslContext = SslContextBuilder.forServer(ssc.key(), ssc.cert()).build();
-                } catch (CertificateException ex) {
-                    sLogger.warn("Failed to generate self-signed certificate\n", ex);
-                } catch (SSLException ex) {
-                    sLogger.warn("Failed to init ssl\n", ex);
-                }
+        if (mConfig.transport != null && !"ws".equalsIgnoreCase(mConfig.transport) && !"raw".equalsIgnoreCase(mConfig.transport)) {
+            sLogger.error("Transport {} not supported", mConfig.transport);
+            return this;
+        }
+        SslContext sslContext = Boolean.TRUE.equals(mConfig.ssl) ? sslContext(mConfig) : null;
+        QuicSslContext quicSslContext = null;
+        if (Boolean.TRUE.equals(mConfig.quic)) {
+            if (! Quic.isAvailable()) {
+                sLogger.error("QUIC not available on this platform - {}", Quic.unavailabilityCause().toString());
+                return this;
+            }
+            quicSslContext = quicSslContext(mConfig);
+            if (quicSslContext == null) {
+                return this;
+            }
+        }
+        if (mConfig.proxyAuthAlgorithm != null && ControlAuthenticator.jceName(mConfig.proxyAuthAlgorithm) == null) {
+            sLogger.error("Auth algorithm {} not supported", mConfig.proxyAuthAlgorithm);
+            return this;
+        }
+        ControlAuthenticator auth = newAuth(mConfig);
+        UserStore users;
+        try {
+            users = (mConfig.proxyUsers != null) ? UserStore.load(new File(mConfig.proxyUsers), algorithm(mConfig)) : null;
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.error("Failed to load users {} - {}", mConfig.proxyUsers, ex.getMessage());
+            return this;
+        }
+        DestinationAcl acl;
+        try {
+            acl = newAcl(mConfig);
+        } catch (IOException | IllegalArgumentException ex) {
+            sLogger.error("Failed to load acl rules {} - {}", mConfig.aclFile, ex.getMessage());
+            return this;
+        }
+        ByteBufAllocator allocator;
+        try {
+            allocator = Allocators.newAllocator(mConfig.allocatorType, mConfig.allocatorDirect,
+                    mConfig.allocatorArenas, mConfig.allocatorChunkSize, mConfig.allocatorThreadCache);
+        } catch (IllegalArgumentException ex) {
+            sLogger.error("Invalid allocator options - {}", ex.getMessage());
+            return this;
+        }
+        TrafficClassifier.Policy trafficPolicy;
+        try {
+            trafficPolicy = TrafficClassifier.newPolicy(mConfig.trafficClassify, mConfig.trafficClassPorts, mMetrics);
+        } catch (IllegalArgumentException ex) {
+            sLogger.error("Invalid traffic class ports {} - {}", mConfig.trafficClassPorts, ex.getMessage());
+            return this;
+        }
+        BdpTuner.Policy bdpPolicy;
+        try {
+            bdpPolicy = BdpTuner.newPolicy(mConfig.bdpTuning, mConfig.bdpMaxBuffer, mConfig.bdpMemoryLimit, mMetrics);
+        } catch (IllegalArgumentException ex) {
+            sLogger.error("Invalid bdp tuning options - {}", ex.getMessage());
+            return this;
+        }
+        UserAccounting accounting;
+        try {
+            accounting = new UserAccounting((mConfig.accountingFile != null) ? new File(mConfig.accountingFile) : null, mMetrics);
+        } catch (IOException ex) {
+            sLogger.error("Failed to open accounting file {} - {}", mConfig.accountingFile, ex.getMessage());
+            return this;
+        }
+
+        if (mConfig.runtime != null) {
+            mRuntime = mConfig.runtime.retain();
+            if (Boolean.TRUE.equals(mConfig.reusePort) && !mRuntime.isEpoll()) {
+                sLogger.warn("reusePort requires runtime with epoll transport, fallback to single acceptor");
             }
+        } else {
+            WslRuntime.Configuration runtimeConf = new WslRuntime.Configuration();
+            runtimeConf.workerThreads = mConfig.loopThreads;
+            runtimeConf.loopMonitor = mConfig.loopMonitor;
+            runtimeConf.loopChooser = mConfig.loopChooser;
+            runtimeConf.epoll = mConfig.reusePort;
+            runtimeConf.allocator = allocator;
+            mRuntime = new WslRuntime(runtimeConf, mMetrics);
         }
+        EventLoopGroup workerGroup = mRuntime.workerGroup();
+        mOverload = new OverloadDetector(workerGroup, mRuntime.bossGroup().next(), mRuntime.allocator(),
+                mConfig.overloadLagMillis, mConfig.overloadPendingTasks, mConfig.overloadDirectMemory,
+                mMetrics)
+                .start();
+        mAdmission = new AdmissionControl(mConfig, mOverload, mMetrics);
+        mShaping = new TrafficShaping(workerGroup,
+                mConfig.shapeGlobalUpload, mConfig.shapeGlobalDownload,
+                mConfig.shapeUserUpload, mConfig.shapeUserDownload,
+                mConfig.shapeTunnelUpload, mConfig.shapeTunnelDownload,
+                mMetrics);
+
+        mAccounting = accounting.start(mRuntime.bossGroup().next(),
+                (mConfig.accountingInterval != null && mConfig.accountingInterval > 0) ? mConfig.accountingInterval : 10000);
+
+        mDrain = new WsServerDrain(GlobalEventExecutor.INSTANCE, mMetrics);
 
         SocketAddress address = new InetSocketAddress(mConfig.bindAddress, mConfig.bindPort);
         sLogger.trace("start address:{}", address);
 
-        mChannelFuture = new ServerBootstrap()
-                .group(mBossGroup, mWorkerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new WsServerInitializer(mWorkerGroup, mConfig, sslContext))
+        mSslContext = sslContext;
+        mUsers = users;
+        mAuth = auth;
+        mAcl = acl;
+        mInitializer = new WsServerInitializer(workerGroup, mConfig, sslContext, auth, users, acl, mAdmission, mShaping, mAccounting, mRuntime.loopMonitor(), mRuntime.idleSweeper(), mRuntime.keepalive(), mDrain);
+        BufferAccounting bufferAccounting = Boolean.TRUE.equals(mConfig.bufferAccounting) ? new BufferAccounting(mMetrics) : null;
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .channel(EventLoops.serverSocketChannel(workerGroup))
+                .option(ChannelOption.ALLOCATOR, mRuntime.allocator())
+                .childHandler(mInitializer)
+                .childOption(ChannelOption.ALLOCATOR, mRuntime.allocator())
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
-                .bind(address)
-                .syncUninterruptibly();
+                .childAttr(BufferAccounting.KEY, bufferAccounting)
+                .childAttr(TrafficClassifier.POLICY, trafficPolicy)
+                .childAttr(BdpTuner.POLICY, bdpPolicy);
+        try {
+            if (Boolean.TRUE.equals(mConfig.reusePort) && mRuntime.isEpoll()) {
+                mAcceptors.addAll(EventLoops.bindReusePort(bootstrap, workerGroup, address));
+                mChannelFuture = mAcceptors.get(0).newSucceededFuture();
+            } else {
+                mChannelFuture = bootstrap
+                        .group(mRuntime.bossGroup(), workerGroup)
+                        .bind(address)
+                        .syncUninterruptibly();
+            }
+        } catch (Throwable tr) {
+            // Bind failed, give back the runtime
+            release();
+            throw tr;
+        }
 
         InetSocketAddress sockAddr = (InetSocketAddress) mChannelFuture.channel().localAddress();
+        if (quicSslContext != null) {
+            // All the QUIC connections and their tunnels on one loop, the UDP socket is not shared
+            EventLoop loop = workerGroup.next();
+            try {
+                mQuicChannel = new Bootstrap()
+                        .group(loop)
+                        .channel(EventLoops.datagramChannel(loop))
+                        .option(ChannelOption.ALLOCATOR, mRuntime.allocator())
+                        .attr(BufferAccounting.KEY, bufferAccounting)
+                        .attr(TrafficClassifier.POLICY, trafficPolicy)
+                        .attr(BdpTuner.POLICY, bdpPolicy)
+                        .handler(WsQuic.serverCodec(quicSslContext, IdleSweeper.timeoutMillis(mConfig.idleTunnelTimeout),
+                                mRuntime.allocator(), mInitializer.quicHandler(), mInitializer.quicStreamHandler()))
+                        .bind(sockAddr.getAddress(), sockAddr.getPort())
+                        .syncUninterruptibly()
+                        .channel();
+            } catch (Throwable tr) {
+                stop();
+                throw tr;
+            }
+        }
         sLogger.trace("started address={}:{}", sockAddr.getHostString(), sockAddr.getPort());
         return this;
     }
 
+    private static String algorithm(Configuration conf) {
+        return (conf.proxyAuthAlgorithm != null) ? conf.proxyAuthAlgorithm : ControlAuthenticator.DEFAULT_ALGORITHM;
+    }
+
+    private static ControlAuthenticator newAuth(Configuration conf) {
+        return (conf.proxyUid != null) ? new ControlAuthenticator(algorithm(conf), conf.proxyUid) : null;
+    }
+
+    private DestinationAcl newAcl(Configuration conf) throws IOException {
+        if (conf.aclFile == null && conf.aclDefault == null) {
+            return null;
+        }
+        boolean defaultAllow = (conf.aclDefault == null) || DestinationAcl.parseAllow(conf.aclDefault);
+        return DestinationAcl.load((conf.aclFile != null) ? new File(conf.aclFile) : null, defaultAllow, mMetrics);
+    }
+
+    /**
+     * Build the SSL context from the cert and key files, or a self-signed certificate if not configured
+     *
+     * @return null if failed
+     */
+    private static SslContext sslContext(Configuration conf) {
+        SslContext sslContext = null;
+        if (conf.sslCert != null && conf.sslKey != null) {
+            try (FileInputStream is = new FileInputStream(conf.sslCert)) {
+                Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(is);
+                sLogger.info("Cert s:{}", ((X509Certificate) cert).getSubjectX500Principal().getName());
+                sLogger.info("     i:{}", ((X509Certificate) cert).getIssuerX500Principal().getName());
+            } catch (IOException | CertificateException e) {
+                sLogger.warn("Failed to load certificate\n", e);
+            }
+
+            SslContextBuilder sslCtxBuilder = (conf.sslKeyPassword != null) ?
+                    SslContextBuilder.forServer(new File(conf.sslCert), new File(conf.sslKey), conf.sslKeyPassword) :
+                    SslContextBuilder.forServer(new File(conf.sslCert), new File(conf.sslKey));
+            try {
+                sslContext = alpn(sslCtxBuilder, conf).build();
+            } catch (SSLException ex) {
+                sLogger.warn("Failed to init ssl\n", ex);
+            }
+        } else {
+            try {
+                SelfSignedCertificate ssc = new SelfSignedCertificate();
+                sLogger.info("Cert s:{}", ssc.cert().getSubjectX500Principal().getName());
+                sLogger.info("     i:{}", ssc.cert().getIssuerX500Principal().getName());
+                sslContext = alpn(SslContextBuilder.forServer(ssc.key(), ssc.cert()), conf).build();
+            } catch (CertificateException ex) {
+                sLogger.warn("Failed to generate self-signed certificate\n", ex);
+            } catch (SSLException ex) {
+                sLogger.warn("Failed to init ssl\n", ex);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Build the QUIC SSL context from the cert and key files, or a self-signed certificate if not configured
+     *
+     * @return null if failed
+     */
+    private static QuicSslContext quicSslContext(Configuration conf) {
+        try {
+            QuicSslContextBuilder builder;
+            if (conf.sslCert != null && conf.sslKey != null) {
+                builder = QuicSslContextBuilder.forServer(new File(conf.sslKey), conf.sslKeyPassword, new File(conf.sslCert));
+            } else {
+                SelfSignedCertificate ssc = new SelfSignedCertificate();
+                builder = QuicSslContextBuilder.forServer(ssc.key(), null, ssc.cert());
+            }
+            // Resumed clients may open streams in 0-RTT, the tunnels need the nonce of hello anyway
+            return builder.applicationProtocols(WsQuic.PROTOCOL)
+                    .earlyData(true)
+                    .build();
+        } catch (CertificateException | IllegalArgumentException ex) {
+            sLogger.error("Failed to init quic ssl\n", ex);
+        }
+        return null;
+    }
+
+    // Offer h2 before http/1.1 if http2 enabled, clients without ALPN stay HTTP/1.1
+    private static SslContextBuilder alpn(SslContextBuilder builder, Configuration conf) {
+        if (Boolean.TRUE.equals(conf.http2) && !"raw".equalsIgnoreCase(conf.transport)) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        return builder;
+    }
+
     /**
      * Stop the proxy server
      */
@@ -179,9 +674,78 @@ public class WslServer {
                 .closeFuture()
                 .syncUninterruptibly();
         sLogger.trace("close future sync");
+        mChannelFuture = null;
+        for (Channel acceptor : mAcceptors) {
+            acceptor.close().syncUninterruptibly();
+        }
+        mAcceptors.clear();
+        if (mQuicChannel != null) {
+            mQuicChannel.close().syncUninterruptibly();
+            mQuicChannel = null;
+        }
+        // The runtime may be shared, its loops outlive this server
+        mDrain.close().awaitUninterruptibly();
+
+        release();
         return this;
     }
 
+    /**
+     * Drain the proxy server gracefully, stop accepting new connections and tunnels, stop it once all the
+     * existing tunnels closed or the timeout passed
+     *
+     * Start the new server on the same port with reusePort before drain for zero-downtime restart
+     *
+     * @param timeoutMillis Force close the remaining tunnels after it, 0 to wait forever
+     * @return Completed once stopped
+     */
+    synchronized public Future<Void> drain(long timeoutMillis) {
+        sLogger.trace("drain timeout:{}", timeoutMillis);
+        if (mChannelFuture == null) {
+            sLogger.warn("not started");
+            return GlobalEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+        // Close the listening channels only, keep mChannelFuture for stop(), the QUIC socket carries the tunnels too
+        mChannelFuture.channel().close().syncUninterruptibly();
+        for (Channel acceptor : mAcceptors) {
+            acceptor.close().syncUninterruptibly();
+        }
+        final WsServerDrain drain = mDrain;
+        return drain.start(timeoutMillis)
+                .addListener(new GenericFutureListener<Future<Void>>() {
+                    @Override
+                    public void operationComplete(Future<Void> future) throws Exception {
+                        synchronized (WslServer.this) {
+                            if (mDrain == drain) { // Not stopped or restarted meanwhile
+                                stop();
+                            }
+                        }
+                    }
+                });
+    }
+
+    private void release() {
+        mShaping.release();
+        mShaping = null;
+        mOverload.stop();
+        mOverload = null;
+        mAccounting.stop();
+        mAccounting = null;
+        mDrain = null;
+        mAdmission = null;
+        mSslContext = null;
+        mUsers = null;
+        mAuth = null;
+        mAcl = null;
+        mInitializer = null;
+        mRuntime.release(); // Event loops shutdown gracefully if it is the last reference
+        mRuntime = null;
+    }
+
+    public Metrics metrics() {
+        return mMetrics;
+    }
+
     public int port() {
         try {
             return ((InetSocketAddress) mChannelFuture.channel().localAddress()).getPort();
@@ -0,0 +1,281 @@
+package com.rex.proxy.auth;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per user live counters of WslServer, persisted to a memory-mapped file so the totals survive restarts
+ *
+ * Each user has the metrics user.NAME.tunnels (opened in total), user.NAME.upload and user.NAME.download
+ * (bytes on the client connection) and the gauge user.NAME.active. Counters are LongAdders bumped on the
+ * event loops, flush() copies their sums into the mapped file periodically, the page cache keeps them even if
+ * the process crashed between the flushes of the OS.
+ *
+ * Each user keeps the slot it was restored from or first flushed into, so a slot never changes owner: the
+ * counters of a slot are updated in place and a new user is written into the next slot before the count in the
+ * header covers it. A crash in the middle of a flush leaves every counted slot with its own name and totals of
+ * either this flush or the one before.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * magic "WSLUSER1", int count, 4 bytes reserved
+ * slots    count * (u8 length, 63 bytes UTF-8 name, long tunnels, long upload, long download, 8 bytes reserved)
+ * </pre>
+ */
+public class UserAccounting {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(UserAccounting.class);
+
+    private static final byte[] MAGIC = "WSLUSER1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER = 16;
+    private static final int SLOT = 96;
+    private static final int GROW = 64; // Slots mapped each time the file grows
+
+    private static final String HANDLER_ACCOUNTING = "userAccounting";
+
+    private final Metrics mMetrics;
+    private final ConcurrentMap<String, Stats> mStats = new ConcurrentHashMap<>();
+    private final FileChannel mChannel; // Null if not persisted
+    private MappedByteBuffer mBuffer;
+    private int mSlots; // Slots in the file, guarded by this
+    private ScheduledFuture<?> mFuture;
+
+    @ChannelHandler.Sharable
+    private static final class Stats extends ChannelDuplexHandler {
+        final String name;
+        final LongAdder tunnels;
+        final LongAdder upload;
+        final LongAdder download;
+        final AtomicLong active = new AtomicLong();
+        int slot = -1; // Index in the file, -1 until flushed, guarded by UserAccounting
+        final ChannelFutureListener closeListener = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                active.decrementAndGet();
+            }
+        };
+
+        Stats(String name, Metrics metrics) {
+            this.name = name;
+            tunnels = metrics.counter("user." + name + ".tunnels");
+            upload = metrics.counter("user." + name + ".upload");
+            download = metrics.counter("user." + name + ".download");
+            metrics.gauge("user." + name + ".active", active::get);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            upload.add(size(msg));
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            download.add(size(msg));
+            ctx.write(msg, promise);
+        }
+
+        private static int size(Object msg) {
+            if (msg instanceof ByteBuf) {
+                return ((ByteBuf) msg).readableBytes();
+            }
+            if (msg instanceof ByteBufHolder) {
+                return ((ByteBufHolder) msg).content().readableBytes();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param file Restore the totals from it and persist into it, null to keep them in memory only
+     */
+    public UserAccounting(File file, Metrics metrics) throws IOException {
+        sLogger.trace("<init>");
+        mMetrics = metrics;
+        if (file == null) {
+            mChannel = null;
+            return;
+        }
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            restore(file);
+        } catch (IOException ex) {
+            mChannel.close();
+            throw ex;
+        }
+    }
+
+    private void restore(File file) throws IOException {
+        long size = mChannel.size();
+        if (size == 0) {
+            return;
+        }
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (size < HEADER) {
+            throw new IOException("Truncated header " + file);
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IOException("Not a user accounting file " + file);
+            }
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || HEADER + (long) count * SLOT > size) {
+            throw new IOException("Corrupted user accounting file " + file);
+        }
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER + i * SLOT;
+            int length = buffer.get(offset) & 0xFF;
+            if (length == 0 || length > UserStore.MAX_NAME) {
+                throw new IOException("Corrupted user accounting file " + file);
+            }
+            byte[] name = new byte[length];
+            for (int j = 0; j < length; j++) {
+                name[j] = buffer.get(offset + 1 + j);
+            }
+            Stats stats = stats(new String(name, StandardCharsets.UTF_8));
+            if (stats.slot != -1) {
+                throw new IOException("Duplicated user in accounting file " + file);
+            }
+            stats.slot = i;
+            stats.tunnels.add(buffer.getLong(offset + 64));
+            stats.upload.add(buffer.getLong(offset + 72));
+            stats.download.add(buffer.getLong(offset + 80));
+        }
+        mBuffer = buffer;
+        mSlots = count;
+        sLogger.info("Restored accounting of {} users from {}", count, file);
+    }
+
+    private Stats stats(String user) {
+        Stats stats = mStats.get(user);
+        if (stats == null) {
+            stats = mStats.computeIfAbsent(user, k -> new Stats(k, mMetrics));
+        }
+        return stats;
+    }
+
+    /**
+     * Count the tunnel and the bytes on it for the user, call it once the user authenticated
+     */
+    public void add(Channel ch, String user) {
+        Stats stats = stats(user);
+        stats.tunnels.increment();
+        stats.active.incrementAndGet();
+        ch.closeFuture().addListener(stats.closeListener);
+        if (ch.pipeline().get(HANDLER_ACCOUNTING) == null) {
+            ch.pipeline().addFirst(HANDLER_ACCOUNTING, stats);
+        }
+    }
+
+    /**
+     * Flush periodically
+     *
+     * @param scheduler Run the flush, should not be one of the workers
+     */
+    synchronized public UserAccounting start(EventExecutor scheduler, long intervalMillis) {
+        if (mFuture == null && mChannel != null) {
+            mFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stop the periodic flush, flush the last values and close the file
+     */
+    synchronized public void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+        if (mChannel != null && mChannel.isOpen()) {
+            flush();
+            if (mBuffer != null) {
+                mBuffer.force();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException ex) {
+                sLogger.warn("Failed to close user accounting file - {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copy the current totals into the mapped file
+     */
+    synchronized public void flush() {
+        if (mChannel == null || !mChannel.isOpen()) {
+            return;
+        }
+        List<Stats> all = new ArrayList<>(mStats.values());
+        int slots = mSlots;
+        for (Stats stats : all) {
+            if (stats.slot == -1) {
+                slots++;
+            }
+        }
+        long size = HEADER + (long) slots * SLOT;
+        try {
+            if (mBuffer == null || mBuffer.capacity() < size) {
+                long mapped = (slots + GROW - 1) / GROW * GROW;
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + mapped * SLOT);
+            }
+        } catch (IOException ex) {
+            sLogger.warn("Failed to map user accounting file - {}", ex.getMessage());
+            return;
+        }
+        MappedByteBuffer buffer = mBuffer;
+        for (Stats stats : all) {
+            if (stats.slot == -1) {
+                stats.slot = mSlots++;
+                int offset = HEADER + stats.slot * SLOT;
+                byte[] name = stats.name.getBytes(StandardCharsets.UTF_8);
+                buffer.put(offset, (byte) name.length);
+                for (int j = 0; j < name.length; j++) {
+                    buffer.put(offset + 1 + j, name[j]);
+                }
+            }
+            int offset = HEADER + stats.slot * SLOT;
+            buffer.putLong(offset + 64, stats.tunnels.sum());
+            buffer.putLong(offset + 72, stats.upload.sum());
+            buffer.putLong(offset + 80, stats.download.sum());
+        }
+        // Header last, the new slots are written before counted
+        for (int i = 0; i < MAGIC.length; i++) {
+            buffer.put(i, MAGIC[i]);
+        }
+        buffer.putInt(8, mSlots);
+    }
+}
@@ -0,0 +1,95 @@
+package com.rex.proxy.auth;
+
+import com.rex.proxy.websocket.control.ControlAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Credentials of WslServer users, one "name,secret" per line, '#' starts a comment
+ *
+ * The authenticator of each user is built once when loaded, verifying a tunnel looks it up by the user name
+ * in the request without touching the secret again.
+ * Immutable once loaded, replaced as a whole on reload, a user removed from the file can not open new tunnels.
+ */
+public final class UserStore {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(UserStore.class);
+
+    public static final int MAX_NAME = 63; // Bytes in UTF-8, fits the slot of UserAccounting
+
+    public static final class User {
+        public final String name;
+        public final ControlAuthenticator auth;
+        User(String name, ControlAuthenticator auth) {
+            this.name = name;
+            this.auth = auth;
+        }
+    }
+
+    private final Map<String, User> mUsers;
+
+    private UserStore(Map<String, User> users) {
+        mUsers = users;
+    }
+
+    /**
+     * @return null if not found
+     */
+    public User get(String name) {
+        return mUsers.get(name);
+    }
+
+    public Set<String> names() {
+        return Collections.unmodifiableSet(mUsers.keySet());
+    }
+
+    public int size() {
+        return mUsers.size();
+    }
+
+    /**
+     * Load the users file
+     *
+     * @param algorithm Auth algorithm of all the users, hs256, hs384 or hs512
+     */
+    public static UserStore load(File file, String algorithm) throws IOException {
+        Map<String, User> users = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int comment = line.indexOf('#');
+                line = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                String name = (comma > 0) ? line.substring(0, comma).trim() : "";
+                String secret = (comma > 0) ? line.substring(comma + 1).trim() : "";
+                if (name.isEmpty() || secret.isEmpty()) {
+                    throw new IllegalArgumentException(file + ":" + number + " expect name,secret");
+                }
+                if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME) {
+                    throw new IllegalArgumentException(file + ":" + number + " name longer than " + MAX_NAME + " bytes");
+                }
+                if (users.put(name, new User(name, new ControlAuthenticator(algorithm, secret))) != null) {
+                    throw new IllegalArgumentException(file + ":" + number + " duplicated user " + name);
+                }
+            }
+        }
+        sLogger.info("Loaded {} users from {}", users.size(), file);
+        return new UserStore(users);
+    }
+}
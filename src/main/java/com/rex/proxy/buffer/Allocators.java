@@ -0,0 +1,107 @@
+package com.rex.proxy.buffer;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.List;
+
+/**
+ * Create the buffer allocator of a runtime and export its usage in metrics
+ *
+ * Pooled allocator carves the buffers out of chunks of its arenas, the event loops are spread over the arenas and
+ * each thread keeps a cache of the recently freed buffers. Fewer arenas or smaller chunks lower the memory held
+ * while idle, at the cost of contention and more chunk allocations under load.
+ */
+public final class Allocators {
+
+    private static final int MAX_ORDER = 14; // Chunk of pageSize << 14 at most
+
+    private Allocators() {
+    }
+
+    /**
+     * @param type "pooled" or "unpooled", null for pooled
+     * @param direct Prefer direct buffers, null to follow the platform
+     * @param arenas Arenas of the pooled allocator, both direct and heap, null for 2 x cores within the memory limit
+     * @param chunkSize Bytes of the chunks of the pooled allocator, a power of 2 no less than the page size
+     * @param threadCache Cache freed buffers per thread in the pooled allocator, null for true
+     * @return ByteBufAllocator.DEFAULT if all null
+     * @throws IllegalArgumentException if the type or chunk size is not supported
+     */
+    public static ByteBufAllocator newAllocator(String type, Boolean direct, Integer arenas, Integer chunkSize, Boolean threadCache) {
+        if (type == null && direct == null && arenas == null && chunkSize == null && threadCache == null) {
+            return ByteBufAllocator.DEFAULT;
+        }
+        boolean preferDirect = (direct != null) ? direct : PlatformDependent.directBufferPreferred();
+        if ("unpooled".equalsIgnoreCase(type)) {
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+        if (type != null && !"pooled".equalsIgnoreCase(type)) {
+            throw new IllegalArgumentException("Unknown allocator type " + type);
+        }
+        int pageSize = PooledByteBufAllocator.defaultPageSize();
+        int maxOrder = (chunkSize != null) ? maxOrder(pageSize, chunkSize) : PooledByteBufAllocator.defaultMaxOrder();
+        boolean cache = ! Boolean.FALSE.equals(threadCache);
+        return new PooledByteBufAllocator(preferDirect,
+                (arenas != null) ? arenas : PooledByteBufAllocator.defaultNumHeapArena(),
+                (arenas != null) ? arenas : PooledByteBufAllocator.defaultNumDirectArena(),
+                pageSize, maxOrder,
+                cache ? PooledByteBufAllocator.defaultSmallCacheSize() : 0,
+                cache ? PooledByteBufAllocator.defaultNormalCacheSize() : 0,
+                cache && PooledByteBufAllocator.defaultUseCacheForAllThreads());
+    }
+
+    private static int maxOrder(int pageSize, int chunkSize) {
+        for (int order = 0; order <= MAX_ORDER; order++) {
+            if (pageSize << order == chunkSize) {
+                return order;
+            }
+        }
+        throw new IllegalArgumentException("Chunk size " + chunkSize + " is not page size " + pageSize + " times a power of 2 up to " + (1 << MAX_ORDER));
+    }
+
+    /**
+     * Export used memory as 'allocator.direct.used' and 'allocator.heap.used', for the pooled allocator also the
+     * buffers not freed yet as 'allocator.active', the thread caches as 'allocator.threadCaches', and the buffers and
+     * bytes of each arena as 'allocator.direct.arena.N.active' and 'allocator.direct.arena.N.bytes', same for heap
+     */
+    public static void export(ByteBufAllocator allocator, Metrics metrics) {
+        if (! (allocator instanceof ByteBufAllocatorMetricProvider)) {
+            return;
+        }
+        ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+        metrics.gauge("allocator.direct.used", metric::usedDirectMemory)
+                .gauge("allocator.heap.used", metric::usedHeapMemory);
+        if (! (metric instanceof PooledByteBufAllocatorMetric)) {
+            return;
+        }
+        final PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+        metrics.gauge("allocator.active", () -> active(pooled.directArenas()) + active(pooled.heapArenas()))
+                .gauge("allocator.threadCaches", pooled::numThreadLocalCaches);
+        exportArenas("allocator.direct.arena.", pooled.directArenas(), metrics);
+        exportArenas("allocator.heap.arena.", pooled.heapArenas(), metrics);
+    }
+
+    private static void exportArenas(String prefix, List<PoolArenaMetric> arenas, Metrics metrics) {
+        for (int i = 0; i < arenas.size(); i++) {
+            PoolArenaMetric arena = arenas.get(i);
+            metrics.gauge(prefix + i + ".active", arena::numActiveAllocations)
+                    .gauge(prefix + i + ".bytes", arena::numActiveBytes);
+        }
+    }
+
+    private static long active(List<PoolArenaMetric> arenas) {
+        long active = 0;
+        for (PoolArenaMetric arena : arenas) {
+            active += arena.numActiveAllocations();
+        }
+        return active;
+    }
+}
@@ -0,0 +1,389 @@
+package com.rex.proxy.buffer;
+
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.metrics.Metrics;
+import com.rex.proxy.websocket.WsKeepalive;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size the buffers of a tunnel to its bandwidth-delay product, the bytes in flight on the long leg
+ *
+ * A tunnel moves at most one buffer per round trip, with the defaults of 64KB and a 200ms path that is 320KB/s
+ * however fast the link. Once per measurement window, at least one round trip, the bytes relayed in the busier
+ * direction over the window times the round trip time give the bytes in flight. While they fill half the buffer
+ * the tunnel is limited by it and the buffer doubles, up to the max buffer of the policy, when they stay below an
+ * eighth for SHRINK_WINDOWS windows it halves, down to BASE. The round trip time is the websocket keepalive's if
+ * tracked, or the kernel's of the TCP connection under the tunnel on epoll. Until either measured it is the round
+ * trip of the control handshake the tunnel opened with, so a tunnel on NIO without keepalive is tuned from its
+ * start, not tuned if none known. On wsl-local the handshake also covers the connect of the server to the proxy
+ * host and overshoots, while estimated by it a buffer only doubles per window however many bytes in flight.
+ *
+ * The long leg is the tunnel, a socket owning its TCP connection gets SO_SNDBUF, SO_RCVBUF and a receive allocator
+ * reading up to the buffer at once, an HTTP/2 stream gets its receive window and the connection window grown, both
+ * legs get the write watermarks, so the relay keeps a buffer in flight before it stops reading. HTTP/2 windows can
+ * not shrink, a stream keeps its window until closed. QUIC streams only get the watermarks, quiche sizes its
+ * windows by itself.
+ *
+ * Every tunnel reserves twice its growth over BASE, sending and receiving, from the memory limit of the policy,
+ * a tunnel stops growing once the limit reached and gives its reservation back when closed.
+ *
+ * One instance per tunnel, set on both legs by attach() before the relay handlers added, the reads of both legs
+ * are counted and evaluated under lock once the window passed.
+ */
+public final class BdpTuner {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(BdpTuner.class);
+
+    /**
+     * Tuner of the tunnel, set on both legs
+     */
+    public static final AttributeKey<BdpTuner> KEY = AttributeKey.valueOf(BdpTuner.class, "KEY");
+
+    /**
+     * Policy of the tunnels, set on the accepted channels or their parents
+     */
+    public static final AttributeKey<Policy> POLICY = AttributeKey.valueOf(BdpTuner.class, "POLICY");
+
+    private static final AttributeKey<Windows> WINDOWS = AttributeKey.valueOf(BdpTuner.class, "WINDOWS");
+
+    static final int BASE = 64 << 10; // Bytes of the buffers untuned, the default watermark and HTTP/2 window
+    private static final int MAX_READ = 256 << 10; // Largest buffer of one read
+    private static final long MIN_WINDOW = TimeUnit.MILLISECONDS.toNanos(50); // Shortest measurement window
+    private static final int SHRINK_WINDOWS = 4; // Windows mostly idle before the buffer halves
+
+    static final int DEFAULT_MAX_BUFFER = 8 << 20;
+    static final long DEFAULT_MEMORY_LIMIT = 256L << 20;
+
+    /**
+     * Max buffer of a tunnel and the memory all the tunnels of an instance could reserve
+     */
+    public static final class Policy {
+        private final int mMaxBuffer;
+        private final long mMemoryLimit;
+        private final AtomicLong mReserved = new AtomicLong();
+        private final LongAdder mGrow;
+        private final LongAdder mShrink;
+        private final LongAdder mLimited;
+
+        private Policy(int maxBuffer, long memoryLimit, Metrics metrics) {
+            mMaxBuffer = maxBuffer;
+            mMemoryLimit = memoryLimit;
+            mGrow = metrics.counter("bdp.grow");
+            mShrink = metrics.counter("bdp.shrink");
+            mLimited = metrics.counter("bdp.limited");
+            metrics.gauge("bdp.memory", mReserved::get);
+        }
+
+        private boolean reserve(long bytes) {
+            long reserved;
+            do {
+                reserved = mReserved.get();
+                if (reserved + bytes > mMemoryLimit) {
+                    return false;
+                }
+            } while (! mReserved.compareAndSet(reserved, reserved + bytes));
+            return true;
+        }
+
+        private void release(long bytes) {
+            mReserved.addAndGet(-bytes);
+        }
+    }
+
+    // Window of an HTTP/2 connection grown for its streams, only touched by the event loop of the connection
+    private static final class Windows {
+        private long mActive; // Growth of the open streams
+        private long mGranted; // Growth of the connection window, never shrinks
+    }
+
+    private final Channel mTunnel;
+    private final Channel mPeer;
+    private final Policy mPolicy;
+    private final long mHandshakeRtt; // Nanoseconds, 0 if not known
+    private final AtomicLong mTunnelRead = new AtomicLong(); // Bytes read by the tunnel in the window
+    private final AtomicLong mPeerRead = new AtomicLong(); // Bytes read by the peer in the window
+    private volatile long mWindowStart;
+    private volatile long mWindow = MIN_WINDOW;
+    private int mSize = BASE; // Bytes of the buffers, guarded by this
+    private int mLow; // Windows in a row below an eighth of the buffer
+    // SO_SNDBUF and SO_RCVBUF set, the kernel no longer tunes them, only touched by the event loop of the tunnel
+    private boolean mSocketSet;
+    private boolean mClosed;
+
+    private BdpTuner(Channel tunnel, Channel peer, Policy policy, long handshakeRtt) {
+        mTunnel = tunnel;
+        mPeer = peer;
+        mPolicy = policy;
+        mHandshakeRtt = handshakeRtt;
+        mWindowStart = System.nanoTime();
+    }
+
+    /**
+     * @param enabled Tune the tunnels, null for false
+     * @param maxBuffer Bytes of the largest buffer of a tunnel, null for 8MB
+     * @param memoryLimit Bytes all the tunnels could reserve together, null for 256MB
+     * @return Null if not enabled
+     * @throws IllegalArgumentException if the sizes are out of range
+     */
+    public static Policy newPolicy(Boolean enabled, Integer maxBuffer, Long memoryLimit, Metrics metrics) {
+        if (! Boolean.TRUE.equals(enabled)) {
+            return null;
+        }
+        int max = (maxBuffer != null) ? maxBuffer : DEFAULT_MAX_BUFFER;
+        long limit = (memoryLimit != null) ? memoryLimit : DEFAULT_MEMORY_LIMIT;
+        if (max < BASE || max > (1 << 30)) {
+            throw new IllegalArgumentException("Max buffer out of range " + max);
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("Memory limit out of range " + limit);
+        }
+        return new Policy(max, limit, metrics);
+    }
+
+    /**
+     * Tune the tunnel by the policy of either leg, call before the relay handlers added
+     *
+     * @param tunnel The long leg, its round trip time sizes the buffers
+     * @param peer The other leg
+     * @return Null if not enabled
+     */
+    public static BdpTuner attach(Channel tunnel, Channel peer) {
+        return attach(tunnel, peer, 0);
+    }
+
+    /**
+     * @param handshakeRtt Nanoseconds the control handshake of the tunnel took a round trip, 0 if not known
+     */
+    public static BdpTuner attach(Channel tunnel, Channel peer, long handshakeRtt) {
+        Policy policy = policy(tunnel);
+        if (policy == null) {
+            policy = policy(peer);
+        }
+        if (policy == null) {
+            return null;
+        }
+        final BdpTuner tuner = new BdpTuner(tunnel, peer, policy, Math.max(handshakeRtt, 0));
+        tunnel.attr(KEY).set(tuner);
+        peer.attr(KEY).set(tuner);
+        tunnel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                tuner.close();
+            }
+        });
+        return tuner;
+    }
+
+    private static Policy policy(Channel channel) {
+        for (Channel ch = channel; ch != null; ch = ch.parent()) {
+            if (ch.hasAttr(POLICY)) {
+                return ch.attr(POLICY).get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Account a read of either leg, evaluates the buffers once the window passed
+     */
+    public void onRead(Channel channel, int bytes) {
+        ((channel == mTunnel) ? mTunnelRead : mPeerRead).addAndGet(bytes);
+        long now = System.nanoTime();
+        if (now - mWindowStart >= mWindow) {
+            long measured = measuredRtt();
+            evaluate(now, (measured > 0) ? measured : mHandshakeRtt, measured > 0);
+        }
+    }
+
+    /**
+     * @return Bytes of the buffers of the tunnel
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // Measured RTT in nanoseconds, the keepalive includes everything between the ends, the kernel only its hop
+    private long measuredRtt() {
+        return Math.max(WsKeepalive.rtt(mTunnel), EventLoops.tcpRtt(mTunnel));
+    }
+
+    // RTT in nanoseconds, the handshake's until measured
+    long rtt() {
+        long measured = measuredRtt();
+        return (measured > 0) ? measured : mHandshakeRtt;
+    }
+
+    void evaluate(long now, long rtt) {
+        evaluate(now, rtt, true);
+    }
+
+    /**
+     * @param measured False if the rtt is the estimate of the handshake
+     */
+    synchronized void evaluate(long now, long rtt, boolean measured) {
+        long elapsed = now - mWindowStart;
+        if (mClosed || elapsed < mWindow) {
+            return; // Evaluated by the other leg
+        }
+        long bytes = Math.max(mTunnelRead.getAndSet(0), mPeerRead.getAndSet(0));
+        mWindowStart = now;
+        mWindow = Math.max(rtt, MIN_WINDOW);
+        if (rtt <= 0) {
+            return;
+        }
+        long inFlight = (long) ((double) bytes * rtt / elapsed);
+        if (inFlight * 2 >= mSize) {
+            mLow = 0;
+            grow(inFlight, measured);
+        } else if (inFlight * 8 >= mSize) {
+            mLow = 0;
+        } else if (++mLow >= SHRINK_WINDOWS) {
+            mLow = 0;
+            shrink();
+        }
+    }
+
+    private void grow(long inFlight, boolean measured) {
+        if (mSize >= mPolicy.mMaxBuffer) {
+            return;
+        }
+        long wanted = measured ? Math.max(mSize * 2L, Long.highestOneBit(inFlight * 2 - 1) << 1) : mSize * 2L;
+        int target = (int) Math.min(wanted, mPolicy.mMaxBuffer);
+        while (target > mSize && !mPolicy.reserve(2L * (target - mSize))) {
+            target /= 2;
+        }
+        if (target < wanted && target < mPolicy.mMaxBuffer) {
+            mPolicy.mLimited.increment();
+        }
+        if (target <= mSize) {
+            return;
+        }
+        sLogger.debug("grow {} to {} in flight {} - {}", mSize, target, inFlight, mTunnel);
+        int delta = target - mSize;
+        mSize = target;
+        mPolicy.mGrow.increment();
+        apply(target, delta);
+    }
+
+    private void shrink() {
+        if (mSize <= BASE || mTunnel instanceof Http2StreamChannel) {
+            return; // HTTP/2 windows could not shrink
+        }
+        int target = Math.max(mSize / 2, BASE);
+        sLogger.debug("shrink {} to {} - {}", mSize, target, mTunnel);
+        mPolicy.release(2L * (mSize - target));
+        mSize = target;
+        mPolicy.mShrink.increment();
+        apply(target, 0);
+    }
+
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mPolicy.release(2L * (mSize - BASE));
+        if (mTunnel instanceof Http2StreamChannel && mSize > BASE) {
+            final Channel connection = mTunnel.parent();
+            final long growth = mSize - BASE;
+            connection.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    windows(connection).mActive -= growth;
+                }
+            });
+        }
+    }
+
+    private void apply(final int size, final int delta) {
+        watermark(mPeer, size);
+        watermark(mTunnel, size);
+        if (mTunnel instanceof SocketChannel) {
+            mTunnel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    socket(size);
+                }
+            });
+        } else if (mTunnel instanceof Http2StreamChannel && delta > 0) {
+            final Channel connection = mTunnel.parent();
+            connection.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    window(connection, delta);
+                }
+            });
+        }
+    }
+
+    private static void watermark(Channel channel, int size) {
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(size / 2, size));
+    }
+
+    // Set only once larger than the kernel autotuned it to, setting the size turns its tuning off
+    private void socket(int size) {
+        if (! mTunnel.isActive()) {
+            return;
+        }
+        if (mSocketSet || size > mTunnel.config().getOption(ChannelOption.SO_SNDBUF)) {
+            mTunnel.config().setOption(ChannelOption.SO_SNDBUF, size);
+            mSocketSet = true;
+        }
+        if (mSocketSet || size > mTunnel.config().getOption(ChannelOption.SO_RCVBUF)) {
+            mTunnel.config().setOption(ChannelOption.SO_RCVBUF, size);
+            mSocketSet = true;
+        }
+        mTunnel.config().setRecvByteBufAllocator((size > BASE)
+                ? new AdaptiveRecvByteBufAllocator(64, 2048, Math.min(size, MAX_READ))
+                : new AdaptiveRecvByteBufAllocator());
+    }
+
+    // The stream window grows by the delta, the connection window by what the open streams grew beyond it before
+    private void window(Channel connection, int delta) {
+        Windows windows = windows(connection);
+        windows.mActive += delta; // Given back by close() even if the stream closed already
+        Http2FrameCodec codec = connection.pipeline().get(Http2FrameCodec.class);
+        Http2Stream stream = (codec != null) ? codec.connection().stream(((Http2StreamChannel) mTunnel).stream().id()) : null;
+        if (stream == null) {
+            return; // Closed
+        }
+        Http2Connection http2 = codec.connection();
+        try {
+            http2.local().flowController().incrementWindowSize(stream, delta);
+            if (windows.mActive > windows.mGranted) {
+                http2.local().flowController().incrementWindowSize(http2.connectionStream(), (int) (windows.mActive - windows.mGranted));
+                windows.mGranted = windows.mActive;
+            }
+        } catch (Http2Exception ex) {
+            sLogger.warn("Failed to grow window {} - {}", mTunnel, ex.getMessage());
+        }
+        connection.flush();
+    }
+
+    private static Windows windows(Channel connection) {
+        Windows windows = connection.attr(WINDOWS).get();
+        if (windows == null) {
+            windows = new Windows();
+            connection.attr(WINDOWS).set(windows);
+        }
+        return windows;
+    }
+}
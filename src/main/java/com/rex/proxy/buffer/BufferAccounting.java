@@ -0,0 +1,127 @@
+package com.rex.proxy.buffer;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count the buffer references the relay handlers take and give away, a leak shows up in metrics long before OOM
+ *
+ * A handler takes a reference with each buffer read and each retain, it gives one away with each release and each
+ * write, the transport releases the written buffer. 'buffer.NAME.retained' and 'buffer.NAME.released' count them,
+ * 'buffer.NAME.outstanding' is the difference, it stays near zero unless the handler leaks.
+ *
+ * Optional, the instance is set as a channel attribute of the accepted connections if enabled, the handlers look it
+ * up once when added and use NONE otherwise.
+ */
+public final class BufferAccounting {
+
+    public static final AttributeKey<BufferAccounting> KEY = AttributeKey.valueOf(BufferAccounting.class, "KEY");
+
+    private final Metrics mMetrics;
+    private final ConcurrentMap<String, Handle> mHandles = new ConcurrentHashMap<>();
+
+    /**
+     * Counters of one handler type, shared by all its instances
+     */
+    public static final class Handle {
+        private final LongAdder mRetained; // Null if not counted
+        private final LongAdder mReleased;
+
+        private Handle(LongAdder retained, LongAdder released) {
+            mRetained = retained;
+            mReleased = released;
+        }
+
+        /**
+         * Count the reference came with a read or a derived buffer, the handler owns it
+         */
+        public void retained(Object msg) {
+            if (mRetained != null && msg instanceof ReferenceCounted) {
+                mRetained.increment();
+            }
+        }
+
+        public <T> T retain(T msg) {
+            retained(msg);
+            return ReferenceCountUtil.retain(msg);
+        }
+
+        public boolean release(Object msg) {
+            released(msg);
+            return ReferenceCountUtil.release(msg);
+        }
+
+        /**
+         * Write without flush, the reference is given to the transport
+         */
+        public ChannelFuture write(Channel channel, Object msg) {
+            released(msg);
+            return channel.write(msg);
+        }
+
+        /**
+         * Write and flush, the reference is given to the transport
+         */
+        public ChannelFuture writeAndFlush(Channel channel, Object msg) {
+            released(msg);
+            return channel.writeAndFlush(msg);
+        }
+
+        private void released(Object msg) {
+            if (mReleased != null && msg instanceof ReferenceCounted) {
+                mReleased.increment();
+            }
+        }
+    }
+
+    /**
+     * Counts nothing, of the channels without accounting
+     */
+    public static final Handle NONE = new Handle(null, null);
+
+    public BufferAccounting(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param name Handler type in metrics
+     * @return Counters of the accounting set on any of the channels or their parents, NONE if not enabled
+     */
+    public static Handle handle(String name, Channel channel, Channel peer) {
+        BufferAccounting accounting = of(channel);
+        if (accounting == null) {
+            accounting = of(peer);
+        }
+        return (accounting != null) ? accounting.handle(name) : NONE;
+    }
+
+    private static BufferAccounting of(Channel channel) {
+        for (Channel ch = channel; ch != null; ch = ch.parent()) {
+            if (ch.hasAttr(KEY)) {
+                return ch.attr(KEY).get();
+            }
+        }
+        return null;
+    }
+
+    public Handle handle(String name) {
+        Handle handle = mHandles.get(name);
+        if (handle == null) {
+            handle = mHandles.computeIfAbsent(name, k -> {
+                final LongAdder retained = mMetrics.counter("buffer." + k + ".retained");
+                final LongAdder released = mMetrics.counter("buffer." + k + ".released");
+                mMetrics.gauge("buffer." + k + ".outstanding", () -> retained.sum() - released.sum());
+                return new Handle(retained, released);
+            });
+        }
+        return handle;
+    }
+}
@@ -0,0 +1,142 @@
+package com.rex.proxy.limit;
+
+import com.rex.proxy.WslServer;
+import com.rex.proxy.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of WslServer
+ *
+ * 1. New connections per source address
+ * 2. WebSocket handshakes per source address
+ * 3. Tunnel opens per source address and per user
+ * 4. Concurrent tunnels globally
+ * 5. Shed new handshakes and tunnels while the event loops overloaded
+ *
+ * Every limit is optional, leave the rate null in configuration means unlimited.
+ * All the checks are lock-free, rejections are counted in metrics.
+ * Limits are replaced as a whole by update(), the buckets start full again, active tunnels are kept.
+ */
+public class AdmissionControl {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    // Immutable limits built from one configuration
+    private static final class Limits {
+        final KeyedRateLimiter<InetAddress> connection;
+        final KeyedRateLimiter<InetAddress> handshake;
+        final KeyedRateLimiter<InetAddress> tunnel;
+        final KeyedRateLimiter<String> userTunnel;
+        final int maxTunnels;
+        Limits(WslServer.Configuration config) {
+            connection = create(config.limitConnectionRate, config.limitConnectionBurst);
+            handshake = create(config.limitHandshakeRate, config.limitHandshakeBurst);
+            tunnel = create(config.limitTunnelRate, config.limitTunnelBurst);
+            userTunnel = create(config.limitUserTunnelRate, config.limitUserTunnelBurst);
+            maxTunnels = (config.limitTunnels != null && config.limitTunnels > 0) ? config.limitTunnels : Integer.MAX_VALUE;
+        }
+    }
+
+    private volatile Limits mLimits;
+    private final AtomicInteger mTunnels = new AtomicInteger();
+    private final OverloadDetector mOverload;
+
+    private final LongAdder mRejectConnection;
+    private final LongAdder mRejectHandshake;
+    private final LongAdder mRejectTunnel;
+    private final LongAdder mRejectUser;
+    private final LongAdder mRejectCapacity;
+
+    public AdmissionControl(WslServer.Configuration config, OverloadDetector overload, Metrics metrics) {
+        sLogger.trace("<init>");
+        mOverload = overload;
+        mLimits = new Limits(config);
+
+        mRejectConnection = metrics.counter("admission.reject.connection");
+        mRejectHandshake = metrics.counter("admission.reject.handshake");
+        mRejectTunnel = metrics.counter("admission.reject.tunnel");
+        mRejectUser = metrics.counter("admission.reject.user");
+        mRejectCapacity = metrics.counter("admission.reject.capacity");
+        metrics.gauge("tunnel.active", mTunnels::get);
+    }
+
+    /**
+     * Apply the limits of new configuration, checks after it returned use the new limits
+     */
+    public void update(WslServer.Configuration config) {
+        mLimits = new Limits(config);
+    }
+
+    private static <K> KeyedRateLimiter<K> create(Double rate, Integer burst) {
+        if (rate == null || rate <= 0) {
+            return null;
+        }
+        return new KeyedRateLimiter<>(rate, (burst != null) ? burst : (int) Math.ceil(rate));
+    }
+
+    public boolean acceptConnection(InetAddress address) {
+        KeyedRateLimiter<InetAddress> limiter = mLimits.connection;
+        if (limiter != null && !limiter.tryAcquire(address)) {
+            sLogger.debug("reject connection from {}", address);
+            mRejectConnection.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if new handshake or tunnel should be refused as overloaded
+     */
+    public boolean shed() {
+        return mOverload != null && mOverload.shed();
+    }
+
+    public boolean acceptHandshake(InetAddress address) {
+        KeyedRateLimiter<InetAddress> limiter = mLimits.handshake;
+        if (limiter != null && !limiter.tryAcquire(address)) {
+            sLogger.debug("reject handshake from {}", address);
+            mRejectHandshake.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Acquire a tunnel slot, must call releaseTunnel() once the tunnel closed if accepted
+     *
+     * @param user Name in the users or proxyUid authenticated with, null if auth not enabled
+     */
+    public boolean acquireTunnel(InetAddress address, String user) {
+        Limits limits = mLimits;
+        if (limits.tunnel != null && !limits.tunnel.tryAcquire(address)) {
+            sLogger.debug("reject tunnel from {}", address);
+            mRejectTunnel.increment();
+            return false;
+        }
+        if (user != null && limits.userTunnel != null && !limits.userTunnel.tryAcquire(user)) {
+            sLogger.debug("reject tunnel from {} by user limit", address);
+            mRejectUser.increment();
+            return false;
+        }
+        if (mTunnels.incrementAndGet() > limits.maxTunnels) {
+            mTunnels.decrementAndGet();
+            sLogger.debug("reject tunnel from {} by capacity {}", address, limits.maxTunnels);
+            mRejectCapacity.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void releaseTunnel() {
+        mTunnels.decrementAndGet();
+    }
+
+    public int activeTunnels() {
+        return mTunnels.get();
+    }
+}
@@ -0,0 +1,78 @@
+package com.rex.proxy.limit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit by key, e.g. source address or user
+ *
+ * Each key own a lock-free RateLimiter, buckets lookup through ConcurrentHashMap without lock.
+ * Idle buckets are purged when too many keys accumulated, idle bucket is full so drop it change nothing.
+ * The scan runs at most once per PURGE_INTERVAL, by the one caller won the turn, so a flood of new keys does not
+ * scan the map on every key. Once the map is full even after purge, new keys share one overflow bucket until
+ * buckets turn idle, a flood of sources is limited as one.
+ */
+public final class KeyedRateLimiter<K> {
+
+    private static final int PURGE_THRESHOLD = 1 << 16;
+    private static final int MAX_KEYS = 1 << 18;
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final double mRate;
+    private final int mBurst;
+    private final int mPurgeThreshold;
+    private final int mMaxKeys;
+    private final ConcurrentMap<K, RateLimiter> mLimiters = new ConcurrentHashMap<>();
+    private final RateLimiter mOverflow; // Shared by the new keys while the map is full
+    private final AtomicLong mNextPurge; // System.nanoTime the next purge allowed
+
+    public KeyedRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, PURGE_THRESHOLD, MAX_KEYS);
+    }
+
+    KeyedRateLimiter(double permitsPerSecond, int burst, int purgeThreshold, int maxKeys) {
+        mRate = permitsPerSecond;
+        mBurst = burst;
+        mPurgeThreshold = purgeThreshold;
+        mMaxKeys = maxKeys;
+        mOverflow = new RateLimiter(permitsPerSecond, burst);
+        mNextPurge = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire(K key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    boolean tryAcquire(K key, long now) {
+        RateLimiter limiter = mLimiters.get(key);
+        if (limiter == null) {
+            if (mLimiters.size() >= mPurgeThreshold) {
+                long next = mNextPurge.get();
+                if (now - next >= 0 && mNextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+                    purge(now);
+                }
+            }
+            if (mLimiters.size() >= mMaxKeys) {
+                return mOverflow.tryAcquire(now);
+            }
+            limiter = mLimiters.computeIfAbsent(key, k -> new RateLimiter(mRate, mBurst));
+        }
+        return limiter.tryAcquire(now);
+    }
+
+    public int size() {
+        return mLimiters.size();
+    }
+
+    void purge(long now) {
+        Iterator<RateLimiter> iter = mLimiters.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isIdle(now)) {
+                iter.remove();
+            }
+        }
+    }
+}
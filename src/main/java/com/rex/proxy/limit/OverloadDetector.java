@@ -0,0 +1,165 @@
+package com.rex.proxy.limit;
+
+import com.rex.proxy.loop.LoopProbe;
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detect overload of the worker event loops, new tunnels should be refused cheaply while overloaded
+ *
+ * Every SAMPLE_INTERVAL submit a probe task to each worker loop, the scheduling lag is the time
+ * the probe waited in the task queue, a probe still waiting counts its age so a stuck loop is detected.
+ * Also watch the pending task count of each loop and the used direct memory of the allocator.
+ *
+ * Enter overload once any threshold crossed, recover only when all drop below RECOVER_RATIO of the thresholds,
+ * avoid flapping around the edge.
+ */
+public class OverloadDetector {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(OverloadDetector.class);
+
+    private static final long SAMPLE_INTERVAL = 500; // milliseconds
+    private static final double RECOVER_RATIO = 0.8;
+
+    private final List<LoopProbe> mProbes = new ArrayList<>();
+    private final EventExecutor mScheduler;
+    private final ByteBufAllocator mAllocator;
+    private final long mMaxLag; // nanoseconds, 0 means not watched
+    private final long mMaxPending;
+    private final long mMaxDirect;
+
+    private final LongAdder mShed;
+    private final LongAdder mEnter;
+    private volatile boolean mOverloaded;
+    private volatile long mLastLag;
+    private volatile long mLastPending;
+    private volatile long mLastDirect;
+    private ScheduledFuture<?> mFuture;
+
+    /**
+     * @param workers Event loops to watch
+     * @param scheduler Run the sampling, should not be one of the workers
+     * @param maxLagMillis Max scheduling lag of any worker loop, null to skip
+     * @param maxPendingTasks Max pending tasks of any worker loop, null to skip
+     * @param maxDirectMemory Max direct memory in bytes used by the allocator, null to skip
+     */
+    public OverloadDetector(EventLoopGroup workers, EventExecutor scheduler, ByteBufAllocator allocator,
+                            Long maxLagMillis, Integer maxPendingTasks, Long maxDirectMemory,
+                            Metrics metrics) {
+        sLogger.trace("<init>");
+        for (EventExecutor executor : workers) {
+            mProbes.add(new LoopProbe(executor));
+        }
+        mScheduler = scheduler;
+        mAllocator = allocator;
+        mMaxLag = (maxLagMillis != null && maxLagMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(maxLagMillis) : 0;
+        mMaxPending = (maxPendingTasks != null && maxPendingTasks > 0) ? maxPendingTasks : 0;
+        mMaxDirect = (maxDirectMemory != null && maxDirectMemory > 0) ? maxDirectMemory : 0;
+
+        mShed = metrics.counter("overload.shed");
+        mEnter = metrics.counter("overload.enter");
+        metrics.gauge("overload.state", () -> mOverloaded ? 1 : 0);
+        metrics.gauge("overload.lag.micros", () -> TimeUnit.NANOSECONDS.toMicros(mLastLag));
+        metrics.gauge("overload.pending", () -> mLastPending);
+        metrics.gauge("overload.direct", () -> mLastDirect);
+    }
+
+    public boolean isEnabled() {
+        return mMaxLag > 0 || mMaxPending > 0 || mMaxDirect > 0;
+    }
+
+    synchronized public OverloadDetector start() {
+        if (mFuture == null && isEnabled()) {
+            mFuture = mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    sample(System.nanoTime());
+                }
+            }, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    synchronized public void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+        mOverloaded = false;
+    }
+
+    public boolean isOverloaded() {
+        return mOverloaded;
+    }
+
+    /**
+     * Check before opening new tunnel
+     *
+     * @return true if the new tunnel should be refused, counted in metrics
+     */
+    public boolean shed() {
+        if (mOverloaded) {
+            mShed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    void sample(long now) {
+        long lag = 0;
+        long pending = 0;
+        for (LoopProbe probe : mProbes) {
+            lag = Math.max(lag, probe.sample(now));
+            if (probe.executor() instanceof SingleThreadEventExecutor) {
+                pending = Math.max(pending, ((SingleThreadEventExecutor) probe.executor()).pendingTasks());
+            }
+        }
+        long direct = usedDirectMemory();
+        mLastLag = lag;
+        mLastPending = pending;
+        mLastDirect = direct;
+        update(lag, pending, direct);
+    }
+
+    void update(long lag, long pending, long direct) {
+        boolean exceeded = exceeded(lag, mMaxLag, 1) || exceeded(pending, mMaxPending, 1) || exceeded(direct, mMaxDirect, 1);
+        if (!mOverloaded && exceeded) {
+            sLogger.warn("Overloaded lag:{}us pending:{} direct:{}", TimeUnit.NANOSECONDS.toMicros(lag), pending, direct);
+            mEnter.increment();
+            mOverloaded = true;
+        } else if (mOverloaded) {
+            boolean recovered = !exceeded(lag, mMaxLag, RECOVER_RATIO) && !exceeded(pending, mMaxPending, RECOVER_RATIO) && !exceeded(direct, mMaxDirect, RECOVER_RATIO);
+            if (recovered) {
+                sLogger.warn("Recovered lag:{}us pending:{} direct:{}", TimeUnit.NANOSECONDS.toMicros(lag), pending, direct);
+                mOverloaded = false;
+            }
+        }
+    }
+
+    private static boolean exceeded(long value, long threshold, double ratio) {
+        return threshold > 0 && value > threshold * ratio;
+    }
+
+    private long usedDirectMemory() {
+        if (mMaxDirect == 0) {
+            return 0;
+        }
+        if (mAllocator instanceof ByteBufAllocatorMetricProvider) {
+            return ((ByteBufAllocatorMetricProvider) mAllocator).metric().usedDirectMemory();
+        }
+        return PlatformDependent.usedDirectMemory();
+    }
+}
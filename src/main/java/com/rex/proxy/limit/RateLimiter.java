@@ -0,0 +1,55 @@
+package com.rex.proxy.limit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as GCRA (generic cell rate algorithm)
+ *
+ * The whole bucket state is a single theoretical arrival time (TAT),
+ * acquire a permit is one CAS on it, never blocks and never allocates.
+ *
+ * TAT = max(TAT, now) + interval, allowed if TAT - now <= (burst - 1) * interval
+ */
+public final class RateLimiter {
+
+    private final long mInterval; // Nanoseconds per permit
+    private final long mTolerance; // Nanoseconds of burst allowed ahead
+    private final AtomicLong mTat;
+
+    /**
+     * @param permitsPerSecond Sustained rate
+     * @param burst Permits can be acquired at once when bucket is full, at least 1
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + permitsPerSecond);
+        }
+        mInterval = Math.max(1, (long) (1e9 / permitsPerSecond));
+        mTolerance = mInterval * (Math.max(1, burst) - 1);
+        mTat = new AtomicLong(System.nanoTime() - mInterval); // Full, even for a now taken just before
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    boolean tryAcquire(long now) {
+        for (;;) {
+            long tat = mTat.get();
+            long base = (tat - now > 0) ? tat : now;
+            if (base - now > mTolerance) {
+                return false;
+            }
+            if (mTat.compareAndSet(tat, base + mInterval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bucket is full again, safe to drop it and re-create later
+     */
+    boolean isIdle(long now) {
+        return now - mTat.get() >= 0;
+    }
+}
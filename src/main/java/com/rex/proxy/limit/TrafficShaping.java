@@ -0,0 +1,195 @@
+package com.rex.proxy.limit;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Bandwidth shaping in 3 levels, all limits are in bytes per second, null or 0 means unlimited
+ *
+ * 1. Global, one GlobalTrafficShapingHandler shared by all the client connections
+ * 2. Per user, one GlobalTrafficShapingHandler per user shared by all the connections of the user,
+ *    connections on different event loops draw from the same budget, released with the last connection closed
+ * 3. Per tunnel, a ChannelTrafficShapingHandler on each connection
+ *
+ * Handlers are added at the head of the client facing channel, so upload is shaped as read and download as write.
+ * Each level use its own user defined writability bit, the write queue of shaping handler is bounded by
+ * MAX_WRITE_SIZE, once exceeded the channel turns unwritable, relay handlers will stop reading from the peer
+ * until it drained, instead of buffering without bound.
+ *
+ * Limits could be changed by update(), the shared global and user budgets take effect immediately,
+ * tunnel limits apply to the new tunnels only.
+ */
+public class TrafficShaping {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TrafficShaping.class);
+
+    private static final long CHECK_INTERVAL = 1000; // milliseconds
+    private static final long MAX_WRITE_SIZE = 1 << 16; // 64KB, same as default high water mark
+    private static final long MAX_WRITE_DELAY = 4000; // milliseconds
+    private static final int USER_WRITABILITY_INDEX = 4; // Netty reserved 1 for channel, 2 for global, 3 for global channel
+
+    private static final String HANDLER_GLOBAL = "shapingGlobal";
+    private static final String HANDLER_USER = "shapingUser";
+    private static final String HANDLER_TUNNEL = "shapingTunnel";
+
+    // Immutable per user and per tunnel limits
+    private static final class Limits {
+        final long userUpload;
+        final long userDownload;
+        final long tunnelUpload;
+        final long tunnelDownload;
+        Limits(Long userUpload, Long userDownload, Long tunnelUpload, Long tunnelDownload) {
+            this.userUpload = valueOf(userUpload);
+            this.userDownload = valueOf(userDownload);
+            this.tunnelUpload = valueOf(tunnelUpload);
+            this.tunnelDownload = valueOf(tunnelDownload);
+        }
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final Metrics mMetrics;
+    private volatile GlobalTrafficShapingHandler mGlobal; // Null until global limit set
+    private volatile Limits mLimits;
+    private final ConcurrentMap<String, UserBudget> mUsers = new ConcurrentHashMap<>();
+
+    // Handler of a user and the connections using it, only changed inside the compute of mUsers
+    private static final class UserBudget {
+        final GlobalTrafficShapingHandler handler;
+        int channels;
+        UserBudget(GlobalTrafficShapingHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    public TrafficShaping(ScheduledExecutorService executor,
+                          Long globalUpload, Long globalDownload,
+                          Long userUpload, Long userDownload,
+                          Long tunnelUpload, Long tunnelDownload,
+                          Metrics metrics) {
+        sLogger.trace("<init>");
+        mExecutor = executor;
+        mMetrics = metrics;
+        update(globalUpload, globalDownload, userUpload, userDownload, tunnelUpload, tunnelDownload);
+        metrics.gauge("shaping.users", () -> mUsers.size());
+    }
+
+    /**
+     * Apply new limits, the channels already shaped by global or user budget follow the new limits
+     */
+    synchronized public void update(Long globalUpload, Long globalDownload,
+                                    Long userUpload, Long userDownload,
+                                    Long tunnelUpload, Long tunnelDownload) {
+        long upload = valueOf(globalUpload);
+        long download = valueOf(globalDownload);
+        GlobalTrafficShapingHandler global = mGlobal;
+        if (global != null) {
+            global.configure(download, upload);
+        } else if (upload > 0 || download > 0) {
+            // Only the new connections will be shaped
+            global = bounded(new GlobalTrafficShapingHandler(mExecutor, download, upload, CHECK_INTERVAL, MAX_WRITE_DELAY));
+            global.setMaxGlobalWriteSize(MAX_WRITE_SIZE * 1024);
+            final GlobalTrafficShapingHandler handler = global;
+            mMetrics.gauge("shaping.global.upload", () -> handler.trafficCounter().lastReadThroughput());
+            mMetrics.gauge("shaping.global.download", () -> handler.trafficCounter().lastWriteThroughput());
+            mGlobal = global;
+        }
+
+        Limits limits = new Limits(userUpload, userDownload, tunnelUpload, tunnelDownload);
+        mLimits = limits; // Publish before update the existing users, new users created meanwhile get the new limits
+        for (UserBudget budget : mUsers.values()) {
+            budget.handler.configure(limits.userDownload, limits.userUpload);
+        }
+    }
+
+    private static long valueOf(Long limit) {
+        return (limit != null && limit > 0) ? limit : 0;
+    }
+
+    private static <T extends AbstractTrafficShapingHandler> T bounded(T handler) {
+        handler.setMaxWriteSize(MAX_WRITE_SIZE);
+        return handler;
+    }
+
+    /**
+     * Shape the accepted client connection with global limits
+     */
+    public void addGlobal(Channel ch) {
+        GlobalTrafficShapingHandler global = mGlobal;
+        if (global != null) {
+            ch.pipeline().addFirst(HANDLER_GLOBAL, global);
+        }
+    }
+
+    /**
+     * Shape the connection with the budget of the user, call it once the user authenticated
+     */
+    public void addUser(Channel ch, String user) {
+        final Limits limits = mLimits;
+        if (user == null || (limits.userUpload == 0 && limits.userDownload == 0)) {
+            return;
+        }
+        if (ch.pipeline().get(HANDLER_USER) != null) {
+            return;
+        }
+        final UserBudget budget = mUsers.compute(user, (k, v) -> {
+            if (v == null) {
+                v = new UserBudget(bounded(new GlobalTrafficShapingHandler(mExecutor, limits.userDownload, limits.userUpload, CHECK_INTERVAL, MAX_WRITE_DELAY) {
+                    @Override
+                    protected int userDefinedWritabilityIndex() {
+                        return USER_WRITABILITY_INDEX;
+                    }
+                }));
+            }
+            v.channels++;
+            return v;
+        });
+        ch.pipeline().addFirst(HANDLER_USER, budget.handler);
+        ch.closeFuture().addListener(future -> removeUser(user, budget));
+    }
+
+    // Stop the traffic counter of the user once its last connection closed
+    private void removeUser(String user, final UserBudget budget) {
+        mUsers.computeIfPresent(user, (k, v) -> {
+            if (v != budget || --v.channels > 0) {
+                return v;
+            }
+            v.handler.release();
+            return null;
+        });
+    }
+
+    /**
+     * Shape the connection with per tunnel limits
+     */
+    public void addTunnel(Channel ch) {
+        Limits limits = mLimits;
+        if (limits.tunnelUpload == 0 && limits.tunnelDownload == 0) {
+            return;
+        }
+        if (ch.pipeline().get(HANDLER_TUNNEL) == null) {
+            ch.pipeline().addFirst(HANDLER_TUNNEL, bounded(new ChannelTrafficShapingHandler(limits.tunnelDownload, limits.tunnelUpload, CHECK_INTERVAL, MAX_WRITE_DELAY)));
+        }
+    }
+
+    /**
+     * Stop the traffic counters of shared handlers
+     */
+    synchronized public void release() {
+        if (mGlobal != null) {
+            mGlobal.release();
+        }
+        for (UserBudget budget : mUsers.values()) {
+            budget.handler.release();
+        }
+        mUsers.clear();
+    }
+}
@@ -0,0 +1,215 @@
+package com.rex.proxy.loop;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Track the load of each worker event loop
+ *
+ * 1. Active channels, counted by the handler() added to the client facing channels
+ * 2. Bytes per second read and written by those channels
+ * 3. Task latency, time a probe task waited in the queue of the loop
+ *
+ * Sampled every SAMPLE_INTERVAL, exported as loop.<n>.channels, loop.<n>.bytesPerSec and loop.<n>.lag.micros
+ */
+public class EventLoopMonitor {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(EventLoopMonitor.class);
+
+    private static final long SAMPLE_INTERVAL = 1000; // milliseconds
+
+    static final class LoopStats {
+        final EventExecutor executor;
+        final LoopProbe probe;
+        final AtomicInteger channels = new AtomicInteger();
+        final AtomicInteger assigned = new AtomicInteger(); // Chosen but not active yet
+        final LongAdder bytes = new LongAdder();
+        volatile long bytesPerSec;
+        LoopStats(EventExecutor executor) {
+            this.executor = executor;
+            this.probe = new LoopProbe(executor);
+        }
+    }
+
+    // Stats of the loop of the channel, looked up once registered, null if the loop not watched
+    private static final AttributeKey<LoopStats> STATS = AttributeKey.valueOf(EventLoopMonitor.class, "STATS");
+
+    private final Metrics mMetrics;
+    private final ChannelHandler mHandler = new MonitorHandler();
+    private volatile LoopStats[] mStats = new LoopStats[0];
+    private long mLastSample;
+    private ScheduledFuture<?> mFuture;
+
+    public EventLoopMonitor(Metrics metrics) {
+        sLogger.trace("<init>");
+        mMetrics = metrics;
+    }
+
+    /**
+     * Watch the event loops, usually all the executors of the worker group
+     */
+    synchronized public EventLoopMonitor register(Iterable<? extends EventExecutor> executors) {
+        List<LoopStats> stats = new ArrayList<>();
+        for (LoopStats s : mStats) {
+            stats.add(s);
+        }
+        for (EventExecutor executor : executors) {
+            if (find(executor) != null) {
+                continue;
+            }
+            final LoopStats s = new LoopStats(executor);
+            String prefix = "loop." + stats.size();
+            mMetrics.gauge(prefix + ".channels", s.channels::get);
+            mMetrics.gauge(prefix + ".bytesPerSec", () -> s.bytesPerSec);
+            mMetrics.gauge(prefix + ".lag.micros", () -> TimeUnit.NANOSECONDS.toMicros(s.probe.lag()));
+            stats.add(s);
+        }
+        mStats = stats.toArray(new LoopStats[0]);
+        return this;
+    }
+
+    /**
+     * @param scheduler Run the sampling, should not be one of the watched loops
+     */
+    synchronized public EventLoopMonitor start(EventExecutor scheduler) {
+        if (mFuture == null) {
+            mLastSample = System.nanoTime();
+            mFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    sample(System.nanoTime());
+                }
+            }, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    synchronized public void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    /**
+     * Sharable handler to count channels and bytes, add it to the client facing channels
+     */
+    public ChannelHandler handler() {
+        return mHandler;
+    }
+
+    public int channels(EventExecutor executor) {
+        LoopStats s = find(executor);
+        return (s != null) ? s.channels.get() : 0;
+    }
+
+    public long bytesPerSec(EventExecutor executor) {
+        LoopStats s = find(executor);
+        return (s != null) ? s.bytesPerSec : 0;
+    }
+
+    public long lagMicros(EventExecutor executor) {
+        LoopStats s = find(executor);
+        return (s != null) ? TimeUnit.NANOSECONDS.toMicros(s.probe.lag()) : 0;
+    }
+
+    // Few loops, linear scan by identity is cheaper than a map lookup
+    LoopStats find(EventExecutor executor) {
+        for (LoopStats s : mStats) {
+            if (s.executor == executor) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    synchronized void sample(long now) {
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - mLastSample));
+        mLastSample = now;
+        for (LoopStats s : mStats) {
+            long rate = s.bytes.sumThenReset() * 1000 / elapsed;
+            s.bytesPerSec = (s.bytesPerSec + rate) / 2; // Smooth out short bursts
+            s.assigned.set(0); // Drop the choices never turned into channel
+            s.probe.sample(now);
+        }
+    }
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    @ChannelHandler.Sharable
+    private final class MonitorHandler extends ChannelDuplexHandler {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isRegistered()) {
+                ctx.channel().attr(STATS).set(find(ctx.channel().eventLoop()));
+            }
+        }
+
+        @Override
+        public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+            ctx.channel().attr(STATS).set(find(ctx.channel().eventLoop()));
+            super.channelRegistered(ctx);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            LoopStats s = ctx.channel().attr(STATS).get();
+            if (s != null) {
+                s.channels.incrementAndGet();
+                s.assigned.updateAndGet(v -> (v > 0) ? v - 1 : 0);
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            LoopStats s = ctx.channel().attr(STATS).get();
+            if (s != null) {
+                s.channels.decrementAndGet();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            LoopStats s = ctx.channel().attr(STATS).get();
+            if (s != null) {
+                s.bytes.add(sizeOf(msg));
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            LoopStats s = ctx.channel().attr(STATS).get();
+            if (s != null) {
+                s.bytes.add(sizeOf(msg));
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+}
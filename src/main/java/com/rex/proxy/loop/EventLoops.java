@@ -0,0 +1,137 @@
+package com.rex.proxy.loop;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Create event loop groups and pick the channel classes matching the transport of the loop
+ *
+ * Channels must be registered to the loop of the same transport, NIO channels to NIO loops and epoll channels
+ * to epoll loops, so always ask for the channel class by the loop it will be registered to.
+ */
+public final class EventLoops {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(EventLoops.class);
+
+    private EventLoops() {
+    }
+
+    /**
+     * @return true if native epoll transport could be used on this platform
+     */
+    public static boolean isEpollAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * Create the event loop group
+     *
+     * @param threads Number of event loops, null or 0 to use the netty default
+     * @param monitor Use the least loaded chooser if not null, otherwise the netty default round-robin
+     * @param epoll Use native epoll transport instead of NIO, caller should check isEpollAvailable()
+     */
+    public static EventLoopGroup newEventLoopGroup(Integer threads, EventLoopMonitor monitor, boolean epoll) {
+        int nThreads = (threads != null && threads > 0) ? threads : 0;
+        if (epoll) {
+            return (monitor == null) ? new EpollEventLoopGroup(nThreads) :
+                    new EpollEventLoopGroup(nThreads, (Executor) null, new LeastLoadedChooserFactory(monitor),
+                            DefaultSelectStrategyFactory.INSTANCE);
+        }
+        return (monitor == null) ? new NioEventLoopGroup(nThreads) :
+                new NioEventLoopGroup(nThreads, (Executor) null, new LeastLoadedChooserFactory(monitor),
+                        SelectorProvider.provider(), DefaultSelectStrategyFactory.INSTANCE);
+    }
+
+    public static boolean isEpoll(EventLoopGroup group) {
+        if (group instanceof EventLoop) {
+            group = ((EventLoop) group).parent();
+        }
+        return group instanceof EpollEventLoopGroup;
+    }
+
+    public static Class<? extends SocketChannel> socketChannel(EventLoopGroup group) {
+        return isEpoll(group) ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static Class<? extends ServerSocketChannel> serverSocketChannel(EventLoopGroup group) {
+        return isEpoll(group) ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends DatagramChannel> datagramChannel(EventLoopGroup group) {
+        return isEpoll(group) ? EpollDatagramChannel.class : NioDatagramChannel.class;
+    }
+
+    /**
+     * @return Smoothed round trip time the kernel measured of the TCP connection under the channel in nanoseconds,
+     * 0 if not an epoll socket or not measured yet
+     */
+    public static long tcpRtt(Channel channel) {
+        for (Channel ch = channel; ch != null; ch = ch.parent()) {
+            if (ch instanceof EpollSocketChannel) {
+                return ch.isActive() ? TimeUnit.MICROSECONDS.toNanos(((EpollSocketChannel) ch).tcpInfo().rtt()) : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Bind one listening socket per worker loop on the same address with SO_REUSEPORT,
+     * the kernel spreads new connections across the sockets, each connection stays on the loop accepted it
+     *
+     * @param bootstrap Configured with channel, child handler and options, group will be set per loop
+     * @param workers Epoll event loops
+     * @return The bound listening channels, closed all if any failed
+     */
+    public static List<Channel> bindReusePort(ServerBootstrap bootstrap, EventLoopGroup workers, SocketAddress address) {
+        List<Channel> channels = new ArrayList<>();
+        try {
+            for (EventExecutor executor : workers) {
+                EventLoop loop = (EventLoop) executor;
+                Channel channel = bootstrap.clone()
+                        .group(loop, loop)
+                        .option(EpollChannelOption.SO_REUSEPORT, true)
+                        .bind(address)
+                        .syncUninterruptibly()
+                        .channel();
+                if (channels.isEmpty()) {
+                    address = channel.localAddress(); // Resolve port 0 to the actual port for the others
+                }
+                channels.add(channel);
+            }
+        } catch (Throwable tr) {
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            throw tr;
+        }
+        sLogger.debug("Bind {} acceptors on {}", channels.size(), ((InetSocketAddress) address).getPort());
+        return channels;
+    }
+}
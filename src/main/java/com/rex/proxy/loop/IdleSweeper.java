@@ -0,0 +1,253 @@
+package com.rex.proxy.loop;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Close the channels neither read nor written for a while, one hashed wheel shared by all the channels of a
+ * runtime instead of the timers of an IdleStateHandler per channel
+ *
+ * A tracked channel gets a small handler stamping the time of the last read or write with a plain field write,
+ * the time is a coarse clock advanced by the sweeper each tick, so the hot path neither reads the system clock
+ * nor schedules anything. Each channel sits in the wheel bucket of its deadline and a tick only visits the
+ * bucket due: the channels active since are moved to the bucket of their new deadline, the idle ones are checked
+ * again and closed on their event loops, one task per loop for the whole batch.
+ *
+ * Closing does not search the wheel, the tracker lets go of its channel at once and is dropped when its bucket
+ * comes, so a closed channel with its pipeline is not held until then.
+ */
+public final class IdleSweeper {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(IdleSweeper.class);
+
+    public static final int DEFAULT_TIMEOUT = 900; // Seconds, 15min as the former IdleStateHandler
+
+    private static final String HANDLER_IDLE = "idle";
+    private static final int WHEEL = 512; // Buckets, power of 2
+    private static final int MASK = WHEEL - 1;
+
+    private final Timer mTimer;
+    private final long mTickMillis;
+    private final Metrics mMetrics;
+    private final List<Queue<Tracker>> mWheel;
+    private final AtomicInteger mTracked = new AtomicInteger();
+    private final long mOrigin = System.nanoTime();
+    private volatile long mNow; // Milliseconds since origin, advanced each tick
+    private volatile long mSwept; // Last tick swept, written by the timer thread only
+    private Timeout mTimeout;
+    private boolean mStopped;
+
+    private final TimerTask mSweepTask = new TimerTask() {
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            sweep();
+            synchronized (IdleSweeper.this) {
+                if (! mStopped) {
+                    mTimeout = mTimer.newTimeout(this, mTickMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    };
+
+    // Per channel, the stamp is written by the event loop and read by the sweeper
+    private final class Tracker extends ChannelDuplexHandler implements ChannelFutureListener {
+        Channel channel; // Null once closed, a stale read sees the channel closed anyway
+        final long timeout;
+        final LongAdder closed;
+        long lastActive; // Plain field, a stale read only sends the channel to its event loop to check again
+        long deadlineTick;
+
+        Tracker(Channel channel, long timeout, LongAdder closed) {
+            this.channel = channel;
+            this.timeout = timeout;
+            this.closed = closed;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            lastActive = mNow;
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            lastActive = mNow;
+            ctx.write(msg, promise);
+        }
+
+        @Override // Channel closed
+        public void operationComplete(ChannelFuture future) throws Exception {
+            channel = null;
+            mTracked.decrementAndGet();
+        }
+
+    }
+
+    /**
+     * @param tickMillis Resolution of the timeouts, also the interval of the sweeps
+     * @param metrics Export the closed channels as idle.KIND.closed and the tracked ones as idle.tracked
+     */
+    public IdleSweeper(Timer timer, long tickMillis, Metrics metrics) {
+        sLogger.trace("<init>");
+        mTimer = timer;
+        mTickMillis = Math.max(1, tickMillis);
+        mMetrics = metrics;
+        mWheel = new ArrayList<>(WHEEL);
+        for (int i = 0; i < WHEEL; i++) {
+            mWheel.add(new ConcurrentLinkedQueue<>());
+        }
+        mNow = clock();
+        mSwept = mNow / mTickMillis;
+        metrics.gauge("idle.tracked", mTracked::get);
+    }
+
+    synchronized public IdleSweeper start() {
+        if (mTimeout == null && !mStopped) {
+            mTimeout = mTimer.newTimeout(mSweepTask, mTickMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stop sweeping, the tracked channels are left open
+     */
+    synchronized public void stop() {
+        mStopped = true;
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+    }
+
+    /**
+     * @param seconds Configured timeout, null for the default, 0 or negative to disable
+     * @return Timeout in milliseconds, 0 if disabled
+     */
+    public static long timeoutMillis(Integer seconds) {
+        long value = (seconds != null) ? seconds : DEFAULT_TIMEOUT;
+        return (value > 0) ? TimeUnit.SECONDS.toMillis(value) : 0;
+    }
+
+    /**
+     * Close the channel once neither read nor written for the timeout, call it once when the channel created
+     *
+     * @param kind Count the channels closed by idle as idle.KIND.closed
+     * @param timeoutMillis 0 or negative to skip
+     */
+    public void track(Channel ch, String kind, long timeoutMillis) {
+        if (timeoutMillis <= 0 || ch.pipeline().get(HANDLER_IDLE) != null) {
+            return;
+        }
+        Tracker tracker = new Tracker(ch, timeoutMillis, mMetrics.counter("idle." + kind + ".closed"));
+        tracker.lastActive = clock();
+        ch.pipeline().addFirst(HANDLER_IDLE, tracker);
+        mTracked.incrementAndGet();
+        ch.closeFuture().addListener(tracker);
+        schedule(tracker, tracker.lastActive + timeoutMillis);
+    }
+
+    private long clock() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mOrigin);
+    }
+
+    private void schedule(Tracker tracker, long deadline) {
+        // Round up, the bucket is swept once its tick started, never before the deadline
+        long tick = Math.max((deadline + mTickMillis - 1) / mTickMillis, mSwept + 1);
+        tracker.deadlineTick = tick;
+        mWheel.get((int) (tick & MASK)).add(tracker);
+    }
+
+    private void sweep() {
+        long now = clock();
+        mNow = now;
+        long current = now / mTickMillis;
+        long first = Math.max(mSwept + 1, current - MASK); // Visit each bucket once at most if the timer fell behind
+        Map<EventLoop, List<Tracker>> idle = null;
+        List<Tracker> due = new ArrayList<>();
+        for (long tick = first; tick <= current; tick++) {
+            Queue<Tracker> bucket = mWheel.get((int) (tick & MASK));
+            Tracker tracker;
+            while ((tracker = bucket.poll()) != null) {
+                due.add(tracker);
+            }
+            mSwept = tick;
+            for (Tracker t : due) {
+                Channel ch = t.channel;
+                if (ch == null || !ch.isOpen()) {
+                    continue;
+                }
+                if (t.deadlineTick > current) {
+                    // Later round of the wheel
+                    bucket.add(t);
+                    continue;
+                }
+                long deadline = t.lastActive + t.timeout;
+                if (deadline > now) {
+                    schedule(t, deadline);
+                    continue;
+                }
+                if (idle == null) {
+                    idle = new HashMap<>();
+                }
+                List<Tracker> batch = idle.get(ch.eventLoop());
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    idle.put(ch.eventLoop(), batch);
+                }
+                batch.add(t);
+            }
+            due.clear();
+        }
+        if (idle == null) {
+            return;
+        }
+        for (Map.Entry<EventLoop, List<Tracker>> entry : idle.entrySet()) {
+            final List<Tracker> batch = entry.getValue();
+            entry.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(batch);
+                }
+            });
+        }
+    }
+
+    // On the event loop of the channels, where the stamps are current
+    private void close(List<Tracker> batch) {
+        long now = mNow;
+        for (Tracker t : batch) {
+            Channel ch = t.channel;
+            if (ch == null || !ch.isOpen()) {
+                continue;
+            }
+            if (now - t.lastActive < t.timeout) {
+                schedule(t, t.lastActive + t.timeout);
+                continue;
+            }
+            sLogger.debug("Idle connection {}", ch);
+            t.closed.increment();
+            ch.close();
+        }
+    }
+}
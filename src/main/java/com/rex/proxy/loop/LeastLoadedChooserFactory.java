@@ -0,0 +1,60 @@
+package com.rex.proxy.loop;
+
+import io.netty.util.concurrent.DefaultEventExecutorChooserFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorChooserFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Choose the least loaded event loop for new channels, instead of round-robin
+ *
+ * Load of a loop is its active channels plus the channels just assigned to it, plus one for every
+ * BYTES_PER_CHANNEL bytes per second it moved, so a loop carrying bulk tunnels looks busier than one
+ * holding the same number of idle tunnels. Ties are broken round-robin.
+ *
+ * Every group.next() goes through the chooser, including the scheduled tasks submitted to the group,
+ * the assigned count of those never turn into channel and are dropped at the next sample.
+ */
+public class LeastLoadedChooserFactory implements EventExecutorChooserFactory {
+
+    private static final long BYTES_PER_CHANNEL = 1 << 16; // 64KB/s
+
+    private final EventLoopMonitor mMonitor;
+
+    public LeastLoadedChooserFactory(EventLoopMonitor monitor) {
+        mMonitor = monitor;
+    }
+
+    @Override
+    public EventExecutorChooser newChooser(EventExecutor[] executors) {
+        mMonitor.register(Arrays.asList(executors));
+        if (executors.length == 1) {
+            return DefaultEventExecutorChooserFactory.INSTANCE.newChooser(executors);
+        }
+        final EventLoopMonitor.LoopStats[] stats = new EventLoopMonitor.LoopStats[executors.length];
+        for (int i = 0; i < executors.length; i++) {
+            stats[i] = mMonitor.find(executors[i]);
+        }
+        return new EventExecutorChooser() {
+            private final AtomicInteger mIdx = new AtomicInteger();
+            @Override
+            public EventExecutor next() {
+                int start = mIdx.getAndIncrement() & Integer.MAX_VALUE;
+                EventLoopMonitor.LoopStats best = null;
+                long bestLoad = Long.MAX_VALUE;
+                for (int i = 0; i < stats.length; i++) {
+                    EventLoopMonitor.LoopStats s = stats[(start + i) % stats.length];
+                    long load = s.channels.get() + s.assigned.get() + s.bytesPerSec / BYTES_PER_CHANNEL;
+                    if (load < bestLoad) {
+                        best = s;
+                        bestLoad = load;
+                    }
+                }
+                best.assigned.incrementAndGet();
+                return best.executor;
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package com.rex.proxy.loop;
+
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * Scheduling lag of one event loop, the time a probe task waited in its queue
+ *
+ * Shared by the loop monitor and the overload detector. Each sample submits the probe unless it is still waiting,
+ * a probe still waiting counts its age so a stuck loop shows up before the probe ran.
+ */
+public final class LoopProbe implements Runnable {
+
+    private final EventExecutor mExecutor;
+    private volatile long mSubmitted; // 0 when idle
+    private volatile long mLag; // nanoseconds
+
+    public LoopProbe(EventExecutor executor) {
+        mExecutor = executor;
+    }
+
+    public EventExecutor executor() {
+        return mExecutor;
+    }
+
+    /**
+     * Submit the probe if idle, call from one scheduler
+     *
+     * @return Lag in nanoseconds, the age of the probe if still waiting and older than the last lag
+     */
+    public long sample(long now) {
+        long submitted = mSubmitted;
+        if (submitted != 0) {
+            mLag = Math.max(mLag, now - submitted);
+        } else {
+            mSubmitted = now;
+            mExecutor.execute(this);
+        }
+        return mLag;
+    }
+
+    /**
+     * @return Last lag in nanoseconds
+     */
+    public long lag() {
+        return mLag;
+    }
+
+    @Override
+    public void run() {
+        mLag = System.nanoTime() - mSubmitted;
+        mSubmitted = 0;
+    }
+}
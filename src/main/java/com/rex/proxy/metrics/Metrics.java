@@ -0,0 +1,77 @@
+package com.rex.proxy.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters and gauges
+ *
+ * Counter is a LongAdder, hot path should look it up once and keep the reference,
+ * increment it without contention across event loops.
+ * Gauge is sampled when taking snapshot.
+ */
+public class Metrics {
+
+    public interface Gauge {
+        long value();
+    }
+
+    private final ConcurrentMap<String, LongAdder> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name) {
+        LongAdder counter = mCounters.get(name);
+        if (counter == null) {
+            counter = mCounters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    public Metrics gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+        return this;
+    }
+
+    public Metrics remove(String name) {
+        mCounters.remove(name);
+        mGauges.remove(name);
+        return this;
+    }
+
+    /**
+     * @return Current value of the counter or gauge, 0 if not exist
+     */
+    public long value(String name) {
+        LongAdder counter = mCounters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        Gauge gauge = mGauges.get(name);
+        if (gauge != null) {
+            return gauge.value();
+        }
+        return 0;
+    }
+
+    /**
+     * @return Sorted copy of all the counters and gauges
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : mCounters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().value());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
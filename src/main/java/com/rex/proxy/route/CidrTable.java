@@ -0,0 +1,288 @@
+package com.rex.proxy.route;
+
+import io.netty.util.NetUtil;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CIDR rules compiled into sorted disjoint address ranges
+ *
+ * Nested prefixes are flattened when built, the longest prefix wins, adjacent ranges with the same action merged.
+ * IPv4 ranges are unsigned ints, IPv6 ranges are pairs of unsigned longs, lookup binary searches the start
+ * addresses. IPv4 literals are parsed in place without allocation.
+ * Immutable once built, safe to share across event loops.
+ */
+public final class CidrTable {
+
+    private static final byte NONE = -1;
+
+    private final int[] mV4Start;
+    private final int[] mV4End; // Inclusive
+    private final byte[] mV4Action;
+    private final long[] mV6StartHi;
+    private final long[] mV6StartLo;
+    private final long[] mV6EndHi;
+    private final long[] mV6EndLo;
+    private final byte[] mV6Action;
+    private final int mSize;
+
+    private CidrTable(Builder builder) {
+        List<Range> v4 = builder.v4Ranges();
+        mV4Start = new int[v4.size()];
+        mV4End = new int[v4.size()];
+        mV4Action = new byte[v4.size()];
+        for (int i = 0; i < v4.size(); i++) {
+            Range range = v4.get(i);
+            mV4Start[i] = range.start.intValue();
+            mV4End[i] = range.end.intValue();
+            mV4Action[i] = (byte) range.value;
+        }
+        List<Range> v6 = builder.v6Ranges();
+        mV6StartHi = new long[v6.size()];
+        mV6StartLo = new long[v6.size()];
+        mV6EndHi = new long[v6.size()];
+        mV6EndLo = new long[v6.size()];
+        mV6Action = new byte[v6.size()];
+        for (int i = 0; i < v6.size(); i++) {
+            Range range = v6.get(i);
+            mV6StartHi[i] = range.start.shiftRight(64).longValue();
+            mV6StartLo[i] = range.start.longValue();
+            mV6EndHi[i] = range.end.shiftRight(64).longValue();
+            mV6EndLo[i] = range.end.longValue();
+            mV6Action[i] = (byte) range.value;
+        }
+        mSize = builder.mSize;
+    }
+
+    /**
+     * @param host IP literal, domain name never matches
+     * @return Action of the longest matched prefix, null if none
+     */
+    public RouteAction match(String host) {
+        long v4 = parseIpv4(host);
+        if (v4 >= 0) {
+            return matchV4((int) v4);
+        }
+        if (mV6Action.length > 0 && host.indexOf(':') >= 0) {
+            byte[] bytes = NetUtil.createByteArrayFromIpAddressString(host);
+            if (bytes != null && bytes.length == 16) {
+                return matchV6(toLong(bytes, 0), toLong(bytes, 8));
+            }
+        }
+        return null;
+    }
+
+    public RouteAction matchV4(int address) {
+        int lo = 0;
+        int hi = mV4Start.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(mV4Start[mid], address) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found >= 0 && Integer.compareUnsigned(address, mV4End[found]) <= 0) {
+            return RouteAction.VALUES[mV4Action[found]];
+        }
+        return null;
+    }
+
+    public RouteAction matchV6(long hi64, long lo64) {
+        int lo = 0;
+        int hi = mV6StartHi.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mV6StartHi[mid], mV6StartLo[mid], hi64, lo64) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found >= 0 && compare(hi64, lo64, mV6EndHi[found], mV6EndLo[found]) <= 0) {
+            return RouteAction.VALUES[mV6Action[found]];
+        }
+        return null;
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int result = Long.compareUnsigned(aHi, bHi);
+        return (result != 0) ? result : Long.compareUnsigned(aLo, bLo);
+    }
+
+    static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return Unsigned IPv4 address, -1 if not a dotted decimal IPv4 literal
+     */
+    public static long parseIpv4(String host) {
+        int parts = 0;
+        int value = 0;
+        int octet = -1;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = ((octet < 0) ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet >= 0 && parts < 3) {
+                value = (value << 8) | octet;
+                octet = -1;
+                parts++;
+            } else {
+                return -1;
+            }
+        }
+        if (parts != 3 || octet < 0) {
+            return -1;
+        }
+        return ((value << 8) | octet) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return Count of rules
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Count of the flattened ranges
+     */
+    public int ranges() {
+        return mV4Start.length + mV6StartHi.length;
+    }
+
+    static final class Range {
+        final BigInteger start;
+        final BigInteger end; // Inclusive
+        final int value;
+        Range(BigInteger start, BigInteger end, int value) {
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+    }
+
+    public static final class Builder {
+
+        private static final class Prefix {
+            final BigInteger start;
+            final BigInteger end; // Exclusive
+            final int length;
+            final int value;
+            Prefix(BigInteger start, BigInteger end, int length, int value) {
+                this.start = start;
+                this.end = end;
+                this.length = length;
+                this.value = value;
+            }
+        }
+
+        private final List<Prefix> mV4 = new ArrayList<>();
+        private final List<Prefix> mV6 = new ArrayList<>();
+        private int mSize;
+
+        /**
+         * @param cidr "10.0.0.0/8", "2001:db8::/32" or a single address
+         */
+        public Builder add(String cidr, RouteAction action) {
+            return add(cidr, action.ordinal());
+        }
+
+        /**
+         * @param value Non-negative, e.g. ordinal of RouteAction or id of a tag
+         */
+        Builder add(String cidr, int value) {
+            String text = cidr.trim();
+            int slash = text.indexOf('/');
+            String address = (slash >= 0) ? text.substring(0, slash) : text;
+            byte[] bytes = NetUtil.createByteArrayFromIpAddressString(address);
+            if (bytes == null) {
+                throw new IllegalArgumentException("Invalid CIDR " + cidr);
+            }
+            int bits = bytes.length * 8;
+            int length = bits;
+            if (slash >= 0) {
+                try {
+                    length = Integer.parseInt(text.substring(slash + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid CIDR " + cidr);
+                }
+                if (length < 0 || length > bits) {
+                    throw new IllegalArgumentException("Invalid CIDR " + cidr);
+                }
+            }
+            BigInteger size = BigInteger.ONE.shiftLeft(bits - length);
+            // Clear the host bits, "10.1.2.3/8" means 10.0.0.0/8
+            BigInteger start = new BigInteger(1, bytes).andNot(size.subtract(BigInteger.ONE));
+            Prefix prefix = new Prefix(start, start.add(size), length, value);
+            if (bits == 32) {
+                mV4.add(prefix);
+            } else {
+                mV6.add(prefix);
+            }
+            mSize++;
+            return this;
+        }
+
+        // Paint the prefixes from the shortest to the longest on the boundary map, the longer overwrites
+        List<Range> v4Ranges() {
+            return flatten(mV4);
+        }
+
+        List<Range> v6Ranges() {
+            return flatten(mV6);
+        }
+
+        private static List<Range> flatten(List<Prefix> prefixes) {
+            List<Prefix> sorted = new ArrayList<>(prefixes);
+            Collections.sort(sorted, (a, b) -> Integer.compare(a.length, b.length));
+            TreeMap<BigInteger, Integer> boundaries = new TreeMap<>(); // Value from the key until the next key
+            for (Prefix prefix : sorted) {
+                Map.Entry<BigInteger, Integer> after = boundaries.floorEntry(prefix.end);
+                int resume = (after != null) ? after.getValue() : NONE;
+                boundaries.subMap(prefix.start, true, prefix.end, true).clear();
+                boundaries.put(prefix.start, prefix.value);
+                boundaries.put(prefix.end, resume);
+            }
+            List<Range> ranges = new ArrayList<>();
+            Map.Entry<BigInteger, Integer> entry = boundaries.firstEntry();
+            while (entry != null) {
+                Map.Entry<BigInteger, Integer> next = boundaries.higherEntry(entry.getKey());
+                if (next != null && entry.getValue() != NONE) {
+                    Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                    BigInteger end = next.getKey().subtract(BigInteger.ONE);
+                    if (last != null && last.value == entry.getValue() && last.end.add(BigInteger.ONE).equals(entry.getKey())) {
+                        ranges.set(ranges.size() - 1, new Range(last.start, end, last.value));
+                    } else {
+                        ranges.add(new Range(entry.getKey(), end, entry.getValue()));
+                    }
+                }
+                entry = next;
+            }
+            return ranges;
+        }
+
+        public CidrTable build() {
+            return new CidrTable(this);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.rex.proxy.route;
+
+import com.rex.proxy.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Destination access control of WslServer, decide whether a tunnel may connect the requested address:port
+ *
+ * Rules of each scope are checked by kind, the first kind matched decides:
+ * 1. Domain, exact domain or domain suffix, the exact or the longest suffix wins
+ * 2. CIDR, IP literal destination or the resolved address of a domain in the range, the longest prefix wins
+ * 3. Port, destination port in the range, the first rule of the port wins
+ * Rules of the user are checked before the global rules, destinations matched no rule take the default.
+ *
+ * Rules file, one rule per line, '#' starts a comment, rules after "[user]" apply to that user only:
+ * <pre>
+ * cidr,10.0.0.0/8,deny
+ * cidr,127.0.0.0/8,deny
+ * suffix,*.internal.example.com,deny
+ * port,25,deny
+ * [alice]
+ * cidr,10.1.0.0/16,allow
+ * </pre>
+ *
+ * A domain matched no domain rule is decided by its resolved address if the scope has CIDR rules, so a name
+ * pointing into a denied range, or an IP literal in a form other than dotted decimal, does not slip through.
+ * Decisions allocate nothing except parsing IPv6 literals.
+ * Immutable once built, replaced as a whole on reload.
+ */
+public final class DestinationAcl {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(DestinationAcl.class);
+
+    public enum Decision {
+        ALLOW,
+        DENY,
+        RESOLVE // Resolve the domain and decide by permit(user, host, address, port)
+    }
+
+    // Verdicts reuse RouteAction to share the matchers with Router, DIRECT as allow and BLOCK as deny
+    private static final RouteAction ALLOW = RouteAction.DIRECT;
+    private static final RouteAction DENY = RouteAction.BLOCK;
+
+    private final Scope mGlobal;
+    private final Map<String, Scope> mUsers;
+    private final boolean mDefaultAllow;
+    private final LongAdder mAllowCounter; // Null if no metrics
+    private final LongAdder mDenyCounter;
+
+    private DestinationAcl(Builder builder) {
+        mGlobal = builder.mGlobal.build();
+        mUsers = new HashMap<>();
+        for (Map.Entry<String, ScopeBuilder> entry : builder.mUsers.entrySet()) {
+            mUsers.put(entry.getKey(), entry.getValue().build());
+        }
+        mDefaultAllow = builder.mDefaultAllow;
+        mAllowCounter = (builder.mMetrics != null) ? builder.mMetrics.counter("acl.allow") : null;
+        mDenyCounter = (builder.mMetrics != null) ? builder.mMetrics.counter("acl.deny") : null;
+    }
+
+    /**
+     * Decide before connect
+     *
+     * @param user Name in the users or proxyUid the tunnel authenticated with, null if no auth
+     * @param host Domain name or IP literal requested by the client
+     * @return RESOLVE if the domain should be decided by its resolved address
+     */
+    public Decision check(String user, String host, int port) {
+        boolean literal = CidrTable.parseIpv4(host) >= 0 || host.indexOf(':') >= 0;
+        Scope scope = (user != null) ? mUsers.get(user) : null;
+        for (int i = 0; i < 2; i++, scope = mGlobal) {
+            if (scope == null) {
+                continue;
+            }
+            RouteAction action = scope.mDomains.match(host);
+            if (action == null) {
+                if (! literal && scope.mCidrs.ranges() > 0) {
+                    return Decision.RESOLVE;
+                }
+                action = literal ? scope.mCidrs.match(host) : null;
+                if (action == null) {
+                    action = scope.matchPort(port);
+                }
+            }
+            if (action != null) {
+                return count(action == ALLOW) ? Decision.ALLOW : Decision.DENY;
+            }
+        }
+        return count(mDefaultAllow) ? Decision.ALLOW : Decision.DENY;
+    }
+
+    /**
+     * Decide by the resolved address, after check() returned RESOLVE
+     *
+     * @param address Resolved address of the host
+     */
+    public boolean permit(String user, String host, InetAddress address, int port) {
+        Scope scope = (user != null) ? mUsers.get(user) : null;
+        for (int i = 0; i < 2; i++, scope = mGlobal) {
+            if (scope == null) {
+                continue;
+            }
+            RouteAction action = scope.mDomains.match(host);
+            if (action == null) {
+                action = scope.matchAddress(address);
+            }
+            if (action == null) {
+                action = scope.matchPort(port);
+            }
+            if (action != null) {
+                return count(action == ALLOW);
+            }
+        }
+        return count(mDefaultAllow);
+    }
+
+    private boolean count(boolean allow) {
+        if (mAllowCounter != null) {
+            (allow ? mAllowCounter : mDenyCounter).increment();
+        }
+        return allow;
+    }
+
+    /**
+     * @return Count of all the rules
+     */
+    public int size() {
+        int size = mGlobal.size();
+        for (Scope scope : mUsers.values()) {
+            size += scope.size();
+        }
+        return size;
+    }
+
+    /**
+     * Load the rules file
+     *
+     * @param defaultAllow For destinations matched no rule
+     * @param metrics Count the decisions as acl.allow and acl.deny, null to skip
+     */
+    public static DestinationAcl load(File file, boolean defaultAllow, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        Builder builder = new Builder()
+                .defaultAllow(defaultAllow)
+                .metrics(metrics);
+        if (file != null) {
+            builder.load(file);
+        }
+        DestinationAcl acl = builder.build();
+        sLogger.info("Loaded {} acl rules from {} in {}ms", acl.size(), file, (System.nanoTime() - start) / 1000000);
+        return acl;
+    }
+
+    /**
+     * @param name "allow" or "deny", case insensitive
+     */
+    public static boolean parseAllow(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+        case "allow":
+            return true;
+        case "deny":
+            return false;
+        default:
+            throw new IllegalArgumentException("Unknown acl action " + name);
+        }
+    }
+
+    private static final class Scope {
+        final DomainTrie mDomains;
+        final CidrTable mCidrs;
+        final long[] mPortMatched; // Bitmap of 65536 ports, null if no port rules
+        final long[] mPortDenied;
+        final int mPortRules;
+
+        Scope(ScopeBuilder builder) {
+            mDomains = builder.mDomains.build();
+            mCidrs = builder.mCidrs.build();
+            mPortMatched = (builder.mPortRules > 0) ? builder.mPortMatched : null;
+            mPortDenied = (builder.mPortRules > 0) ? builder.mPortDenied : null;
+            mPortRules = builder.mPortRules;
+        }
+
+        RouteAction matchPort(int port) {
+            if (mPortMatched == null || (mPortMatched[port >>> 6] & (1L << port)) == 0) {
+                return null;
+            }
+            return ((mPortDenied[port >>> 6] & (1L << port)) != 0) ? DENY : ALLOW;
+        }
+
+        RouteAction matchAddress(InetAddress address) {
+            if (mCidrs.ranges() == 0) {
+                return null;
+            }
+            if (address instanceof Inet4Address) {
+                return mCidrs.matchV4(address.hashCode()); // Inet4Address hashes to its address, no array copied
+            }
+            byte[] bytes = address.getAddress();
+            return mCidrs.matchV6(CidrTable.toLong(bytes, 0), CidrTable.toLong(bytes, 8));
+        }
+
+        int size() {
+            return mDomains.size() + mCidrs.size() + mPortRules;
+        }
+    }
+
+    private static final class ScopeBuilder {
+        final DomainTrie.Builder mDomains = new DomainTrie.Builder();
+        final CidrTable.Builder mCidrs = new CidrTable.Builder();
+        final long[] mPortMatched = new long[1024];
+        final long[] mPortDenied = new long[1024];
+        int mPortRules;
+
+        void port(String ports, boolean allow) {
+            String text = ports.trim();
+            int dash = text.indexOf('-');
+            int low;
+            int high;
+            try {
+                low = Integer.parseInt((dash >= 0) ? text.substring(0, dash).trim() : text);
+                high = (dash >= 0) ? Integer.parseInt(text.substring(dash + 1).trim()) : low;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid port " + ports);
+            }
+            if (low < 0 || high > 65535 || low > high) {
+                throw new IllegalArgumentException("Invalid port " + ports);
+            }
+            for (int port = low; port <= high; port++) {
+                if ((mPortMatched[port >>> 6] & (1L << port)) == 0) { // First rule of the port wins
+                    mPortMatched[port >>> 6] |= 1L << port;
+                    if (! allow) {
+                        mPortDenied[port >>> 6] |= 1L << port;
+                    }
+                }
+            }
+            mPortRules++;
+        }
+
+        Scope build() {
+            return new Scope(this);
+        }
+    }
+
+    public static final class Builder {
+        private final ScopeBuilder mGlobal = new ScopeBuilder();
+        private final Map<String, ScopeBuilder> mUsers = new HashMap<>();
+        private boolean mDefaultAllow = true;
+        private Metrics mMetrics;
+
+        private ScopeBuilder scope(String user) {
+            if (user == null) {
+                return mGlobal;
+            }
+            ScopeBuilder scope = mUsers.get(user);
+            if (scope == null) {
+                scope = new ScopeBuilder();
+                mUsers.put(user, scope);
+            }
+            return scope;
+        }
+
+        /**
+         * @param user Name in the users or proxyUid the rule applies to, null for all
+         */
+        public Builder domain(String user, String domain, boolean allow) {
+            scope(user).mDomains.add(domain, false, allow ? ALLOW : DENY);
+            return this;
+        }
+
+        /**
+         * @param domain "example.com" or "*.example.com", both match the domain and all its subdomains
+         */
+        public Builder suffix(String user, String domain, boolean allow) {
+            String text = domain.trim();
+            scope(user).mDomains.add(text.startsWith("*.") ? text.substring(2) : text, true, allow ? ALLOW : DENY);
+            return this;
+        }
+
+        public Builder cidr(String user, String cidr, boolean allow) {
+            scope(user).mCidrs.add(cidr, allow ? ALLOW : DENY);
+            return this;
+        }
+
+        /**
+         * @param ports "443" or "6881-6889"
+         */
+        public Builder port(String user, String ports, boolean allow) {
+            scope(user).port(ports, allow);
+            return this;
+        }
+
+        public Builder defaultAllow(boolean allow) {
+            mDefaultAllow = allow;
+            return this;
+        }
+
+        public Builder metrics(Metrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Add the rules from file
+         */
+        public Builder load(File file) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                int number = 0;
+                String user = null;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    int comment = line.indexOf('#');
+                    line = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (line.startsWith("[") && line.endsWith("]")) {
+                        user = line.substring(1, line.length() - 1).trim();
+                        continue;
+                    }
+                    String[] fields = line.split(",");
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException(file + ":" + number + " expect type,value,action");
+                    }
+                    try {
+                        rule(user, fields[0].trim().toLowerCase(Locale.ROOT), fields[1].trim(), parseAllow(fields[2]));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException(file + ":" + number + " " + ex.getMessage(), ex);
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void rule(String user, String type, String value, boolean allow) {
+            switch (type) {
+            case "domain":
+                domain(user, value, allow);
+                break;
+            case "suffix":
+                suffix(user, value, allow);
+                break;
+            case "cidr":
+                cidr(user, value, allow);
+                break;
+            case "port":
+                port(user, value, allow);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rule type " + type);
+            }
+        }
+
+        public DestinationAcl build() {
+            return new DestinationAcl(this);
+        }
+    }
+}
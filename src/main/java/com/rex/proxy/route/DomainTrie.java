@@ -0,0 +1,258 @@
+package com.rex.proxy.route;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Domain rules compiled into a trie of reversed labels, "www.example.com" walks com -> example -> www
+ *
+ * The built trie is flattened into primitive arrays, the edges of each node are sorted by label hash and
+ * the labels are deduplicated into one string pool. Lookup walks the host from its last label, hashes and
+ * compares each label in place, so it takes O(label count) without allocation.
+ *
+ * Exact rule matches the domain only, suffix rule matches the domain and all its subdomains.
+ * Exact match wins, otherwise the longest suffix.
+ * Immutable once built, safe to share across event loops.
+ */
+public final class DomainTrie {
+
+    private static final byte NONE = -1;
+
+    private final int[] mFirstEdge; // Edges of node n are [mFirstEdge[n], mFirstEdge[n + 1])
+    private final int[] mEdgeHash;
+    private final int[] mEdgeLabel; // Offset of the label in the pool
+    private final int[] mEdgeLength;
+    private final int[] mEdgeTarget;
+    private final byte[] mExact; // Ordinal of RouteAction, NONE if no rule
+    private final byte[] mSuffix;
+    private final String mPool;
+    private final int mSize;
+
+    private DomainTrie(Builder builder) {
+        // Number the nodes breadth first, node 0 is the root
+        List<Builder.Node> nodes = new ArrayList<>();
+        nodes.add(builder.mRoot);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.addAll(nodes.get(i).children.values());
+        }
+        int count = nodes.size();
+        mFirstEdge = new int[count + 1];
+        mEdgeHash = new int[count - 1];
+        mEdgeLabel = new int[count - 1];
+        mEdgeLength = new int[count - 1];
+        mEdgeTarget = new int[count - 1];
+        mExact = new byte[count];
+        mSuffix = new byte[count];
+
+        StringBuilder pool = new StringBuilder();
+        Map<String, Integer> offsets = new HashMap<>();
+        int edge = 0;
+        int target = 1; // Children are numbered in the same order they were appended
+        for (int i = 0; i < count; i++) {
+            Builder.Node node = nodes.get(i);
+            mExact[i] = node.exact;
+            mSuffix[i] = node.suffix;
+            mFirstEdge[i] = edge;
+            List<String> labels = new ArrayList<>(node.children.keySet()); // Same order as values() above
+            int first = edge;
+            for (String label : labels) {
+                Integer offset = offsets.get(label);
+                if (offset == null) {
+                    offset = pool.length();
+                    offsets.put(label, offset);
+                    pool.append(label);
+                }
+                mEdgeHash[edge] = hash(label, 0, label.length());
+                mEdgeLabel[edge] = offset;
+                mEdgeLength[edge] = label.length();
+                mEdgeTarget[edge] = target++;
+                edge++;
+            }
+            sortEdges(first, edge);
+        }
+        mFirstEdge[count] = edge;
+        mPool = pool.toString();
+        mSize = builder.mSize;
+    }
+
+    // Sort by hash, most nodes have few children except the top levels
+    private void sortEdges(int from, int to) {
+        if (to - from > 16) {
+            quickSortEdges(from, to - 1);
+            return;
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && mEdgeHash[j - 1] > mEdgeHash[j]; j--) {
+                swapEdges(j - 1, j);
+            }
+        }
+    }
+
+    private void quickSortEdges(int lo, int hi) {
+        while (lo < hi) {
+            int pivot = mEdgeHash[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (mEdgeHash[i] < pivot) i++;
+                while (mEdgeHash[j] > pivot) j--;
+                if (i <= j) {
+                    swapEdges(i++, j--);
+                }
+            }
+            if (j - lo < hi - i) {
+                quickSortEdges(lo, j);
+                lo = i;
+            } else {
+                quickSortEdges(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private void swapEdges(int a, int b) {
+        swap(mEdgeHash, a, b);
+        swap(mEdgeLabel, a, b);
+        swap(mEdgeLength, a, b);
+        swap(mEdgeTarget, a, b);
+    }
+
+    private static void swap(int[] array, int a, int b) {
+        int tmp = array[a];
+        array[a] = array[b];
+        array[b] = tmp;
+    }
+
+    // Case insensitive for ASCII, non ASCII domains are expected in punycode
+    private static int hash(String str, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + lower(str.charAt(i));
+        }
+        return h;
+    }
+
+    private static char lower(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * @return Action of the best matched rule, null if none
+     */
+    public RouteAction match(String host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--; // Fully qualified
+        }
+        int node = 0;
+        byte best = NONE;
+        while (end > 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            int edge = find(node, host, start, end);
+            if (edge < 0) {
+                break;
+            }
+            node = mEdgeTarget[edge];
+            if (start == 0) {
+                if (mExact[node] != NONE) {
+                    best = mExact[node];
+                } else if (mSuffix[node] != NONE) {
+                    best = mSuffix[node];
+                }
+                break;
+            }
+            if (mSuffix[node] != NONE) {
+                best = mSuffix[node];
+            }
+            end = start - 1;
+        }
+        return (best != NONE) ? RouteAction.VALUES[best] : null;
+    }
+
+    private int find(int node, String host, int start, int end) {
+        int hash = hash(host, start, end);
+        int length = end - start;
+        int lo = mFirstEdge[node];
+        int hi = mFirstEdge[node + 1];
+        // Lower bound of the hash
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mEdgeHash[mid] < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int edge = lo; edge < mFirstEdge[node + 1] && mEdgeHash[edge] == hash; edge++) {
+            if (mEdgeLength[edge] == length && mPool.regionMatches(true, mEdgeLabel[edge], host, start, length)) {
+                return edge;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Count of rules
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public static final class Builder {
+
+        private static final class Node {
+            final Map<String, Node> children = new HashMap<>(4);
+            byte exact = NONE;
+            byte suffix = NONE;
+        }
+
+        private final Node mRoot = new Node();
+        private int mSize;
+
+        /**
+         * @param suffix Match the subdomains too
+         */
+        public Builder add(String domain, boolean suffix, RouteAction action) {
+            String name = domain.trim().toLowerCase(Locale.ROOT);
+            if (name.startsWith(".")) {
+                name = name.substring(1); // ".example.com" is a common suffix notation
+            }
+            if (name.endsWith(".")) {
+                name = name.substring(0, name.length() - 1);
+            }
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty domain");
+            }
+            Node node = mRoot;
+            int end = name.length();
+            while (end > 0) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                String label = name.substring(start, end);
+                if (label.isEmpty()) {
+                    throw new IllegalArgumentException("Empty label in " + domain);
+                }
+                Node child = node.children.get(label);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(label, child);
+                }
+                node = child;
+                end = start - 1;
+            }
+            if (suffix) {
+                node.suffix = (byte) action.ordinal();
+            } else {
+                node.exact = (byte) action.ordinal();
+            }
+            mSize++;
+            return this;
+        }
+
+        public DomainTrie build() {
+            return new DomainTrie(this);
+        }
+    }
+}
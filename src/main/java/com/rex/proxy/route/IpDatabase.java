@@ -0,0 +1,331 @@
+package com.rex.proxy.route;
+
+import io.netty.util.NetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-mapped database of tagged IP ranges, e.g. country codes or ASNs of CIDR lists
+ *
+ * The file is mapped read-only and searched in place, startup does not parse it and the heap holds only the tag names.
+ * Lookup binary searches the mapped arrays with absolute reads, no allocation and safe to share across threads.
+ *
+ * Layout, big-endian, arrays aligned to 8 bytes:
+ * <pre>
+ * magic "WSLIPDB1", int tagCount, int v4Count, int v6Count, int tagBytes, 8 bytes reserved
+ * tags     tagCount * (u8 length, UTF-8 name)
+ * IPv4     int start[v4Count], int end[v4Count], short tag[v4Count], unsigned, end inclusive
+ * IPv6     long start[v6Count * 2], long end[v6Count * 2], short tag[v6Count], high 64 bits first
+ * </pre>
+ * Ranges are sorted and disjoint, nested prefixes are flattened by the converter so the longest prefix wins.
+ */
+public final class IpDatabase {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(IpDatabase.class);
+
+    private static final byte[] MAGIC = "WSLIPDB1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER = 32;
+
+    private final ByteBuffer mBuffer;
+    private final String[] mTags;
+    private final Map<String, Integer> mTagIds = new HashMap<>();
+    private final int mV4Count;
+    private final int mV4Start; // Offsets in the buffer
+    private final int mV4End;
+    private final int mV4Tag;
+    private final int mV6Count;
+    private final int mV6Start;
+    private final int mV6End;
+    private final int mV6Tag;
+
+    private IpDatabase(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER) {
+            throw new IOException("Truncated header");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IOException("Not an IP database");
+            }
+        }
+        int tagCount = buffer.getInt(8);
+        mV4Count = buffer.getInt(12);
+        mV6Count = buffer.getInt(16);
+        int tagBytes = buffer.getInt(20);
+        if (tagCount < 0 || tagCount > 0xFFFF || mV4Count < 0 || mV6Count < 0 || tagBytes < 0) {
+            throw new IOException("Corrupted header");
+        }
+        long v4 = align(HEADER + (long) tagBytes);
+        long v6 = align(v4 + 10L * mV4Count);
+        long size = v6 + 34L * mV6Count;
+        if (size != buffer.capacity()) {
+            throw new IOException("Size " + buffer.capacity() + " mismatched, expect " + size);
+        }
+        mV4Start = (int) v4;
+        mV4End = mV4Start + 4 * mV4Count;
+        mV4Tag = mV4End + 4 * mV4Count;
+        mV6Start = (int) v6;
+        mV6End = mV6Start + 16 * mV6Count;
+        mV6Tag = mV6End + 16 * mV6Count;
+
+        mTags = new String[tagCount];
+        int offset = HEADER;
+        for (int i = 0; i < tagCount; i++) {
+            if (offset >= HEADER + tagBytes) {
+                throw new IOException("Truncated tags");
+            }
+            int length = buffer.get(offset++) & 0xFF;
+            byte[] name = new byte[length];
+            for (int j = 0; j < length; j++) {
+                name[j] = buffer.get(offset++);
+            }
+            mTags[i] = new String(name, StandardCharsets.UTF_8);
+            mTagIds.put(mTags[i], i);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Map the database file read-only
+     */
+    public static IpDatabase open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Too large " + file);
+            }
+            // The mapping stays valid after the channel closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IpDatabase database = new IpDatabase(buffer);
+            sLogger.info("Mapped {} with {} IPv4 and {} IPv6 ranges of {} tags", file, database.mV4Count, database.mV6Count, database.mTags.length);
+            return database;
+        }
+    }
+
+    /**
+     * @param host IP literal, domain name never matches
+     * @return Id of the tag, -1 if not found
+     */
+    public int lookup(String host) {
+        long v4 = CidrTable.parseIpv4(host);
+        if (v4 >= 0) {
+            return lookupV4((int) v4);
+        }
+        if (mV6Count > 0 && host.indexOf(':') >= 0) {
+            byte[] bytes = NetUtil.createByteArrayFromIpAddressString(host);
+            if (bytes != null && bytes.length == 16) {
+                return lookupV6(CidrTable.toLong(bytes, 0), CidrTable.toLong(bytes, 8));
+            }
+        }
+        return -1;
+    }
+
+    public int lookupV4(int address) {
+        int lo = 0;
+        int hi = mV4Count - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(mBuffer.getInt(mV4Start + 4 * mid), address) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found >= 0 && Integer.compareUnsigned(address, mBuffer.getInt(mV4End + 4 * found)) <= 0) {
+            return mBuffer.getShort(mV4Tag + 2 * found) & 0xFFFF;
+        }
+        return -1;
+    }
+
+    public int lookupV6(long hi64, long lo64) {
+        int lo = 0;
+        int hi = mV6Count - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int offset = mV6Start + 16 * mid;
+            if (compare(mBuffer.getLong(offset), mBuffer.getLong(offset + 8), hi64, lo64) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found >= 0) {
+            int offset = mV6End + 16 * found;
+            if (compare(hi64, lo64, mBuffer.getLong(offset), mBuffer.getLong(offset + 8)) <= 0) {
+                return mBuffer.getShort(mV6Tag + 2 * found) & 0xFFFF;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int result = Long.compareUnsigned(aHi, bHi);
+        return (result != 0) ? result : Long.compareUnsigned(aLo, bLo);
+    }
+
+    /**
+     * @return Name of the tag id
+     */
+    public String tag(int id) {
+        return mTags[id];
+    }
+
+    /**
+     * @return Id of the tag name, -1 if not in the database
+     */
+    public int tagId(String tag) {
+        Integer id = mTagIds.get(tag);
+        return (id != null) ? id : -1;
+    }
+
+    public int tags() {
+        return mTags.length;
+    }
+
+    /**
+     * @return Count of IPv4 and IPv6 ranges
+     */
+    public int ranges() {
+        return mV4Count + mV6Count;
+    }
+
+    /**
+     * Convert text CIDR lists into the database file
+     *
+     * Each input is "TAG=path", every line of the file is a CIDR of the tag, or a plain path, every line of the
+     * file is "CIDR,TAG". '#' starts a comment.
+     *
+     * @return Count of the ranges written
+     */
+    public static int convert(File output, List<String> inputs) throws IOException {
+        List<String> tags = new ArrayList<>();
+        Map<String, Integer> ids = new HashMap<>();
+        CidrTable.Builder builder = new CidrTable.Builder();
+        for (String input : inputs) {
+            int eq = input.indexOf('=');
+            String fixedTag = (eq > 0) ? input.substring(0, eq).trim() : null;
+            File file = new File((eq > 0) ? input.substring(eq + 1) : input);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    int comment = line.indexOf('#');
+                    line = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String cidr = line;
+                    String tag = fixedTag;
+                    int comma = line.indexOf(',');
+                    if (fixedTag == null) {
+                        if (comma < 0) {
+                            throw new IllegalArgumentException(file + ":" + number + " expect CIDR,TAG");
+                        }
+                        cidr = line.substring(0, comma);
+                        tag = line.substring(comma + 1).trim();
+                    }
+                    Integer id = ids.get(tag);
+                    if (id == null) {
+                        if (tags.size() >= 0xFFFF || tag.getBytes(StandardCharsets.UTF_8).length > 0xFF) {
+                            throw new IllegalArgumentException(file + ":" + number + " too many tags or tag too long");
+                        }
+                        id = tags.size();
+                        ids.put(tag, id);
+                        tags.add(tag);
+                    }
+                    try {
+                        builder.add(cidr, id);
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException(file + ":" + number + " " + ex.getMessage(), ex);
+                    }
+                }
+            }
+        }
+        List<CidrTable.Range> v4 = builder.v4Ranges();
+        List<CidrTable.Range> v6 = builder.v6Ranges();
+
+        File temp = new File(output.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            int tagBytes = 0;
+            for (String tag : tags) {
+                tagBytes += 1 + tag.getBytes(StandardCharsets.UTF_8).length;
+            }
+            out.write(MAGIC);
+            out.writeInt(tags.size());
+            out.writeInt(v4.size());
+            out.writeInt(v6.size());
+            out.writeInt(tagBytes);
+            out.writeLong(0);
+            for (String tag : tags) {
+                byte[] name = tag.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(name.length);
+                out.write(name);
+            }
+            pad(out);
+            for (CidrTable.Range range : v4) {
+                out.writeInt(range.start.intValue());
+            }
+            for (CidrTable.Range range : v4) {
+                out.writeInt(range.end.intValue());
+            }
+            for (CidrTable.Range range : v4) {
+                out.writeShort(range.value);
+            }
+            pad(out);
+            for (CidrTable.Range range : v6) {
+                writeLong128(out, range.start);
+            }
+            for (CidrTable.Range range : v6) {
+                writeLong128(out, range.end);
+            }
+            for (CidrTable.Range range : v6) {
+                out.writeShort(range.value);
+            }
+        }
+        // Replace atomically, a running WslLocal may have the old one mapped
+        if (! temp.renameTo(output)) {
+            if (! output.delete() || !temp.renameTo(output)) {
+                throw new IOException("Failed to replace " + output);
+            }
+        }
+        sLogger.info("Converted {} IPv4 and {} IPv6 ranges of {} tags into {}", v4.size(), v6.size(), tags.size(), output);
+        return v4.size() + v6.size();
+    }
+
+    private static void pad(DataOutputStream out) throws IOException {
+        while (out.size() % 8 != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    private static void writeLong128(DataOutputStream out, BigInteger value) throws IOException {
+        out.writeLong(value.shiftRight(64).longValue());
+        out.writeLong(value.longValue());
+    }
+}
@@ -0,0 +1,24 @@
+package com.rex.proxy.route;
+
+/**
+ * What to do with a destination
+ */
+public enum RouteAction {
+    DIRECT, // Connect the destination from local
+    PROXY, // Tunnel through the upstreams
+    BLOCK; // Refuse the request
+
+    static final RouteAction[] VALUES = values(); // values() clones the array on every call
+
+    /**
+     * @param name "direct", "proxy" or "block", case insensitive
+     */
+    public static RouteAction parse(String name) {
+        for (RouteAction action : VALUES) {
+            if (action.name().equalsIgnoreCase(name.trim())) {
+                return action;
+            }
+        }
+        throw new IllegalArgumentException("Unknown route action " + name);
+    }
+}
@@ -0,0 +1,366 @@
+package com.rex.proxy.route;
+
+import com.rex.proxy.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Split routing of WslLocal, decide each destination goes direct, through the upstreams or blocked
+ *
+ * Rules are checked by kind, the first kind matched decides:
+ * 1. Domain, exact domain or domain suffix, the exact or the longest suffix wins
+ * 2. Keyword, domain contains the keyword, in the order of the rules
+ * 3. CIDR, IP literal destination in the range, the longest prefix wins
+ * 4. GeoIP, IP literal destination in the range of the tag in IpDatabase, e.g. country code or ASN
+ * 5. Port, destination port in the range, in the order of the rules
+ * Destinations matched no rule take the default action.
+ *
+ * Rules file, one rule per line, '#' starts a comment:
+ * <pre>
+ * domain,example.com,direct
+ * suffix,google.com,proxy
+ * keyword,adservice,block
+ * cidr,192.168.0.0/16,direct
+ * geoip,CN,direct
+ * port,25,block
+ * port,6881-6889,block
+ * suffix-list,china-domains.txt,direct
+ * cidr-list,china-ip.txt,direct
+ * </pre>
+ * The *-list rules load one domain or CIDR per line from another file, relative path is resolved against
+ * the directory of the rules file, so lists of 100k+ entries are kept apart from the hand written rules.
+ *
+ * Immutable once built, replaced as a whole on reload.
+ */
+public final class Router {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(Router.class);
+
+    private final DomainTrie mDomains;
+    private final String[] mKeywords;
+    private final byte[] mKeywordActions;
+    private final CidrTable mCidrs;
+    private final IpDatabase mDatabase;
+    private final byte[] mTagActions; // Indexed by tag id of the database
+    private final int[] mPortLow;
+    private final int[] mPortHigh;
+    private final byte[] mPortActions;
+    private final int mGeoRules;
+    private final RouteAction mDefault;
+    private final LongAdder[] mCounters; // Per RouteAction, null if no metrics
+
+    private Router(Builder builder) {
+        mDomains = builder.mDomains.build();
+        mKeywords = builder.mKeywords.toArray(new String[0]);
+        mKeywordActions = toBytes(builder.mKeywordActions);
+        mCidrs = builder.mCidrs.build();
+        mDatabase = builder.mDatabase;
+        mTagActions = new byte[(mDatabase != null) ? mDatabase.tags() : 0];
+        Arrays.fill(mTagActions, (byte) -1);
+        for (int i = 0; i < builder.mGeoTags.size(); i++) {
+            if (mDatabase == null) {
+                throw new IllegalArgumentException("geoip rules require IP database");
+            }
+            int id = mDatabase.tagId(builder.mGeoTags.get(i));
+            if (id < 0) {
+                sLogger.warn("Tag {} not found in IP database", builder.mGeoTags.get(i));
+            } else if (mTagActions[id] < 0) {
+                mTagActions[id] = builder.mGeoActions.get(i); // First rule of the tag wins
+            }
+        }
+        mPortLow = new int[builder.mPorts.size()];
+        mPortHigh = new int[builder.mPorts.size()];
+        mPortActions = new byte[builder.mPorts.size()];
+        for (int i = 0; i < mPortLow.length; i++) {
+            int[] port = builder.mPorts.get(i);
+            mPortLow[i] = port[0];
+            mPortHigh[i] = port[1];
+            mPortActions[i] = (byte) port[2];
+        }
+        mGeoRules = builder.mGeoTags.size();
+        mDefault = builder.mDefault;
+        if (builder.mMetrics != null) {
+            mCounters = new LongAdder[RouteAction.VALUES.length];
+            for (RouteAction action : RouteAction.VALUES) {
+                mCounters[action.ordinal()] = builder.mMetrics.counter("route." + action.name().toLowerCase(Locale.ROOT));
+            }
+        } else {
+            mCounters = null;
+        }
+    }
+
+    private static byte[] toBytes(List<Byte> list) {
+        byte[] bytes = new byte[list.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = list.get(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param host Domain name or IP literal
+     */
+    public RouteAction route(String host, int port) {
+        RouteAction action = match(host, port);
+        if (mCounters != null) {
+            mCounters[action.ordinal()].increment();
+        }
+        sLogger.trace("Route {}:{} {}", host, port, action);
+        return action;
+    }
+
+    private RouteAction match(String host, int port) {
+        RouteAction action = mDomains.match(host);
+        if (action != null) {
+            return action;
+        }
+        for (int i = 0; i < mKeywords.length; i++) {
+            if (contains(host, mKeywords[i])) {
+                return RouteAction.VALUES[mKeywordActions[i]];
+            }
+        }
+        action = mCidrs.match(host);
+        if (action != null) {
+            return action;
+        }
+        if (mDatabase != null) {
+            int tag = mDatabase.lookup(host);
+            if (tag >= 0 && mTagActions[tag] >= 0) {
+                return RouteAction.VALUES[mTagActions[tag]];
+            }
+        }
+        for (int i = 0; i < mPortLow.length; i++) {
+            if (port >= mPortLow[i] && port <= mPortHigh[i]) {
+                return RouteAction.VALUES[mPortActions[i]];
+            }
+        }
+        return mDefault;
+    }
+
+    // Case insensitive without allocation, keyword is in lower case
+    private static boolean contains(String host, String keyword) {
+        for (int i = 0; i + keyword.length() <= host.length(); i++) {
+            if (host.regionMatches(true, i, keyword, 0, keyword.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public RouteAction defaultAction() {
+        return mDefault;
+    }
+
+    /**
+     * @return Count of all the rules
+     */
+    public int size() {
+        return mDomains.size() + mKeywords.length + mCidrs.size() + mGeoRules + mPortLow.length;
+    }
+
+    /**
+     * Load the rules file
+     *
+     * @param database For geoip rules, null if not used
+     * @param defaultAction For destinations matched no rule
+     * @param metrics Count the routed destinations as route.direct, route.proxy and route.block, null to skip
+     */
+    public static Router load(File file, IpDatabase database, RouteAction defaultAction, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        Builder builder = new Builder()
+                .database(database)
+                .defaultAction(defaultAction)
+                .metrics(metrics);
+        if (file != null) {
+            builder.load(file);
+        }
+        Router router = builder.build();
+        sLogger.info("Loaded {} route rules from {} in {}ms", router.size(), file, (System.nanoTime() - start) / 1000000);
+        return router;
+    }
+
+    public static final class Builder {
+        private final DomainTrie.Builder mDomains = new DomainTrie.Builder();
+        private final List<String> mKeywords = new ArrayList<>();
+        private final List<Byte> mKeywordActions = new ArrayList<>();
+        private final CidrTable.Builder mCidrs = new CidrTable.Builder();
+        private final List<int[]> mPorts = new ArrayList<>(); // low, high, action
+        private final List<String> mGeoTags = new ArrayList<>();
+        private final List<Byte> mGeoActions = new ArrayList<>();
+        private IpDatabase mDatabase;
+        private RouteAction mDefault = RouteAction.PROXY;
+        private Metrics mMetrics;
+
+        public Builder domain(String domain, RouteAction action) {
+            mDomains.add(domain, false, action);
+            return this;
+        }
+
+        public Builder suffix(String domain, RouteAction action) {
+            mDomains.add(domain, true, action);
+            return this;
+        }
+
+        public Builder keyword(String keyword, RouteAction action) {
+            if (keyword.trim().isEmpty()) {
+                throw new IllegalArgumentException("Empty keyword");
+            }
+            mKeywords.add(keyword.trim().toLowerCase(Locale.ROOT));
+            mKeywordActions.add((byte) action.ordinal());
+            return this;
+        }
+
+        public Builder cidr(String cidr, RouteAction action) {
+            mCidrs.add(cidr, action);
+            return this;
+        }
+
+        /**
+         * @param tag Tag in the IP database, e.g. country code or ASN
+         */
+        public Builder geoip(String tag, RouteAction action) {
+            mGeoTags.add(tag.trim());
+            mGeoActions.add((byte) action.ordinal());
+            return this;
+        }
+
+        public Builder database(IpDatabase database) {
+            mDatabase = database;
+            return this;
+        }
+
+        /**
+         * @param ports "443" or "6881-6889"
+         */
+        public Builder port(String ports, RouteAction action) {
+            String text = ports.trim();
+            int dash = text.indexOf('-');
+            int low;
+            int high;
+            try {
+                low = Integer.parseInt((dash >= 0) ? text.substring(0, dash).trim() : text);
+                high = (dash >= 0) ? Integer.parseInt(text.substring(dash + 1).trim()) : low;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid port " + ports);
+            }
+            if (low < 0 || high > 65535 || low > high) {
+                throw new IllegalArgumentException("Invalid port " + ports);
+            }
+            mPorts.add(new int[] { low, high, action.ordinal() });
+            return this;
+        }
+
+        public Builder defaultAction(RouteAction action) {
+            if (action != null) {
+                mDefault = action;
+            }
+            return this;
+        }
+
+        public Builder metrics(Metrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Add the rules from file
+         */
+        public Builder load(File file) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    line = strip(line);
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] fields = line.split(",");
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException(file + ":" + number + " expect type,value,action");
+                    }
+                    try {
+                        rule(file, fields[0].trim().toLowerCase(Locale.ROOT), fields[1].trim(), RouteAction.parse(fields[2]));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException(file + ":" + number + " " + ex.getMessage(), ex);
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void rule(File file, String type, String value, RouteAction action) throws IOException {
+            switch (type) {
+            case "domain":
+                domain(value, action);
+                break;
+            case "suffix":
+                suffix(value, action);
+                break;
+            case "keyword":
+                keyword(value, action);
+                break;
+            case "cidr":
+                cidr(value, action);
+                break;
+            case "geoip":
+                geoip(value, action);
+                break;
+            case "port":
+                port(value, action);
+                break;
+            case "domain-list":
+            case "suffix-list":
+            case "cidr-list":
+                File list = new File(value);
+                if (! list.isAbsolute() && file.getParentFile() != null) {
+                    list = new File(file.getParentFile(), value);
+                }
+                list(list, type, action);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rule type " + type);
+            }
+        }
+
+        private void list(File file, String type, RouteAction action) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = strip(line);
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if ("domain-list".equals(type)) {
+                        domain(line, action);
+                    } else if ("suffix-list".equals(type)) {
+                        suffix(line, action);
+                    } else {
+                        cidr(line, action);
+                    }
+                }
+            }
+        }
+
+        private static String strip(String line) {
+            int comment = line.indexOf('#');
+            return ((comment >= 0) ? line.substring(0, comment) : line).trim();
+        }
+
+        public Router build() {
+            return new Router(this);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.rex.proxy.socks;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Propagate TCP half-close across a relay, the FIN received on one side shuts down the output of the other side
+ *
+ * Once enabled, a channel receiving FIN stays open and gets a ChannelInputShutdownEvent instead of closing,
+ * the relay handler forwards it as shutdownOutput of its peer, or as a shutdown message through a tunnel.
+ * The output is shut down only after the pending writes flushed, and a channel is closed once both its
+ * directions are done. Channels not supporting half-close, like the embedded ones, are closed instead.
+ */
+public final class HalfClose {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(HalfClose.class);
+
+    private HalfClose() {
+    }
+
+    /**
+     * Keep the channel open when the remote shut down its output, only enable it once a relay handles the event
+     */
+    public static void enable(Channel ch) {
+        if (ch instanceof DuplexChannel) {
+            ch.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        }
+    }
+
+    /**
+     * @return Whether the user event reports the input shut down
+     */
+    public static boolean isInputShutdown(Object evt) {
+        return evt instanceof ChannelInputShutdownEvent;
+    }
+
+    /**
+     * Shut down the output after the pending writes flushed, close the channel if the input already shut down
+     */
+    public static void shutdownOutput(final Channel ch) {
+        if (! ch.isActive()) {
+            return;
+        }
+        ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (! future.isSuccess() || !(ch instanceof DuplexChannel)) {
+                    ch.close();
+                    return;
+                }
+                sLogger.debug("Shutdown output {}", ch);
+                ((DuplexChannel) ch).shutdownOutput().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (! future.isSuccess()) {
+                            ch.close();
+                            return;
+                        }
+                        closeIfDone(ch);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Close the channel once both its input and output shut down
+     */
+    public static void closeIfDone(Channel ch) {
+        if (ch instanceof DuplexChannel && ((DuplexChannel) ch).isShutdown()) {
+            sLogger.debug("Both directions done {}", ch);
+            ch.close();
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.rex.proxy.socks;
 
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.buffer.BufferAccounting;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,17 +16,78 @@ public final class RelayHandler extends ChannelInboundHandlerAdapter {
     private static final Logger sLogger = LoggerFactory.getLogger(RelayHandler.class);
 
     private final Channel mRelay;
+    private BufferAccounting.Handle mAccounting = BufferAccounting.NONE;
+    private TrafficClassifier mClassifier; // Null if the tunnel not classified
+    private BdpTuner mTuner; // Null if the tunnel not tuned
+    private boolean mFlush; // Written without flush, flushed once the read loop completed
 
     public RelayHandler(Channel channel) {
         mRelay = channel;
     }
 
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mAccounting = BufferAccounting.handle("relay", ctx.channel(), mRelay);
+        mClassifier = ctx.channel().attr(TrafficClassifier.KEY).get();
+        mTuner = ctx.channel().attr(BdpTuner.KEY).get();
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        ReferenceCountUtil.retain(msg);
+        // The read hands its reference over, the write passes it on to the peer
+        mAccounting.retained(msg);
         if (mRelay.isActive()) {
-            mRelay.writeAndFlush(msg);
+            int bytes = (msg instanceof ByteBuf) ? ((ByteBuf) msg).readableBytes() : 0;
+            if (mTuner != null) {
+                mTuner.onRead(ctx.channel(), bytes);
+            }
+            if (mClassifier != null && mClassifier.onRead(ctx.channel(), bytes)) {
+                // Bulk, one flush for all the reads of this loop
+                mAccounting.write(mRelay, msg);
+                mFlush = true;
+            } else {
+                mAccounting.writeAndFlush(mRelay, msg);
+            }
+            if (! mRelay.isWritable()) {
+                // Peer can not keep up, stop reading until it drained
+                ctx.channel().config().setAutoRead(false);
+            }
+        } else {
+            mAccounting.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (mFlush) {
+            mFlush = false;
+            mRelay.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // Drained below the low water mark, resume reading from the peer
+            mRelay.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (HalfClose.isInputShutdown(evt)) {
+            // Peer sent FIN, pass it on and keep the other direction running
+            sLogger.debug("Input shutdown {}", ctx.channel());
+            if (mRelay.isActive()) {
+                HalfClose.shutdownOutput(mRelay);
+                HalfClose.closeIfDone(ctx.channel());
+            } else {
+                ctx.close();
+            }
         }
+        ctx.fireUserEventTriggered(evt);
     }
 
     @Override
@@ -1,14 +1,13 @@
 package com.rex.proxy.socks;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.loop.IdleSweeper;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
 import io.netty.handler.codec.socksx.v5.Socks5AddressType;
 import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,26 +22,24 @@ public final class SocksBindInitializer extends ChannelInitializer<SocketChannel
 
     private final WslLocal.Configuration mConfig;
     private final ChannelHandlerContext mContext; // Socks client
+    private final IdleSweeper mIdle;
 
-    public SocksBindInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx) {
+    /**
+     * @param idle Close the accepted connection if idle, null to keep it
+     */
+    public SocksBindInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, final IdleSweeper idle) {
         mConfig  = config;
         mContext = ctx;
+        mIdle = idle;
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Will pint all the traffic
-        ch.pipeline()
-                .addLast(new IdleStateHandler(0, 0, 900) { // Neither read nor write for 15min
-                    @Override
-                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-                        sLogger.debug("Idle connection {}", ctx.channel().remoteAddress());
-                        if (evt instanceof IdleStateEvent) {
-                            ctx.close();
-                        }
-                    }
-                })
-                .addLast(new SocksProxyInitializer(mConfig, mContext));
+        ch.pipeline().addLast(new SocksProxyInitializer(mConfig, mContext));
+        if (mIdle != null) {
+            mIdle.track(ch, "socks", IdleSweeper.timeoutMillis(mConfig.idleSocksTimeout));
+        }
 
         InetSocketAddress sockAddr = ch.remoteAddress();
         Socks5AddressType type = Socks5AddressType.IPv4;
@@ -1,6 +1,7 @@
 package com.rex.proxy.socks;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.buffer.BdpTuner;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -23,11 +24,20 @@ public class SocksProxyInitializer extends ChannelInitializer<SocketChannel> {
 
     private final WslLocal.Configuration mConfig;
     private final ChannelHandlerContext mContext; // Accepted socks client
+    private final int mDstPort; // 0 if unknown
 
     public SocksProxyInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx) {
+        this(config, ctx, 0);
+    }
+
+    /**
+     * @param dstPort Destination port of the connection, to pin its traffic class by
+     */
+    public SocksProxyInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, int dstPort) {
         sLogger.trace("<init>");
         mConfig = config;
         mContext = ctx;
+        mDstPort = dstPort;
     }
 
     @Override // ChannelInitializer
@@ -48,17 +58,26 @@ public class SocksProxyInitializer extends ChannelInitializer<SocketChannel> {
         // The address info will be available in bootstrap connect future
         sLogger.debug("Relay {} with {}", mContext.channel(), ch);
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print relayed data
+        TrafficClassifier.attach(mContext.channel(), ch, mDstPort);
+        BdpTuner.attach(ch, mContext.channel());
         ch.pipeline().addLast(new RelayHandler(mContext.channel()));
         ch.closeFuture().addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 sLogger.debug("Socks peer closed {}", future.channel());
                 sLogger.debug("Socks force close {}", mContext.channel());
-                mContext.close();
+                if (mContext.channel().isActive()) {
+                    // Half-closed relays may still have data on the way
+                    mContext.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                            .addListener(ChannelFutureListener.CLOSE);
+                }
             }
         });
 
         mContext.pipeline().addLast(new RelayHandler(ch));
+        // FIN on either side only shuts down the other's output, closed once both directions done
+        HalfClose.enable(ch);
+        HalfClose.enable(mContext.channel());
         mContext.channel().closeFuture().addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
@@ -1,14 +1,22 @@
 package com.rex.proxy.socks;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.EventLoopMonitor;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.Router;
 import com.rex.proxy.socks.v5.Socks5InitialRequestHandler;
-import io.netty.channel.ChannelHandlerContext;
+import com.rex.proxy.websocket.WsKeepalive;
+import com.rex.proxy.websocket.WsUpstreamGroup;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.socksx.v5.Socks5InitialRequestDecoder;
 import io.netty.handler.codec.socksx.v5.Socks5ServerEncoder;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,27 +24,68 @@ public final class SocksServerInitializer extends ChannelInitializer<SocketChann
 
     private static final Logger sLogger = LoggerFactory.getLogger(SocksServerInitializer.class);
 
-    private final WslLocal.Configuration mConfig;
+    // Configuration, upstreams and router for new connections, replaced as a whole on reload
+    private static final class Snapshot {
+        final WslLocal.Configuration config;
+        final WsUpstreamGroup upstreams;
+        final Router router;
+        Snapshot(WslLocal.Configuration config, WsUpstreamGroup upstreams, Router router) {
+            this.config = config;
+            this.upstreams = upstreams;
+            this.router = router;
+        }
+    }
+
+    private volatile Snapshot mSnapshot;
+    private final TrafficShaping mShaping;
+    private final OverloadDetector mOverload;
+    private final EventLoopMonitor mLoopMonitor;
+    private final IdleSweeper mIdle;
+    private final WsKeepalive mKeepalive;
+    private final ChannelGroup mClients = new DefaultChannelGroup("wsl-socks", GlobalEventExecutor.INSTANCE);
+
+    public SocksServerInitializer(WslLocal.Configuration config, TrafficShaping shaping, OverloadDetector overload, EventLoopMonitor loopMonitor, IdleSweeper idle, WsKeepalive keepalive, WsUpstreamGroup upstreams, Router router) {
+        mSnapshot = new Snapshot(config, upstreams, router);
+        mShaping = shaping;
+        mOverload = overload;
+        mLoopMonitor = loopMonitor;
+        mIdle = idle;
+        mKeepalive = keepalive;
+    }
+
+    /**
+     * Apply to the connections accepted after it, the existing ones keep their own
+     */
+    public void update(WslLocal.Configuration config, WsUpstreamGroup upstreams, Router router) {
+        mSnapshot = new Snapshot(config, upstreams, router);
+    }
 
-    public SocksServerInitializer(WslLocal.Configuration config) {
-        mConfig = config;
+    /**
+     * Close the accepted connections, their tunnels close with them, the event loops may be shared and outlive them
+     */
+    public ChannelGroupFuture close() {
+        return mClients.close();
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
+        Snapshot snapshot = mSnapshot;
+        mClients.add(ch);
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Will print all traffic
         ch.pipeline()
-                .addLast(new IdleStateHandler(0, 0, 900) { // Neither read nor write for 15min
-                    @Override
-                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-                        sLogger.debug("Idle connection {}", ctx.channel().remoteAddress());
-                        if (evt instanceof IdleStateEvent) {
-                            ctx.close();
-                        }
-                    }
-                })
                 .addLast(Socks5ServerEncoder.DEFAULT)
                 .addLast(new Socks5InitialRequestDecoder())
-                .addLast(new Socks5InitialRequestHandler(mConfig));
+                .addLast(new Socks5InitialRequestHandler(snapshot.config)
+                        .shaping(mShaping)
+                        .overload(mOverload)
+                        .upstreams(snapshot.upstreams)
+                        .router(snapshot.router)
+                        .idle(mIdle)
+                        .keepalive(mKeepalive));
+        mIdle.track(ch, "socks", IdleSweeper.timeoutMillis(snapshot.config.idleSocksTimeout));
+        mShaping.addGlobal(ch);
+        if (mLoopMonitor != null) {
+            ch.pipeline().addFirst("loopMonitor", mLoopMonitor.handler());
+        }
     }
 }
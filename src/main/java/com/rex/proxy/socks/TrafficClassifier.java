@@ -0,0 +1,249 @@
+package com.rex.proxy.socks;
+
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.metrics.Metrics;
+import com.rex.proxy.websocket.WsKeepalive;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classify a tunnel as interactive or bulk by the reads on both legs of its relay
+ *
+ * Interactive tunnels, like SSH sessions, RPC or games, take turns: one side sends a short message and the other
+ * answers. A bulk transfer keeps sending one long turn. A turn of a direction ends once the other direction read,
+ * or after a pause of the turn gap. A direction turns bulk once its turn reached BULK_TURN bytes, and back to
+ * interactive once its average turn dropped below INTERACTIVE_TURN, the tunnel is bulk if any direction is.
+ *
+ * Over a WAN the reads of one transfer arrive milliseconds apart, and a sender limited by its window pauses up
+ * to a round trip between the windows. The turn gap is twice the round trip time of the tunnel, measured by the
+ * websocket keepalive or by the kernel on epoll and refreshed every second, within MIN_TURN_GAP and MAX_TURN_GAP.
+ *
+ * Interactive tunnels keep TCP_NODELAY and flush every read. Bulk tunnels turn TCP_NODELAY off so Nagle fills the
+ * segments, and the relay handlers flush once per read loop instead of every read. The socket option is only set on
+ * the legs owning their socket, not the streams of a shared HTTP/2 or QUIC connection.
+ *
+ * One instance per tunnel, set on both legs by attach() before the relay handlers added. Each direction is only
+ * updated by the event loop reading it, the class is switched under lock.
+ */
+public final class TrafficClassifier {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TrafficClassifier.class);
+
+    public enum TrafficClass { INTERACTIVE, BULK }
+
+    /**
+     * Classifier of the tunnel, set on both legs
+     */
+    public static final AttributeKey<TrafficClassifier> KEY = AttributeKey.valueOf(TrafficClassifier.class, "KEY");
+
+    /**
+     * Policy of the tunnels, set on the accepted channels or their parents
+     */
+    public static final AttributeKey<Policy> POLICY = AttributeKey.valueOf(TrafficClassifier.class, "POLICY");
+
+    private static final long MIN_TURN_GAP = TimeUnit.MILLISECONDS.toNanos(50); // Pause ending a turn without answer
+    private static final long MAX_TURN_GAP = TimeUnit.SECONDS.toNanos(1);
+    private static final long RTT_REFRESH = TimeUnit.SECONDS.toNanos(1);
+    private static final long BULK_TURN = 64 << 10; // Bytes of one turn making the direction bulk
+    private static final long INTERACTIVE_TURN = 4 << 10; // Average bytes per turn making the direction interactive again
+
+    /**
+     * Whether to classify and the classes pinned by destination port, shared by all the tunnels of an instance
+     */
+    public static final class Policy {
+        private final boolean mAdaptive;
+        private final Map<Integer, TrafficClass> mPorts;
+        private final LongAdder mInteractive;
+        private final LongAdder mBulk;
+
+        private Policy(boolean adaptive, Map<Integer, TrafficClass> ports, Metrics metrics) {
+            mAdaptive = adaptive;
+            mPorts = ports;
+            mInteractive = metrics.counter("traffic.interactive");
+            mBulk = metrics.counter("traffic.bulk");
+        }
+    }
+
+    private static final class Direction {
+        private long mLastRead; // System.nanoTime of the last read
+        private long mTurn; // Bytes read in the current turn
+        private long mAverage; // Average bytes per turn, each new turn weighs 1/4
+        private volatile boolean mBulk;
+    }
+
+    private final Channel mInbound;
+    private final Channel mOutbound;
+    private final Policy mPolicy;
+    private final boolean mPinned; // Class fixed by the destination port
+    private final Direction mForward = new Direction(); // Read by inbound
+    private final Direction mBackward = new Direction(); // Read by outbound
+    private volatile Direction mLast; // Direction read last, a read of the other one ends its turn
+    private volatile TrafficClass mClass = TrafficClass.INTERACTIVE;
+    private volatile long mTurnGap = MIN_TURN_GAP;
+    private volatile long mRttAt; // System.nanoTime the turn gap refreshed, by either event loop
+
+    private TrafficClassifier(Channel inbound, Channel outbound, Policy policy, TrafficClass pinned) {
+        mInbound = inbound;
+        mOutbound = outbound;
+        mPolicy = policy;
+        mPinned = (pinned != null);
+        mRttAt = System.nanoTime() - RTT_REFRESH;
+        if (pinned != null) {
+            apply(pinned);
+        }
+    }
+
+    /**
+     * @param adaptive Classify the tunnels by their traffic, null for false
+     * @param ports Classes pinned by destination port as "22:interactive,873:bulk", null for none
+     * @return Null if neither set
+     * @throws IllegalArgumentException if the ports are malformed
+     */
+    public static Policy newPolicy(Boolean adaptive, String ports, Metrics metrics) {
+        Map<Integer, TrafficClass> pinned = parsePorts(ports);
+        if (! Boolean.TRUE.equals(adaptive) && pinned.isEmpty()) {
+            return null;
+        }
+        return new Policy(Boolean.TRUE.equals(adaptive), pinned, metrics);
+    }
+
+    static Map<Integer, TrafficClass> parsePorts(String ports) {
+        if (ports == null || ports.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, TrafficClass> pinned = new HashMap<>();
+        for (String entry : ports.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expect port:class but got " + entry);
+            }
+            int port;
+            TrafficClass cls;
+            try {
+                port = Integer.parseInt(pair[0].trim());
+                cls = TrafficClass.valueOf(pair[1].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) { // Includes NumberFormatException
+                throw new IllegalArgumentException("Expect port:interactive or port:bulk but got " + entry);
+            }
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("Port out of range " + entry);
+            }
+            pinned.put(port, cls);
+        }
+        return pinned;
+    }
+
+    /**
+     * Classify the tunnel by the policy of either leg, call before the relay handlers added
+     *
+     * @param port Destination port of the tunnel, 0 if unknown
+     * @return Null if the policy neither classifies nor pins the port
+     */
+    public static TrafficClassifier attach(Channel inbound, Channel outbound, int port) {
+        Policy policy = policy(inbound);
+        if (policy == null) {
+            policy = policy(outbound);
+        }
+        if (policy == null) {
+            return null;
+        }
+        TrafficClass pinned = policy.mPorts.get(port);
+        if (pinned == null && !policy.mAdaptive) {
+            return null;
+        }
+        TrafficClassifier classifier = new TrafficClassifier(inbound, outbound, policy, pinned);
+        inbound.attr(KEY).set(classifier);
+        outbound.attr(KEY).set(classifier);
+        return classifier;
+    }
+
+    private static Policy policy(Channel channel) {
+        for (Channel ch = channel; ch != null; ch = ch.parent()) {
+            if (ch.hasAttr(POLICY)) {
+                return ch.attr(POLICY).get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Account a read of either leg, only called by the event loop of the channel
+     *
+     * @return Whether the tunnel is bulk, the write of the read could wait for the flush at read complete
+     */
+    public boolean onRead(Channel channel, int bytes) {
+        if (mPinned) {
+            return mClass == TrafficClass.BULK;
+        }
+        return onRead(channel, bytes, System.nanoTime());
+    }
+
+    boolean onRead(Channel channel, int bytes, long now) {
+        if (now - mRttAt >= RTT_REFRESH) {
+            mRttAt = now;
+            long rtt = Math.max(rtt(mInbound), rtt(mOutbound));
+            mTurnGap = Math.min(Math.max(2 * rtt, MIN_TURN_GAP), MAX_TURN_GAP);
+        }
+        Direction dir = (channel == mInbound) ? mForward : mBackward;
+        if (mLast != dir || now - dir.mLastRead > mTurnGap) {
+            if (dir.mTurn > 0) {
+                dir.mAverage += (dir.mTurn - dir.mAverage) / 4;
+            }
+            dir.mTurn = 0;
+            mLast = dir;
+        }
+        dir.mLastRead = now;
+        dir.mTurn += bytes;
+
+        boolean bulk = dir.mBulk
+                ? (dir.mTurn >= BULK_TURN || dir.mAverage >= INTERACTIVE_TURN)
+                : (dir.mTurn >= BULK_TURN);
+        if (bulk != dir.mBulk) {
+            dir.mBulk = bulk;
+            update();
+        }
+        return mClass == TrafficClass.BULK;
+    }
+
+    public TrafficClass trafficClass() {
+        return mClass;
+    }
+
+    // Nanoseconds, 0 if not measured
+    private static long rtt(Channel channel) {
+        return Math.max(WsKeepalive.rtt(channel), EventLoops.tcpRtt(channel));
+    }
+
+    // Both directions could switch at once on different event loops
+    private synchronized void update() {
+        TrafficClass cls = (mForward.mBulk || mBackward.mBulk) ? TrafficClass.BULK : TrafficClass.INTERACTIVE;
+        if (cls != mClass) {
+            apply(cls);
+        }
+    }
+
+    private void apply(TrafficClass cls) {
+        sLogger.debug("{} {} - {}", cls, mInbound, mOutbound);
+        mClass = cls;
+        ((cls == TrafficClass.BULK) ? mPolicy.mBulk : mPolicy.mInteractive).increment();
+        noDelay(mInbound, cls == TrafficClass.INTERACTIVE);
+        noDelay(mOutbound, cls == TrafficClass.INTERACTIVE);
+    }
+
+    private static void noDelay(Channel channel, boolean noDelay) {
+        if (channel instanceof SocketChannel) {
+            channel.config().setOption(ChannelOption.TCP_NODELAY, noDelay);
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package com.rex.proxy.socks.v5;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.loop.IdleSweeper;
 import com.rex.proxy.socks.SocksBindInitializer;
 import com.rex.proxy.socks.SocksProxyInitializer;
+import com.rex.proxy.websocket.WsClientConnector;
 import com.rex.proxy.websocket.WsClientHandler;
-import com.rex.proxy.websocket.WsClientInitializer;
+import com.rex.proxy.route.RouteAction;
+import com.rex.proxy.route.Router;
+import com.rex.proxy.websocket.WsKeepalive;
+import com.rex.proxy.websocket.WsUpstreamGroup;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.handler.codec.socksx.v5.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +33,12 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
 
     private final WslLocal.Configuration mConfig;
     private EventLoop mEventLoop;
+    private TrafficShaping mShaping;
+    private OverloadDetector mOverload;
+    private WsUpstreamGroup mUpstreams;
+    private Router mRouter;
+    private IdleSweeper mIdle;
+    private WsKeepalive mKeepalive;
 
     public Socks5CommandRequestHandler(WslLocal.Configuration config) {
         sLogger.trace("<init>");
@@ -41,6 +53,42 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
         return this;
     }
 
+    // Optional, leave it null will not shape the traffics
+    public Socks5CommandRequestHandler shaping(TrafficShaping shaping) {
+        mShaping = shaping;
+        return this;
+    }
+
+    // Optional, leave it null will never shed new tunnels
+    public Socks5CommandRequestHandler overload(OverloadDetector overload) {
+        mOverload = overload;
+        return this;
+    }
+
+    // Optional, leave it null will connect the destination directly
+    public Socks5CommandRequestHandler upstreams(WsUpstreamGroup upstreams) {
+        mUpstreams = upstreams;
+        return this;
+    }
+
+    // Optional, leave it null will route everything by upstreams
+    public Socks5CommandRequestHandler router(Router router) {
+        mRouter = router;
+        return this;
+    }
+
+    // Optional, leave it null will never close idle connections
+    public Socks5CommandRequestHandler idle(IdleSweeper idle) {
+        mIdle = idle;
+        return this;
+    }
+
+    // Optional, leave it null will never ping the tunnels
+    public Socks5CommandRequestHandler keepalive(WsKeepalive keepalive) {
+        mKeepalive = keepalive;
+        return this;
+    }
+
     @Override
     public void channelRead0(final ChannelHandlerContext ctx, final Socks5CommandRequest request) throws Exception {
         sLogger.debug("CommandRequest {} dstAddrType={} dstAddr={}:{}", request.type(), request.dstAddrType(), request.dstAddr(), request.dstPort());
@@ -55,27 +103,36 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
         sLogger.trace("Remove command request handler");
         ctx.pipeline().remove(this);
 
+        if (mOverload != null && mOverload.shed()) {
+            sLogger.debug("Shed {} as overloaded", ctx.channel());
+            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
         EventLoop loop = (mEventLoop != null) ? mEventLoop : ctx.channel().eventLoop();
 
         if (Socks5CommandType.CONNECT.equals(request.type())) {
+            RouteAction route = (mRouter != null) ? mRouter.route(request.dstAddr(), request.dstPort()) : null;
+            if (route == RouteAction.BLOCK) {
+                sLogger.debug("Block {}:{}", request.dstAddr(), request.dstPort());
+                ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FORBIDDEN, Socks5AddressType.IPv4))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+
+            if (mShaping != null) {
+                mShaping.addTunnel(ctx.channel());
+            }
+
             Bootstrap bootstrap = new Bootstrap()
                     .group(loop)
-                    .channel(NioSocketChannel.class)
-                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
+                    .channel(EventLoops.socketChannel(loop))
+                    .option(ChannelOption.ALLOCATOR, ctx.alloc())
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (mConfig.proxyConnectTimeout != null) ? mConfig.proxyConnectTimeout : 15000)
                     .option(ChannelOption.SO_KEEPALIVE, true);
 
-            if (mConfig.proxyUri != null) {
-                String dstAddr = mConfig.proxyUri.getHost();
-                int dstPort = mConfig.proxyUri.getPort();
-                if (dstPort == -1) {
-                    if ("wss".equalsIgnoreCase(mConfig.proxyUri.getScheme())) {
-                        dstPort = 443;
-                    } else {
-                        dstPort = 80;
-                    }
-                }
-                sLogger.debug("Proxy tunnel to {}:{}", dstAddr, dstPort);
-
+            if (mUpstreams != null && route != RouteAction.DIRECT) {
                 WsClientHandler.ResponseListener responseListener = new WsClientHandler.ResponseListener() {
                     @Override
                     public void onResponse(boolean success) {
@@ -96,11 +153,13 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
                         }
                     }
                 };
-                bootstrap.handler(new WsClientInitializer(mConfig, ctx, request.dstAddr(), request.dstPort(), responseListener))
-                        .connect(dstAddr, dstPort);
+                new WsClientConnector(mConfig, mUpstreams, bootstrap, ctx, request.dstAddr(), request.dstPort(), responseListener)
+                        .idle(mIdle)
+                        .keepalive(mKeepalive)
+                        .connect();
             } else {
                 sLogger.debug("Proxy direct to {}:{}", request.dstAddr(), request.dstPort());
-                ChannelFuture future = bootstrap.handler(new SocksProxyInitializer(mConfig, ctx))
+                ChannelFuture future = bootstrap.handler(new SocksProxyInitializer(mConfig, ctx, request.dstPort()))
                         .connect(request.dstAddr(), request.dstPort());
 
                 future.addListener(new ChannelFutureListener() {
@@ -129,8 +188,8 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
             // 4th, Relay traffics
             final ServerBootstrap bootstrap = new ServerBootstrap()
                     .group(loop)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new SocksBindInitializer(mConfig, ctx))
+                    .channel(EventLoops.serverSocketChannel(loop))
+                    .childHandler(new SocksBindInitializer(mConfig, ctx, mIdle))
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
 
             final InetSocketAddress addr = new InetSocketAddress(0);
@@ -174,14 +233,15 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
             // Currently do not support FRAG mode
             final Bootstrap bootstrap = new Bootstrap()
                     .group(loop)
-                    .channel(NioDatagramChannel.class)
-                    .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    .channel(EventLoops.datagramChannel(loop))
+                    .handler(new ChannelInitializer<DatagramChannel>() {
                         @Override
-                        protected void initChannel(NioDatagramChannel ch) throws Exception {
+                        protected void initChannel(DatagramChannel ch) throws Exception {
                             ch.pipeline()
                                     .addLast(new Socks5UdpRelayMessageEncoder())
                                     .addLast(new Socks5UdpRelayMessageDecoder())
-                                    .addLast(new Socks5UdpRelayHandler(ctx.channel().eventLoop()));
+                                    .addLast(new Socks5UdpRelayHandler(ctx.channel().eventLoop())
+                                            .router(mRouter));
                         }
                     });
             final ChannelFuture future = bootstrap.bind(new InetSocketAddress(0));
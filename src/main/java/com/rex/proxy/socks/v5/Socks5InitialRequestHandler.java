@@ -1,6 +1,12 @@
 package com.rex.proxy.socks.v5;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.Router;
+import com.rex.proxy.websocket.WsKeepalive;
+import com.rex.proxy.websocket.WsUpstreamGroup;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
@@ -18,23 +24,77 @@ public final class Socks5InitialRequestHandler extends SimpleChannelInboundHandl
     private static final Logger sLogger = LoggerFactory.getLogger(Socks5InitialRequestHandler.class);
 
     private final WslLocal.Configuration mConfig;
+    private TrafficShaping mShaping;
+    private OverloadDetector mOverload;
+    private WsUpstreamGroup mUpstreams;
+    private Router mRouter;
+    private IdleSweeper mIdle;
+    private WsKeepalive mKeepalive;
 
     public Socks5InitialRequestHandler(WslLocal.Configuration config) {
         mConfig = config;
     }
 
+    // Optional, leave it null will not shape the traffics
+    public Socks5InitialRequestHandler shaping(TrafficShaping shaping) {
+        mShaping = shaping;
+        return this;
+    }
+
+    // Optional, leave it null will never shed new tunnels
+    public Socks5InitialRequestHandler overload(OverloadDetector overload) {
+        mOverload = overload;
+        return this;
+    }
+
+    // Optional, leave it null will connect the destination directly
+    public Socks5InitialRequestHandler upstreams(WsUpstreamGroup upstreams) {
+        mUpstreams = upstreams;
+        return this;
+    }
+
+    // Optional, leave it null will route everything by upstreams
+    public Socks5InitialRequestHandler router(Router router) {
+        mRouter = router;
+        return this;
+    }
+
+    // Optional, leave it null will never close idle connections
+    public Socks5InitialRequestHandler idle(IdleSweeper idle) {
+        mIdle = idle;
+        return this;
+    }
+
+    // Optional, leave it null will never ping the tunnels
+    public Socks5InitialRequestHandler keepalive(WsKeepalive keepalive) {
+        mKeepalive = keepalive;
+        return this;
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Socks5InitialRequest request) throws Exception {
         sLogger.debug("InitialRequest");
         if (mConfig.authUser != null && mConfig.authPassword != null) {
             ctx.pipeline()
                     .addLast(new Socks5PasswordAuthRequestDecoder())
-                    .addLast(new Socks5PasswordAuthRequestHandler(mConfig));
+                    .addLast(new Socks5PasswordAuthRequestHandler(mConfig)
+                            .shaping(mShaping)
+                            .overload(mOverload)
+                            .upstreams(mUpstreams)
+                            .router(mRouter)
+                            .idle(mIdle)
+                            .keepalive(mKeepalive));
             ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.PASSWORD));
         } else {
             ctx.pipeline()
                     .addLast(new Socks5CommandRequestDecoder())
-                    .addLast(new Socks5CommandRequestHandler(mConfig));
+                    .addLast(new Socks5CommandRequestHandler(mConfig)
+                            .shaping(mShaping)
+                            .overload(mOverload)
+                            .upstreams(mUpstreams)
+                            .router(mRouter)
+                            .idle(mIdle)
+                            .keepalive(mKeepalive));
             ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH));
         }
 
@@ -1,6 +1,12 @@
 package com.rex.proxy.socks.v5;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.limit.OverloadDetector;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.Router;
+import com.rex.proxy.websocket.WsKeepalive;
+import com.rex.proxy.websocket.WsUpstreamGroup;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
@@ -18,21 +24,72 @@ public final class Socks5PasswordAuthRequestHandler extends SimpleChannelInbound
     private static final Logger sLogger = LoggerFactory.getLogger(Socks5PasswordAuthRequestHandler.class);
 
     private final WslLocal.Configuration mConfig;
+    private TrafficShaping mShaping;
+    private OverloadDetector mOverload;
+    private WsUpstreamGroup mUpstreams;
+    private Router mRouter;
+    private IdleSweeper mIdle;
+    private WsKeepalive mKeepalive;
 
     public Socks5PasswordAuthRequestHandler(WslLocal.Configuration config) {
         mConfig = config;
     }
 
+    // Optional, leave it null will not shape the traffics
+    public Socks5PasswordAuthRequestHandler shaping(TrafficShaping shaping) {
+        mShaping = shaping;
+        return this;
+    }
+
+    // Optional, leave it null will never shed new tunnels
+    public Socks5PasswordAuthRequestHandler overload(OverloadDetector overload) {
+        mOverload = overload;
+        return this;
+    }
+
+    // Optional, leave it null will connect the destination directly
+    public Socks5PasswordAuthRequestHandler upstreams(WsUpstreamGroup upstreams) {
+        mUpstreams = upstreams;
+        return this;
+    }
+
+    // Optional, leave it null will route everything by upstreams
+    public Socks5PasswordAuthRequestHandler router(Router router) {
+        mRouter = router;
+        return this;
+    }
+
+    // Optional, leave it null will never close idle connections
+    public Socks5PasswordAuthRequestHandler idle(IdleSweeper idle) {
+        mIdle = idle;
+        return this;
+    }
+
+    // Optional, leave it null will never ping the tunnels
+    public Socks5PasswordAuthRequestHandler keepalive(WsKeepalive keepalive) {
+        mKeepalive = keepalive;
+        return this;
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Socks5PasswordAuthRequest request) throws Exception {
         sLogger.debug("PasswordAuthRequest");
         sLogger.trace("authUser:{} authPassword:{}", request.username(), request.password());
         if (request.username().equals(mConfig.authUser) && request.password().equals(mConfig.authPassword)) {
             sLogger.debug("Accepted");
+            if (mShaping != null) {
+                mShaping.addUser(ctx.channel(), request.username());
+            }
 
             ctx.pipeline()
                     .addLast(new Socks5CommandRequestDecoder())
-                    .addLast(new Socks5CommandRequestHandler(mConfig));
+                    .addLast(new Socks5CommandRequestHandler(mConfig)
+                            .shaping(mShaping)
+                            .overload(mOverload)
+                            .upstreams(mUpstreams)
+                            .router(mRouter)
+                            .idle(mIdle)
+                            .keepalive(mKeepalive));
 
             sLogger.trace("Remove auth request decoder");
             try {
@@ -1,10 +1,13 @@
 package com.rex.proxy.socks.v5;
 
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.route.RouteAction;
+import com.rex.proxy.route.Router;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,15 +23,16 @@ public final class Socks5UdpRelayHandler extends SimpleChannelInboundHandler<Soc
 
     private final Bootstrap mBootstrap;
     private final Map<SocketAddress, Channel> mChannelMap = new HashMap<>();
+    private Router mRouter;
 
     public Socks5UdpRelayHandler(EventLoop loop) {
         sLogger.trace("UdpRelay init with loop {}", loop);
         mBootstrap = new Bootstrap()
                 .group(loop)
-                .channel(NioDatagramChannel.class)
-                .handler(new ChannelInitializer<NioDatagramChannel>() {
+                .channel(EventLoops.datagramChannel(loop))
+                .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
-                    protected void initChannel(NioDatagramChannel ch) throws Exception {
+                    protected void initChannel(DatagramChannel ch) throws Exception {
                         sLogger.trace("UdpRelay init with channel {}", ch);
                         ch.pipeline().addLast(new SimpleChannelInboundHandler<DatagramPacket>() {
                             @Override
@@ -55,6 +59,13 @@ public final class Socks5UdpRelayHandler extends SimpleChannelInboundHandler<Soc
         mBootstrap.bind(new InetSocketAddress(0));
     }
 
+    // Optional, leave it null will relay all datagrams
+    // Datagrams are never tunneled, both DIRECT and PROXY relay from local
+    public Socks5UdpRelayHandler router(Router router) {
+        mRouter = router;
+        return this;
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Socks5UdpRelayMessage msg) throws Exception {
         sLogger.debug("Inbound {} received data:{} dst:[{}:{}]",
@@ -63,6 +74,12 @@ public final class Socks5UdpRelayHandler extends SimpleChannelInboundHandler<Soc
                 msg.dstAddr,
                 msg.dstPort);
 
+        if (mRouter != null && mRouter.route(msg.dstAddr, msg.dstPort) == RouteAction.BLOCK) {
+            sLogger.debug("Drop datagram to blocked {}:{}", msg.dstAddr, msg.dstPort);
+            msg.data.release();
+            return;
+        }
+
         final Channel internal = ctx.channel();
         mBootstrap.connect(msg.dstAddr, msg.dstPort).addListener(new ChannelFutureListener() {
             @Override
@@ -0,0 +1,213 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.loop.IdleSweeper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open a tunnel for the socks connection through one of the upstreams
+ *
+ * The attempt fails if the websocket could not connect, handshake or the server did not respond success.
+ * Nothing is relayed before the success response, so the failed attempt is retried on another upstream,
+ * up to the configured retries. Connect and handshake failures count against the circuit breaker of the upstream,
+ * rejected or failed responses do not, the server is alive.
+ *
+ * All the callbacks run on the event loop of the socks connection, the bootstrap must use the same loop.
+ */
+public class WsClientConnector {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsClientConnector.class);
+
+    private final WslLocal.Configuration mConfig;
+    private final WsUpstreamGroup mUpstreams;
+    private final Bootstrap mBootstrap;
+    private final ChannelHandlerContext mContext; // Socks connection
+    private final String mDstAddress;
+    private final int mDstPort;
+    private final WsClientHandler.ResponseListener mListener;
+    private final int mAttempts;
+    private final List<WsUpstream> mTried = new ArrayList<>(2);
+    private IdleSweeper mIdle;
+    private WsKeepalive mKeepalive;
+
+    /**
+     * @param bootstrap Configured with the event loop and options, handler will be set per attempt
+     */
+    public WsClientConnector(WslLocal.Configuration config, WsUpstreamGroup upstreams, Bootstrap bootstrap,
+                             ChannelHandlerContext ctx, String dstAddr, int dstPort,
+                             WsClientHandler.ResponseListener listener) {
+        mConfig = config;
+        mUpstreams = upstreams;
+        mBootstrap = bootstrap;
+        mContext = ctx;
+        mDstAddress = dstAddr;
+        mDstPort = dstPort;
+        mListener = listener;
+        mAttempts = 1 + Math.max(0, (config.proxyRetries != null) ? config.proxyRetries : 1);
+    }
+
+    // Optional, leave it null will never close idle tunnels
+    public WsClientConnector idle(IdleSweeper idle) {
+        mIdle = idle;
+        return this;
+    }
+
+    // Optional, leave it null will never ping the tunnels
+    public WsClientConnector keepalive(WsKeepalive keepalive) {
+        mKeepalive = keepalive;
+        return this;
+    }
+
+    public void connect() {
+        if (! mContext.channel().isActive()) {
+            sLogger.debug("Socks connection closed {}", mContext.channel());
+            return;
+        }
+        WsUpstream upstream = mUpstreams.choose(mDstAddress, mTried);
+        if (upstream == null) {
+            // Fail fast, all down or all tried
+            mListener.onResponse(false);
+            return;
+        }
+        if (! mTried.isEmpty()) {
+            mUpstreams.onRetry();
+        }
+        mTried.add(upstream);
+        sLogger.debug("Proxy tunnel to {} via {}", mDstAddress, upstream);
+        new Attempt(upstream).start();
+    }
+
+    private void retryOrFail() {
+        if (mTried.size() < mAttempts) {
+            connect();
+        } else {
+            mListener.onResponse(false);
+        }
+    }
+
+    private final class Attempt implements WsClientHandler.ResponseListener, ChannelFutureListener {
+        private final WsUpstream mUpstream;
+        private Channel mChannel;
+        private boolean mCompleted;
+
+        Attempt(WsUpstream upstream) {
+            mUpstream = upstream;
+        }
+
+        void start() {
+            mUpstream.acquire();
+            WsQuicConnections quic = mUpstream.quic();
+            if (quic != null) {
+                quic.open(mBootstrap, new WsRawClientInitializer(mConfig, mContext, mDstAddress, mDstPort, this, mUpstream))
+                        .addListener(new FutureListener<QuicStreamChannel>() {
+                            @Override
+                            public void operationComplete(Future<QuicStreamChannel> future) throws Exception {
+                                if (future.isSuccess()) {
+                                    attach(future.getNow());
+                                } else {
+                                    onClosed(future.cause());
+                                }
+                            }
+                        });
+                return;
+            }
+            final WsHttp2Connections http2 = mUpstream.http2();
+            if (http2 == null) {
+                ChannelHandler initializer = mUpstream.isRaw()
+                        ? new WsRawClientInitializer(mConfig, mContext, mDstAddress, mDstPort, this, mUpstream)
+                        : new WsClientInitializer(mConfig, mContext, mDstAddress, mDstPort, this, mUpstream, mKeepalive);
+                ChannelFuture future = mBootstrap.clone()
+                        .handler(initializer)
+                        .connect(mUpstream.address());
+                attach(future.channel());
+                return;
+            }
+            http2.open(mBootstrap, new WsHttp2ClientInitializer(mConfig, mContext, mDstAddress, mDstPort, this, mUpstream, mKeepalive))
+                    .addListener(new FutureListener<Http2StreamChannel>() {
+                        @Override
+                        public void operationComplete(Future<Http2StreamChannel> future) throws Exception {
+                            if (future.isSuccess()) {
+                                attach(future.getNow());
+                                if (mIdle != null) {
+                                    // Shared connection closed once all its streams idle for long
+                                    mIdle.track(future.getNow().parent(), "tunnel", IdleSweeper.timeoutMillis(mConfig.idleTunnelTimeout));
+                                }
+                                return;
+                            }
+                            if (! http2.isSupported()) {
+                                // Not a failure of the upstream, open this tunnel over HTTP/1.1 instead
+                                mUpstream.release();
+                                start();
+                                return;
+                            }
+                            // Connection failed, as the websocket closed before any response
+                            onClosed(future.cause());
+                        }
+                    });
+        }
+
+        private void attach(Channel channel) {
+            mChannel = channel;
+            mChannel.closeFuture().addListener(this);
+            if (mIdle != null) {
+                mIdle.track(mChannel, "tunnel", IdleSweeper.timeoutMillis(mConfig.idleTunnelTimeout));
+            }
+            mContext.channel().closeFuture().addListener(this);
+        }
+
+        @Override // WsClientHandler.ResponseListener
+        public void onResponse(boolean success) {
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            if (success) {
+                // Only the release of the upstream left, let go of the attempt and the connector
+                mChannel.closeFuture().removeListener(this);
+                mContext.channel().closeFuture().removeListener(this);
+                mUpstream.releaseOnClose(mChannel);
+                mUpstream.onSuccess();
+                mListener.onResponse(true);
+            } else {
+                sLogger.debug("Tunnel to {} refused by {}", mDstAddress, mUpstream);
+                retryOrFail();
+            }
+        }
+
+        @Override // Websocket or socks connection closed
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.channel() == mChannel) {
+                onClosed(future.cause());
+            } else if (! mCompleted) {
+                // Socks client gave up, no more retries
+                mCompleted = true;
+                mChannel.close();
+            }
+        }
+
+        private void onClosed(Throwable cause) {
+            mUpstream.release();
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            sLogger.debug("Tunnel to {} failed to open via {} {}", mDstAddress, mUpstream, (cause != null) ? cause.toString() : "");
+            mUpstream.onFailure();
+            retryOrFail();
+        }
+    }
+}
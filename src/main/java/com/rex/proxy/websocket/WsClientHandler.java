@@ -1,68 +1,107 @@
 package com.rex.proxy.websocket;
 
-import com.google.gson.Gson;
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.socks.HalfClose;
+import com.rex.proxy.socks.RelayHandler;
+import com.rex.proxy.socks.TrafficClassifier;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
 import com.rex.proxy.websocket.control.ControlMessage;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Base64;
 
 /**
- * Receive BinaryWebSocketFrame from websocket channel, write to raw socket channel as ByteBuf
+ * Open the tunnel by the control messages, then relay between it and the socks connection
+ *
+ * The control messages come from WsProxyControlCodec on websocket, or RawControlCodec on the raw transport
+ * where the tunnel data is relayed as bytes instead of binary frames.
+ *
+ * It listens to the close of both the tunnel and the socks connection itself.
  */
-public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+public class WsClientHandler extends SimpleChannelInboundHandler<ControlMessage> implements ChannelFutureListener {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsClientHandler.class);
 
     private final Channel mSocksChannel; // Accepted socks client
-    private final Gson mGson = new Gson();
     private final String mDstAddress;
     private final int mDstPort;
-    private final ResponseListener mListener;
+    private ResponseListener mListener; // Null once notified, the open attempt is done
+    private final String mUser;
     private final String mSecret;
+    private final WsUpstream mUpstream;
+    private final boolean mRaw;
     private byte[] mNonce;
+    private boolean mEstablished; // Got success response
+    private long mRequestAt; // nanoTime the connect request sent
+    private Channel mChannel; // WebSocket
 
     public interface ResponseListener {
         void onResponse(boolean success);
     }
 
-    public WsClientHandler(Channel channel, String dstAddr, int dstPort, String secret, ResponseListener listener) {
+    /**
+     * @param user Name of the secret in the users of server, null if the secret is the server proxyUid
+     * @param upstream Notified when the server draining, null to ignore
+     */
+    public WsClientHandler(Channel channel, String dstAddr, int dstPort, String user, String secret, ResponseListener listener, WsUpstream upstream) {
+        this(channel, dstAddr, dstPort, user, secret, listener, upstream, false);
+    }
+
+    /**
+     * @param raw Relay the tunnel data as bytes, the channel is the raw transport
+     */
+    public WsClientHandler(Channel channel, String dstAddr, int dstPort, String user, String secret, ResponseListener listener, WsUpstream upstream, boolean raw) {
         sLogger.trace("<init>");
         mSocksChannel = channel;
-        mSocksChannel.closeFuture().addListener(mSocksCloseListener);
+        mSocksChannel.closeFuture().addListener(this);
         mDstAddress = dstAddr;
         mDstPort = dstPort;
+        mUser = user;
         mSecret = secret;
         mListener = listener;
+        mUpstream = upstream;
+        mRaw = raw;
     }
 
     @Override // SimpleChannelInboundHandler
-    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame msg) throws Exception {
-        sLogger.trace("read msg:{}", msg);
-        ControlMessage response = mGson.fromJson(msg.text(), ControlMessage.class);
+    protected void channelRead0(ChannelHandlerContext ctx, ControlMessage response) throws Exception {
+        sLogger.trace("read msg:{}", response);
         if ("response".equalsIgnoreCase(response.type)) {
             if ("success".equalsIgnoreCase(response.action)) {
                 // Success
-                if (mListener != null) {
-                    mListener.onResponse(true);
-                }
+                mEstablished = true;
+                respond(true);
 
                 sLogger.debug("Relay {} with {}", mSocksChannel, ctx.channel());
                 //ctx.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print relayed data
-                ctx.pipeline().addLast(new WsProxyWsToRaw(mSocksChannel));
-                mSocksChannel.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
+                TrafficClassifier.attach(mSocksChannel, ctx.channel(), mDstPort);
+                // Request to response is a round trip and the connect of the server, BdpTuner grows carefully by it
+                BdpTuner.attach(ctx.channel(), mSocksChannel, System.nanoTime() - mRequestAt);
+                if (mRaw) {
+                    ctx.pipeline().addLast(new RelayHandler(mSocksChannel));
+                    mSocksChannel.pipeline().addLast(new RelayHandler(ctx.channel()));
+                } else {
+                    ctx.pipeline().addLast(new WsProxyWsToRaw(mSocksChannel));
+                    mSocksChannel.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
+                }
+                if (Boolean.TRUE.equals(response.halfClose)) {
+                    // Server passes FIN both ways, servers before it close the tunnel on FIN
+                    HalfClose.enable(mSocksChannel);
+                    if (mRaw) {
+                        HalfClose.enable(ctx.channel());
+                    }
+                }
 
                 sLogger.trace("FINAL pipeline:{}", mSocksChannel.pipeline());
             } else {
                 // Failure
                 sLogger.warn("WsClient got response {}", response.action);
-                if (mListener != null) {
-                    mListener.onResponse(false);
-                }
+                respond(false);
 
                 // Close the socket immediately, avoid server left in TIME_WAIT state
                 ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
@@ -70,6 +109,20 @@ public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFr
             }
         }
 
+        if ("shutdown".equalsIgnoreCase(response.type)) {
+            // Proxy host sent FIN, all its data came before
+            sLogger.debug("Tunnel shutdown {}", ctx.channel());
+            HalfClose.shutdownOutput(mSocksChannel);
+        }
+
+        if ("drain".equalsIgnoreCase(response.type)) {
+            // Server is shutting down, keep this tunnel until it finished
+            sLogger.debug("Upstream draining {}", ctx.channel());
+            if (mUpstream != null) {
+                mUpstream.onDrain();
+            }
+        }
+
         if ("hello".equalsIgnoreCase(response.type)) {
             if (response.token != null) {
                 mNonce = Base64.getDecoder().decode(response.token);
@@ -80,8 +133,21 @@ public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFr
             request.action = "connect";
             request.address = mDstAddress;
             request.port = mDstPort;
+            // FIN under TLS would cut the TLS stream, raw transport passes it only over TCP
+            request.halfClose = (! mRaw || ctx.pipeline().get(SslHandler.class) == null) ? Boolean.TRUE : null;
             if (mSecret != null) {
+                // Sign by the algorithm the server asked for, servers before the negotiation always use hs256
+                String algorithm = ControlAuthenticator.jceName((response.action != null) ? response.action : ControlAuthenticator.DEFAULT_ALGORITHM);
+                if (algorithm == null) {
+                    sLogger.warn("WsClient auth algorithm {} not supported", response.action);
+                    respond(false);
+                    ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                            .addListener(ChannelFutureListener.CLOSE);
+                    return;
+                }
+                request.user = mUser;
                 request.token = new ControlAuthBuilder()
+                        .setAlgorithm(algorithm)
                         .setSecret(mSecret)
                         .setNonce(mNonce)
                         .setAddress(mDstAddress)
@@ -89,7 +155,16 @@ public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFr
                         .build();
             }
             sLogger.trace("request:{}", request);
-            ctx.writeAndFlush(new TextWebSocketFrame(mGson.toJson(request)));
+            mRequestAt = System.nanoTime();
+            ctx.writeAndFlush(request);
+        }
+    }
+
+    private void respond(boolean success) {
+        ResponseListener listener = mListener;
+        mListener = null;
+        if (listener != null) {
+            listener.onResponse(success);
         }
     }
 
@@ -97,8 +172,9 @@ public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFr
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
         super.handlerAdded(ctx);
         sLogger.trace("");
+        mChannel = ctx.channel();
         ctx.channel().closeFuture()
-                .addListener(mWsCloseListener);
+                .addListener(this);
     }
 
     @Override // SimpleChannelInboundHandler
@@ -109,20 +185,28 @@ public class WsClientHandler extends SimpleChannelInboundHandler<TextWebSocketFr
         //mOutput.close();
     }
 
-    private final ChannelFutureListener mSocksCloseListener = new ChannelFutureListener() {
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
+    @Override // ChannelFutureListener, socks connection or tunnel closed
+    public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.channel() == mSocksChannel) {
             sLogger.debug("ws local closed {}", future.channel());
-            //sLogger.debug("force close peer {}");
+            if (! mEstablished || mChannel == null) {
+                // Open attempt closes the websocket itself
+                return;
+            }
+            sLogger.debug("force close peer {}", mChannel);
+            if (mChannel.isActive()) {
+                // After the data and shutdown message on the way
+                mChannel.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
         }
-    };
-
-    private final ChannelFutureListener mWsCloseListener = new ChannelFutureListener() {
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
-            sLogger.debug("ws peer closed {}", future.channel());
-            sLogger.debug("force close local {}", mSocksChannel);
-            mSocksChannel.close();
+        sLogger.debug("ws peer closed {}", future.channel());
+        if (! mEstablished) {
+            // Not relayed anything yet, the open attempt may retry on another upstream
+            return;
         }
-    };
+        sLogger.debug("force close local {}", mSocksChannel);
+        mSocksChannel.close();
+    }
 }
@@ -1,22 +1,19 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.SimpleUserEventChannelHandler;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolConfig;
 import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLException;
-
 /**
  * Initialize the client channel pipeline
  * WsProxyLocal (Socks Server) will use this initializer to handshake with WsProxyServer (WebSocket Server)
@@ -25,59 +22,71 @@ public class WsClientInitializer extends ChannelInitializer<SocketChannel> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsClientInitializer.class);
 
-    private static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
+    static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
 
     private final WslLocal.Configuration mConfig;
     private final ChannelHandlerContext mContext; // Socks connection
     private final WsClientHandler.ResponseListener mListener;
     private final String mDstAddress;
     private final int mDstPort;
-    private SslContext mSslContext;
+    private final WsUpstream mUpstream;
+    private final WsKeepalive mKeepalive;
 
-    public WsClientInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, String dstAddr, int dstPort, WsClientHandler.ResponseListener listener) {
+    /**
+     * @param keepalive Ping the websocket once the handshake completed, null to skip
+     */
+    public WsClientInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, String dstAddr, int dstPort, WsClientHandler.ResponseListener listener, WsUpstream upstream, WsKeepalive keepalive) {
         sLogger.trace("<init>");
         mConfig = config;
         mContext = ctx;
         mDstAddress = dstAddr;
         mDstPort = dstPort;
         mListener = listener;
-
-        if ("wss".equalsIgnoreCase(mConfig.proxyUri.getScheme())) {
-            try {
-                SslContextBuilder builder = SslContextBuilder.forClient();
-                if (! mConfig.proxyCertVerify) {
-                    builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
-                }
-                mSslContext = builder.build();
-            } catch (SSLException ex) {
-                sLogger.warn("Failed to init ssl\n", ex);
-            }
-        }
+        mUpstream = upstream;
+        mKeepalive = keepalive;
     }
 
     @Override // ChannelInitializer
     protected void initChannel(SocketChannel ch) throws Exception {
         sLogger.trace("initChannel");
-        if (mSslContext != null) {
-            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc()));
+        if (mUpstream.sslContext() != null) {
+            ch.pipeline().addLast(mUpstream.sslContext().newHandler(ch.alloc()));
         }
-        // FIXME: Add ChannelInboundHandlerAdapter to handle exception, report to ResponseListener.onResponse(false)
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
         ch.pipeline()
                 .addLast(new HttpClientCodec())
                 .addLast(new HttpObjectAggregator(1 << 16)) // 65536
-                .addLast(new WebSocketClientProtocolHandler(mConfig.proxyUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false, null, 65535))
+                .addLast(new WebSocketClientProtocolHandler(WebSocketClientProtocolConfig.newBuilder()
+                        .webSocketUri(mUpstream.uri())
+                        .version(WebSocketVersion.V13)
+                        .subprotocol(WS_SUBPROTOCOL)
+                        .maxFramePayloadLength(65535)
+                        .dropPongFrames(false) // Answers of the keepalive pings
+                        .build()))
                 .addLast(new SimpleUserEventChannelHandler<WebSocketClientProtocolHandler.ClientHandshakeStateEvent>() {
                     @Override
                     protected void eventReceived(ChannelHandlerContext ctx, WebSocketClientProtocolHandler.ClientHandshakeStateEvent evt) throws Exception {
                         sLogger.info("channel {} - {} handshake complete", ctx.channel().localAddress(), ctx.channel().remoteAddress());
                         if (WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE.equals(evt)) {
                             ctx.pipeline()
-                                    .addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUid, mListener))
+                                    .addLast(WsProxyControlCodec.INSTANCE)
+                                    .addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUser, mConfig.proxyUid, mListener, mUpstream))
                                     .remove(this);
+                            if (mKeepalive != null) {
+                                mKeepalive.track(ctx.channel(), "tunnel",
+                                        WsKeepalive.intervalMillis(mConfig.keepaliveInterval),
+                                        WsKeepalive.misses(mConfig.keepaliveMisses), mUpstream);
+                            }
                             sLogger.trace("pipeline:{}", ctx.pipeline());
                         }
                     }
+
+                    @Override
+                    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                        // Handshake failed, the tunnel open attempt completes as failure once closed
+                        sLogger.warn("channel {} handshake failed {}", ctx.channel().remoteAddress(), cause.toString());
+                        ctx.close();
+                    }
                 });
         sLogger.trace("pipeline:{}", ch.pipeline());
     }
@@ -0,0 +1,165 @@
+package com.rex.proxy.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Websocket over HTTP/2 streams, RFC 8441
+ *
+ * The server advertises SETTINGS_ENABLE_CONNECT_PROTOCOL, the client opens a stream with an extended CONNECT
+ * request, :protocol websocket, and the server answers :status 200 without ending the stream. The websocket
+ * frames then ride the DATA frames of the stream as is, masked from the client as over HTTP/1.1, so the tunnel
+ * pipeline above the frame codec is the same for both. Closing a tunnel ends its stream both ways, the shared
+ * connection stays.
+ */
+public final class WsHttp2 {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsHttp2.class);
+
+    public static final char SETTINGS_ENABLE_CONNECT_PROTOCOL = 0x8;
+    public static final String PROTOCOL = "websocket";
+    public static final String VERSION = "13";
+
+    private static final int MAX_FRAME_PAYLOAD = 65536;
+    private static final long CLOSE_TIMEOUT = 5000; // Milliseconds to wait the peer ending the stream, then reset
+
+    private WsHttp2() {
+    }
+
+    /**
+     * @return Initial settings of the server connections, extended CONNECT enabled
+     */
+    public static Http2Settings serverSettings() {
+        Http2Settings settings = Http2Settings.defaultSettings();
+        settings.put(SETTINGS_ENABLE_CONNECT_PROTOCOL, Long.valueOf(1));
+        return settings;
+    }
+
+    /**
+     * @return Whether the peer settings allow the websocket streams
+     */
+    public static boolean isConnectEnabled(Http2Settings settings) {
+        Long value = settings.get(SETTINGS_ENABLE_CONNECT_PROTOCOL);
+        return value != null && value == 1;
+    }
+
+    /**
+     * Add the websocket frame codec of an accepted stream, the tunnel handlers go after it
+     *
+     * @param client Mask the frames sent by the client, expect the masked ones on the server
+     */
+    public static void addFrameCodec(ChannelPipeline pipeline, boolean client) {
+        pipeline.addLast(new StreamCodec())
+                .addLast(new WebSocket13FrameDecoder(!client, false, MAX_FRAME_PAYLOAD))
+                .addLast(new WebSocket13FrameEncoder(client))
+                .addLast(new ControlFrames());
+    }
+
+    // DATA frames of the stream to bytes of the websocket frame codec, and the graceful close of the stream
+    private static final class StreamCodec extends MessageToMessageCodec<Http2StreamFrame, ByteBuf> {
+        private boolean mEndSent;
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+            out.add(new DefaultHttp2DataFrame(msg.retain()));
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, Http2StreamFrame msg, List<Object> out) throws Exception {
+            // Trailers or anything else after the response are not part of the websocket
+            if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).content().isReadable()) {
+                out.add(((Http2DataFrame) msg).content().retain());
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            boolean endStream = (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream())
+                    || (msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream());
+            super.channelRead(ctx, msg);
+            if (endStream && !mEndSent) {
+                // Peer closed the tunnel, end ours as well through the pipeline
+                sLogger.debug("Stream ended {}", ctx.channel());
+                ctx.channel().close();
+            }
+        }
+
+        @Override
+        public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+            if (mEndSent || !ctx.channel().isActive()) {
+                // Closed again or by the connection, reset if the peer did not end yet
+                ctx.close(promise);
+                return;
+            }
+            // Servers take every reset as a possible rapid reset attack and drop the connection after some,
+            // end the stream instead, the stream channel closes by itself once ended both ways
+            mEndSent = true;
+            ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    promise.trySuccess();
+                }
+            });
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(true)).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (! future.isSuccess() && !promise.isDone()) {
+                        ctx.close(promise);
+                    }
+                }
+            });
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (! promise.isDone()) {
+                        ctx.close(promise);
+                    }
+                }
+            }, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Answer pings and close frames, as the websocket protocol handler does over HTTP/1.1, pongs pass on
+    private static final class ControlFrames extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content()));
+                return;
+            }
+            if (msg instanceof CloseWebSocketFrame) {
+                // Echo the status and close
+                ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            sLogger.warn("Stream {} failed {}", ctx.channel(), cause.toString());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+
+/**
+ * Initialize the client stream pipeline
+ * Same as WsClientInitializer, but the websocket handshake is an extended CONNECT request on an HTTP/2 stream
+ */
+public class WsHttp2ClientInitializer extends ChannelInitializer<Http2StreamChannel> {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsHttp2ClientInitializer.class);
+
+    private final WslLocal.Configuration mConfig;
+    private final ChannelHandlerContext mContext; // Socks connection
+    private final WsClientHandler.ResponseListener mListener;
+    private final String mDstAddress;
+    private final int mDstPort;
+    private final WsUpstream mUpstream;
+    private final WsKeepalive mKeepalive;
+
+    /**
+     * @param keepalive Ping the websocket once the handshake completed, null to skip
+     */
+    public WsHttp2ClientInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, String dstAddr, int dstPort, WsClientHandler.ResponseListener listener, WsUpstream upstream, WsKeepalive keepalive) {
+        sLogger.trace("<init>");
+        mConfig = config;
+        mContext = ctx;
+        mDstAddress = dstAddr;
+        mDstPort = dstPort;
+        mListener = listener;
+        mUpstream = upstream;
+        mKeepalive = keepalive;
+    }
+
+    @Override // ChannelInitializer
+    protected void initChannel(Http2StreamChannel ch) throws Exception {
+        sLogger.trace("initChannel");
+        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(request()));
+                ctx.fireChannelActive();
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                if (! (msg instanceof Http2HeadersFrame)) {
+                    ReferenceCountUtil.release(msg);
+                    return;
+                }
+                CharSequence status = ((Http2HeadersFrame) msg).headers().status();
+                if (! HttpResponseStatus.OK.codeAsText().contentEquals(status)) {
+                    // Handshake failed, the tunnel open attempt completes as failure once closed
+                    sLogger.warn("stream {} handshake failed {}", ctx.channel(), status);
+                    ctx.close();
+                    return;
+                }
+                sLogger.info("stream {} - {} handshake complete", ctx.channel().parent().localAddress(), ctx.channel().remoteAddress());
+                WsHttp2.addFrameCodec(ctx.pipeline(), true);
+                ctx.pipeline()
+                        .addLast(WsProxyControlCodec.INSTANCE)
+                        .addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUser, mConfig.proxyUid, mListener, mUpstream))
+                        .remove(this);
+                if (mKeepalive != null) {
+                    mKeepalive.track(ctx.channel(), "tunnel",
+                            WsKeepalive.intervalMillis(mConfig.keepaliveInterval),
+                            WsKeepalive.misses(mConfig.keepaliveMisses), mUpstream);
+                }
+                sLogger.trace("pipeline:{}", ctx.pipeline());
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                sLogger.warn("stream {} handshake failed {}", ctx.channel(), cause.toString());
+                ctx.close();
+            }
+        });
+    }
+
+    private Http2Headers request() {
+        URI uri = mUpstream.uri();
+        String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        Http2Headers headers = new DefaultHttp2Headers()
+                .method(HttpMethod.CONNECT.asciiName())
+                .scheme("wss".equalsIgnoreCase(uri.getScheme()) ? "https" : "http")
+                .authority(mUpstream.address().getHostString() + ":" + mUpstream.address().getPort())
+                .path(path);
+        headers.set(Http2Headers.PseudoHeaderName.PROTOCOL.value(), WsHttp2.PROTOCOL);
+        headers.set(HttpHeaderNames.SEC_WEBSOCKET_VERSION, WsHttp2.VERSION);
+        headers.set(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, WsClientInitializer.WS_SUBPROTOCOL);
+        return headers;
+    }
+}
@@ -0,0 +1,251 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared HTTP/2 connections of an upstream, one per event loop, the tunnels open as websocket streams over them
+ *
+ * The first tunnel of an event loop connects, the connection is ready once the server settings arrived with
+ * extended CONNECT enabled, the tunnels opening meanwhile wait for it. Streams share the event loop of their
+ * connection, one connection per loop keeps each tunnel on the loop of its socks connection as over HTTP/1.1.
+ * A connection closed or sent GOAWAY is dropped and the next tunnel connects again, the streams on it finish.
+ *
+ * A server answered without h2, ALPN chose another protocol, the connection failed before any settings or the
+ * settings lacked extended CONNECT, is not asked again, its tunnels fall back to HTTP/1.1 websockets.
+ *
+ * Closed along with the upstream group, the connections send GOAWAY and close once their streams finished, or
+ * after the graceful shutdown timeout of the codec. No tunnel opens on them from then on.
+ */
+public class WsHttp2Connections {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsHttp2Connections.class);
+
+    private final WsUpstream mUpstream;
+    private final SslContext mSslContext; // Offers h2 only, null for ws scheme
+    private final ConcurrentMap<EventLoop, Future<Channel>> mConnections = new ConcurrentHashMap<>();
+    private volatile boolean mUnsupported;
+    private volatile boolean mClosed;
+
+    // Servers push nothing with push disabled, refuse the streams anyway
+    @ChannelHandler.Sharable
+    private static final class PushRefused extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.close();
+        }
+    }
+
+    private static final ChannelHandler PUSH_REFUSED = new PushRefused();
+
+    // Last handler of a connection, completes the promise once the server settings arrived
+    private final class Ready extends ChannelInboundHandlerAdapter {
+        private final Promise<Channel> mPromise;
+        private boolean mReached; // Connected and TLS handshake done, the server answers from here on
+
+        Ready(Promise<Channel> promise) {
+            mPromise = promise;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            mReached = (mSslContext == null);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+                mReached = true;
+                String protocol = ctx.pipeline().get(SslHandler.class).applicationProtocol();
+                if (! ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                    unsupported(ctx, "ALPN " + protocol);
+                }
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if (msg instanceof Http2SettingsFrame && !mPromise.isDone()) {
+                    if (WsHttp2.isConnectEnabled(((Http2SettingsFrame) msg).settings())) {
+                        sLogger.debug("Connection ready {}", ctx.channel());
+                        mPromise.trySuccess(ctx.channel());
+                    } else {
+                        unsupported(ctx, "no extended CONNECT");
+                    }
+                } else if (msg instanceof Http2GoAwayFrame) {
+                    sLogger.debug("Connection going away {}", ctx.channel());
+                    mConnections.remove(ctx.channel().eventLoop(), mPromise);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            mConnections.remove(ctx.channel().eventLoop(), mPromise);
+            if (mReached && !mPromise.isDone()) {
+                // Server answered but never sent the settings, it speaks only HTTP/1.1 there
+                unsupported(ctx, "closed before settings");
+            }
+            mPromise.tryFailure(new ClosedChannelException());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            sLogger.warn("Connection {} failed {}", ctx.channel(), cause.toString());
+            ctx.close();
+        }
+
+        private void unsupported(ChannelHandlerContext ctx, String reason) {
+            if (! mUnsupported) {
+                sLogger.warn("Upstream {} does not support websocket over HTTP/2, {}, fallback to HTTP/1.1", mUpstream, reason);
+            }
+            mUnsupported = true;
+            mPromise.tryFailure(new IllegalStateException("HTTP/2 not supported, " + reason));
+            ctx.close();
+        }
+    }
+
+    /**
+     * @param sslContext Client context negotiating h2 by ALPN, null for ws scheme
+     */
+    public WsHttp2Connections(WsUpstream upstream, SslContext sslContext) {
+        sLogger.trace("<init> {}", upstream);
+        mUpstream = upstream;
+        mSslContext = sslContext;
+    }
+
+    /**
+     * @return false once the server turned out to have no websocket over HTTP/2
+     */
+    public boolean isSupported() {
+        return ! mUnsupported;
+    }
+
+    /**
+     * @return Connections open or opening
+     */
+    public int connections() {
+        return mConnections.size();
+    }
+
+    /**
+     * Open a stream on the connection of the bootstrap event loop, connect first if there is none
+     *
+     * @param bootstrap Configured with the event loop and options, call on that event loop
+     * @param handler Handler of the stream
+     * @return Failed if the connection failed, isSupported() tells whether to fall back to HTTP/1.1
+     */
+    public Future<Http2StreamChannel> open(Bootstrap bootstrap, final ChannelHandler handler) {
+        EventLoop loop = bootstrap.config().group().next();
+        final Promise<Http2StreamChannel> promise = loop.newPromise();
+        if (mClosed) {
+            return promise.setFailure(new ClosedChannelException());
+        }
+        Future<Channel> connection = mConnections.get(loop);
+        if (connection == null) {
+            connection = connect(bootstrap, loop);
+        }
+        connection.addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (! future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                    return;
+                }
+                new Http2StreamChannelBootstrap(future.getNow())
+                        .handler(handler)
+                        .open(promise);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Close all the connections gracefully, the ones still connecting once they are ready
+     */
+    public void close() {
+        mClosed = true;
+        for (Future<Channel> connection : mConnections.values()) {
+            connection.addListener(new FutureListener<Channel>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (future.isSuccess()) {
+                        sLogger.debug("Close connection {}", future.getNow());
+                        future.getNow().close();
+                    }
+                }
+            });
+        }
+        mConnections.clear();
+    }
+
+    private Future<Channel> connect(Bootstrap bootstrap, final EventLoop loop) {
+        final Promise<Channel> promise = loop.newPromise();
+        mConnections.put(loop, promise);
+        if (mClosed) {
+            // Closed meanwhile, leave none behind
+            close();
+        }
+        sLogger.debug("Connect {} on {}", mUpstream, loop);
+        ChannelFuture future = bootstrap.clone()
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        if (mSslContext != null) {
+                            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc()));
+                        }
+                        ch.pipeline()
+                                .addLast(Http2FrameCodecBuilder.forClient()
+                                        .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                                        .build())
+                                .addLast(new Http2MultiplexHandler(PUSH_REFUSED))
+                                .addLast(new Ready(promise));
+                    }
+                })
+                .connect(mUpstream.address());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (! future.isSuccess()) {
+                    mConnections.remove(loop, promise);
+                    promise.tryFailure(future.cause());
+                }
+            }
+        });
+        return promise;
+    }
+}
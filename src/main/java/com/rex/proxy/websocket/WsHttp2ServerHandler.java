@@ -0,0 +1,124 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslServer;
+import com.rex.proxy.auth.UserAccounting;
+import com.rex.proxy.auth.UserStore;
+import com.rex.proxy.limit.AdmissionControl;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.DestinationAcl;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Handle the extended CONNECT request of each HTTP/2 stream, RFC 8441
+ * Filter the specified path, answer 200 and turn the stream into a websocket tunnel, as WsServerPathInterceptor
+ * does for the HTTP/1.1 connections
+ */
+@ChannelHandler.Sharable
+public class WsHttp2ServerHandler extends SimpleChannelInboundHandler<Http2HeadersFrame> {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsHttp2ServerHandler.class);
+
+    private final EventLoopGroup mWorkerGroup;
+    private final WslServer.Configuration mConfig;
+    private final ControlAuthenticator mAuth;
+    private final UserStore mUsers;
+    private final DestinationAcl mAcl;
+    private final AdmissionControl mAdmission;
+    private final TrafficShaping mShaping;
+    private final UserAccounting mAccounting;
+    private final IdleSweeper mIdle;
+    private final WsKeepalive mKeepalive;
+    private final WsServerDrain mDrain;
+
+    public WsHttp2ServerHandler(EventLoopGroup group, WslServer.Configuration config, ControlAuthenticator auth, UserStore users, DestinationAcl acl, AdmissionControl admission, TrafficShaping shaping, UserAccounting accounting, IdleSweeper idle, WsKeepalive keepalive, WsServerDrain drain) {
+        sLogger.trace("<init>");
+        mWorkerGroup = group;
+        mConfig = config;
+        mAuth = auth;
+        mUsers = users;
+        mAcl = acl;
+        mAdmission = admission;
+        mShaping = shaping;
+        mAccounting = accounting;
+        mIdle = idle;
+        mKeepalive = keepalive;
+        mDrain = drain;
+    }
+
+    @Override // SimpleChannelInboundHandler
+    protected void channelRead0(ChannelHandlerContext ctx, Http2HeadersFrame frame) throws Exception {
+        Http2Headers headers = frame.headers();
+        CharSequence path = headers.path();
+        sLogger.trace("stream path:<{}> proxyPath:<{}>", path, mConfig.proxyPath);
+        if (! HttpMethod.CONNECT.asciiName().contentEquals(headers.method())
+                || !WsHttp2.PROTOCOL.contentEquals(headers.get(Http2Headers.PseudoHeaderName.PROTOCOL.value(), ""))
+                || path == null) {
+            sLogger.warn("invalid stream {} {} from {}", headers.method(), path, ctx.channel().remoteAddress());
+            refuse(ctx, HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        if (mConfig.proxyPath != null && !path.toString().startsWith(mConfig.proxyPath)) {
+            sLogger.warn("invalid path {} from {}", path, ctx.channel().remoteAddress());
+            refuse(ctx, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        InetSocketAddress remote = (InetSocketAddress) ctx.channel().remoteAddress();
+        if (mAdmission.shed()) {
+            sLogger.debug("stream {} shed as overloaded", remote);
+            refuse(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (! mAdmission.acceptHandshake(remote.getAddress())) {
+            refuse(ctx, HttpResponseStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+
+        Http2Headers response = new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText());
+        CharSequence subprotocol = headers.get(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL);
+        if (subprotocol != null && subprotocol.toString().contains(WsServerPathInterceptor.WS_SUBPROTOCOL)) {
+            response.set(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, WsServerPathInterceptor.WS_SUBPROTOCOL);
+        }
+        ctx.writeAndFlush(new DefaultHttp2HeadersFrame(response));
+        sLogger.info("stream {} handshake <{}> complete", remote, response.get(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL));
+
+        WsHttp2.addFrameCodec(ctx.pipeline(), false);
+        ctx.pipeline()
+                .addLast(WsProxyControlCodec.INSTANCE)
+                .addLast(new WsProxyControlHandler(mWorkerGroup, mConfig, mAuth, mUsers, mAcl, mAdmission, mShaping, mAccounting, mIdle, mDrain))
+                .remove(this);
+        mIdle.track(ctx.channel(), "tunnel", IdleSweeper.timeoutMillis(mConfig.idleTunnelTimeout));
+        mKeepalive.track(ctx.channel(), "tunnel",
+                WsKeepalive.intervalMillis(mConfig.keepaliveInterval),
+                WsKeepalive.misses(mConfig.keepaliveMisses), null);
+        sLogger.trace("pipeline:{}", ctx.pipeline());
+    }
+
+    private void refuse(ChannelHandlerContext ctx, HttpResponseStatus status) {
+        Http2Headers response = new DefaultHttp2Headers().status(status.codeAsText());
+        ctx.writeAndFlush(new DefaultHttp2HeadersFrame(response, true)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        sLogger.warn("{}", cause.toString());
+        ctx.close();
+    }
+}
@@ -0,0 +1,211 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ping the websocket peers periodically, close the tunnels missed too many pongs and measure the round trip time
+ *
+ * A tracked channel gets a handler after the websocket protocol handler, which must pass the pong frames on.
+ * The first ping goes as soon as the channel tracked, not one interval later, the buffer tuning needs the round
+ * trip time from the start of the tunnel, then one ping each interval. A ping carries System.nanoTime(), the peer
+ * echoes the payload in its pong, so the round trip time needs no state per ping. A tunnel sent the configured
+ * pings in a row without any pong back is dead, a dropped NAT mapping or a peer gone without FIN, and closed.
+ * Timers are on the shared hashed wheel of the runtime, pings are written on the event loop of the channel.
+ *
+ * The round trip time is smoothed per tunnel, over all the tunnels of a kind as keepalive.KIND.rtt.micros, and
+ * fed to the upstream of the tunnel for the ewma balancer. Pings are writes to the idle sweeper as well, a
+ * tunnel kept alive is closed idle by its socks or outbound side instead.
+ */
+public final class WsKeepalive {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsKeepalive.class);
+
+    public static final int DEFAULT_INTERVAL = 30; // Seconds
+    public static final int DEFAULT_MISSES = 3;
+
+    private static final String HANDLER_KEEPALIVE = "keepalive";
+    private static final double RTT_WEIGHT = 0.125; // Weight of the latest sample, as TCP smoothed RTT
+
+    private final Timer mTimer;
+    private final Metrics mMetrics;
+    private final ConcurrentMap<String, Kind> mKinds = new ConcurrentHashMap<>();
+
+    // Stats of all the tunnels of a kind
+    private final class Kind {
+        final LongAdder pings;
+        final LongAdder dead;
+        volatile long rtt; // Nanoseconds, 0 if not measured yet, a lost update between loops is only a sample lost
+
+        Kind(String name) {
+            pings = mMetrics.counter("keepalive." + name + ".pings");
+            dead = mMetrics.counter("keepalive." + name + ".dead");
+            mMetrics.gauge("keepalive." + name + ".rtt.micros", () -> TimeUnit.NANOSECONDS.toMicros(rtt));
+        }
+    }
+
+    // Per channel, all the fields are accessed on the event loop except the rtt
+    private final class Pinger extends ChannelInboundHandlerAdapter implements TimerTask, Runnable, ChannelFutureListener {
+        final Channel channel;
+        final Kind kind;
+        final long interval;
+        final int misses;
+        final WsUpstream upstream;
+        int outstanding; // Pings sent since the last pong
+        volatile long rtt; // Nanoseconds, 0 if not measured yet
+        Timeout timeout;
+
+        Pinger(Channel channel, Kind kind, long interval, int misses, WsUpstream upstream) {
+            this.channel = channel;
+            this.kind = kind;
+            this.interval = interval;
+            this.misses = misses;
+            this.upstream = upstream;
+        }
+
+        void schedule() {
+            try {
+                timeout = mTimer.newTimeout(this, interval, TimeUnit.MILLISECONDS);
+            } catch (IllegalStateException ex) {
+                // Runtime stopped, the channel is closing with it
+                sLogger.debug("Keepalive stopped {}", channel);
+            }
+        }
+
+        @Override // TimerTask
+        public void run(Timeout timeout) throws Exception {
+            channel.eventLoop().execute(this);
+        }
+
+        @Override // Runnable, on the event loop
+        public void run() {
+            if (! channel.isActive()) {
+                return;
+            }
+            if (outstanding >= misses) {
+                sLogger.warn("Keepalive missed {} pongs, close {}", outstanding, channel);
+                kind.dead.increment();
+                channel.close();
+                return;
+            }
+            outstanding++;
+            kind.pings.increment();
+            ByteBuf payload = channel.alloc().buffer(Long.BYTES).writeLong(System.nanoTime());
+            channel.writeAndFlush(new PingWebSocketFrame(payload));
+            schedule();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (! (msg instanceof PongWebSocketFrame)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            try {
+                ByteBuf content = ((PongWebSocketFrame) msg).content();
+                // Unsolicited pongs of other peers only prove alive, they carry no timestamp of ours
+                if (outstanding > 0 && content.readableBytes() == Long.BYTES) {
+                    long sample = System.nanoTime() - content.getLong(content.readerIndex());
+                    if (sample >= 0 && sample <= TimeUnit.MILLISECONDS.toNanos(interval * misses)) {
+                        onRtt(sample);
+                    }
+                }
+                outstanding = 0;
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private void onRtt(long sample) {
+            rtt = smooth(rtt, sample);
+            kind.rtt = smooth(kind.rtt, sample);
+            if (upstream != null) {
+                upstream.onRtt(sample);
+            }
+            sLogger.trace("Keepalive rtt {}us {}", TimeUnit.NANOSECONDS.toMicros(sample), channel);
+        }
+
+        @Override // Channel closed
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * @param metrics Export keepalive.KIND.pings, keepalive.KIND.dead and keepalive.KIND.rtt.micros
+     */
+    public WsKeepalive(Timer timer, Metrics metrics) {
+        sLogger.trace("<init>");
+        mTimer = timer;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param seconds Configured interval, null for the default, 0 or negative to disable
+     * @return Interval in milliseconds, 0 if disabled
+     */
+    public static long intervalMillis(Integer seconds) {
+        long value = (seconds != null) ? seconds : DEFAULT_INTERVAL;
+        return (value > 0) ? TimeUnit.SECONDS.toMillis(value) : 0;
+    }
+
+    /**
+     * @param misses Configured pings without pong to close the tunnel, null or less than 1 for the default
+     */
+    public static int misses(Integer misses) {
+        return (misses != null && misses > 0) ? misses : DEFAULT_MISSES;
+    }
+
+    /**
+     * Start pinging the websocket with a first ping at once, call it on the event loop once the handshake completed
+     *
+     * @param kind Export the stats as keepalive.KIND.*
+     * @param intervalMillis 0 or negative to skip
+     * @param upstream Feed the round trip time to it, null on the server side
+     */
+    public void track(Channel ch, String kind, long intervalMillis, int misses, WsUpstream upstream) {
+        if (intervalMillis <= 0 || ch.pipeline().get(HANDLER_KEEPALIVE) != null) {
+            return;
+        }
+        Kind stats = mKinds.get(kind);
+        if (stats == null) {
+            stats = mKinds.computeIfAbsent(kind, Kind::new);
+        }
+        Pinger pinger = new Pinger(ch, stats, intervalMillis, misses, upstream);
+        ch.pipeline().addLast(HANDLER_KEEPALIVE, pinger);
+        ch.closeFuture().addListener(pinger);
+        pinger.run(); // First ping right away, the next ones scheduled by it
+    }
+
+    /**
+     * @return Smoothed round trip time of the tracked websocket in nanoseconds, 0 if not measured or not tracked
+     */
+    public static long rtt(Channel ch) {
+        Object handler = ch.pipeline().get(HANDLER_KEEPALIVE);
+        return (handler instanceof Pinger) ? ((Pinger) handler).rtt : 0;
+    }
+
+    private static long smooth(long rtt, long sample) {
+        return (rtt == 0) ? sample : (long) (rtt + RTT_WEIGHT * (sample - rtt));
+    }
+}
@@ -1,102 +1,160 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
-import com.rex.proxy.websocket.control.ControlAuthBuilder;
+import com.rex.proxy.auth.UserAccounting;
+import com.rex.proxy.auth.UserStore;
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.limit.AdmissionControl;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.route.DestinationAcl;
+import com.rex.proxy.socks.HalfClose;
+import com.rex.proxy.socks.RelayHandler;
+import com.rex.proxy.socks.TrafficClassifier;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
 import com.rex.proxy.websocket.control.ControlMessage;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
 import java.util.Base64;
-import java.util.Random;
+import java.util.Locale;
 
 /**
  * A websocket proxy connection
+ *
+ * The control messages come from WsProxyControlCodec on websocket, or RawControlCodec on the raw transport
+ * where the tunnel data is relayed as bytes instead of binary frames, over a connection or a QUIC stream.
+ *
+ * One per connection, it listens to the close of both the connection and the outbound itself.
  */
-@ChannelHandler.Sharable
-public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMessage> {
+public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMessage> implements ChannelFutureListener {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsProxyControlHandler.class);
 
+    private static final ThreadLocal<SecureRandom> sRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
     private final EventLoopGroup mWorkerGroup;
     private final WslServer.Configuration mConfig;
-    private final byte[] mNonce;
+    private final ControlAuthenticator mAuth;
+    private final UserStore mUsers;
+    private final DestinationAcl mAcl;
+    private final AdmissionControl mAdmission;
+    private final TrafficShaping mShaping;
+    private final UserAccounting mAccounting;
+    private final IdleSweeper mIdle;
+    private final WsServerDrain mDrain;
+    private final boolean mRaw;
+    private byte[] mNonce; // Null without auth or once the tunnel opened, a connection opens one
+    private boolean mRequested; // Got the connect request, a connection opens one tunnel
+    private boolean mAcquired; // Tunnel admitted, released once the connection closed
     private Channel mChannel;
+    private Channel mOutbound; // Connection to the proxy host, null before connect
+    private long mHelloAt; // nanoTime the hello sent
+    private long mHandshakeRtt; // Hello to connect request, one round trip of the tunnel
 
-    public WsProxyControlHandler(EventLoopGroup group, WslServer.Configuration config) {
+    /**
+     * @param auth Authenticator of proxyUid, null if not set
+     * @param users Credentials of the users, null if only proxyUid or no auth
+     * @param acl Destination ACL of the tunnels, null to allow all
+     */
+    public WsProxyControlHandler(EventLoopGroup group, WslServer.Configuration config, ControlAuthenticator auth, UserStore users, DestinationAcl acl, AdmissionControl admission, TrafficShaping shaping, UserAccounting accounting, IdleSweeper idle, WsServerDrain drain) {
+        this(group, config, auth, users, acl, admission, shaping, accounting, idle, drain, false);
+    }
+
+    /**
+     * @param raw Relay the tunnel data as bytes, the connection is the raw transport
+     */
+    public WsProxyControlHandler(EventLoopGroup group, WslServer.Configuration config, ControlAuthenticator auth, UserStore users, DestinationAcl acl, AdmissionControl admission, TrafficShaping shaping, UserAccounting accounting, IdleSweeper idle, WsServerDrain drain, boolean raw) {
         sLogger.trace("<init>");
         mWorkerGroup = group;
         mConfig = config;
-        mNonce = new byte[32]; // 256bit nonce long enough
-        new Random().nextBytes(mNonce);
+        mAuth = auth;
+        mUsers = users;
+        mAcl = acl;
+        mAdmission = admission;
+        mShaping = shaping;
+        mAccounting = accounting;
+        mIdle = idle;
+        mDrain = drain;
+        mRaw = raw;
+        if (auth != null || users != null) {
+            mNonce = new byte[32]; // 256bit nonce long enough
+            sRandom.get().nextBytes(mNonce);
+        }
     }
 
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, ControlMessage msg) throws Exception {
-        //sLogger.trace("msg:{}", new Gson().toJson(msg));
         if ("request".equalsIgnoreCase(msg.type) && "connect".equalsIgnoreCase(msg.action)) {
-            if (mConfig.proxyUid != null) {
-                String credential = new ControlAuthBuilder()
-                        .setSecret(mConfig.proxyUid)
-                        .setNonce(mNonce)
-                        .setAddress(msg.address)
-                        .setPort(msg.port)
-                        .build();
-
-                sLogger.trace("credential:{} token:{}", credential, msg.token);
-
-                if (! credential.equals(msg.token)) {
+            if (mRequested) {
+                // Another tunnel on the same connection would be admitted again but released once
+                sLogger.debug("proxy {}:{} reject {} as connected already", msg.address, msg.port, ctx.channel().remoteAddress());
+                reject(ctx);
+                return;
+            }
+            mRequested = true;
+            mHandshakeRtt = System.nanoTime() - mHelloAt;
+            // The user name authenticated with, null if auth not enabled
+            String user = null;
+            if (mUsers != null && msg.user != null) {
+                UserStore.User entry = mUsers.get(msg.user);
+                if (entry == null || !verify(entry.auth, msg)) {
+                    sLogger.debug("proxy {}:{} reject {} user {}", msg.address, msg.port, ctx.channel().remoteAddress(), msg.user);
+                    reject(ctx);
+                    return;
+                }
+                user = entry.name;
+            } else if (mAuth != null) {
+                if (! verify(mAuth, msg)) {
                     sLogger.debug("proxy {}:{} reject {}", msg.address, msg.port, ctx.channel().remoteAddress());
-
-                    ControlMessage resp = new ControlMessage();
-                    resp.type = "response";
-                    resp.action = "reject";
-                    ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+                    reject(ctx);
                     return;
                 }
+                user = mConfig.proxyUid;
+            } else if (mUsers != null) {
+                sLogger.debug("proxy {}:{} reject {} without user", msg.address, msg.port, ctx.channel().remoteAddress());
+                reject(ctx);
+                return;
             }
 
-            Bootstrap bootstrap = new Bootstrap()
-                    .group(mWorkerGroup)
-                    .channel(NioSocketChannel.class)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) throws Exception {
-                            // XXX: ch.remoteAddress always null here
-                            // connect future will get valid remote address
-                            sLogger.info("proxy {} - {}", ctx.channel().remoteAddress(), ch.remoteAddress());
-                            //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print data in tunnel
-                            ch.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
-                            ctx.pipeline().addLast(new WsProxyWsToRaw(ch));
-                        }
-                    });
-
-            bootstrap.connect(msg.address, msg.port)
-                    .addListener(new ChannelFutureListener() {
-                        @Override
-                        public void operationComplete(ChannelFuture future) throws Exception {
-                            sLogger.debug("proxy connect {}:{} {}", msg.address, msg.port, future.isSuccess() ? "success" : "failure");
-                            if (! ctx.channel().isActive()) {
-                                return;
-                            }
-
-                            if (future.isSuccess()) {
-                                ControlMessage msg = new ControlMessage();
-                                msg.type = "response";
-                                msg.action = "success";
-                                ctx.writeAndFlush(msg);
-                            } else {
-                                ControlMessage msg = new ControlMessage();
-                                msg.type = "response";
-                                msg.action = "failure";
-                                ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
-                            }
-                        }
-                    });
+            if (mAcl == null) {
+                open(ctx, msg, user, null);
+                return;
+            }
+            switch (mAcl.check(user, msg.address, msg.port)) {
+            case ALLOW:
+                open(ctx, msg, user, null);
+                break;
+            case DENY:
+                sLogger.debug("proxy {}:{} reject {} by acl", msg.address, msg.port, ctx.channel().remoteAddress());
+                reject(ctx);
+                break;
+            case RESOLVE:
+                resolve(ctx, msg, user);
+                break;
+            }
+        } else if ("shutdown".equalsIgnoreCase(msg.type)) {
+            // Client sent FIN, all its data came before
+            sLogger.debug("proxy shutdown {}", ctx.channel().remoteAddress());
+            if (mOutbound != null) {
+                HalfClose.shutdownOutput(mOutbound);
+            }
         } else if ("request".equalsIgnoreCase(msg.type) && "echo".equalsIgnoreCase(msg.action)) {
             msg.type = "response";
             ctx.writeAndFlush(msg);
@@ -105,23 +163,161 @@ public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMe
         }
     }
 
+    // Decide by the resolved address and connect it, the name is not resolved again between check and connect
+    private void resolve(final ChannelHandlerContext ctx, final ControlMessage msg, final String user) {
+        DefaultAddressResolverGroup.INSTANCE.getResolver(ctx.channel().eventLoop())
+                .resolve(InetSocketAddress.createUnresolved(msg.address, msg.port))
+                .addListener(new FutureListener<InetSocketAddress>() {
+                    @Override
+                    public void operationComplete(Future<InetSocketAddress> future) throws Exception {
+                        if (! ctx.channel().isActive()) {
+                            return;
+                        }
+                        if (! future.isSuccess()) {
+                            sLogger.debug("proxy resolve {} failure", msg.address);
+                            failure(ctx);
+                            return;
+                        }
+                        InetSocketAddress resolved = future.getNow();
+                        if (! mAcl.permit(user, msg.address, resolved.getAddress(), msg.port)) {
+                            sLogger.debug("proxy {}:{} reject {} by acl as {}", msg.address, msg.port, ctx.channel().remoteAddress(), resolved.getAddress());
+                            reject(ctx);
+                            return;
+                        }
+                        open(ctx, msg, user, resolved);
+                    }
+                });
+    }
+
+    private boolean verify(ControlAuthenticator auth, ControlMessage msg) {
+        sLogger.trace("token:{}", msg.token);
+        return mNonce != null && msg.port != null && auth.verify(mNonce, msg.address, msg.port, msg.token);
+    }
+
+    /**
+     * @param user The user authenticated with, null if auth not enabled
+     * @param resolved Address to connect, null to connect the requested one
+     */
+    private void open(final ChannelHandlerContext ctx, final ControlMessage msg, String user, InetSocketAddress resolved) {
+        InetSocketAddress remote = WsQuic.remoteAddress(ctx.channel());
+        if (mDrain.isDraining()) {
+            sLogger.debug("proxy {}:{} reject {} as draining", msg.address, msg.port, remote);
+            reject(ctx);
+            return;
+        }
+        if (mAdmission.shed()) {
+            sLogger.debug("proxy {}:{} reject {} as overloaded", msg.address, msg.port, remote);
+            reject(ctx);
+            return;
+        }
+        if (! mAdmission.acquireTunnel(remote.getAddress(), user)) {
+            sLogger.debug("proxy {}:{} reject {} by admission", msg.address, msg.port, remote);
+            reject(ctx);
+            return;
+        }
+        mAcquired = true;
+        mNonce = null;
+        mShaping.addUser(ctx.channel(), user);
+        mShaping.addTunnel(ctx.channel());
+        if (user != null && mUsers != null && mUsers.get(user) != null) {
+            mAccounting.add(ctx.channel(), user);
+        }
+
+        // Client asked to pass FIN through the tunnel instead of closing it, TLS of the raw transport can not
+        final boolean halfClose = Boolean.TRUE.equals(msg.halfClose)
+                && !(mRaw && ctx.pipeline().get(SslHandler.class) != null);
+
+        // Keep both sides of the tunnel on the same event loop
+        Bootstrap bootstrap = new Bootstrap()
+                .group(ctx.channel().eventLoop())
+                .channel(EventLoops.socketChannel(ctx.channel().eventLoop()))
+                .option(ChannelOption.ALLOCATOR, ctx.alloc())
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        // XXX: ch.remoteAddress always null here
+                        // connect future will get valid remote address
+                        sLogger.info("proxy {} - {}", ctx.channel().remoteAddress(), ch.remoteAddress());
+                        //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print data in tunnel
+                        TrafficClassifier.attach(ctx.channel(), ch, msg.port);
+                        BdpTuner.attach(ctx.channel(), ch, mHandshakeRtt);
+                        if (mRaw) {
+                            ch.pipeline().addLast(new RelayHandler(ctx.channel()));
+                            ctx.pipeline().addLast(new RelayHandler(ch));
+                            if (halfClose) {
+                                HalfClose.enable(ctx.channel());
+                            }
+                        } else {
+                            ch.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
+                            ctx.pipeline().addLast(new WsProxyWsToRaw(ch));
+                        }
+                        mIdle.track(ch, "outbound", IdleSweeper.timeoutMillis(mConfig.idleOutboundTimeout));
+                        if (halfClose) {
+                            HalfClose.enable(ch);
+                        }
+                        mOutbound = ch;
+                        ch.closeFuture().addListener(WsProxyControlHandler.this);
+                    }
+                });
+
+        ((resolved != null) ? bootstrap.connect(resolved) : bootstrap.connect(msg.address, msg.port))
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        sLogger.debug("proxy connect {}:{} {}", msg.address, msg.port, future.isSuccess() ? "success" : "failure");
+                        if (! ctx.channel().isActive()) {
+                            return;
+                        }
+
+                        if (future.isSuccess()) {
+                            ControlMessage msg = new ControlMessage();
+                            msg.type = "response";
+                            msg.action = "success";
+                            msg.halfClose = halfClose ? Boolean.TRUE : null;
+                            ctx.writeAndFlush(msg);
+                        } else {
+                            failure(ctx);
+                        }
+                    }
+                });
+    }
+
+    private void failure(ChannelHandlerContext ctx) {
+        ControlMessage resp = new ControlMessage();
+        resp.type = "response";
+        resp.action = "failure";
+        ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void reject(ChannelHandlerContext ctx) {
+        ControlMessage resp = new ControlMessage();
+        resp.type = "response";
+        resp.action = "reject";
+        ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+    }
+
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
         super.handlerAdded(ctx);
         sLogger.trace("");
+        mChannel = ctx.channel();
 
         ControlMessage msg = new ControlMessage();
         msg.type = "hello";
-        if (mConfig.proxyUid != null) {
-            msg.action = "hs256";
+        if (mAuth != null || mUsers != null) {
+            msg.action = (mConfig.proxyAuthAlgorithm != null)
+                    ? mConfig.proxyAuthAlgorithm.toLowerCase(Locale.ROOT)
+                    : ControlAuthenticator.DEFAULT_ALGORITHM;
             msg.token  = Base64.getEncoder().encodeToString(mNonce);
             sLogger.trace("nonce:{}", msg.token);
         }
+        mHelloAt = System.nanoTime();
         ctx.writeAndFlush(msg);
+        mDrain.add(ctx.channel()); // After hello, drain message if any always comes later
 
         ctx.channel()
                 .closeFuture()
-                .addListener(mCloseListener);
+                .addListener(this);
     }
 
     @Override // SimpleChannelInboundHandler
@@ -134,10 +330,25 @@ public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMe
         }
     }
 
-    private final ChannelFutureListener mCloseListener = new ChannelFutureListener() {
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
-            sLogger.warn("connection lost {}", mChannel.remoteAddress());
+    @Override // ChannelFutureListener, connection or outbound closed
+    public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.channel() == mOutbound) {
+            sLogger.debug("proxy closed {}", future.channel());
+            if (mChannel.isActive()) {
+                // After the data and shutdown message on the way
+                mChannel.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
         }
-    };
+        if (mAcquired) {
+            mAcquired = false;
+            mAdmission.releaseTunnel();
+        }
+        sLogger.warn("connection lost {}", mChannel.remoteAddress());
+        if (mOutbound != null && mOutbound.isActive()) {
+            mOutbound.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                    .addListener(ChannelFutureListener.CLOSE);
+        }
+    }
 }
@@ -1,5 +1,10 @@
 package com.rex.proxy.websocket;
 
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.buffer.BufferAccounting;
+import com.rex.proxy.socks.HalfClose;
+import com.rex.proxy.socks.TrafficClassifier;
+import com.rex.proxy.websocket.control.ControlMessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
@@ -9,30 +14,98 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Receive ByteBuf from raw socket channel, write to websocket as BinaryWebSocketFrame
+ *
+ * Not sharable, each one holds the websocket of its raw socket
  */
-@ChannelHandler.Sharable
 public class WsProxyRawToWs extends SimpleChannelInboundHandler<ByteBuf> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsProxyRawToWs.class);
     private static final int FRAME_LIMIT = (1 << 16) - 1; // 65535
 
     private final Channel mOutput; // WebSocket channel
+    private BufferAccounting.Handle mAccounting = BufferAccounting.NONE;
+    private TrafficClassifier mClassifier; // Null if the tunnel not classified
+    private BdpTuner mTuner; // Null if the tunnel not tuned
+    private boolean mFlush; // Written without flush, flushed once the read loop completed
 
     public WsProxyRawToWs(Channel outbound) {
+        super(false); // Released once sliced into the frames
         //sLogger.trace("<init>");
         mOutput = outbound;
     }
 
+    @Override // SimpleChannelInboundHandler
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mAccounting = BufferAccounting.handle("rawToWs", ctx.channel(), mOutput);
+        mClassifier = ctx.channel().attr(TrafficClassifier.KEY).get();
+        mTuner = ctx.channel().attr(BdpTuner.KEY).get();
+    }
+
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf data) throws Exception {
         sLogger.trace("RawToWs read data:{}", data.readableBytes());
+        mAccounting.retained(data);
+        if (mTuner != null) {
+            mTuner.onRead(ctx.channel(), data.readableBytes());
+        }
+        // Bulk, one flush for all the frames of this read loop
+        boolean batch = mClassifier != null && mClassifier.onRead(ctx.channel(), data.readableBytes());
         int start = 0;
         do {
             int length = Math.min(FRAME_LIMIT, data.readableBytes() - start);
             sLogger.trace("RawToWs write {}-{}/{}", start, (start + length - 1), data.readableBytes());
-            mOutput.writeAndFlush(new BinaryWebSocketFrame(data.retainedSlice(start, length)));
+            ByteBuf slice = data.retainedSlice(start, length);
+            mAccounting.retained(slice);
+            if (batch) {
+                mAccounting.write(mOutput, new BinaryWebSocketFrame(slice));
+            } else {
+                mAccounting.writeAndFlush(mOutput, new BinaryWebSocketFrame(slice));
+            }
             start += length;
         } while (start < data.readableBytes());
+        mAccounting.release(data);
+        mFlush |= batch;
+
+        if (! mOutput.isWritable()) {
+            // WebSocket can not keep up, stop reading until it drained
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (mFlush) {
+            mFlush = false;
+            mOutput.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // Raw socket drained, resume reading from websocket
+            mOutput.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        // Only fired once the tunnel agreed on half-close, tell the other side no more data from here
+        if (HalfClose.isInputShutdown(evt)) {
+            sLogger.debug("RawToWs input shutdown {}", ctx.channel());
+            if (mOutput.isActive()) {
+                // Control message after the last frame, encoded by the control codec of the websocket
+                ControlMessage msg = new ControlMessage();
+                msg.type = "shutdown";
+                mOutput.writeAndFlush(msg);
+                HalfClose.closeIfDone(ctx.channel());
+            } else {
+                ctx.close();
+            }
+        }
+        ctx.fireUserEventTriggered(evt);
     }
 
     @Override // SimpleChannelInboundHandler
@@ -1,32 +1,83 @@
 package com.rex.proxy.websocket;
 
+import com.rex.proxy.buffer.BdpTuner;
+import com.rex.proxy.buffer.BufferAccounting;
+import com.rex.proxy.socks.TrafficClassifier;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
-import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Receive BinaryWebSocketFrame from websocket channel, write to raw socket channel as ByteBuf
+ *
+ * Not sharable, each one holds the raw socket of its websocket
  */
-@ChannelHandler.Sharable
 public class WsProxyWsToRaw extends SimpleChannelInboundHandler<BinaryWebSocketFrame> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsProxyWsToRaw.class);
 
     private final Channel mOutput; // Raw socket channel
+    private BufferAccounting.Handle mAccounting = BufferAccounting.NONE;
+    private TrafficClassifier mClassifier; // Null if the tunnel not classified
+    private BdpTuner mTuner; // Null if the tunnel not tuned
+    private boolean mFlush; // Written without flush, flushed once the read loop completed
 
     public WsProxyWsToRaw(Channel channel) {
+        super(false); // The frame content is written as is
         //sLogger.trace("<init>");
         mOutput = channel;
     }
 
+    @Override // SimpleChannelInboundHandler
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mAccounting = BufferAccounting.handle("wsToRaw", ctx.channel(), mOutput);
+        mClassifier = ctx.channel().attr(TrafficClassifier.KEY).get();
+        mTuner = ctx.channel().attr(BdpTuner.KEY).get();
+    }
+
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, BinaryWebSocketFrame msg) throws Exception {
         sLogger.trace("WsToRaw forward msg:{}", msg.content().readableBytes());
-        ReferenceCountUtil.retain(msg);
-        mOutput.writeAndFlush(msg.content());
+        mAccounting.retained(msg);
+        if (! mOutput.isActive()) {
+            mAccounting.release(msg);
+            return;
+        }
+        if (mTuner != null) {
+            mTuner.onRead(ctx.channel(), msg.content().readableBytes());
+        }
+        if (mClassifier != null && mClassifier.onRead(ctx.channel(), msg.content().readableBytes())) {
+            // Bulk, one flush for all the frames of this read loop
+            mAccounting.write(mOutput, msg.content());
+            mFlush = true;
+        } else {
+            mAccounting.writeAndFlush(mOutput, msg.content());
+        }
+
+        if (! mOutput.isWritable()) {
+            // Raw socket can not keep up, stop reading until it drained
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (mFlush) {
+            mFlush = false;
+            mOutput.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // WebSocket drained, resume reading from raw socket
+            mOutput.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override // SimpleChannelInboundHandler
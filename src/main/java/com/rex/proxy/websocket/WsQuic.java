@@ -0,0 +1,160 @@
+package com.rex.proxy.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicClientCodecBuilder;
+import io.netty.incubator.codec.quic.QuicCodecBuilder;
+import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicTokenHandler;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw tunnels over QUIC, one bidirectional stream per tunnel on a connection shared by the tunnels of a client
+ *
+ * Each stream carries the binary control messages of RawControlCodec and then the tunnel data, as one TLS or TCP
+ * connection of the raw transport does, a lost packet only holds up the streams it carried. The client speaks
+ * first with OPEN, a stream exists for the server once it got data. Both sides accept 0-RTT, a client resuming
+ * the session may open streams before the handshake completed, replaying them gains nothing as the connect
+ * request is signed over the nonce of the server hello. The connection IDs keep a connection across the client
+ * address changes. The server answers the first packet of a client with a retry, the client proves its address
+ * by echoing the signed token before the server spends anything on the handshake.
+ */
+public final class WsQuic {
+
+    public static final String PROTOCOL = "wsl"; // ALPN
+
+    private static final long MAX_DATA = 16 << 20; // Bytes in flight of a connection
+    private static final long MAX_STREAM_DATA = 1 << 20; // Bytes in flight of a stream
+    private static final long MAX_STREAMS = 1024; // Concurrent tunnels of a connection
+
+    private WsQuic() {
+    }
+
+    /**
+     * Codec of the server UDP channel, streams close on FIN as sockets do until HalfClose enabled by the tunnel,
+     * they allow half-closure by default, every connection and stream accepted gets the handlers
+     *
+     * @param idleMillis Close the connection once nothing received for it, 0 to keep
+     */
+    public static ChannelHandler serverCodec(QuicSslContext sslContext, long idleMillis, ByteBufAllocator alloc, ChannelHandler handler, ChannelHandler streamHandler) {
+        return params(new QuicServerCodecBuilder(), idleMillis)
+                .sslContext(sslContext)
+                .option(ChannelOption.ALLOCATOR, alloc)
+                .streamOption(ChannelOption.ALLOCATOR, alloc)
+                .streamOption(ChannelOption.ALLOW_HALF_CLOSURE, false)
+                .initialMaxStreamsBidirectional(MAX_STREAMS)
+                .tokenHandler(new RetryToken())
+                .handler(handler)
+                .streamHandler(streamHandler)
+                .build();
+    }
+
+    /**
+     * Codec of the client UDP channel of one connection
+     *
+     * @param address Server name and port the session is cached for, resumed with 0-RTT on the next connection
+     */
+    public static ChannelHandler clientCodec(final QuicSslContext sslContext, final InetSocketAddress address, long idleMillis) {
+        return params(new QuicClientCodecBuilder(), idleMillis)
+                .sslEngineProvider(q -> sslContext.newEngine(q.alloc(), address.getHostString(), address.getPort()))
+                .initialMaxStreamsBidirectional(0) // Server opens none
+                .build();
+    }
+
+    private static <B extends QuicCodecBuilder<B>> B params(B builder, long idleMillis) {
+        return builder.maxIdleTimeout(idleMillis, TimeUnit.MILLISECONDS)
+                .initialMaxData(MAX_DATA)
+                .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+                .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+                .activeMigration(true);
+    }
+
+    /**
+     * @return Address of the peer, the UDP address of the connection for a stream, it may change by migration
+     */
+    public static InetSocketAddress remoteAddress(Channel ch) {
+        SocketAddress address = (ch instanceof QuicStreamChannel)
+                ? ((QuicStreamChannel) ch).parent().remoteSocketAddress()
+                : (ch instanceof QuicChannel) ? ((QuicChannel) ch).remoteSocketAddress() : ch.remoteAddress();
+        return (InetSocketAddress) address;
+    }
+
+    // Token of the retry, the expiry and the HMAC of the expiry, the client address and the original connection ID
+    // under a key of this codec, followed by that connection ID. A token is only good from the address it was sent
+    // to and for TOKEN_LIFETIME.
+    private static final class RetryToken implements QuicTokenHandler {
+        private static final String ALGORITHM = "HmacSHA256";
+        private static final int MAC = 32;
+        private static final int HEADER = Long.BYTES + MAC;
+        private static final int MAX_CID = 20; // Longest connection ID of QUIC v1
+        private static final long TOKEN_LIFETIME = 10000; // Milliseconds
+
+        private final Mac mMac; // Guarded by this, a retry per new connection only
+
+        RetryToken() {
+            byte[] key = new byte[MAC];
+            new SecureRandom().nextBytes(key);
+            try {
+                mMac = Mac.getInstance(ALGORITHM);
+                mMac.init(new SecretKeySpec(key, ALGORITHM));
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("No " + ALGORITHM, ex);
+            }
+        }
+
+        @Override
+        public boolean writeToken(ByteBuf out, ByteBuf dcid, InetSocketAddress address) {
+            // The codec buffers may not be big endian, bytes of the expiry encoded here
+            long expiry = System.currentTimeMillis() + TOKEN_LIFETIME;
+            out.writeBytes(ByteBuffer.allocate(Long.BYTES).putLong(expiry).array())
+                    .writeBytes(sign(expiry, address, dcid, dcid.readerIndex(), dcid.readableBytes()))
+                    .writeBytes(dcid, dcid.readerIndex(), dcid.readableBytes());
+            return true;
+        }
+
+        @Override
+        public int validateToken(ByteBuf token, InetSocketAddress address) {
+            int start = token.readerIndex();
+            int length = token.readableBytes() - HEADER;
+            if (length < 0 || length > MAX_CID) {
+                return -1;
+            }
+            byte[] header = new byte[HEADER];
+            token.getBytes(start, header);
+            long expiry = ByteBuffer.wrap(header).getLong();
+            if (System.currentTimeMillis() - expiry > 0) {
+                return -1;
+            }
+            byte[] mac = Arrays.copyOfRange(header, Long.BYTES, HEADER);
+            return MessageDigest.isEqual(mac, sign(expiry, address, token, start + HEADER, length)) ? HEADER : -1;
+        }
+
+        @Override
+        public int maxTokenLength() {
+            return HEADER + MAX_CID;
+        }
+
+        private synchronized byte[] sign(long expiry, InetSocketAddress address, ByteBuf cid, int index, int length) {
+            mMac.update(ByteBuffer.allocate(Long.BYTES + Short.BYTES).putLong(expiry).putShort((short) address.getPort()).array());
+            mMac.update(address.getAddress().getAddress());
+            mMac.update(cid.nioBuffer(index, length));
+            return mMac.doFinal();
+        }
+    }
+}
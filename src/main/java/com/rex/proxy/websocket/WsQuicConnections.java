@@ -0,0 +1,348 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.websocket.control.RawControlCodec;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.incubator.codec.quic.SslEarlyDataReadyEvent;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared QUIC connections of a quic:// upstream, one per event loop, the tunnels open as streams over them
+ *
+ * The first tunnel of an event loop connects, the connection is ready once the handshake completed, or at once
+ * with 0-RTT if the session of an earlier connection resumed, the tunnels opening meanwhile wait for it. Each
+ * connection has its own UDP socket on the loop, the streams share the loop of their connection as the
+ * HTTP/2 ones do. A connection closed is dropped and the next tunnel connects again.
+ *
+ * Closed along with the upstream group, each connection closes once its streams finished, or after DRAIN_TIMEOUT
+ * as the HTTP/2 ones do, the client keeps no idle timeout so nothing else would close them. No tunnel opens on
+ * them from then on.
+ */
+public class WsQuicConnections {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsQuicConnections.class);
+
+    private static final int DEFAULT_TIMEOUT = 10000; // Milliseconds to wait the handshake or the hello of a stream
+    private static final long DRAIN_TIMEOUT = 30000; // Milliseconds the streams of a closed group may still run
+
+    private final WsUpstream mUpstream;
+    private final QuicSslContext mSslContext;
+    private final ConcurrentMap<EventLoop, Future<QuicChannel>> mConnections = new ConcurrentHashMap<>();
+    private volatile boolean mClosed;
+
+    // Streams opened by the server are not tunnels, it opens none anyway
+    @ChannelHandler.Sharable
+    private static final class StreamRefused extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.close();
+        }
+    }
+
+    private static final ChannelHandler STREAM_REFUSED = new StreamRefused();
+
+    // Handler of a connection, completes the promise once streams could be opened, counts the streams to close
+    // the connection once drained, all on the event loop of the connection
+    private final class Ready extends ChannelInboundHandlerAdapter {
+        private final Promise<QuicChannel> mPromise;
+        private int mStreams;
+        private boolean mDraining;
+
+        Ready(Promise<QuicChannel> promise) {
+            mPromise = promise;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            sLogger.debug("Connection ready {}", ctx.channel());
+            mPromise.trySuccess((QuicChannel) ctx.channel());
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslEarlyDataReadyEvent) {
+                sLogger.debug("Connection resumed {}", ctx.channel());
+                mPromise.trySuccess((QuicChannel) ctx.channel());
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            mConnections.remove(ctx.channel().eventLoop(), mPromise);
+            mPromise.tryFailure(new ClosedChannelException());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            sLogger.warn("Connection {} failed {}", ctx.channel(), cause.toString());
+            ctx.close();
+        }
+
+        void onStream(QuicStreamChannel stream) {
+            mStreams++;
+            stream.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (--mStreams == 0 && mDraining) {
+                        future.channel().parent().close();
+                    }
+                }
+            });
+        }
+
+        void drain(final QuicChannel connection) {
+            mDraining = true;
+            if (mStreams == 0) {
+                connection.close();
+                return;
+            }
+            sLogger.debug("Connection {} draining {} streams", connection, mStreams);
+            connection.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            }, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // First handler of a stream, a connection silent on a new stream is gone, the server restarted or the path
+    // broke without any packet back, close it so the tunnels connect again
+    private static final class HelloTimeout extends ChannelInboundHandlerAdapter implements Runnable {
+        private final QuicStreamChannel mStream;
+        private final long mTimeoutMillis;
+
+        HelloTimeout(QuicStreamChannel stream, long timeoutMillis) {
+            mStream = stream;
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ctx.pipeline().remove(this);
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override // Runnable
+        public void run() {
+            if (mStream.isActive() && mStream.pipeline().get(HelloTimeout.class) == this) {
+                sLogger.warn("Connection {} no hello in {}ms, close", mStream.parent(), mTimeoutMillis);
+                mStream.parent().close();
+            }
+        }
+    }
+
+    /**
+     * @param sslContext Client context offering the PROTOCOL of WsQuic, the sessions are cached in it
+     */
+    public WsQuicConnections(WsUpstream upstream, QuicSslContext sslContext) {
+        sLogger.trace("<init> {}", upstream);
+        mUpstream = upstream;
+        mSslContext = sslContext;
+    }
+
+    /**
+     * @return Connections open or opening
+     */
+    public int connections() {
+        return mConnections.size();
+    }
+
+    /**
+     * Open a stream on the connection of the bootstrap event loop, connect first if there is none
+     *
+     * The stream sends OPEN once the handler added, the server answers with hello.
+     *
+     * @param bootstrap Configured with the event loop, allocator and connect timeout, call on that event loop
+     * @param handler Handler of the stream
+     * @return Failed if the connection failed
+     */
+    public Future<QuicStreamChannel> open(Bootstrap bootstrap, final ChannelHandler handler) {
+        final EventLoop loop = bootstrap.config().group().next();
+        Object alloc = bootstrap.config().options().get(ChannelOption.ALLOCATOR);
+        Object timeout = bootstrap.config().options().get(ChannelOption.CONNECT_TIMEOUT_MILLIS);
+        final long timeoutMillis = (timeout != null) ? (Integer) timeout : DEFAULT_TIMEOUT;
+        final Promise<QuicStreamChannel> promise = loop.newPromise();
+        if (mClosed) {
+            return promise.setFailure(new ClosedChannelException());
+        }
+        Future<QuicChannel> connection = mConnections.get(loop);
+        if (connection == null) {
+            connection = connect(loop, (alloc != null) ? (ByteBufAllocator) alloc : ByteBufAllocator.DEFAULT, timeoutMillis);
+        }
+        connection.addListener(new FutureListener<QuicChannel>() {
+            @Override
+            public void operationComplete(Future<QuicChannel> future) throws Exception {
+                if (! future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                    return;
+                }
+                future.getNow().createStream(QuicStreamType.BIDIRECTIONAL, handler)
+                        .addListener(new FutureListener<QuicStreamChannel>() {
+                            @Override
+                            public void operationComplete(Future<QuicStreamChannel> future) throws Exception {
+                                if (! future.isSuccess()) {
+                                    promise.tryFailure(future.cause());
+                                    return;
+                                }
+                                QuicStreamChannel stream = future.getNow();
+                                Ready ready = stream.parent().pipeline().get(Ready.class);
+                                if (ready != null) {
+                                    ready.onStream(stream);
+                                }
+                                HelloTimeout timeout = new HelloTimeout(stream, timeoutMillis);
+                                stream.pipeline().addFirst(timeout);
+                                loop.schedule(timeout, timeoutMillis, TimeUnit.MILLISECONDS);
+                                RawControlCodec.writeOpen(stream);
+                                promise.trySuccess(stream);
+                            }
+                        });
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Close all the connections once their streams finished, the ones still connecting once they are ready
+     */
+    public void close() {
+        mClosed = true;
+        for (Future<QuicChannel> connection : mConnections.values()) {
+            connection.addListener(new FutureListener<QuicChannel>() {
+                @Override
+                public void operationComplete(Future<QuicChannel> future) throws Exception {
+                    if (! future.isSuccess()) {
+                        return;
+                    }
+                    final QuicChannel channel = future.getNow();
+                    channel.eventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Ready ready = channel.pipeline().get(Ready.class);
+                            if (ready != null) {
+                                ready.drain(channel);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        mConnections.clear();
+    }
+
+    private Future<QuicChannel> connect(final EventLoop loop, final ByteBufAllocator alloc, final long timeoutMillis) {
+        final Promise<QuicChannel> promise = loop.newPromise();
+        mConnections.put(loop, promise);
+        if (mClosed) {
+            // Closed meanwhile, leave none behind
+            close();
+        }
+        sLogger.debug("Connect {} on {}", mUpstream, loop);
+        DefaultAddressResolverGroup.INSTANCE.getResolver(loop)
+                .resolve(mUpstream.address())
+                .addListener(new FutureListener<InetSocketAddress>() {
+                    @Override
+                    public void operationComplete(Future<InetSocketAddress> future) throws Exception {
+                        if (! future.isSuccess()) {
+                            fail(loop, promise, future.cause());
+                            return;
+                        }
+                        connect(loop, alloc, timeoutMillis, future.getNow(), promise);
+                    }
+                });
+        return promise;
+    }
+
+    private void connect(final EventLoop loop, final ByteBufAllocator alloc, long timeoutMillis, final InetSocketAddress address, final Promise<QuicChannel> promise) {
+        ChannelFuture bind = new Bootstrap()
+                .group(loop)
+                .channel(EventLoops.datagramChannel(loop))
+                .option(ChannelOption.ALLOCATOR, alloc)
+                // No idle timeout of our own, the server closes by its idle tunnel timeout as for the other transports
+                .handler(WsQuic.clientCodec(mSslContext, mUpstream.address(), 0))
+                .bind(0);
+        bind.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (! future.isSuccess()) {
+                    fail(loop, promise, future.cause());
+                    return;
+                }
+                final Channel datagram = future.channel();
+                // The socket serves this connection only, gone with it
+                promise.addListener(new FutureListener<QuicChannel>() {
+                    @Override
+                    public void operationComplete(Future<QuicChannel> future) throws Exception {
+                        if (future.isSuccess()) {
+                            future.getNow().closeFuture().addListener(new ChannelFutureListener() {
+                                @Override
+                                public void operationComplete(ChannelFuture future) throws Exception {
+                                    datagram.close();
+                                }
+                            });
+                        } else {
+                            datagram.close();
+                        }
+                    }
+                });
+                QuicChannel.newBootstrap(datagram)
+                        .option(ChannelOption.ALLOCATOR, alloc)
+                        .streamOption(ChannelOption.ALLOCATOR, alloc)
+                        .streamOption(ChannelOption.ALLOW_HALF_CLOSURE, false) // Until the tunnel enables HalfClose
+                        .handler(new Ready(promise))
+                        .streamHandler(STREAM_REFUSED)
+                        .remoteAddress(address)
+                        .connect()
+                        .addListener(new FutureListener<QuicChannel>() {
+                            @Override
+                            public void operationComplete(Future<QuicChannel> future) throws Exception {
+                                if (! future.isSuccess()) {
+                                    fail(loop, promise, future.cause());
+                                }
+                            }
+                        });
+                loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (! promise.isDone()) {
+                            sLogger.debug("Connect {} timeout", mUpstream);
+                            fail(loop, promise, new ClosedChannelException());
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void fail(EventLoop loop, Promise<QuicChannel> promise, Throwable cause) {
+        mConnections.remove(loop, promise);
+        promise.tryFailure(cause);
+    }
+}
@@ -0,0 +1,47 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.RawControlCodec;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initialize the client channel pipeline of the raw transport, tls:// or tcp:// connections or quic:// streams
+ * Same as WsClientInitializer without the HTTP upgrade and websocket framing, the control messages are binary and
+ * the tunnel data relayed as is
+ */
+public class WsRawClientInitializer extends ChannelInitializer<Channel> {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsRawClientInitializer.class);
+
+    private final WslLocal.Configuration mConfig;
+    private final ChannelHandlerContext mContext; // Socks connection
+    private final WsClientHandler.ResponseListener mListener;
+    private final String mDstAddress;
+    private final int mDstPort;
+    private final WsUpstream mUpstream;
+
+    public WsRawClientInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, String dstAddr, int dstPort, WsClientHandler.ResponseListener listener, WsUpstream upstream) {
+        sLogger.trace("<init>");
+        mConfig = config;
+        mContext = ctx;
+        mDstAddress = dstAddr;
+        mDstPort = dstPort;
+        mListener = listener;
+        mUpstream = upstream;
+    }
+
+    @Override // ChannelInitializer
+    protected void initChannel(Channel ch) throws Exception {
+        sLogger.trace("initChannel");
+        if (mUpstream.sslContext() != null) {
+            ch.pipeline().addLast(mUpstream.sslContext().newHandler(ch.alloc()));
+        }
+        RawControlCodec.addCodec(ch.pipeline(), false);
+        ch.pipeline().addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUser, mConfig.proxyUid, mListener, mUpstream, true));
+        sLogger.trace("pipeline:{}", ch.pipeline());
+    }
+}
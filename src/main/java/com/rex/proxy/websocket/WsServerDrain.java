@@ -0,0 +1,192 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.metrics.Metrics;
+import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Graceful drain of WslServer
+ *
+ * Track all the websocket proxy connections, once drain started
+ * 1. Send drain control message to every connection, client should stop opening new tunnels to this server
+ * 2. Reject new connect requests, count the bytes still relayed by the remaining tunnels
+ * 3. Completed once all the connections closed, force close the remaining ones when the deadline passed
+ *
+ * It also tracks every connection accepted, stop closes them all as the event loops of a shared runtime outlive
+ * the server.
+ */
+public class WsServerDrain {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsServerDrain.class);
+
+    private static final String HANDLER_COUNTER = "drainCounter";
+
+    private final EventExecutor mExecutor;
+    private final ChannelGroup mChannels;
+    private final ChannelGroup mConnections; // Accepted TCP and QUIC connections
+    private final Promise<Void> mPromise;
+    private final LongAdder mBytes = new LongAdder();
+    private final ChannelHandler mCounter = new CounterHandler();
+    private volatile boolean mDraining;
+
+    /**
+     * @param executor Run the deadline and notify the completion, should not be one of the worker loops
+     */
+    public WsServerDrain(EventExecutor executor, Metrics metrics) {
+        sLogger.trace("<init>");
+        mExecutor = executor;
+        mChannels = new DefaultChannelGroup("wsl-drain", executor);
+        mConnections = new DefaultChannelGroup("wsl-connections", executor);
+        mPromise = executor.newPromise();
+        metrics.gauge("drain.state", () -> mDraining ? 1 : 0);
+        metrics.gauge("drain.tunnels", () -> mDraining ? mChannels.size() : 0);
+        metrics.gauge("drain.bytes", mBytes::sum);
+    }
+
+    /**
+     * Track the websocket proxy connection, notify it immediately if already draining
+     */
+    public void add(Channel ch) {
+        mChannels.add(ch);
+        if (mDraining) {
+            notify(ch);
+        }
+    }
+
+    /**
+     * Track the connection accepted, closed by close()
+     */
+    public void accept(Channel ch) {
+        mConnections.add(ch);
+    }
+
+    /**
+     * Close the tunnels then the connections right away, the streams first so an HTTP/2 connection closes without
+     * waiting for them after its GOAWAY
+     */
+    public ChannelGroupFuture close() {
+        mChannels.close().awaitUninterruptibly();
+        return mConnections.close();
+    }
+
+    public boolean isDraining() {
+        return mDraining;
+    }
+
+    /**
+     * @return Connections not closed yet
+     */
+    public int remainingTunnels() {
+        return mChannels.size();
+    }
+
+    /**
+     * @return Bytes relayed by the remaining tunnels since drain started
+     */
+    public long drainedBytes() {
+        return mBytes.sum();
+    }
+
+    /**
+     * Start draining, call it after the listening channels closed
+     *
+     * @param timeoutMillis Force close the remaining connections after it, 0 to wait forever
+     * @return Completed once all the connections closed
+     */
+    synchronized public Future<Void> start(long timeoutMillis) {
+        if (mDraining) {
+            return mPromise;
+        }
+        sLogger.info("Drain {} connections in {}ms", mChannels.size(), timeoutMillis);
+        mDraining = true;
+        for (Channel ch : mChannels) {
+            notify(ch);
+        }
+        if (timeoutMillis > 0) {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mPromise.isDone()) {
+                        sLogger.warn("Drain deadline passed, force close {} connections", mChannels.size());
+                        mChannels.close();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        checkCompleted();
+        return mPromise;
+    }
+
+    private void notify(Channel ch) {
+        ch.closeFuture().addListener(mCloseListener);
+        if (ch.pipeline().get(HANDLER_COUNTER) == null) {
+            ch.pipeline().addFirst(HANDLER_COUNTER, mCounter);
+        }
+        ControlMessage msg = new ControlMessage();
+        msg.type = "drain";
+        ch.writeAndFlush(msg);
+    }
+
+    private void checkCompleted() {
+        if (mChannels.isEmpty() && mPromise.trySuccess(null)) {
+            sLogger.info("Drain completed, relayed {} bytes", mBytes.sum());
+        }
+    }
+
+    private final ChannelFutureListener mCloseListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            // Group removes the channel by its own listener added earlier
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkCompleted();
+                }
+            });
+        }
+    };
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    @ChannelHandler.Sharable
+    private final class CounterHandler extends ChannelDuplexHandler {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            mBytes.add(sizeOf(msg));
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            mBytes.add(sizeOf(msg));
+            super.write(ctx, msg, promise);
+        }
+    }
+}
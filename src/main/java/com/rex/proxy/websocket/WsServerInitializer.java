@@ -1,44 +1,252 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
+import com.rex.proxy.auth.UserAccounting;
+import com.rex.proxy.auth.UserStore;
+import com.rex.proxy.limit.AdmissionControl;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.EventLoopMonitor;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.DestinationAcl;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
+import com.rex.proxy.websocket.control.RawControlCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 /**
  * Initialize the server channel pipeline
+ *
+ * With http2 enabled the connection is HTTP/2 if the client negotiated h2 by ALPN, or sent the connection preface
+ * in cleartext, each of its streams is then a tunnel. Other connections stay HTTP/1.1 with one tunnel each.
+ * With raw transport there is no HTTP at all, see RawControlCodec.
+ * QUIC connections are accepted by quicHandler() and their streams by quicStreamHandler(), each stream is a tunnel
+ * of the raw transport.
  */
 public class WsServerInitializer extends ChannelInitializer<SocketChannel> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsServerInitializer.class);
 
-    private final SslContext mSslContext;
+    private static final ByteBuf PREFACE = Unpooled.unreleasableBuffer(Http2CodecUtil.connectionPrefaceBuf()).asReadOnly();
+
+    // Configuration, SSL context, credentials and destination ACL for new connections, replaced as a whole on reload
+    private static final class Snapshot {
+        final WslServer.Configuration config;
+        final SslContext sslContext;
+        final ControlAuthenticator auth;
+        final UserStore users;
+        final DestinationAcl acl;
+        final WsServerPathInterceptor interceptor; // Shared by the HTTP/1.1 connections
+        Snapshot(WslServer.Configuration config, SslContext sslContext, ControlAuthenticator auth, UserStore users, DestinationAcl acl, WsServerPathInterceptor interceptor) {
+            this.config = config;
+            this.sslContext = sslContext;
+            this.auth = auth;
+            this.users = users;
+            this.acl = acl;
+            this.interceptor = interceptor;
+        }
+    }
+
+    private volatile Snapshot mSnapshot;
     private final EventLoopGroup mWorkerGroup;
-    private final WslServer.Configuration mConfig;
+    private final AdmissionControl mAdmission;
+    private final TrafficShaping mShaping;
+    private final UserAccounting mAccounting;
+    private final EventLoopMonitor mLoopMonitor;
+    private final IdleSweeper mIdle;
+    private final WsKeepalive mKeepalive;
+    private final WsServerDrain mDrain;
 
-    public WsServerInitializer(EventLoopGroup group, WslServer.Configuration config , SslContext sslContext) {
+    /**
+     * @param auth Authenticator of proxyUid, null if not set
+     * @param users Credentials of the users, null if only proxyUid or no auth
+     * @param acl Destination ACL of the tunnels, null to allow all
+     * @param loopMonitor Count the client connections in loop stats, null if not monitored
+     * @param idle Close idle client connections and their outbound connections
+     * @param keepalive Ping the client connections once the handshake completed
+     */
+    public WsServerInitializer(EventLoopGroup group, WslServer.Configuration config , SslContext sslContext, ControlAuthenticator auth, UserStore users, DestinationAcl acl, AdmissionControl admission, TrafficShaping shaping, UserAccounting accounting, EventLoopMonitor loopMonitor, IdleSweeper idle, WsKeepalive keepalive, WsServerDrain drain) {
         sLogger.trace("<init>");
         mWorkerGroup = group;
-        mConfig = config;
-        mSslContext = sslContext;
+        mAdmission = admission;
+        mShaping = shaping;
+        mAccounting = accounting;
+        mLoopMonitor = loopMonitor;
+        mIdle = idle;
+        mKeepalive = keepalive;
+        mDrain = drain;
+        mSnapshot = snapshot(config, sslContext, auth, users, acl);
+    }
+
+    /**
+     * Apply to the connections accepted after it, the existing ones keep their own
+     */
+    public void update(WslServer.Configuration config, SslContext sslContext, ControlAuthenticator auth, UserStore users, DestinationAcl acl) {
+        mSnapshot = snapshot(config, sslContext, auth, users, acl);
+    }
+
+    private Snapshot snapshot(WslServer.Configuration config, SslContext sslContext, ControlAuthenticator auth, UserStore users, DestinationAcl acl) {
+        return new Snapshot(config, sslContext, auth, users, acl,
+                new WsServerPathInterceptor(mWorkerGroup, config, auth, users, acl, mAdmission, mShaping, mAccounting, mIdle, mKeepalive, mDrain));
     }
 
     @Override // ChannelInitializer
     protected void initChannel(SocketChannel ch) throws Exception {
         sLogger.trace("initChannel");
-        if (mSslContext != null) {
+        Snapshot snapshot = mSnapshot;
+        mDrain.accept(ch);
+        if (! mAdmission.acceptConnection(ch.remoteAddress().getAddress())) {
+            // Drop before any TLS or HTTP work
+            ch.close();
+            return;
+        }
+        boolean raw = "raw".equalsIgnoreCase(snapshot.config.transport);
+        if (raw && !mAdmission.acceptHandshake(ch.remoteAddress().getAddress())) {
+            // No upgrade request on the raw transport, the connection is the handshake
+            ch.close();
+            return;
+        }
+        if (snapshot.sslContext != null) {
             sLogger.debug("Init SSL");
-            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc()));
+            ch.pipeline().addLast(snapshot.sslContext.newHandler(ch.alloc()));
         }
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
-        ch.pipeline()
-                .addLast(new HttpServerCodec())
+        if (raw) {
+            raw(ch.pipeline(), snapshot);
+        } else if (! Boolean.TRUE.equals(snapshot.config.http2)) {
+            http1(ch.pipeline(), snapshot);
+        } else if (snapshot.sslContext != null) {
+            ch.pipeline().addLast(new AlpnHandler(snapshot));
+        } else {
+            ch.pipeline().addLast(new PrefaceDetector(snapshot));
+        }
+        mIdle.track(ch, "tunnel", IdleSweeper.timeoutMillis(snapshot.config.idleTunnelTimeout));
+        mShaping.addGlobal(ch);
+        if (mLoopMonitor != null) {
+            ch.pipeline().addFirst("loopMonitor", mLoopMonitor.handler());
+        }
+    }
+
+    /**
+     * @return Handler of each QUIC connection accepted, closes it if the address is over the connection rate
+     */
+    public ChannelHandler quicHandler() {
+        return new ChannelInitializer<QuicChannel>() {
+            @Override
+            protected void initChannel(QuicChannel ch) throws Exception {
+                mDrain.accept(ch);
+                if (! mAdmission.acceptConnection(WsQuic.remoteAddress(ch).getAddress())) {
+                    ch.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Initializer of each QUIC stream, one tunnel per stream as one per connection of the raw transport
+     */
+    public ChannelHandler quicStreamHandler() {
+        return new ChannelInitializer<QuicStreamChannel>() {
+            @Override
+            protected void initChannel(QuicStreamChannel ch) throws Exception {
+                sLogger.trace("initChannel {}", ch);
+                Snapshot snapshot = mSnapshot;
+                if (! mAdmission.acceptHandshake(WsQuic.remoteAddress(ch).getAddress())) {
+                    ch.close();
+                    return;
+                }
+                raw(ch.pipeline(), snapshot);
+                mIdle.track(ch, "tunnel", IdleSweeper.timeoutMillis(snapshot.config.idleTunnelTimeout));
+                mShaping.addGlobal(ch);
+            }
+        };
+    }
+
+    // One websocket per connection, upgraded from an HTTP/1.1 request
+    private void http1(ChannelPipeline pipeline, Snapshot snapshot) {
+        pipeline.addLast(new HttpServerCodec())
                 .addLast(new HttpObjectAggregator(1 << 16)) // 65536
-                .addLast(new WsServerPathInterceptor(mWorkerGroup, mConfig));
+                .addLast(snapshot.interceptor);
+    }
+
+    // One tunnel per connection, binary control messages then the bytes as is
+    private void raw(ChannelPipeline pipeline, Snapshot snapshot) {
+        RawControlCodec.addCodec(pipeline, true);
+        pipeline.addLast(new WsProxyControlHandler(mWorkerGroup, snapshot.config, snapshot.auth, snapshot.users, snapshot.acl, mAdmission, mShaping, mAccounting, mIdle, mDrain, true));
+    }
+
+    // One websocket per stream, the connection is shared by the tunnels of a client
+    private void http2(ChannelPipeline pipeline, Snapshot snapshot) {
+        WsHttp2ServerHandler handler = new WsHttp2ServerHandler(mWorkerGroup, snapshot.config, snapshot.auth, snapshot.users, snapshot.acl, mAdmission, mShaping, mAccounting, mIdle, mKeepalive, mDrain);
+        pipeline.addLast(Http2FrameCodecBuilder.forServer()
+                        .initialSettings(WsHttp2.serverSettings())
+                        .build())
+                .addLast(new Http2MultiplexHandler(handler));
+    }
+
+    // Protocol chosen by the client in the TLS handshake, HTTP/1.1 if it chose none
+    private final class AlpnHandler extends ApplicationProtocolNegotiationHandler {
+        private final Snapshot mSnapshot;
+
+        AlpnHandler(Snapshot snapshot) {
+            super(ApplicationProtocolNames.HTTP_1_1);
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+            sLogger.debug("channel {} negotiated {}", ctx.channel().remoteAddress(), protocol);
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                http2(ctx.pipeline(), mSnapshot);
+            } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+                http1(ctx.pipeline(), mSnapshot);
+            } else {
+                throw new IllegalStateException("unknown protocol " + protocol);
+            }
+        }
+    }
+
+    // Cleartext HTTP/2 with prior knowledge starts with the connection preface, anything else is HTTP/1.1
+    private final class PrefaceDetector extends ByteToMessageDecoder {
+        private final Snapshot mSnapshot;
+
+        PrefaceDetector(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            int length = Math.min(PREFACE.readableBytes(), in.readableBytes());
+            if (! ByteBufUtil.equals(PREFACE, PREFACE.readerIndex(), in, in.readerIndex(), length)) {
+                http1(ctx.pipeline(), mSnapshot);
+            } else if (length == PREFACE.readableBytes()) {
+                http2(ctx.pipeline(), mSnapshot);
+            } else {
+                return; // Wait for the whole preface
+            }
+            // Pass the buffered bytes on to the new handlers
+            ctx.pipeline().remove(this);
+        }
     }
 }
@@ -1,55 +1,113 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
+import com.rex.proxy.auth.UserAccounting;
+import com.rex.proxy.auth.UserStore;
+import com.rex.proxy.limit.AdmissionControl;
+import com.rex.proxy.limit.TrafficShaping;
+import com.rex.proxy.loop.IdleSweeper;
+import com.rex.proxy.route.DestinationAcl;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolConfig;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+
 /**
  * Handle received http requests
  * Filter the specified path, upgrade to websocket handler
+ *
+ * One instance is shared by the connections of a configuration, as its handshake handler.
  */
 @ChannelHandler.Sharable
 public class WsServerPathInterceptor extends SimpleChannelInboundHandler<FullHttpRequest> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsServerPathInterceptor.class);
 
-    private static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
+    static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
 
     private final EventLoopGroup mWorkerGroup;
     private final WslServer.Configuration mConfig;
+    private final ControlAuthenticator mAuth;
+    private final UserStore mUsers;
+    private final DestinationAcl mAcl;
+    private final AdmissionControl mAdmission;
+    private final TrafficShaping mShaping;
+    private final UserAccounting mAccounting;
+    private final IdleSweeper mIdle;
+    private final WsKeepalive mKeepalive;
+    private final WsServerDrain mDrain;
+    private final HandshakeHandler mHandshakeHandler = new HandshakeHandler();
 
-    public WsServerPathInterceptor(EventLoopGroup group, WslServer.Configuration config) {
+    // Set up the tunnel once the websocket handshake completed, in place of the interceptor and itself
+    @ChannelHandler.Sharable
+    private final class HandshakeHandler extends SimpleUserEventChannelHandler<WebSocketServerProtocolHandler.HandshakeComplete> {
+        @Override
+        protected void eventReceived(ChannelHandlerContext ctx, WebSocketServerProtocolHandler.HandshakeComplete evt) throws Exception {
+            sLogger.info("channel {} handshake <{}> complete", ctx.channel().remoteAddress(), evt.selectedSubprotocol());
+            ctx.pipeline()
+                    .addLast(WsProxyControlCodec.INSTANCE)
+                    .addLast(new WsProxyControlHandler(mWorkerGroup, mConfig, mAuth, mUsers, mAcl, mAdmission, mShaping, mAccounting, mIdle, mDrain))
+                    .remove(WsServerPathInterceptor.this)
+                    .remove(this);
+            mKeepalive.track(ctx.channel(), "tunnel",
+                    WsKeepalive.intervalMillis(mConfig.keepaliveInterval),
+                    WsKeepalive.misses(mConfig.keepaliveMisses), null);
+            sLogger.trace("pipeline:{}", ctx.pipeline());
+        }
+    }
+
+    public WsServerPathInterceptor(EventLoopGroup group, WslServer.Configuration config, ControlAuthenticator auth, UserStore users, DestinationAcl acl, AdmissionControl admission, TrafficShaping shaping, UserAccounting accounting, IdleSweeper idle, WsKeepalive keepalive, WsServerDrain drain) {
         sLogger.trace("<init>");
         mWorkerGroup = group;
         mConfig = config;
+        mAuth = auth;
+        mUsers = users;
+        mAcl = acl;
+        mAdmission = admission;
+        mShaping = shaping;
+        mAccounting = accounting;
+        mIdle = idle;
+        mKeepalive = keepalive;
+        mDrain = drain;
     }
 
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
         sLogger.trace("uri:<{}> proxyPath:<{}>", request.uri(), mConfig.proxyPath);
         if (mConfig.proxyPath == null || request.uri().startsWith(mConfig.proxyPath)) {
+            // Reject before the handshake, skip all the websocket setup
+            InetSocketAddress remote = (InetSocketAddress) ctx.channel().remoteAddress();
+            if (mAdmission.shed()) {
+                sLogger.debug("channel {} shed as overloaded", remote);
+                refuse(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                return;
+            }
+            if (! mAdmission.acceptHandshake(remote.getAddress())) {
+                refuse(ctx, request, HttpResponseStatus.TOO_MANY_REQUESTS);
+                return;
+            }
+
             sLogger.debug("channel {} handshaker websocket", ctx.channel().remoteAddress());
 
             ctx.pipeline()
-                    .addLast(new WebSocketServerProtocolHandler(request.uri(), WS_SUBPROTOCOL, true))
-                    .addLast(new SimpleUserEventChannelHandler<WebSocketServerProtocolHandler.HandshakeComplete>() {
-                        @Override
-                        protected void eventReceived(ChannelHandlerContext ctx, WebSocketServerProtocolHandler.HandshakeComplete evt) throws Exception {
-                            sLogger.info("channel {} handshake <{}> complete", ctx.channel().remoteAddress(), evt.selectedSubprotocol());
-                            ctx.pipeline()
-                                    .addLast(new WsProxyControlCodec())
-                                    .addLast(new WsProxyControlHandler(mWorkerGroup, mConfig))
-                                    .remove(WsServerPathInterceptor.this)
-                                    .remove(this);
-                            sLogger.trace("pipeline:{}", ctx.pipeline());
-                        }
-                    });
+                    .addLast(new WebSocketServerProtocolHandler(WebSocketServerProtocolConfig.newBuilder()
+                            .websocketPath(request.uri())
+                            .subprotocols(WS_SUBPROTOCOL)
+                            .checkStartsWith(true)
+                            .dropPongFrames(false) // Answers of the keepalive pings
+                            .build()))
+                    .addLast(mHandshakeHandler);
             sLogger.trace("pipeline:{}", ctx.pipeline());
 
             ctx.fireChannelRead(request.retain());
@@ -60,6 +118,14 @@ public class WsServerPathInterceptor extends SimpleChannelInboundHandler<FullHtt
         ctx.writeAndFlush(new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_FOUND));
     }
 
+    private void refuse(ChannelHandlerContext ctx, FullHttpRequest request, HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status);
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_LENGTH, 0)
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
     @Override // SimpleChannelInboundHandler
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         //sLogger.warn("WsServerPathInterceptor caught exception\n", cause);
@@ -0,0 +1,302 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State of one WsProxyServer upstream of WslLocal
+ *
+ * 1. Active tunnels, counted from the tunnel open attempt until the websocket closed
+ * 2. Round trip time, exponentially weighted moving average of the echo probes
+ * 3. Circuit breaker, opened after FAILURE_THRESHOLD consecutive failures, new tunnels skip it for OPEN_PERIOD,
+ *    then one trial is let through (half-open), success closes the circuit and failure opens it again
+ * 4. Draining, server sends drain control message on every connection before it shuts down, the upstream is marked
+ *    draining for DRAIN_HOLD, new tunnels prefer other upstreams meanwhile
+ * 5. HTTP/2 connections, shared by the tunnels opened as websocket streams if enabled
+ * 6. QUIC connections of quic scheme, shared by the tunnels opened as raw streams
+ *
+ * All the state is lock-free, updated from any event loop.
+ */
+public class WsUpstream {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsUpstream.class);
+
+    private static final long DRAIN_HOLD = TimeUnit.SECONDS.toNanos(30);
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_PERIOD = TimeUnit.SECONDS.toNanos(10);
+    private static final double RTT_WEIGHT = 0.3; // Weight of the latest sample
+
+    private final URI mUri;
+    private final int mIndex;
+    private final InetSocketAddress mAddress;
+    private final SslContext mSslContext;
+    private final boolean mRaw; // tls, tcp or quic scheme, binary control messages and no websocket
+    private final WsHttp2Connections mHttp2; // Null if HTTP/2 not enabled
+    private final WsQuicConnections mQuic; // Null if not quic scheme
+    private final LongAdder mDrains;
+    private final LongAdder mFailureCount;
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger(); // Consecutive
+    private final AtomicLong mOpenUntil = new AtomicLong(); // System.nanoTime() the circuit half-open, 0 if closed
+    private volatile long mRtt; // Nanoseconds, 0 if not measured yet
+    private volatile long mDrainAt; // System.nanoTime() the last drain message received, 0 if never
+    private final ChannelFutureListener mReleaseListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            release();
+        }
+    };
+
+    public WsUpstream(URI uri, int index, boolean certVerify, Metrics metrics) {
+        this(uri, index, certVerify, false, metrics);
+    }
+
+    /**
+     * @param index Position in the upstream list, metrics are exported as upstream.INDEX.*
+     * @param certVerify Verify the server certificate of wss, tls and quic scheme
+     * @param http2 Open the tunnels as websocket streams over shared HTTP/2 connections, h2 by ALPN for wss scheme
+     *              or prior knowledge for ws, ignored by the raw transport
+     */
+    public WsUpstream(URI uri, int index, boolean certVerify, boolean http2, Metrics metrics) {
+        sLogger.trace("<init> {}", uri);
+        mUri = uri;
+        mIndex = index;
+        boolean quic = "quic".equalsIgnoreCase(uri.getScheme());
+        mRaw = "tls".equalsIgnoreCase(uri.getScheme()) || "tcp".equalsIgnoreCase(uri.getScheme()) || quic;
+        boolean secure = "wss".equalsIgnoreCase(uri.getScheme()) || "tls".equalsIgnoreCase(uri.getScheme()) || quic;
+        int port = uri.getPort();
+        if (port == -1) {
+            port = secure ? 443 : 80;
+        }
+        mAddress = InetSocketAddress.createUnresolved(uri.getHost(), port);
+
+        SslContext sslContext = null;
+        SslContext http2SslContext = null;
+        QuicSslContext quicSslContext = null;
+        if (quic) {
+            // TLS is part of QUIC, no handler in the stream pipelines
+            QuicSslContextBuilder builder = QuicSslContextBuilder.forClient()
+                    .applicationProtocols(WsQuic.PROTOCOL)
+                    .earlyData(true);
+            if (! certVerify) {
+                builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            }
+            quicSslContext = builder.build();
+        } else if (secure) {
+            try {
+                sslContext = sslContextBuilder(certVerify).build();
+                if (http2 && !mRaw) {
+                    http2SslContext = sslContextBuilder(certVerify)
+                            .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                    ApplicationProtocolConfig.Protocol.ALPN,
+                                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                    ApplicationProtocolNames.HTTP_2))
+                            .build();
+                }
+            } catch (SSLException ex) {
+                sLogger.warn("Failed to init ssl\n", ex);
+            }
+        }
+        mSslContext = sslContext;
+        mHttp2 = (http2 && !mRaw && (! secure || http2SslContext != null)) ? new WsHttp2Connections(this, http2SslContext) : null;
+        mQuic = (quicSslContext != null) ? new WsQuicConnections(this, quicSslContext) : null;
+
+        mDrains = metrics.counter("upstream.drain");
+        mFailureCount = metrics.counter("upstream." + index + ".failure");
+        metrics.gauge("upstream." + index + ".active", mActive::get);
+        metrics.gauge("upstream." + index + ".rtt.micros", () -> TimeUnit.NANOSECONDS.toMicros(mRtt));
+        metrics.gauge("upstream." + index + ".circuit", () -> (mOpenUntil.get() != 0) ? 1 : 0);
+        if (mHttp2 != null) {
+            metrics.gauge("upstream." + index + ".h2.connections", mHttp2::connections);
+        }
+        if (mQuic != null) {
+            metrics.gauge("upstream." + index + ".quic.connections", mQuic::connections);
+        }
+    }
+
+    private static SslContextBuilder sslContextBuilder(boolean certVerify) {
+        SslContextBuilder builder = SslContextBuilder.forClient();
+        if (! certVerify) {
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        }
+        return builder;
+    }
+
+    public URI uri() {
+        return mUri;
+    }
+
+    public int index() {
+        return mIndex;
+    }
+
+    /**
+     * @return Unresolved address of the server, resolved on connect
+     */
+    public InetSocketAddress address() {
+        return mAddress;
+    }
+
+    /**
+     * @return Shared client SSL context for wss and tls scheme, null for ws, tcp and quic
+     */
+    public SslContext sslContext() {
+        return mSslContext;
+    }
+
+    /**
+     * @return true for tls, tcp and quic scheme, the tunnels are raw connections or streams without websocket
+     */
+    public boolean isRaw() {
+        return mRaw;
+    }
+
+    /**
+     * @return Shared HTTP/2 connections, null if not enabled or the server turned out to have no HTTP/2
+     */
+    public WsHttp2Connections http2() {
+        return (mHttp2 != null && mHttp2.isSupported()) ? mHttp2 : null;
+    }
+
+    /**
+     * @return Shared QUIC connections for quic scheme, null for others
+     */
+    public WsQuicConnections quic() {
+        return mQuic;
+    }
+
+    public void onDrain() {
+        if (! isDraining()) {
+            sLogger.info("Upstream {} draining", mUri);
+        }
+        mDrains.increment();
+        mDrainAt = System.nanoTime();
+    }
+
+    public boolean isDraining() {
+        long drainAt = mDrainAt;
+        return drainAt != 0 && System.nanoTime() - drainAt < DRAIN_HOLD;
+    }
+
+    /**
+     * @return false if the circuit is open, new tunnels should not try it
+     */
+    public boolean isAvailable() {
+        long openUntil = mOpenUntil.get();
+        return openUntil == 0 || System.nanoTime() - openUntil >= 0;
+    }
+
+    /**
+     * Call it before using the chosen upstream, in half-open state only one caller gets true until next period
+     */
+    public boolean tryAcquire() {
+        long openUntil = mOpenUntil.get();
+        if (openUntil == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        return now - openUntil >= 0 && mOpenUntil.compareAndSet(openUntil, now + OPEN_PERIOD);
+    }
+
+    /**
+     * Tunnel opened or probe succeeded, close the circuit
+     */
+    public void onSuccess() {
+        mFailures.set(0);
+        if (mOpenUntil.getAndSet(0) != 0) {
+            sLogger.info("Upstream {} circuit closed", mUri);
+        }
+    }
+
+    /**
+     * Failed to connect or handshake, open the circuit if failed too many times in a row
+     */
+    public void onFailure() {
+        mFailureCount.increment();
+        if (mFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+            if (mOpenUntil.getAndSet(System.nanoTime() + OPEN_PERIOD) == 0) {
+                sLogger.warn("Upstream {} circuit opened", mUri);
+            }
+        }
+    }
+
+    /**
+     * Add a round trip time sample
+     */
+    public void onRtt(long nanos) {
+        long rtt = mRtt;
+        mRtt = (rtt == 0) ? nanos : (long) (rtt + RTT_WEIGHT * (nanos - rtt));
+    }
+
+    /**
+     * @return Nanoseconds, 0 if not measured yet
+     */
+    public long rtt() {
+        return mRtt;
+    }
+
+    public void acquire() {
+        mActive.incrementAndGet();
+    }
+
+    public void release() {
+        mActive.decrementAndGet();
+    }
+
+    /**
+     * Release once the tunnel closed, one listener shared by all the tunnels
+     */
+    public void releaseOnClose(Channel channel) {
+        channel.closeFuture().addListener(mReleaseListener);
+    }
+
+    public int activeTunnels() {
+        return mActive.get();
+    }
+
+    /**
+     * Close the shared connections, the tunnels on them finish first
+     */
+    void close() {
+        if (mHttp2 != null) {
+            mHttp2.close();
+        }
+        if (mQuic != null) {
+            mQuic.close();
+        }
+    }
+
+    void removeMetrics(Metrics metrics) {
+        metrics.remove("upstream." + mIndex + ".failure")
+                .remove("upstream." + mIndex + ".active")
+                .remove("upstream." + mIndex + ".rtt.micros")
+                .remove("upstream." + mIndex + ".circuit")
+                .remove("upstream." + mIndex + ".h2.connections")
+                .remove("upstream." + mIndex + ".quic.connections");
+    }
+
+    @Override
+    public String toString() {
+        return mUri.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package com.rex.proxy.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Strategy to choose the upstream for a new tunnel
+ */
+public interface WsUpstreamBalancer {
+
+    /**
+     * @param upstreams All the upstreams of the group, in configured order
+     * @param candidates Available ones not tried yet, never empty
+     * @param dstAddr Destination of the tunnel
+     */
+    WsUpstream choose(List<WsUpstream> upstreams, List<WsUpstream> candidates, String dstAddr);
+
+    /**
+     * @param name "roundRobin", "leastActive", "ewma" or "hash", null for roundRobin
+     */
+    static WsUpstreamBalancer of(String name, List<WsUpstream> upstreams) {
+        if (name == null || "roundRobin".equalsIgnoreCase(name)) {
+            return new RoundRobin();
+        } else if ("leastActive".equalsIgnoreCase(name)) {
+            return new LeastActive();
+        } else if ("ewma".equalsIgnoreCase(name)) {
+            return new Ewma();
+        } else if ("hash".equalsIgnoreCase(name)) {
+            return new ConsistentHash(upstreams);
+        }
+        throw new IllegalArgumentException("Unknown balancer " + name);
+    }
+
+    final class RoundRobin implements WsUpstreamBalancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public WsUpstream choose(List<WsUpstream> upstreams, List<WsUpstream> candidates, String dstAddr) {
+            return candidates.get((mNext.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+        }
+    }
+
+    /**
+     * Fewest active tunnels, ties broken by round-robin
+     */
+    final class LeastActive implements WsUpstreamBalancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public WsUpstream choose(List<WsUpstream> upstreams, List<WsUpstream> candidates, String dstAddr) {
+            int size = candidates.size();
+            int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % size;
+            WsUpstream best = null;
+            for (int i = 0; i < size; i++) {
+                WsUpstream upstream = candidates.get((start + i) % size);
+                if (best == null || upstream.activeTunnels() < best.activeTunnels()) {
+                    best = upstream;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Lowest cost of the round trip time weighted by active tunnels, upstream not measured yet is preferred
+     * so every upstream gets samples
+     */
+    final class Ewma implements WsUpstreamBalancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public WsUpstream choose(List<WsUpstream> upstreams, List<WsUpstream> candidates, String dstAddr) {
+            int size = candidates.size();
+            int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % size;
+            WsUpstream best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                WsUpstream upstream = candidates.get((start + i) % size);
+                double cost = (double) upstream.rtt() * (upstream.activeTunnels() + 1);
+                if (best == null || cost < bestCost) {
+                    best = upstream;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Same destination host always goes to the same upstream while it is available,
+     * only the destinations of an unavailable upstream move to the next one on the ring
+     */
+    final class ConsistentHash implements WsUpstreamBalancer {
+        private static final int REPLICAS = 160; // Virtual nodes per upstream
+
+        private final long[] mRing; // Sorted hashes
+        private final int[] mOwners; // Index of upstream owns the hash
+
+        ConsistentHash(List<WsUpstream> upstreams) {
+            int size = upstreams.size() * REPLICAS;
+            long[] entries = new long[size];
+            for (int i = 0; i < upstreams.size(); i++) {
+                String key = upstreams.get(i).uri().toString();
+                for (int r = 0; r < REPLICAS; r++) {
+                    // Keep the owner in low bits to sort together with the hash
+                    entries[i * REPLICAS + r] = (hash(key + "#" + r) & ~0xFFFFL) | i;
+                }
+            }
+            Arrays.sort(entries);
+            mRing = new long[size];
+            mOwners = new int[size];
+            for (int i = 0; i < size; i++) {
+                mRing[i] = entries[i] & ~0xFFFFL;
+                mOwners[i] = (int) (entries[i] & 0xFFFFL);
+            }
+        }
+
+        @Override
+        public WsUpstream choose(List<WsUpstream> upstreams, List<WsUpstream> candidates, String dstAddr) {
+            int pos = Arrays.binarySearch(mRing, hash(dstAddr) & ~0xFFFFL);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            for (int i = 0; i < mRing.length; i++) {
+                WsUpstream upstream = upstreams.get(mOwners[(pos + i) % mRing.length]);
+                if (candidates.contains(upstream)) {
+                    return upstream;
+                }
+            }
+            return candidates.get(0);
+        }
+
+        // FNV-1a with a final avalanche, String.hashCode is too weak for the ring
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h ^= (b & 0xFF);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
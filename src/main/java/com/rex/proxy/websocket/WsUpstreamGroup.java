@@ -0,0 +1,192 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.metrics.Metrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Upstream servers of WslLocal
+ *
+ * Choose the upstream for each new tunnel by the balancer among the available ones, skip the upstreams with open
+ * circuit and prefer the ones not draining. Fail fast with null if every upstream is down.
+ *
+ * Optionally probe every upstream periodically with the echo control action, the probes measure the round trip
+ * time and feed the circuit breakers, so a dead upstream is skipped before any tunnel waits for it.
+ */
+public class WsUpstreamGroup {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsUpstreamGroup.class);
+
+    private static final long PROBE_TIMEOUT = 5000; // milliseconds
+
+    private final List<WsUpstream> mUpstreams;
+    private final WsUpstreamBalancer mBalancer;
+    private final Metrics mMetrics;
+    private final LongAdder mUnavailable;
+    private final LongAdder mRetries;
+    private ScheduledFuture<?> mHealthCheck;
+
+    public WsUpstreamGroup(List<URI> uris, String balancer, boolean certVerify, Metrics metrics) {
+        this(uris, balancer, certVerify, false, metrics);
+    }
+
+    /**
+     * @param balancer "roundRobin", "leastActive", "ewma" or "hash", null for roundRobin
+     * @param http2 Open the tunnels as websocket streams over shared HTTP/2 connections
+     */
+    public WsUpstreamGroup(List<URI> uris, String balancer, boolean certVerify, boolean http2, Metrics metrics) {
+        sLogger.trace("<init> {} {}", uris, balancer);
+        List<WsUpstream> upstreams = new ArrayList<>(uris.size());
+        for (URI uri : uris) {
+            upstreams.add(new WsUpstream(uri, upstreams.size(), certVerify, http2, metrics));
+        }
+        mUpstreams = Collections.unmodifiableList(upstreams);
+        mBalancer = WsUpstreamBalancer.of(balancer, mUpstreams);
+        mMetrics = metrics;
+        mUnavailable = metrics.counter("upstream.unavailable");
+        mRetries = metrics.counter("upstream.retry");
+        metrics.gauge("upstream.available", () -> count(true, false));
+        metrics.gauge("upstream.draining", () -> count(false, true));
+    }
+
+    private long count(boolean available, boolean draining) {
+        long count = 0;
+        for (WsUpstream upstream : mUpstreams) {
+            if ((available && upstream.isAvailable()) || (draining && upstream.isDraining())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public List<WsUpstream> upstreams() {
+        return mUpstreams;
+    }
+
+    /**
+     * Choose the upstream for a new tunnel, the caller must call WsUpstream.acquire() and release()
+     *
+     * @param excluded Upstreams already tried by this tunnel
+     * @return null if no upstream available
+     */
+    public WsUpstream choose(String dstAddr, Collection<WsUpstream> excluded) {
+        List<WsUpstream> candidates = candidates(excluded, false);
+        if (candidates.isEmpty()) {
+            // All draining, still better than fail
+            candidates = candidates(excluded, true);
+        }
+        while (! candidates.isEmpty()) {
+            WsUpstream upstream = mBalancer.choose(mUpstreams, candidates, dstAddr);
+            if (upstream.tryAcquire()) {
+                return upstream;
+            }
+            // Lost the half-open trial to another tunnel
+            candidates.remove(upstream);
+        }
+        sLogger.debug("No upstream available for {}", dstAddr);
+        mUnavailable.increment();
+        return null;
+    }
+
+    /**
+     * The tunnel failed to open and retries on another upstream
+     */
+    public void onRetry() {
+        mRetries.increment();
+    }
+
+    private List<WsUpstream> candidates(Collection<WsUpstream> excluded, boolean draining) {
+        List<WsUpstream> candidates = new ArrayList<>(mUpstreams.size());
+        for (WsUpstream upstream : mUpstreams) {
+            if (upstream.isAvailable() && (draining || !upstream.isDraining())
+                    && (excluded == null || !excluded.contains(upstream))) {
+                candidates.add(upstream);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Probe all the upstreams periodically
+     *
+     * @param group Event loops to run the probes
+     */
+    synchronized public WsUpstreamGroup startHealthCheck(final EventLoopGroup group, long intervalMillis) {
+        if (mHealthCheck != null) {
+            sLogger.warn("health check already started");
+            return this;
+        }
+        final long timeout = Math.min(intervalMillis, PROBE_TIMEOUT);
+        mHealthCheck = group.next().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (WsUpstream upstream : mUpstreams) {
+                    probe(group.next(), upstream, timeout);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    private void probe(EventLoop loop, WsUpstream upstream, long timeoutMillis) {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(loop)
+                .channel(EventLoops.socketChannel(loop))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) timeoutMillis);
+        final WsUpstreamProbe probe = new WsUpstreamProbe(upstream, timeoutMillis);
+        if (upstream.quic() != null) {
+            // A stream on the connection of the tunnels, connected first if none
+            upstream.quic().open(bootstrap, probe)
+                    .addListener(new FutureListener<QuicStreamChannel>() {
+                        @Override
+                        public void operationComplete(Future<QuicStreamChannel> future) throws Exception {
+                            if (! future.isSuccess()) {
+                                probe.fail();
+                            }
+                        }
+                    });
+            return;
+        }
+        bootstrap.handler(probe)
+                .connect(upstream.address());
+    }
+
+    /**
+     * Stop the health check and remove the metrics of the upstreams
+     */
+    synchronized public void stop() {
+        if (mHealthCheck != null) {
+            mHealthCheck.cancel(false);
+            mHealthCheck = null;
+        }
+        for (WsUpstream upstream : mUpstreams) {
+            upstream.removeMetrics(mMetrics);
+        }
+    }
+
+    /**
+     * Close the shared connections of the upstreams, call it once no new tunnel chooses from this group
+     */
+    public void close() {
+        for (WsUpstream upstream : mUpstreams) {
+            upstream.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.websocket.control.ControlMessage;
+import com.rex.proxy.websocket.control.RawControlCodec;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health probe of one upstream
+ *
+ * Open a websocket, or a raw connection for tls and tcp scheme, or a stream on the shared connection for quic,
+ * wait for hello, send echo request and measure the round trip time of the echo response.
+ * Report success with the round trip time, or failure if anything went wrong before the timeout.
+ */
+public class WsUpstreamProbe extends ChannelInitializer<Channel> {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsUpstreamProbe.class);
+
+    private final WsUpstream mUpstream;
+    private final long mTimeoutMillis;
+    private boolean mCompleted; // Accessed in the event loop of the channel only
+    private long mEchoAt;
+
+    public WsUpstreamProbe(WsUpstream upstream, long timeoutMillis) {
+        mUpstream = upstream;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override // ChannelInitializer
+    protected void initChannel(final Channel ch) throws Exception {
+        if (mUpstream.sslContext() != null) {
+            ch.pipeline().addLast(mUpstream.sslContext().newHandler(ch.alloc()));
+        }
+        if (mUpstream.isRaw()) {
+            RawControlCodec.addCodec(ch.pipeline(), false);
+        } else {
+            ch.pipeline()
+                    .addLast(new HttpClientCodec())
+                    .addLast(new HttpObjectAggregator(1 << 16)) // 65536
+                    .addLast(new WebSocketClientProtocolHandler(mUpstream.uri(), WebSocketVersion.V13, WsClientInitializer.WS_SUBPROTOCOL, false, null, 65535))
+                    .addLast(WsProxyControlCodec.INSTANCE);
+        }
+        ch.pipeline()
+                .addLast(new SimpleChannelInboundHandler<ControlMessage>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, ControlMessage message) throws Exception {
+                        if ("hello".equalsIgnoreCase(message.type)) {
+                            ControlMessage echo = new ControlMessage();
+                            echo.type = "request";
+                            echo.action = "echo";
+                            mEchoAt = System.nanoTime();
+                            ctx.writeAndFlush(echo);
+                        } else if ("response".equalsIgnoreCase(message.type) && "echo".equalsIgnoreCase(message.action)) {
+                            complete(ctx.channel().isActive(), System.nanoTime() - mEchoAt);
+                            ctx.close();
+                        }
+                    }
+
+                    @Override
+                    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                        sLogger.debug("Probe {} failed {}", mUpstream, cause.toString());
+                        ctx.close();
+                    }
+                });
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                complete(false, 0);
+            }
+        });
+        ch.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (! mCompleted) {
+                    sLogger.debug("Probe {} timeout", mUpstream);
+                    ch.close();
+                }
+            }
+        }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The probe could not even start, the QUIC connection failed
+     */
+    public void fail() {
+        complete(false, 0);
+    }
+
+    private void complete(boolean success, long rtt) {
+        if (mCompleted) {
+            return;
+        }
+        mCompleted = true;
+        sLogger.trace("Probe {} success:{} rtt:{}", mUpstream, success, rtt);
+        if (success) {
+            mUpstream.onRtt(rtt);
+            mUpstream.onSuccess();
+        } else {
+            mUpstream.onFailure();
+        }
+    }
+}
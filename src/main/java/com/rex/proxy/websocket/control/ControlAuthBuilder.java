@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
@@ -15,6 +16,8 @@ import java.util.Base64;
  *
  * CREDENTIAL = HMAC.init(SECRET).update(NONCE).update(address).update(port)
  *
+ * Builds a new Mac on each call, fine for the client signing once per tunnel, servers verifying many should
+ * use ControlAuthenticator instead.
  */
 public class ControlAuthBuilder {
 
@@ -22,6 +25,7 @@ public class ControlAuthBuilder {
 
     public String mAlgorithm = "HmacSHA256";
     public String mSecret;
+    public SecretKeySpec mKey; // Precomputed key of mSecret
     public byte[] mNonce;
 
     public String mAddress;
@@ -37,6 +41,11 @@ public class ControlAuthBuilder {
         return this;
     }
 
+    public ControlAuthBuilder setKey(SecretKeySpec key) {
+        mKey = key;
+        return this;
+    }
+
     public ControlAuthBuilder setNonce(String nonce64) {
         mNonce = Base64.getDecoder().decode(nonce64);
         return this;
@@ -61,9 +70,9 @@ public class ControlAuthBuilder {
         String credential = null;
         try {
             Mac hmac = Mac.getInstance(mAlgorithm);
-            hmac.init(new SecretKeySpec(mSecret.getBytes(), mAlgorithm));
+            hmac.init((mKey != null) ? mKey : new SecretKeySpec(mSecret.getBytes(StandardCharsets.UTF_8), mAlgorithm));
             hmac.update(mNonce);
-            hmac.update(mAddress.getBytes());
+            hmac.update(mAddress.getBytes(StandardCharsets.UTF_8));
             hmac.update(ByteBuffer.allocate(Integer.BYTES).putInt(mPort).array());
             credential = Base64.getEncoder().encodeToString(hmac.doFinal());
         } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
@@ -0,0 +1,203 @@
+package com.rex.proxy.websocket.control;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Reusable signer and verifier of the tunnel auth token, the same credential as ControlAuthBuilder builds
+ *
+ * TOKEN = Base64(HMAC.init(SECRET).update(NONCE).update(address).update(port))
+ *
+ * The key is built once. Each thread keeps one Mac per algorithm, shared by all the authenticators, and inits it
+ * again only when the key differs from its last one, so the users of a server hold no Macs of their own and a
+ * thread keeps no more than the last key of each algorithm once a reload replaced the secrets. Address and port
+ * are encoded into a per-thread scratch buffer, verify() does no provider lookup and for ASCII addresses
+ * allocates only the digest array the JCE provider returns internally. The expected token is Base64 encoded in
+ * place and compared with the received one in constant time.
+ *
+ * Algorithms are named as in the 'action' of the hello message: hs256 (default), hs384 and hs512.
+ * Safe to share across event loops.
+ */
+public final class ControlAuthenticator {
+
+    public static final String DEFAULT_ALGORITHM = "hs256";
+
+    private static final int MAX_MAC = 64; // HmacSHA512
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String[] JCE_NAMES = { "HmacSHA256", "HmacSHA384", "HmacSHA512" };
+
+    private static final class Scratch {
+        byte[] input = new byte[256];
+        final byte[] mac = new byte[MAX_MAC];
+        final byte[] token = new byte[(MAX_MAC + 2) / 3 * 4];
+        final Mac[] engines = new Mac[JCE_NAMES.length]; // By algorithm
+        final SecretKeySpec[] keys = new SecretKeySpec[JCE_NAMES.length]; // Last init of each engine
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final String mName;
+    private final SecretKeySpec mKey;
+    private final int mEngine; // Index of the Mac in Scratch
+
+    /**
+     * @param algorithm hs256, hs384 or hs512, case insensitive
+     * @throws IllegalArgumentException if the algorithm not supported
+     */
+    public ControlAuthenticator(String algorithm, String secret) {
+        String jce = jceName(algorithm);
+        if (jce == null) {
+            throw new IllegalArgumentException("Unsupported auth algorithm " + algorithm);
+        }
+        mName = algorithm.toLowerCase(Locale.ROOT);
+        mKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), jce);
+        mEngine = Arrays.asList(JCE_NAMES).indexOf(jce);
+        mac(sScratch.get()); // Fail early if the provider missing
+    }
+
+    /**
+     * @return Name of the JCE Mac algorithm, null if not supported
+     */
+    public static String jceName(String algorithm) {
+        if (algorithm == null) {
+            return null;
+        }
+        switch (algorithm.toLowerCase(Locale.ROOT)) {
+        case "hs256":
+            return JCE_NAMES[0];
+        case "hs384":
+            return JCE_NAMES[1];
+        case "hs512":
+            return JCE_NAMES[2];
+        default:
+            return null;
+        }
+    }
+
+    private Mac mac(Scratch scratch) {
+        Mac mac = scratch.engines[mEngine];
+        if (mac != null && scratch.keys[mEngine] == mKey) {
+            return mac;
+        }
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(mKey.getAlgorithm());
+                scratch.engines[mEngine] = mac;
+            }
+            mac.init(mKey);
+            scratch.keys[mEngine] = mKey;
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Failed to init " + mKey.getAlgorithm() + " - " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return Algorithm name for the hello message
+     */
+    public String name() {
+        return mName;
+    }
+
+    /**
+     * @return Base64 token of the request, null if failed
+     */
+    public String sign(byte[] nonce, String address, int port) {
+        Scratch scratch = sScratch.get();
+        int length = compute(scratch, nonce, address, port);
+        return (length > 0) ? Base64.getEncoder().encodeToString(Arrays.copyOf(scratch.mac, length)) : null;
+    }
+
+    /**
+     * @param token Base64 token of the request, null never matches
+     */
+    public boolean verify(byte[] nonce, String address, int port, String token) {
+        if (token == null || address == null) {
+            return false;
+        }
+        Scratch scratch = sScratch.get();
+        int length = compute(scratch, nonce, address, port);
+        if (length <= 0) {
+            return false;
+        }
+        int encoded = encode(scratch.mac, length, scratch.token);
+        // Constant time over the expected token, its length is public anyway
+        int diff = token.length() ^ encoded;
+        for (int i = 0; i < encoded; i++) {
+            int c = (i < token.length()) ? token.charAt(i) : 0;
+            diff |= c ^ scratch.token[i];
+        }
+        return diff == 0;
+    }
+
+    private int compute(Scratch scratch, byte[] nonce, String address, int port) {
+        Mac mac = mac(scratch);
+        if (nonce != null) {
+            mac.update(nonce);
+        }
+        int length = address.length();
+        if (scratch.input.length < length + Integer.BYTES) {
+            scratch.input = new byte[length + Integer.BYTES];
+        }
+        byte[] input = scratch.input;
+        int offset = 0;
+        for (; offset < length; offset++) {
+            char c = address.charAt(offset);
+            if (c >= 0x80) {
+                break;
+            }
+            input[offset] = (byte) c;
+        }
+        if (offset < length) {
+            // Rare non-ASCII domain, encode as UTF-8
+            mac.update(address.getBytes(StandardCharsets.UTF_8));
+            offset = 0;
+        }
+        input[offset++] = (byte) (port >>> 24);
+        input[offset++] = (byte) (port >>> 16);
+        input[offset++] = (byte) (port >>> 8);
+        input[offset++] = (byte) port;
+        mac.update(input, 0, offset);
+        try {
+            mac.doFinal(scratch.mac, 0);
+        } catch (ShortBufferException ex) {
+            mac.reset();
+            return 0;
+        }
+        return mac.getMacLength();
+    }
+
+    // Base64 encode with padding into dst without allocation, return the length
+    private static int encode(byte[] src, int length, byte[] dst) {
+        int out = 0;
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[out++] = ALPHABET[(bits >>> 18) & 0x3F];
+            dst[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[out++] = ALPHABET[(bits >>> 6) & 0x3F];
+            dst[out++] = ALPHABET[bits & 0x3F];
+        }
+        int remain = length - i;
+        if (remain > 0) {
+            int bits = (src[i] & 0xFF) << 16 | ((remain == 2) ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[out++] = ALPHABET[(bits >>> 18) & 0x3F];
+            dst[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[out++] = (remain == 2) ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            dst[out++] = '=';
+        }
+        return out;
+    }
+}
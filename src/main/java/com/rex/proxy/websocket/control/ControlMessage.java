@@ -9,6 +9,8 @@ package com.rex.proxy.websocket.control;
  *
  * If authentication enabled, server will send with auth algorithm and nonce, default hs256 (HmacSHA256)
  * S -> C {'type':'hello', 'action':'hs256', 'token':'NONCE'}
+ * The algorithm may also be hs384 (HmacSHA384) or hs512 (HmacSHA512), client signs the token with it or closes
+ * the connection if not supported.
  *
  * 2. Proxy
  * When handshake completed, client can start request for proxy connection.
@@ -17,7 +19,11 @@ package com.rex.proxy.websocket.control;
  * If authentication enabled, client send request message should also include auth token
  * C -> S {'type':'request', 'action':'connect', 'address':'www.google.com', 'port':'443', 'token':'TOKEN'}
  *
- * TOKEN = HMAC.init(SECRET).update(NONCE).update(address).update(port)
+ * TOKEN = Base64(HMAC.init(SECRET).update(NONCE).update(address).update(port)), address in UTF-8, port in 4 bytes
+ * big-endian
+ *
+ * If server has multiple users, client should also include its user name, SECRET is then the secret of the user
+ * C -> S {'type':'request', 'action':'connect', 'address':'www.google.com', 'port':'443', 'user':'NAME', 'token':'TOKEN'}
  *
  * If token valid and proxy connection success, server will send success response
  * S -> C {'type':'response', 'action':'success'}
@@ -30,12 +36,31 @@ package com.rex.proxy.websocket.control;
  *
  * If token auth failed, server will send reject response, and force shutdown the socket after 3 seconds
  * S -> C {'type':'response', 'action':'reject'}
+ *
+ * 3. Drain
+ * Server going to shut down sends drain message on every connection, also on the new ones accepted before the
+ * listening sockets closed. Client should stop opening new tunnels to this server, the existing tunnels continue
+ * until closed or the drain timeout passed. New connect requests will be rejected.
+ * S -> C {'type':'drain'}
+ *
+ * 4. Half-close
+ * Client supporting half-close asks for it in the connect request, server supporting it confirms in the success
+ * response, both sides then keep the tunnel open when one direction ends.
+ * C -> S {'type':'request', 'action':'connect', 'address':'www.google.com', 'port':'443', 'halfClose':true}
+ * S -> C {'type':'response', 'action':'success', 'halfClose':true}
+ *
+ * When the client or the proxy host sent FIN, its side sends shutdown message after the last BinaryWebSocketFrame,
+ * the other side shuts down the output of its socket once the data before flushed. The tunnel closes once both
+ * directions shut down, or either socket closed. Without the confirmation, FIN closes the whole tunnel as before.
+ * C <-> S {'type':'shutdown'}
  */
 public class ControlMessage {
     public String type;
     public String action;
 
     public String token;
+    public String user;
     public String address;
     public Integer port;
+    public Boolean halfClose;
 }
@@ -0,0 +1,307 @@
+package com.rex.proxy.websocket.control;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Binary control messages of the raw transport, tunnels over plain TLS or TCP without websocket
+ *
+ * Same messages as ControlMessage in the same order, the token is the same HMAC sent as raw bytes. Integers are
+ * big-endian, strings UTF-8 with one byte length.
+ *
+ * S -> C HELLO    | 0x01 | VERSION | ALGORITHM | NONCE LENGTH | NONCE |
+ * S -> C RESPONSE | 0x02 | STATUS | FLAGS |
+ * S -> C DRAIN    | 0x03 |
+ * S -> C ECHO     | 0x04 |
+ * C -> S OPEN     | 0x10 |
+ * C -> S CONNECT  | 0x11 | FLAGS | USER LENGTH | USER | ADDRESS LENGTH | ADDRESS | PORT (2) | TOKEN LENGTH | TOKEN |
+ * C -> S ECHO     | 0x12 |
+ *
+ * VERSION 0x01, the client closes the connection on others
+ * ALGORITHM 0x00 no auth, 0x01 hs256, 0x02 hs384, 0x03 hs512
+ * STATUS 0x00 success, 0x01 failure, 0x02 reject
+ * FLAGS bit 0 half-close, the FIN of the socket passes through the tunnel
+ *
+ * One tunnel per connection, or per stream over QUIC. Once the success response passed, the bytes of the connection
+ * are relayed as is both ways, the drain message is no longer sent.
+ *
+ * The client sends OPEN first where the server does not see the connection until the client sent on it, QUIC streams,
+ * the server drops it and says hello as usual.
+ */
+public final class RawControlCodec {
+
+    public static final int VERSION = 0x01;
+
+    private static final byte HELLO = 0x01;
+    private static final byte RESPONSE = 0x02;
+    private static final byte DRAIN = 0x03;
+    private static final byte ECHO_RESPONSE = 0x04;
+    private static final byte OPEN = 0x10;
+    private static final byte CONNECT = 0x11;
+    private static final byte ECHO = 0x12;
+
+    private static final int STATUS_SUCCESS = 0x00;
+    private static final int STATUS_FAILURE = 0x01;
+    private static final int STATUS_REJECT = 0x02;
+    private static final int FLAG_HALF_CLOSE = 0x01;
+
+    private static final String[] ALGORITHMS = { null, "hs256", "hs384", "hs512" };
+
+    private RawControlCodec() {
+    }
+
+    /**
+     * Add the decoder and encoder, the tunnel handler goes after them
+     *
+     * @param server Decode the client messages and encode the server ones, or the other way round
+     */
+    public static void addCodec(ChannelPipeline pipeline, boolean server) {
+        pipeline.addLast(new Decoder(server))
+                .addLast(new Encoder(server));
+    }
+
+    /**
+     * Send OPEN so the server sees the stream and says hello, before any other message of the client
+     */
+    public static ChannelFuture writeOpen(Channel ch) {
+        return ch.writeAndFlush(ch.alloc().buffer(1).writeByte(OPEN));
+    }
+
+    // Bytes to ControlMessage, removed after the connect request or the response so the rest passes as is
+    private static final class Decoder extends ByteToMessageDecoder {
+        private final boolean mServer;
+
+        Decoder(boolean server) {
+            mServer = server;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            ControlMessage msg = mServer ? decodeClient(in) : decodeServer(in);
+            if (msg == null) {
+                return; // Wait for the whole message
+            }
+            out.add(msg);
+            if ("connect".equals(msg.action) || ("response".equals(msg.type) && !"echo".equals(msg.action))) {
+                ctx.pipeline().remove(this);
+            }
+        }
+    }
+
+    // ControlMessage to bytes, the tunnel data passes through untouched
+    private static final class Encoder extends MessageToByteEncoder<ControlMessage> {
+        private final boolean mServer;
+        private boolean mRelaying; // Success response sent, nothing else may go between the data
+
+        Encoder(boolean server) {
+            mServer = server;
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, ControlMessage msg, ByteBuf out) throws Exception {
+            if (mRelaying) {
+                return;
+            }
+            if (mServer) {
+                encodeServer(msg, out);
+                mRelaying = "response".equals(msg.type) && "success".equals(msg.action);
+            } else {
+                encodeClient(msg, out);
+            }
+        }
+    }
+
+    private static ControlMessage decodeServer(ByteBuf in) {
+        int index = in.readerIndex();
+        if (! in.isReadable()) {
+            return null;
+        }
+        ControlMessage msg = new ControlMessage();
+        byte type = in.getByte(index);
+        switch (type) {
+        case HELLO: {
+            if (in.writerIndex() < index + 4) {
+                return null;
+            }
+            int version = in.getUnsignedByte(index + 1);
+            if (version != VERSION) {
+                throw new CorruptedFrameException("Unsupported version " + version);
+            }
+            int algorithm = in.getUnsignedByte(index + 2);
+            int nonceLength = in.getUnsignedByte(index + 3);
+            if (in.writerIndex() < index + 4 + nonceLength) {
+                return null;
+            }
+            msg.type = "hello";
+            if (algorithm != 0) {
+                msg.action = (algorithm < ALGORITHMS.length) ? ALGORITHMS[algorithm] : "0x" + Integer.toHexString(algorithm);
+                msg.token = base64(in, index + 4, nonceLength);
+            }
+            in.readerIndex(index + 4 + nonceLength);
+            return msg;
+        }
+        case RESPONSE: {
+            if (in.writerIndex() < index + 3) {
+                return null;
+            }
+            int status = in.getUnsignedByte(index + 1);
+            int flags = in.getUnsignedByte(index + 2);
+            msg.type = "response";
+            msg.action = (status == STATUS_SUCCESS) ? "success" : (status == STATUS_REJECT) ? "reject" : "failure";
+            msg.halfClose = ((flags & FLAG_HALF_CLOSE) != 0) ? Boolean.TRUE : null;
+            in.readerIndex(index + 3);
+            return msg;
+        }
+        case DRAIN:
+            msg.type = "drain";
+            in.skipBytes(1);
+            return msg;
+        case ECHO_RESPONSE:
+            msg.type = "response";
+            msg.action = "echo";
+            in.skipBytes(1);
+            return msg;
+        default:
+            throw new CorruptedFrameException("Unknown message 0x" + Integer.toHexString(type & 0xFF));
+        }
+    }
+
+    private static ControlMessage decodeClient(ByteBuf in) {
+        int index = in.readerIndex();
+        if (! in.isReadable()) {
+            return null;
+        }
+        ControlMessage msg = new ControlMessage();
+        byte type = in.getByte(index);
+        switch (type) {
+        case OPEN:
+            in.skipBytes(1);
+            return null; // Nothing to pass on, the hello was sent already
+        case CONNECT: {
+            int userIndex = index + 2;
+            if (in.writerIndex() < userIndex + 1) {
+                return null;
+            }
+            int userLength = in.getUnsignedByte(userIndex);
+            int addressIndex = userIndex + 1 + userLength;
+            if (in.writerIndex() < addressIndex + 1) {
+                return null;
+            }
+            int addressLength = in.getUnsignedByte(addressIndex);
+            int portIndex = addressIndex + 1 + addressLength;
+            int tokenIndex = portIndex + 2;
+            if (in.writerIndex() < tokenIndex + 1) {
+                return null;
+            }
+            int tokenLength = in.getUnsignedByte(tokenIndex);
+            int end = tokenIndex + 1 + tokenLength;
+            if (in.writerIndex() < end) {
+                return null;
+            }
+            int flags = in.getUnsignedByte(index + 1);
+            msg.type = "request";
+            msg.action = "connect";
+            msg.halfClose = ((flags & FLAG_HALF_CLOSE) != 0) ? Boolean.TRUE : null;
+            msg.user = (userLength > 0) ? in.toString(userIndex + 1, userLength, StandardCharsets.UTF_8) : null;
+            msg.address = in.toString(addressIndex + 1, addressLength, StandardCharsets.UTF_8);
+            msg.port = in.getUnsignedShort(portIndex);
+            msg.token = (tokenLength > 0) ? base64(in, tokenIndex + 1, tokenLength) : null;
+            in.readerIndex(end);
+            return msg;
+        }
+        case ECHO:
+            msg.type = "request";
+            msg.action = "echo";
+            in.skipBytes(1);
+            return msg;
+        default:
+            throw new CorruptedFrameException("Unknown message 0x" + Integer.toHexString(type & 0xFF));
+        }
+    }
+
+    private static void encodeServer(ControlMessage msg, ByteBuf out) {
+        if ("hello".equals(msg.type)) {
+            byte[] nonce = (msg.token != null) ? Base64.getDecoder().decode(msg.token) : new byte[0];
+            out.writeByte(HELLO)
+                    .writeByte(VERSION)
+                    .writeByte(algorithm(msg.action))
+                    .writeByte(length(nonce.length, "nonce"))
+                    .writeBytes(nonce);
+        } else if ("response".equals(msg.type) && "echo".equals(msg.action)) {
+            out.writeByte(ECHO_RESPONSE);
+        } else if ("response".equals(msg.type)) {
+            int status = "success".equals(msg.action) ? STATUS_SUCCESS
+                    : "reject".equals(msg.action) ? STATUS_REJECT : STATUS_FAILURE;
+            out.writeByte(RESPONSE)
+                    .writeByte(status)
+                    .writeByte(Boolean.TRUE.equals(msg.halfClose) ? FLAG_HALF_CLOSE : 0);
+        } else if ("drain".equals(msg.type)) {
+            out.writeByte(DRAIN);
+        } else {
+            throw new EncoderException("Not supported message " + msg.type);
+        }
+    }
+
+    private static void encodeClient(ControlMessage msg, ByteBuf out) {
+        if ("request".equals(msg.type) && "connect".equals(msg.action)) {
+            byte[] token = (msg.token != null) ? Base64.getDecoder().decode(msg.token) : new byte[0];
+            out.writeByte(CONNECT)
+                    .writeByte(Boolean.TRUE.equals(msg.halfClose) ? FLAG_HALF_CLOSE : 0);
+            writeString(out, msg.user, "user");
+            writeString(out, msg.address, "address");
+            out.writeShort(msg.port)
+                    .writeByte(length(token.length, "token"))
+                    .writeBytes(token);
+        } else if ("request".equals(msg.type) && "echo".equals(msg.action)) {
+            out.writeByte(ECHO);
+        } else {
+            throw new EncoderException("Not supported message " + msg.type);
+        }
+    }
+
+    private static int algorithm(String name) {
+        for (int i = 1; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        if (name != null) {
+            throw new EncoderException("Not supported algorithm " + name);
+        }
+        return 0;
+    }
+
+    private static void writeString(ByteBuf out, String value, String name) {
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(length(ByteBufUtil.utf8Bytes(value), name));
+        ByteBufUtil.writeUtf8(out, value);
+    }
+
+    private static int length(int length, String name) {
+        if (length > 0xFF) {
+            throw new EncoderException(name + " longer than 255 bytes");
+        }
+        return length;
+    }
+
+    private static String base64(ByteBuf in, int index, int length) {
+        byte[] bytes = new byte[length];
+        in.getBytes(index, bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
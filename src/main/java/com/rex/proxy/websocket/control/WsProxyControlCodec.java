@@ -1,6 +1,7 @@
 package com.rex.proxy.websocket.control;
 
 import com.google.gson.Gson;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
@@ -10,18 +11,23 @@ import java.util.List;
 /**
  * Codec to convert inbound TextWebSocketFrame as ControlMessage
  * And convert outbound ControlMessage as TextWebSocketFrame
+ *
+ * Stateless, use the INSTANCE shared by all the channels, Gson caches its type adapters per instance
  */
+@ChannelHandler.Sharable
 public class WsProxyControlCodec extends MessageToMessageCodec<TextWebSocketFrame, ControlMessage> {
 
-    private final Gson mCodec = new Gson();
+    public static final WsProxyControlCodec INSTANCE = new WsProxyControlCodec();
+
+    private static final Gson sCodec = new Gson(); // Thread safe
 
     @Override
     protected void encode(ChannelHandlerContext ctx, ControlMessage msg, List<Object> out) throws Exception {
-        out.add(new TextWebSocketFrame(mCodec.toJson(msg)));
+        out.add(new TextWebSocketFrame(sCodec.toJson(msg)));
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, TextWebSocketFrame msg, List<Object> out) throws Exception {
-        out.add(mCodec.fromJson(msg.text(), ControlMessage.class));
+        out.add(sCodec.fromJson(msg.text(), ControlMessage.class));
     }
 }
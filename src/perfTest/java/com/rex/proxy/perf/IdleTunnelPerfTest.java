@@ -0,0 +1,235 @@
+package com.rex.proxy.perf;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Footprint of idle tunnels, open many tunnels over loopback and keep them idle, then check the heap retained
+ * and the direct memory used per tunnel against the budget
+ *
+ * socket client <-> WslLocal (socks5) <-> WslServer (websocket) <-> sink
+ *
+ * Every tunnel holds 6 sockets in this process, the client, the two ends of each hop and the sink, and each
+ * loopback address has about 28k ephemeral ports, so the hops spread over 127.0.0.1 to 127.0.0.N. By default it
+ * opens as many as the file descriptor limit and the heap allow, up to 100k, which need 'ulimit -n 700000' and
+ * '-PperfMaxHeap=4g'. A count set by '-PperfIdleTunnels' is skipped when the limits are too low for it.
+ */
+public class IdleTunnelPerfTest {
+
+    private static final int MAX_TUNNELS = 100000;
+    private static final int MIN_TUNNELS = 1000; // Fewer by default are mostly the fixed costs
+    private static final int RESERVED_FILES = 1000; // Descriptors of the JVM, gradle worker and the servers
+    private static final int PORTS_PER_ADDRESS = 20000; // Below the ephemeral port range of a destination
+    private static final int THREADS = 8;
+    private static final int SAMPLES = 100; // Tunnels to check still relaying after idle
+    private static final long HEAP_BUDGET = 14 << 10; // Bytes per tunnel, all 6 sockets included, 18KB before the handlers shared
+    private static final long DIRECT_BUDGET = 1 << 10; // Bytes per tunnel
+
+    @ChannelHandler.Sharable
+    private static final class Echo extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    private static PerfRecorder sRecorder;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sRecorder = PerfRecorder.open();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        sRecorder.close();
+    }
+
+    @Test
+    public void testIdleTunnels() throws Exception {
+        long maxFiles = maxFileDescriptors();
+        long fit = Runtime.getRuntime().maxMemory() / (2 * HEAP_BUDGET);
+        if (maxFiles >= 0) {
+            fit = Math.min(fit, (maxFiles - RESERVED_FILES) / 6);
+        }
+        Integer configured = Integer.getInteger("perf.idleTunnels");
+        final int count = (configured != null) ? configured : (int) Math.min(fit, MAX_TUNNELS);
+        Assume.assumeTrue("File descriptor limit " + maxFiles + " and heap " + Runtime.getRuntime().maxMemory()
+                        + "B too low for " + Math.max(count, MIN_TUNNELS) + " tunnels",
+                (configured != null) ? fit >= count : count >= MIN_TUNNELS);
+
+        final int addresses = (count + PORTS_PER_ADDRESS - 1) / PORTS_PER_ADDRESS;
+        EventLoopGroup sinkGroup = new NioEventLoopGroup(1);
+        Channel sink = new ServerBootstrap()
+                .group(sinkGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new Echo())
+                .bind("0.0.0.0", 0)
+                .sync()
+                .channel();
+        final int sinkPort = ((InetSocketAddress) sink.localAddress()).getPort();
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration("0.0.0.0", 0))
+                .start();
+        WslLocal.Configuration localConf = new WslLocal.Configuration("0.0.0.0", 0, new URI("ws://127.0.0.1:" + server.port() + "/"), null);
+        localConf.proxyUris = new ArrayList<>();
+        for (int i = 2; i <= addresses; i++) {
+            localConf.proxyUris.add(new URI("ws://127.0.0." + i + ":" + server.port() + "/"));
+        }
+        localConf.proxyBalance = "roundRobin";
+        final WslLocal local = new WslLocal()
+                .config(localConf)
+                .start();
+
+        final SocketChannel[] tunnels = new SocketChannel[count];
+        try {
+            // Warm up the handshake path and the allocator thread caches
+            for (int i = 0; i < 100; i++) {
+                socksConnect(1, local.port(), 1, sinkPort).close();
+            }
+
+            long heap = PerfUtils.usedHeap();
+            long direct = usedDirectMemory();
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int i;
+                            while (error.get() == null && (i = next.getAndIncrement()) < count) {
+                                int address = i % addresses + 1;
+                                tunnels[i] = socksConnect(address, local.port(), address, sinkPort);
+                            }
+                        } catch (Throwable tr) {
+                            error.set(tr);
+                        }
+                    }
+                }, "perf-idle-open"));
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(error.get());
+            long elapsed = System.nanoTime() - start;
+            heap = PerfUtils.usedHeap() - heap;
+            direct = usedDirectMemory() - direct;
+
+            // Idle tunnels still relay
+            ByteBuffer message = ByteBuffer.allocate(64);
+            ByteBuffer reply = ByteBuffer.allocate(64);
+            for (int i = 0; i < count; i += Math.max(1, count / SAMPLES)) {
+                message.clear();
+                reply.clear();
+                tunnels[i].write(message);
+                while (reply.hasRemaining() && tunnels[i].read(reply) >= 0) {
+                    // Read until the whole echo came back
+                }
+                assertFalse(reply.hasRemaining());
+            }
+
+            sRecorder.record("idleOpenPerSec", count / (elapsed / 1e9), true, "tunnels/s");
+            sRecorder.record("idleHeapPerTunnelBytes", (double) heap / count, false, "B");
+            assertTrue("Heap per tunnel " + heap / count + "B", heap / count <= HEAP_BUDGET);
+            assertTrue("Direct memory per tunnel " + direct / count + "B", direct / count <= DIRECT_BUDGET);
+        } finally {
+            for (SocketChannel tunnel : tunnels) {
+                if (tunnel != null) {
+                    tunnel.close();
+                }
+            }
+            local.stop();
+            server.stop();
+            sink.close().sync();
+            sinkGroup.shutdownGracefully().sync();
+        }
+    }
+
+    // Socks5 CONNECT to 127.0.0.dstAddress:dstPort through the socks server on 127.0.0.socksAddress:socksPort
+    private static SocketChannel socksConnect(int socksAddress, int socksPort, int dstAddress, int dstPort) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0." + socksAddress, socksPort));
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        try {
+            write(channel, new byte[] { 0x05, 0x01, 0x00 }); // NO_AUTH
+            read(channel, buffer, 2);
+            write(channel, new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, (byte) dstAddress, (byte) (dstPort >> 8), (byte) dstPort });
+            read(channel, buffer, 10);
+            if (buffer.get(1) != 0x00) {
+                throw new IOException("Socks connect failed with status " + buffer.get(1));
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    private static void write(SocketChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void read(SocketChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Socks server closed");
+            }
+        }
+    }
+
+    // Direct memory of the netty allocators not using the cleaner plus the NIO direct buffers
+    private static long usedDirectMemory() {
+        long used = Math.max(0, PlatformDependent.usedDirectMemory());
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long maxFileDescriptors() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) bean).getMaxFileDescriptorCount();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,114 @@
+package com.rex.proxy.perf;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stored baseline of the performance regression suite
+ *
+ * {
+ *   "tolerance": 0.5,
+ *   "metrics": {
+ *     "throughputMBps": { "value": 50.0, "higherIsBetter": true },
+ *     "latencyP99Micros": { "value": 800.0, "tolerance": 1.0 }
+ *   }
+ * }
+ *
+ * A metric regressed when it is worse than value * (1 +/- tolerance)
+ * Metric level tolerance overwrite the global one, for the noisy metrics
+ */
+public class PerfBaseline {
+
+    private static final double DEFAULT_TOLERANCE = 0.5;
+
+    public static class Metric {
+        public Double value;
+        public Boolean higherIsBetter; // Default lower is better
+        public Double tolerance;
+        public String unit;
+    }
+
+    public Double tolerance;
+    public Map<String, Metric> metrics = new TreeMap<>();
+
+    public static PerfBaseline load(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return new PerfBaseline();
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            PerfBaseline baseline = new Gson().fromJson(reader, PerfBaseline.class);
+            if (baseline.metrics == null) {
+                baseline.metrics = new TreeMap<>();
+            }
+            return baseline;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        Gson gson = new GsonBuilder()
+                .setPrettyPrinting()
+                .create();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            gson.toJson(this, writer);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Update the stored value of metric, keep the direction and tolerance settings
+     */
+    public void update(String name, double value, boolean higherIsBetter, String unit) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = new Metric();
+            metrics.put(name, metric);
+        }
+        metric.value = value;
+        metric.higherIsBetter = higherIsBetter ? Boolean.TRUE : null;
+        metric.unit = unit;
+    }
+
+    /**
+     * Compare the measured value with baseline
+     *
+     * @param override Tolerance specified from command-line, null to use the stored one
+     * @return Description of the regression, or null if within tolerance or no baseline recorded
+     */
+    public String check(String name, double value, Double override) {
+        Metric metric = metrics.get(name);
+        if (metric == null || metric.value == null) {
+            return null;
+        }
+        double tol = (override != null) ? override :
+                (metric.tolerance != null) ? metric.tolerance :
+                (tolerance != null) ? tolerance : DEFAULT_TOLERANCE;
+        boolean higherIsBetter = Boolean.TRUE.equals(metric.higherIsBetter);
+        double limit = higherIsBetter ? metric.value * (1 - tol) : metric.value * (1 + tol);
+        boolean regressed = higherIsBetter ? value < limit : value > limit;
+        if (!regressed) {
+            return null;
+        }
+        return String.format("%s regressed: %.2f%s, baseline %.2f%s, limit %.2f%s (tolerance %.0f%%)",
+                name,
+                value, unitOf(metric),
+                metric.value, unitOf(metric),
+                limit, unitOf(metric),
+                tol * 100);
+    }
+
+    private static String unitOf(Metric metric) {
+        return (metric.unit != null) ? metric.unit : "";
+    }
+}
@@ -0,0 +1,67 @@
+package com.rex.proxy.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Results of one performance test class, checked against the stored baseline or recorded into it
+ *
+ * Configured by the system properties of the perfTest task: perf.baseline, perf.tolerance and perf.updateBaseline.
+ * Open it before the tests of the class and close it after them, the classes run one after another and each
+ * saves the baseline it loaded with its own results updated.
+ */
+public class PerfRecorder {
+
+    private final File mBaselineFile;
+    private final PerfBaseline mBaseline;
+    private final Double mTolerance;
+    private final boolean mUpdateBaseline;
+    private final Map<String, Double> mResults = new TreeMap<>();
+
+    private PerfRecorder(File baselineFile, PerfBaseline baseline, Double tolerance, boolean updateBaseline) {
+        mBaselineFile = baselineFile;
+        mBaseline = baseline;
+        mTolerance = tolerance;
+        mUpdateBaseline = updateBaseline;
+    }
+
+    public static PerfRecorder open() throws IOException {
+        String path = System.getProperty("perf.baseline");
+        File file = (path != null) ? new File(path) : null;
+        String tolerance = System.getProperty("perf.tolerance");
+        return new PerfRecorder(file, PerfBaseline.load(file),
+                (tolerance != null) ? Double.valueOf(tolerance) : null,
+                Boolean.getBoolean("perf.updateBaseline"));
+    }
+
+    /**
+     * Print the result, fail the test if it regressed past the tolerance, or update the baseline with it
+     */
+    public void record(String name, double value, boolean higherIsBetter, String unit) {
+        System.out.printf("perf %s = %.2f %s%n", name, value, unit);
+        mResults.put(name, value);
+        if (mUpdateBaseline) {
+            mBaseline.update(name, value, higherIsBetter, unit);
+            return;
+        }
+        String regression = mBaseline.check(name, value, mTolerance);
+        if (regression != null) {
+            fail(regression);
+        }
+    }
+
+    /**
+     * Print all the results, save the baseline if updating
+     */
+    public void close() throws IOException {
+        System.out.println("perf results " + mResults);
+        if (mUpdateBaseline && mBaselineFile != null && !mResults.isEmpty()) {
+            mBaseline.save(mBaselineFile);
+            System.out.println("perf baseline updated " + mBaselineFile);
+        }
+    }
+}
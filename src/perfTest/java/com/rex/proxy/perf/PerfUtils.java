@@ -0,0 +1,101 @@
+package com.rex.proxy.perf;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Helpers shared by the performance tests
+ */
+public final class PerfUtils {
+
+    private PerfUtils() {
+    }
+
+    /**
+     * Open a socks5 CONNECT tunnel to 127.0.0.1:dstPort through the socks server listen on 127.0.0.1:socksPort
+     */
+    public static Socket socksConnect(int socksPort, int dstPort) throws IOException {
+        Socket socket = new Socket();
+        socket.setSoTimeout(10000); // milliseconds 10s
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("127.0.0.1", socksPort));
+
+        OutputStream output = socket.getOutputStream();
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        byte[] buffer = new byte[10];
+
+        // Socks5InitialRequest NO_AUTH
+        output.write(new byte[] { 0x05, 0x01, 0x00 });
+        input.readFully(buffer, 0, 2); // 05 00
+
+        // Socks5CommandRequest CONNECT 127.0.0.1:dstPort
+        output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (dstPort >> 8), (byte) dstPort });
+        input.readFully(buffer, 0, 10); // 05 00 00 01 00 00 00 00 00 00
+        if (buffer[1] != 0x00) {
+            socket.close();
+            throw new IOException("Socks connect failed with status " + buffer[1]);
+        }
+        return socket;
+    }
+
+    /**
+     * @param sorted Samples in ascending order
+     * @param percentile In range [0, 100]
+     */
+    public static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int idx = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    public static long percentileOf(long[] samples, double percentile) {
+        long[] sorted = Arrays.copyOf(samples, samples.length);
+        Arrays.sort(sorted);
+        return percentile(sorted, percentile);
+    }
+
+    /**
+     * Total bytes allocated by all live threads, -1 if the JVM does not support it
+     */
+    public static long allocatedBytes() {
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        if (!(mxBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mxBean;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Used heap after a few rounds of GC, good enough to compare retained memory before and after
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,383 @@
+package com.rex.proxy.perf;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import com.rex.proxy.loop.EventLoops;
+import com.rex.proxy.utils.EchoServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end performance regression suite
+ *
+ * socket client <-> WslLocal (socks5) <-> WslServer (websocket) <-> EchoServer (sink)
+ *
+ * Every metric is compared with the baseline stored in src/perfTest/resources/perf-baseline.json,
+ * the test fails when the metric regressed past the tolerance
+ */
+public class WslPerfTest {
+
+    private static final int THROUGHPUT_BYTES = 32 << 20; // 32MB
+    private static final int THROUGHPUT_CHUNK = 16 << 10; // 16KB
+    private static final int LATENCY_WARMUP = 1000;
+    private static final int LATENCY_ROUNDS = 5000;
+    private static final int LATENCY_MESSAGE = 64;
+    private static final int CONNECTIONS = 200;
+    private static final int SKEWED_LOOPS = 3;
+    private static final int SKEWED_BULK = 2;
+    private static final int SKEWED_ROUNDS = 2000;
+    private static final double SKEWED_GAIN = 0.5; // Least-loaded p99 at most this ratio of round-robin
+    private static final int ACCEPT_THREADS = 4;
+    private static final int ACCEPT_CONNECTIONS = 500; // Per thread
+    private static final long PUMP_TIMEOUT = 60000; // Milliseconds the reader may lag behind the writer
+
+    private static EchoServer sSink;
+    private static WslServer sServer;
+    private static WslLocal sLocal;
+
+    private static PerfRecorder sRecorder;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sRecorder = PerfRecorder.open();
+
+        sSink = new EchoServer()
+                .port(0)
+                .start();
+        sServer = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0))
+                .start();
+        sLocal = new WslLocal()
+                .config(new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + sServer.port() + "/"), null))
+                .start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        sLocal.stop();
+        sServer.stop();
+        sSink.stop();
+
+        sRecorder.close();
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        try (Socket socket = PerfUtils.socksConnect(sLocal.port(), sSink.port())) {
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+
+            // Warm up the tunnel, let the allocator caches and JIT settle
+            pump(socket, THROUGHPUT_BYTES / 8, error);
+
+            long allocated = PerfUtils.allocatedBytes();
+            long start = System.nanoTime();
+            pump(socket, THROUGHPUT_BYTES, error);
+            long elapsed = System.nanoTime() - start;
+            allocated = (allocated < 0) ? -1 : PerfUtils.allocatedBytes() - allocated;
+            assertNull(error.get());
+
+            double mb = THROUGHPUT_BYTES / (double) (1 << 20);
+            record("throughputMBps", mb / (elapsed / 1e9), true, "MB/s");
+            if (allocated >= 0) {
+                record("allocBytesPerMB", allocated / mb, false, "B");
+            }
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        try (Socket socket = PerfUtils.socksConnect(sLocal.port(), sSink.port())) {
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] message = new byte[LATENCY_MESSAGE];
+            byte[] reply = new byte[LATENCY_MESSAGE];
+
+            for (int i = 0; i < LATENCY_WARMUP; i++) {
+                output.write(message);
+                input.readFully(reply);
+            }
+
+            long[] samples = new long[LATENCY_ROUNDS];
+            for (int i = 0; i < LATENCY_ROUNDS; i++) {
+                long start = System.nanoTime();
+                output.write(message);
+                input.readFully(reply);
+                samples[i] = System.nanoTime() - start;
+            }
+            record("latencyP99Micros", PerfUtils.percentileOf(samples, 99) / 1e3, false, "us");
+        }
+    }
+
+    @Test
+    public void testConnection() throws Exception {
+        // Use WSS to make the per-connection TLS setup cost visible
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0,
+                        ClassLoader.getSystemResource("test.cert.pem").getFile(),
+                        ClassLoader.getSystemResource("test.key.p8.pem").getFile()))
+                .start();
+        WslLocal local = new WslLocal()
+                .config(new WslLocal.Configuration("127.0.0.1", 0, new URI("wss://127.0.0.1:" + server.port() + "/"), null))
+                .start();
+
+        List<Socket> sockets = new ArrayList<>(CONNECTIONS);
+        try {
+            // Warm up the handshake path
+            for (int i = 0; i < 20; i++) {
+                PerfUtils.socksConnect(local.port(), sSink.port()).close();
+            }
+
+            long heap = PerfUtils.usedHeap();
+            long[] samples = new long[CONNECTIONS];
+            byte[] buffer = new byte[1];
+            for (int i = 0; i < CONNECTIONS; i++) {
+                long start = System.nanoTime();
+                Socket socket = PerfUtils.socksConnect(local.port(), sSink.port());
+                socket.getOutputStream().write(buffer);
+                assertEquals(1, socket.getInputStream().read(buffer));
+                samples[i] = System.nanoTime() - start;
+                sockets.add(socket);
+            }
+            heap = PerfUtils.usedHeap() - heap;
+
+            record("tunnelOpenP99Millis", PerfUtils.percentileOf(samples, 99) / 1e6, false, "ms");
+            record("memoryPerTunnelKB", heap / 1024.0 / CONNECTIONS, false, "KB");
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            local.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSkewedLatency() throws Exception {
+        double roundRobin = skewedLatency("roundRobin");
+        double leastLoaded = skewedLatency("leastLoaded");
+        record("skewedP99MicrosRoundRobin", roundRobin, false, "us");
+        record("skewedP99MicrosLeastLoaded", leastLoaded, false, "us");
+        assertTrue("least-loaded p99 " + leastLoaded + "us not below " + SKEWED_GAIN + " of round-robin " + roundRobin + "us",
+                leastLoaded < roundRobin * SKEWED_GAIN);
+    }
+
+    // Open a bulk tunnel then an idle one per other loop, in turn, round-robin piles all the bulk ones and the probe
+    // on the same loop, least-loaded leaves a loop without bulk, then measure the round trip latency of the probe
+    private static double skewedLatency(String chooser) throws Exception {
+        WslServer.Configuration serverConf = new WslServer.Configuration("127.0.0.1", 0);
+        serverConf.loopThreads = SKEWED_LOOPS;
+        serverConf.loopChooser = chooser;
+        WslServer server = new WslServer()
+                .config(serverConf)
+                .start();
+        WslLocal.Configuration localConf = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + server.port() + "/"), null);
+        localConf.loopThreads = SKEWED_LOOPS;
+        localConf.loopChooser = chooser;
+        WslLocal local = new WslLocal()
+                .config(localConf)
+                .start();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Socket> sockets = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < SKEWED_BULK; i++) {
+                Socket bulk = PerfUtils.socksConnect(local.port(), sSink.port());
+                sockets.add(bulk);
+                threads.addAll(bulk(bulk, running));
+                Thread.sleep(1500); // Let the monitor sample the bulk traffic
+                for (int n = 1; n < SKEWED_LOOPS; n++) {
+                    sockets.add(PerfUtils.socksConnect(local.port(), sSink.port())); // Idle
+                }
+            }
+
+            try (Socket probe = PerfUtils.socksConnect(local.port(), sSink.port())) {
+                OutputStream output = probe.getOutputStream();
+                DataInputStream input = new DataInputStream(probe.getInputStream());
+                byte[] message = new byte[LATENCY_MESSAGE];
+                byte[] reply = new byte[LATENCY_MESSAGE];
+                long[] samples = new long[SKEWED_ROUNDS];
+                for (int i = 0; i < SKEWED_ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    output.write(message);
+                    input.readFully(reply);
+                    samples[i] = System.nanoTime() - start;
+                }
+                return PerfUtils.percentileOf(samples, 99) / 1e3;
+            }
+        } finally {
+            running.set(false);
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            local.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAcceptRate() throws Exception {
+        record("acceptPerSec", acceptRate(false), true, "conn/s");
+        if (EventLoops.isEpollAvailable()) {
+            record("acceptPerSecReusePort", acceptRate(true), true, "conn/s");
+        }
+    }
+
+    // Connection storm against the socks listener, every connection completes the socks greeting then closes
+    private static double acceptRate(boolean reusePort) throws Exception {
+        WslLocal.Configuration conf = new WslLocal.Configuration("127.0.0.1", 0);
+        conf.reusePort = reusePort;
+        final WslLocal local = new WslLocal()
+                .config(conf)
+                .start();
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < ACCEPT_THREADS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] reply = new byte[2];
+                    try {
+                        ready.await();
+                        for (int n = 0; n < ACCEPT_CONNECTIONS; n++) {
+                            try (Socket socket = new Socket("127.0.0.1", local.port())) {
+                                socket.setSoTimeout(10000);
+                                socket.getOutputStream().write(new byte[] { 0x05, 0x01, 0x00 });
+                                new DataInputStream(socket.getInputStream()).readFully(reply);
+                            }
+                        }
+                    } catch (Throwable tr) {
+                        error.set(tr);
+                    }
+                }
+            }, "perf-accept"));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            long start = System.nanoTime();
+            ready.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            assertNull(error.get());
+            return ACCEPT_THREADS * ACCEPT_CONNECTIONS / (elapsed / 1e9);
+        } finally {
+            local.stop();
+        }
+    }
+
+    // Keep writing to the tunnel and draining the echo until stopped
+    private static List<Thread> bulk(final Socket socket, final AtomicBoolean running) {
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[THROUGHPUT_CHUNK];
+                try {
+                    OutputStream output = socket.getOutputStream();
+                    while (running.get()) {
+                        output.write(chunk);
+                    }
+                } catch (Exception ex) {
+                    // Closed
+                }
+            }
+        }, "perf-bulk-writer"));
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[THROUGHPUT_CHUNK];
+                try {
+                    while (running.get() && socket.getInputStream().read(buffer) >= 0) {
+                        // Drain
+                    }
+                } catch (Exception ex) {
+                    // Closed
+                }
+            }
+        }, "perf-bulk-reader"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        return threads;
+    }
+
+    // Write total bytes from current thread, read back the echo from another thread
+    // A failed reader closes the socket, the writer blocked on full buffers fails instead of hanging the run
+    private static void pump(final Socket socket, final int total, final AtomicReference<Throwable> error) throws Exception {
+        final DataInputStream input = new DataInputStream(socket.getInputStream());
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[THROUGHPUT_CHUNK];
+                int remain = total;
+                try {
+                    while (remain > 0) {
+                        int len = input.read(buffer, 0, Math.min(buffer.length, remain));
+                        if (len < 0) {
+                            throw new IllegalStateException("Unexpected EOF, remain " + remain);
+                        }
+                        remain -= len;
+                    }
+                } catch (Throwable tr) {
+                    error.set(tr);
+                    closeQuietly(socket);
+                }
+            }
+        }, "perf-reader");
+        reader.start();
+
+        byte[] chunk = new byte[THROUGHPUT_CHUNK];
+        try {
+            OutputStream output = socket.getOutputStream();
+            for (int sent = 0; sent < total; sent += chunk.length) {
+                output.write(chunk, 0, Math.min(chunk.length, total - sent));
+            }
+        } catch (IOException ex) {
+            if (error.get() == null) {
+                error.set(ex);
+            }
+        } finally {
+            reader.join(PUMP_TIMEOUT);
+            if (reader.isAlive()) {
+                error.compareAndSet(null, new IllegalStateException("Reader timed out"));
+                closeQuietly(socket);
+                reader.join();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Closed anyway
+        }
+    }
+
+    private static void record(String name, double value, boolean higherIsBetter, String unit) {
+        sRecorder.record(name, value, higherIsBetter, unit);
+    }
+}
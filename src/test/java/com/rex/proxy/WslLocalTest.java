@@ -1,5 +1,6 @@
 package com.rex.proxy;
 
+import com.rex.proxy.loop.EventLoops;
 import com.rex.proxy.utils.EchoServer;
 import io.netty.handler.codec.socksx.v5.Socks5AddressType;
 import okhttp3.OkHttpClient;
@@ -7,16 +8,26 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Assume;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -383,6 +394,41 @@ public class WslLocalTest {
     }
 
     // Test works as socks proxy with large data transfer
+    @Test
+    public void testShapeTunnelDownload() throws Exception {
+        byte[] body = new byte[128 * 1024];
+        new Random().nextBytes(body);
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody(new okio.Buffer().write(body)));
+        server.start();
+
+        WslLocal.Configuration conf = new WslLocal.Configuration(0);
+        conf.shapeTunnelDownload = 32 * 1024L; // 32KB/s
+        WslLocal local = new WslLocal()
+                .config(conf)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .readTimeout(Duration.ofSeconds(30))
+                .build();
+        Request request = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .build();
+
+        long start = System.currentTimeMillis();
+        Response response = client
+                .newCall(request)
+                .execute();
+        assertArrayEquals(body, response.body().bytes());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Download should be shaped, elapsed " + elapsed + "ms", elapsed >= 2000);
+
+        // Shutdown everything
+        local.stop();
+        server.shutdown();
+    }
+
     @Test
     public void testSocksProxyLargeData() throws Exception {
         StringBuffer sb = new StringBuffer();
@@ -473,6 +519,246 @@ public class WslLocalTest {
         server.close();
     }
 
+    // Test tunnels fail over to the live upstream when another one is down
+    @Test
+    public void testWsProxyFailover() throws Exception {
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 6; i++) {
+            server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        }
+        server.start();
+
+        WslServer remote = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0))
+                .start();
+        ServerSocket dead = new ServerSocket(0); // Reserve a port nobody accepts on
+        int deadPort = dead.getLocalPort();
+        dead.close();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + deadPort + "/"), null);
+        localConfig.proxyUris = Collections.singletonList(new URI("ws://127.0.0.1:" + remote.port() + "/"));
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        for (int i = 0; i < 6; i++) {
+            Request request = new Request.Builder()
+                    .url(new URL("http://127.0.0.1:" + server.getPort()))
+                    .header("Connection", "close") // New tunnel each time
+                    .build();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals("HelloWorld!", response.body().string());
+            }
+        }
+        assertTrue(local.metrics().value("upstream.retry") > 0);
+        assertTrue(local.metrics().value("upstream.0.failure") > 0);
+        assertEquals(0, local.metrics().value("upstream.1.failure"));
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+        server.shutdown();
+    }
+
+    // Test the socks client gets failure response quickly when every upstream is down
+    @Test
+    public void testWsProxyAllDown() throws Exception {
+        ServerSocket dead = new ServerSocket(0);
+        int deadPort = dead.getLocalPort();
+        dead.close();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + deadPort + "/"), null);
+        localConfig.proxyRetries = 0;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("127.0.0.1", local.port())) {
+                socket.setSoTimeout(5000);
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                output.write(new byte[] { 0x05, 0x01, 0x00 }); // No auth
+                assertEquals(0x05, input.read());
+                assertEquals(0x00, input.read());
+                output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0x00, 0x50 }); // CONNECT 127.0.0.1:80
+                assertEquals(0x05, input.read());
+                assertEquals(0x01, input.read()); // General failure
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+        // Circuit opened after 3 failures, the rest failed fast without connecting
+        assertEquals(3, local.metrics().value("upstream.0.failure"));
+        assertEquals(1, local.metrics().value("upstream.0.circuit"));
+        assertEquals(2, local.metrics().value("upstream.unavailable"));
+
+        local.stop();
+    }
+
+    // Test split routing, direct rule bypasses the dead upstream and block rule refuses the request
+    @Test
+    public void testRoute() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        server.start();
+        ServerSocket dead = new ServerSocket(0);
+        int deadPort = dead.getLocalPort();
+        dead.close();
+
+        File rules = File.createTempFile("route", ".txt");
+        rules.deleteOnExit();
+        Files.write(rules.toPath(), Arrays.asList(
+                "cidr,127.0.0.0/8,direct",
+                "port,25,block"), StandardCharsets.UTF_8);
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + deadPort + "/"), null);
+        localConfig.routeFile = rules.getPath();
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        Request request = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals("HelloWorld!", response.body().string());
+        }
+
+        try (Socket socket = new Socket("127.0.0.1", local.port())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(new byte[] { 0x05, 0x01, 0x00 }); // No auth
+            assertEquals(0x05, input.read());
+            assertEquals(0x00, input.read());
+            output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 10, (byte) 255, (byte) 255, 1, 0x00, 25 }); // CONNECT 10.255.255.1:25
+            assertEquals(0x05, input.read());
+            assertEquals(0x02, input.read()); // Not allowed by ruleset
+        }
+        assertEquals(1, local.metrics().value("route.direct"));
+        assertEquals(1, local.metrics().value("route.block"));
+        assertEquals(0, local.metrics().value("upstream.0.failure"));
+
+        // Shutdown everything
+        local.stop();
+        server.shutdown();
+    }
+
+    // Test both sides bind one acceptor per event loop with SO_REUSEPORT
+    @Test
+    public void testWsProxyReusePort() throws Exception {
+        Assume.assumeTrue(EventLoops.isEpollAvailable());
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 8; i++) {
+            server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        }
+        server.start();
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.loopThreads = 2;
+        remoteConfig.reusePort = true;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.loopThreads = 2;
+        localConfig.reusePort = true;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        for (int i = 0; i < 8; i++) {
+            Request request = new Request.Builder()
+                    .url(new URL("http://127.0.0.1:" + server.getPort()))
+                    .header("Connection", "close") // New tunnel each time
+                    .build();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals("HelloWorld!", response.body().string());
+            }
+        }
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+        server.shutdown();
+    }
+
+    // Test zero-downtime restart, new server bind the same port before the old one drains
+    @Test
+    public void testWsProxyDrain() throws Exception {
+        Assume.assumeTrue(EventLoops.isEpollAvailable());
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 2; i++) {
+            server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        }
+        server.start();
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.loopThreads = 1;
+        remoteConfig.reusePort = true;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        // Keep alive tunnel to the old server
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        Request request = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals("HelloWorld!", response.body().string());
+        }
+
+        remoteConfig.bindPort = remote.port();
+        WslServer remote2 = new WslServer()
+                .config(remoteConfig)
+                .start();
+        io.netty.util.concurrent.Future<Void> drained = remote.drain(1000);
+        for (int i = 0; i < 50 && local.metrics().value("upstream.drain") < 1; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, local.metrics().value("upstream.drain"));
+        assertEquals(1, local.metrics().value("upstream.draining"));
+        assertFalse(drained.isDone());
+
+        // New tunnel goes to the new server
+        Request request2 = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .header("Connection", "close")
+                .build();
+        OkHttpClient client2 = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        try (Response response = client2.newCall(request2).execute()) {
+            assertEquals("HelloWorld!", response.body().string());
+        }
+
+        // Old server stopped after the deadline, the idle tunnel force closed
+        assertTrue(drained.await(5000));
+
+        // Shutdown everything
+        local.stop();
+        remote2.stop();
+        server.shutdown();
+    }
+
     // Test WsProxyLocal connect TLS WsProxyServer with self-signed certificate
     @Test
     public void testWssProxyIgnoreCert() throws Exception {
@@ -559,4 +845,466 @@ public class WslLocalTest {
         proxy.stop();
         server.close();
     }
+
+    // Test FIN passes through the direct relay, the other direction keeps running
+    @Test
+    public void testHalfClose() throws Exception {
+        WslLocal proxy = new WslLocal()
+                .config(new WslLocal.Configuration(0))
+                .start();
+
+        verifyHalfClose(proxy.port());
+
+        // Shutdown everything
+        proxy.stop();
+    }
+
+    // Test FIN passes through the websocket tunnel, the other direction keeps running
+    @Test
+    public void testWsProxyHalfClose() throws Exception {
+        WslServer remote = new WslServer();
+        remote.start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration();
+        localConfig.bindPort = 0; // auto select port
+        localConfig.proxyUri = new URI("ws://127.0.0.1:" + remote.port() + "/");
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        verifyHalfClose(local.port());
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+    }
+
+    // Test both sides ping the tunnel and measure the round trip time
+    @Test
+    public void testWsProxyKeepalive() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.keepaliveInterval = 1;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.keepaliveInterval = 1;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        // Tunnel stays open without any data
+        Socket client = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted = server.accept();
+        Thread.sleep(2500);
+        assertTrue(local.metrics().value("keepalive.tunnel.pings") >= 2);
+        assertTrue(remote.metrics().value("keepalive.tunnel.pings") >= 2);
+        assertTrue(local.metrics().value("keepalive.tunnel.rtt.micros") > 0);
+        assertTrue(remote.metrics().value("keepalive.tunnel.rtt.micros") > 0);
+        assertTrue(local.metrics().value("upstream.0.rtt.micros") > 0);
+        assertEquals(0, local.metrics().value("keepalive.tunnel.dead"));
+        assertEquals(0, remote.metrics().value("keepalive.tunnel.dead"));
+
+        // Tunnel still works
+        client.getOutputStream().write("HelloWorld!".getBytes());
+        byte[] buffer = new byte[11];
+        new DataInputStream(accepted.getInputStream()).readFully(buffer);
+        assertEquals("HelloWorld!", new String(buffer, StandardCharsets.UTF_8));
+
+        // Shutdown everything
+        client.close();
+        accepted.close();
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    @Test
+    public void testWsProxyHttp2() throws Exception {
+        ServerSocket server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.http2 = true;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.proxyHttp2 = true;
+        localConfig.loopThreads = 1;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        // Tunnels open at the same time share one connection
+        Socket[] clients = new Socket[4];
+        Socket[] accepted = new Socket[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = socksConnect(local.port(), server.getLocalPort());
+            accepted[i] = server.accept();
+        }
+        assertEquals(1, local.metrics().value("upstream.0.h2.connections"));
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].getOutputStream().write(("Hello" + i).getBytes());
+            byte[] buffer = new byte[6];
+            new DataInputStream(accepted[i].getInputStream()).readFully(buffer);
+            assertEquals("Hello" + i, new String(buffer, StandardCharsets.UTF_8));
+            accepted[i].getOutputStream().write(("World" + i).getBytes());
+            new DataInputStream(clients[i].getInputStream()).readFully(buffer);
+            assertEquals("World" + i, new String(buffer, StandardCharsets.UTF_8));
+        }
+
+        // Closing a tunnel resets its stream only
+        clients[0].close();
+        assertEquals(-1, accepted[0].getInputStream().read());
+        clients[1].getOutputStream().write("Again!".getBytes());
+        byte[] buffer = new byte[6];
+        new DataInputStream(accepted[1].getInputStream()).readFully(buffer);
+        assertEquals("Again!", new String(buffer, StandardCharsets.UTF_8));
+        assertEquals(1, local.metrics().value("upstream.0.h2.connections"));
+
+        // HTTP/1.1 clients still served on the same port
+        WslLocal local1 = new WslLocal()
+                .config(new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null))
+                .start();
+        Socket client1 = socksConnect(local1.port(), server.getLocalPort());
+        Socket accepted1 = server.accept();
+        client1.getOutputStream().write("Http/1!".getBytes());
+        buffer = new byte[7];
+        new DataInputStream(accepted1.getInputStream()).readFully(buffer);
+        assertEquals("Http/1!", new String(buffer, StandardCharsets.UTF_8));
+        client1.close();
+        accepted1.close();
+        local1.stop();
+
+        // New upstreams by reload, tunnels open on a new connection and the old one is closed
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].close();
+            accepted[i].close();
+        }
+        WslLocal.Configuration reloadConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        reloadConfig.proxyHttp2 = true;
+        reloadConfig.proxyBalance = "leastActive";
+        reloadConfig.loopThreads = 1;
+        local.reload(reloadConfig);
+        assertEquals(0, local.metrics().value("upstream.0.h2.connections"));
+        Socket client2 = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted2 = server.accept();
+        client2.getOutputStream().write("Reload".getBytes());
+        buffer = new byte[6];
+        new DataInputStream(accepted2.getInputStream()).readFully(buffer);
+        assertEquals("Reload", new String(buffer, StandardCharsets.UTF_8));
+        assertEquals(1, local.metrics().value("upstream.0.h2.connections"));
+
+        // Shutdown everything
+        client2.close();
+        accepted2.close();
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    @Test
+    public void testWssProxyHttp2() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        server.start();
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0,
+                ClassLoader.getSystemResource("test.cert.pem").getFile(),
+                ClassLoader.getSystemResource("test.key.p8.pem").getFile());
+        remoteConfig.http2 = true;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("wss://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.proxyCertVerify = false;
+        localConfig.proxyHttp2 = true;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        URLConnection conn = new URL("http://127.0.0.1:" + server.getPort() + "/")
+                .openConnection(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())));
+        HttpURLConnection httpConn = (HttpURLConnection) conn;
+        assertEquals(200, httpConn.getResponseCode());
+        byte[] bytes = new byte[httpConn.getContentLength()];
+        new DataInputStream(httpConn.getInputStream()).readFully(bytes);
+        assertEquals("HelloWorld!", new String(bytes, StandardCharsets.UTF_8));
+        assertEquals(1, local.metrics().value("upstream.0.h2.connections")); // Negotiated h2 by ALPN
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    @Test
+    public void testWsProxyHttp2Fallback() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        // Server without http2 answers HTTP/1.1 only
+        WslServer remote = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0))
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.proxyHttp2 = true;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        Socket client = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted = server.accept();
+        client.getOutputStream().write("HelloWorld!".getBytes());
+        byte[] buffer = new byte[11];
+        new DataInputStream(accepted.getInputStream()).readFully(buffer);
+        assertEquals("HelloWorld!", new String(buffer, StandardCharsets.UTF_8));
+        assertEquals(0, local.metrics().value("upstream.0.h2.connections"));
+        assertEquals(0, local.metrics().value("upstream.0.failure")); // Not counted against the circuit breaker
+
+        // Shutdown everything
+        client.close();
+        accepted.close();
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    // Test the raw transport over TCP, signed by proxyUid, FIN passes through
+    @Test
+    public void testTcpProxy() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.transport = "raw";
+        remoteConfig.proxyUid = "c5c7c9d7-051c-4356-b133-0d04ba6a0a41";
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal local = new WslLocal()
+                .config(new WslLocal.Configuration("127.0.0.1", 0, new URI("tcp://127.0.0.1:" + remote.port()), remoteConfig.proxyUid))
+                .start();
+
+        Socket client = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted = server.accept();
+        client.getOutputStream().write("HelloWorld!".getBytes());
+        byte[] buffer = new byte[11];
+        new DataInputStream(accepted.getInputStream()).readFully(buffer);
+        assertEquals("HelloWorld!", new String(buffer, StandardCharsets.UTF_8));
+        accepted.getOutputStream().write("WorldHello!".getBytes());
+        new DataInputStream(client.getInputStream()).readFully(buffer);
+        assertEquals("WorldHello!", new String(buffer, StandardCharsets.UTF_8));
+        client.close();
+        accepted.close();
+
+        verifyHalfClose(local.port());
+
+        // Wrong secret rejected
+        WslLocal wrong = new WslLocal()
+                .config(new WslLocal.Configuration("127.0.0.1", 0, new URI("tcp://127.0.0.1:" + remote.port()), "wrong"))
+                .start();
+        try {
+            socksConnect(wrong.port(), server.getLocalPort());
+            fail("Tunnel with wrong secret should fail");
+        } catch (AssertionError | IOException ex) {
+            // Refused
+        }
+
+        // Shutdown everything
+        wrong.stop();
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    // Test the raw transport over TLS, probed by echo
+    @Test
+    public void testTlsProxy() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        server.start();
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0,
+                ClassLoader.getSystemResource("test.cert.pem").getFile(),
+                ClassLoader.getSystemResource("test.key.p8.pem").getFile());
+        remoteConfig.transport = "raw";
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("tls://127.0.0.1:" + remote.port()), null);
+        localConfig.proxyCertVerify = false;
+        localConfig.proxyHealthInterval = 1000L; // Probe timeout too, the first JDK TLS handshakes are slow
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        URLConnection conn = new URL("http://127.0.0.1:" + server.getPort() + "/")
+                .openConnection(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())));
+        HttpURLConnection httpConn = (HttpURLConnection) conn;
+        assertEquals(200, httpConn.getResponseCode());
+        byte[] bytes = new byte[httpConn.getContentLength()];
+        new DataInputStream(httpConn.getInputStream()).readFully(bytes);
+        assertEquals("HelloWorld!", new String(bytes, StandardCharsets.UTF_8));
+        Thread.sleep(1000);
+        assertTrue(local.metrics().value("upstream.0.rtt.micros") > 0);
+        assertEquals(0, local.metrics().value("upstream.0.failure"));
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    // Test the tunnels as QUIC streams, on the UDP port of the same number as the websocket one
+    @Test
+    public void testQuicProxy() throws Exception {
+        ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0,
+                ClassLoader.getSystemResource("test.cert.pem").getFile(),
+                ClassLoader.getSystemResource("test.key.p8.pem").getFile());
+        remoteConfig.quic = true;
+        remoteConfig.proxyUid = "c5c7c9d7-051c-4356-b133-0d04ba6a0a41";
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("quic://127.0.0.1:" + remote.port()), remoteConfig.proxyUid);
+        localConfig.proxyCertVerify = false;
+        localConfig.proxyHealthInterval = 200L;
+        localConfig.loopThreads = 1; // All the tunnels on one connection
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        // Two tunnels at the same time, each its own stream
+        Socket client1 = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted1 = server.accept();
+        Socket client2 = socksConnect(local.port(), server.getLocalPort());
+        Socket accepted2 = server.accept();
+        client2.getOutputStream().write("HelloWorld!".getBytes());
+        client1.getOutputStream().write("WorldHello!".getBytes());
+        byte[] buffer = new byte[11];
+        new DataInputStream(accepted2.getInputStream()).readFully(buffer);
+        assertEquals("HelloWorld!", new String(buffer, StandardCharsets.UTF_8));
+        new DataInputStream(accepted1.getInputStream()).readFully(buffer);
+        assertEquals("WorldHello!", new String(buffer, StandardCharsets.UTF_8));
+        accepted1.getOutputStream().write("WorldHello!".getBytes());
+        new DataInputStream(client1.getInputStream()).readFully(buffer);
+        assertEquals("WorldHello!", new String(buffer, StandardCharsets.UTF_8));
+        assertEquals(1, local.metrics().value("upstream.0.quic.connections"));
+        client1.close();
+        accepted1.close();
+        client2.close();
+        accepted2.close();
+
+        verifyHalfClose(local.port());
+        Thread.sleep(500);
+        assertTrue(local.metrics().value("upstream.0.rtt.micros") > 0);
+        assertEquals(0, local.metrics().value("upstream.0.failure"));
+
+        // Wrong secret rejected
+        WslLocal.Configuration wrongConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("quic://127.0.0.1:" + remote.port()), "wrong");
+        wrongConfig.proxyCertVerify = false;
+        WslLocal wrong = new WslLocal()
+                .config(wrongConfig)
+                .start();
+        try {
+            socksConnect(wrong.port(), server.getLocalPort());
+            fail("Tunnel with wrong secret should fail");
+        } catch (AssertionError | IOException ex) {
+            // Refused
+        }
+
+        // Shutdown everything
+        wrong.stop();
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
+    private static void verifyHalfClose(int socksPort) throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        // Client sends the request and FIN, then reads the response until the server closed
+        ServerSocket server = halfCloseServer(false, received);
+        Socket client = socksConnect(socksPort, server.getLocalPort());
+        client.getOutputStream().write("HelloWorld!".getBytes());
+        client.shutdownOutput();
+        assertEquals("Got HelloWorld!", readAll(client.getInputStream()));
+        assertEquals("HelloWorld!", received.poll(5, TimeUnit.SECONDS));
+        client.close();
+        server.close();
+
+        // Server sends FIN first, client still writes to it
+        server = halfCloseServer(true, received);
+        client = socksConnect(socksPort, server.getLocalPort());
+        assertEquals("Hello!", readAll(client.getInputStream()));
+        client.getOutputStream().write("World!".getBytes());
+        client.shutdownOutput();
+        assertEquals("World!", received.poll(5, TimeUnit.SECONDS));
+        client.close();
+        server.close();
+    }
+
+    // Serve one connection, reply after the FIN of the client, or send FIN first and read until the client's
+    private static ServerSocket halfCloseServer(final boolean finFirst, final BlockingQueue<String> received) throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(5000);
+                    if (finFirst) {
+                        socket.getOutputStream().write("Hello!".getBytes());
+                        socket.shutdownOutput();
+                        received.add(readAll(socket.getInputStream()));
+                    } else {
+                        String request = readAll(socket.getInputStream());
+                        received.add(request);
+                        socket.getOutputStream().write(("Got " + request).getBytes());
+                    }
+                } catch (Exception ex) {
+                    received.add(ex.toString());
+                }
+            }
+        }.start();
+        return server;
+    }
+
+    private static Socket socksConnect(int socksPort, int port) throws Exception {
+        Socket client = new Socket();
+        client.setSoTimeout(5000); // milliseconds 5s
+        client.connect(new InetSocketAddress("127.0.0.1", socksPort));
+        DataOutputStream output = new DataOutputStream(client.getOutputStream());
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        byte[] buffer = new byte[10];
+
+        // Socks5InitialRequest and NO_AUTH response
+        output.write(new byte[] { 0x05, 0x01, 0x00 });
+        input.readFully(buffer, 0, 2);
+
+        // Socks5CommandRequest CONNECT 127.0.0.1:port and response
+        output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (port >> 8), (byte) port });
+        input.readFully(buffer, 0, 10);
+        assertEquals(0x00, buffer[1]); // SUCCESS
+        return client;
+    }
+
+    private static String readAll(InputStream input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
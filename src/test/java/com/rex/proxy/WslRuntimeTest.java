@@ -0,0 +1,155 @@
+package com.rex.proxy;
+
+import com.rex.proxy.utils.EchoServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WslRuntimeTest {
+
+    // Test WslLocal and WslServer share one runtime, loops shutdown only after the last reference released
+    @Test
+    public void testShared() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        server.start();
+
+        WslRuntime runtime = new WslRuntime(new WslRuntime.Configuration(2));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.runtime = runtime;
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote.port() + "/"), null);
+        localConfig.runtime = runtime;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+        assertEquals(3, runtime.refCnt());
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+        Request request = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals("HelloWorld!", response.body().string());
+        }
+
+        local.stop();
+        remote.stop();
+        assertEquals(1, runtime.refCnt());
+        assertFalse(runtime.workerGroup().isShuttingDown());
+
+        // Restart on the same runtime
+        remote.start();
+        remote.stop();
+
+        assertTrue(runtime.release());
+        assertTrue(runtime.terminationFuture().await(10, TimeUnit.SECONDS));
+        assertTrue(runtime.bossGroup().isShuttingDown());
+        server.shutdown();
+    }
+
+    // Test stop closes the tunnels of its instance only, the loops of a shared runtime keep the others running
+    @Test
+    public void testStopShared() throws Exception {
+        EchoServer echo = new EchoServer()
+                .port(8007)
+                .start();
+        WslRuntime runtime = new WslRuntime(new WslRuntime.Configuration(2));
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration("127.0.0.1", 0);
+        remoteConfig.runtime = runtime;
+        WslServer remote1 = new WslServer().config(remoteConfig).start();
+        WslServer remote2 = new WslServer().config(remoteConfig).start();
+
+        WslLocal.Configuration localConfig1 = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote1.port() + "/"), null);
+        localConfig1.runtime = runtime;
+        WslLocal local1 = new WslLocal().config(localConfig1).start();
+        WslLocal.Configuration localConfig2 = new WslLocal.Configuration("127.0.0.1", 0, new URI("ws://127.0.0.1:" + remote2.port() + "/"), null);
+        localConfig2.runtime = runtime;
+        WslLocal local2 = new WslLocal().config(localConfig2).start();
+
+        Socket tunnel1 = socksConnect(local1.port(), 8007);
+        Socket tunnel2 = socksConnect(local2.port(), 8007);
+        assertEcho(tunnel1);
+        assertEcho(tunnel2);
+
+        // Tunnel through the stopped server closed, the other one still relays
+        remote1.stop();
+        assertEquals(-1, tunnel1.getInputStream().read());
+        assertEcho(tunnel2);
+        assertEquals(0, remote1.metrics().value("tunnel.active"));
+
+        // Same for the stopped local
+        local2.stop();
+        assertEquals(-1, tunnel2.getInputStream().read());
+        for (int i = 0; i < 50 && remote2.metrics().value("tunnel.active") > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, remote2.metrics().value("tunnel.active"));
+        assertEquals(3, runtime.refCnt());
+
+        tunnel1.close();
+        tunnel2.close();
+        local1.stop();
+        remote2.stop();
+        assertTrue(runtime.release());
+        echo.stop();
+    }
+
+    private static Socket socksConnect(int socksPort, int port) throws IOException {
+        Socket client = new Socket();
+        client.setSoTimeout(5000);
+        client.connect(new InetSocketAddress("127.0.0.1", socksPort));
+        OutputStream output = client.getOutputStream();
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        byte[] buffer = new byte[10];
+        output.write(new byte[] { 0x05, 0x01, 0x00 });
+        input.readFully(buffer, 0, 2);
+        output.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 0x7f, 0x00, 0x00, 0x01, (byte) (port >> 8), (byte) port });
+        input.readFully(buffer, 0, 10);
+        assertEquals(0x00, buffer[1]); // SUCCESS
+        return client;
+    }
+
+    private static void assertEcho(Socket socket) throws IOException {
+        byte[] buffer = new byte[11];
+        socket.getOutputStream().write("HelloWorld!".getBytes());
+        new DataInputStream(socket.getInputStream()).readFully(buffer);
+        assertEquals("HelloWorld!", new String(buffer));
+    }
+
+    // Test private runtime shutdown on stop
+    @Test
+    public void testPrivate() throws Exception {
+        WslServer remote = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0))
+                .start();
+        int threads = Thread.activeCount();
+        remote.stop();
+        for (int i = 0; i < 50 && Thread.activeCount() >= threads; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(Thread.activeCount() < threads);
+    }
+}
@@ -5,6 +5,7 @@ import com.rex.proxy.utils.AllowAllHostnameVerifier;
 import com.rex.proxy.utils.EchoServer;
 import com.rex.proxy.utils.X509TrustAllManager;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
+import com.rex.proxy.websocket.control.ControlAuthenticator;
 import com.rex.proxy.websocket.control.ControlMessage;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
@@ -13,7 +14,9 @@ import okhttp3.mockwebserver.MockWebServer;
 import okio.ByteString;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,12 +25,17 @@ import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -39,6 +47,9 @@ public class WslServerTest {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WslServerTest.class);
 
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
     @Test
     public void testConfigPort() throws Exception {
         final int port = 1234;
@@ -525,6 +536,446 @@ public class WslServerTest {
         echoServer.stop();
     }
 
+    @Test
+    public void testHandshakeLimit() throws Exception {
+        WslServer.Configuration conf = new WslServer.Configuration(0);
+        conf.limitHandshakeRate = 0.01;
+        conf.limitHandshakeBurst = 1;
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+
+        // First request pass the limit and go to websocket handshake, got 400 Bad Request as not a valid upgrade
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + server.port() + "/")
+                .openConnection();
+        assertEquals(400, conn.getResponseCode());
+
+        // Second request should be rejected before handshake
+        conn = (HttpURLConnection) new URL("http://127.0.0.1:" + server.port() + "/")
+                .openConnection();
+        assertEquals(429, conn.getResponseCode());
+        assertEquals(1, server.metrics().value("admission.reject.handshake"));
+
+        server.stop();
+    }
+
+    @Test
+    public void testTunnelLimit() throws Exception {
+        Gson gson = new Gson();
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        WslServer.Configuration conf = new WslServer.Configuration(0);
+        conf.limitTunnels = 1;
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+
+        ControlMessage req = new ControlMessage();
+        req.type = "request";
+        req.action = "connect";
+        req.address = "127.0.0.1";
+        req.port = httpServer.getPort();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        Request request = new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build();
+
+        // First tunnel occupy the only slot
+        WebSocketListener listener1 = mock(WebSocketListener.class);
+        WebSocket ws1 = client.newWebSocket(request, listener1);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws1), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+        ws1.send(gson.toJson(req));
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws1), respTextMsg.capture());
+        assertEquals("success", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+        assertEquals(1, server.metrics().value("tunnel.active"));
+
+        // Second tunnel should be rejected by capacity
+        WebSocketListener listener2 = mock(WebSocketListener.class);
+        WebSocket ws2 = client.newWebSocket(request, listener2);
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+        ws2.send(gson.toJson(req));
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("reject", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+        assertEquals(1, server.metrics().value("admission.reject.capacity"));
+
+        ws1.close(1000, "Normal Closure");
+        ws2.close(1000, "Normal Closure");
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testConnectTwice() throws Exception {
+        Gson gson = new Gson();
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration(0))
+                .start();
+
+        ControlMessage req = new ControlMessage();
+        req.type = "request";
+        req.action = "connect";
+        req.address = "127.0.0.1";
+        req.port = httpServer.getPort();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        Request request = new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build();
+        WebSocketListener listener = mock(WebSocketListener.class);
+        WebSocket ws = client.newWebSocket(request, listener);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+        ws.send(gson.toJson(req));
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws), respTextMsg.capture());
+        assertEquals("success", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+        assertEquals(1, server.metrics().value("tunnel.active"));
+
+        // Second connect on the same websocket is rejected and the connection closed
+        ws.send(gson.toJson(req));
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis())).onClosing(eq(ws), anyInt(), anyString());
+        ws.close(1000, "Normal Closure");
+        for (int i = 0; i < 100 && server.metrics().value("tunnel.active") > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.metrics().value("tunnel.active"));
+
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        Gson gson = new Gson();
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration(0))
+                .start();
+        int port = server.port();
+
+        ControlMessage req = new ControlMessage();
+        req.type = "request";
+        req.action = "connect";
+        req.address = "127.0.0.1";
+        req.port = httpServer.getPort();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        Request request = new Request.Builder()
+                .url("ws://127.0.0.1:" + port + "/")
+                .build();
+
+        // First connection with tunnel established
+        WebSocketListener listener1 = mock(WebSocketListener.class);
+        WebSocket ws1 = client.newWebSocket(request, listener1);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws1), respTextMsg.capture());
+        ws1.send(gson.toJson(req));
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws1), respTextMsg.capture());
+        assertEquals("success", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+
+        // Second connection not requested yet
+        WebSocketListener listener2 = mock(WebSocketListener.class);
+        WebSocket ws2 = client.newWebSocket(request, listener2);
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+
+        io.netty.util.concurrent.Future<Void> drained = server.drain(0);
+        assertEquals(1, server.metrics().value("drain.state"));
+        assertEquals(2, server.metrics().value("drain.tunnels"));
+
+        // Both notified, the existing tunnel keeps working
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis()).times(3)).onMessage(eq(ws1), respTextMsg.capture());
+        assertEquals("drain", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("drain", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+        httpServer.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        ws1.send(ByteString.of("GET / HTTP/1.1\r\n\r\n".getBytes()));
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis()).atLeastOnce()).onMessage(eq(ws1), any(ByteString.class));
+        assertTrue(server.metrics().value("drain.bytes") > 0);
+
+        // New tunnel rejected and new connection refused
+        ws2.send(gson.toJson(req));
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis()).times(3)).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("reject", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+        try {
+            new java.net.Socket("127.0.0.1", port).close();
+            fail("Should not accept new connection");
+        } catch (java.net.ConnectException ex) {
+            // Expected
+        }
+        assertFalse(drained.isDone());
+
+        // Stopped once the last tunnel closed
+        ws1.close(1000, "Normal Closure");
+        assertTrue(drained.await(5000));
+        assertTrue(drained.isSuccess());
+        assertEquals(0, server.metrics().value("drain.tunnels"));
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testDrainTimeout() throws Exception {
+        Gson gson = new Gson();
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration(0))
+                .start();
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        WebSocketListener listener = spy(new WebSocketListener() {
+            @Override
+            public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+                closed.countDown();
+            }
+            @Override
+            public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, Response response) {
+                closed.countDown();
+            }
+        });
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        Request request = new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build();
+        WebSocket ws = client.newWebSocket(request, listener);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+
+        // Connection force closed after the deadline
+        assertTrue(server.drain(200).await(5000));
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        Gson gson = new Gson();
+        WslServer.Configuration conf = new WslServer.Configuration("127.0.0.1", 0);
+        conf.idleTunnelTimeout = 1;
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        WebSocketListener listener = spy(new WebSocketListener() {
+            @Override
+            public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+                closed.countDown();
+            }
+            @Override
+            public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, Response response) {
+                closed.countDown();
+            }
+        });
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        WebSocket ws = client.newWebSocket(new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build(), listener);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws), respTextMsg.capture());
+        assertEquals("hello", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).type);
+
+        // Dead client never requested a tunnel, reclaimed after the timeout
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, server.metrics().value("idle.tunnel.closed"));
+        server.stop();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        Gson gson = new Gson();
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        WslServer server = new WslServer()
+                .config(new WslServer.Configuration("127.0.0.1", 0))
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        Request request = new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build();
+
+        WebSocketListener listener1 = mock(WebSocketListener.class);
+        WebSocket ws1 = client.newWebSocket(request, listener1);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws1), respTextMsg.capture());
+        assertNull(gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+
+        // Enable auth and path, listener port not changed
+        WslServer.Configuration conf = new WslServer.Configuration();
+        conf.proxyUid = UUID.randomUUID().toString();
+        conf.proxyPath = "/proxy";
+        int port = server.port();
+        server.reload(conf);
+        assertEquals(port, server.port());
+        assertEquals(1, server.metrics().value("config.reload"));
+
+        // New connection use the new configuration
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/")
+                .openConnection();
+        assertEquals(404, conn.getResponseCode());
+        WebSocketListener listener2 = mock(WebSocketListener.class);
+        WebSocket ws2 = client.newWebSocket(new Request.Builder()
+                .url("ws://127.0.0.1:" + port + "/proxy")
+                .build(), listener2);
+        verify(listener2, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws2), respTextMsg.capture());
+        assertEquals("hs256", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+
+        // Existing connection keeps the old one, no auth required
+        ControlMessage req = new ControlMessage();
+        req.type = "request";
+        req.action = "connect";
+        req.address = "127.0.0.1";
+        req.port = httpServer.getPort();
+        ws1.send(gson.toJson(req));
+        verify(listener1, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws1), respTextMsg.capture());
+        assertEquals("success", gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action);
+
+        ws1.close(1000, "Normal Closure");
+        ws2.close(1000, "Normal Closure");
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testAcl() throws Exception {
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        File rules = mFolder.newFile("acl.txt");
+        Files.write(rules.toPath(), Collections.singletonList("cidr,127.0.0.0/8,deny"), StandardCharsets.UTF_8);
+        WslServer.Configuration conf = new WslServer.Configuration("127.0.0.1", 0);
+        conf.aclFile = rules.getPath();
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort()));
+        assertEquals("reject", connect(server, "localhost", httpServer.getPort())); // Denied by the resolved address
+        assertEquals(2, server.metrics().value("acl.deny"));
+
+        // Allow by name on reload
+        Files.write(rules.toPath(), Arrays.asList("domain,localhost,allow", "cidr,127.0.0.0/8,deny"), StandardCharsets.UTF_8);
+        server.reload(conf);
+        assertEquals("success", connect(server, "localhost", httpServer.getPort()));
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort()));
+        assertEquals(1, server.metrics().value("acl.allow"));
+
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testProxyUsers() throws Exception {
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        File users = mFolder.newFile("users.txt");
+        Files.write(users.toPath(), Arrays.asList("alice,secret-a", "bob,secret-b"), StandardCharsets.UTF_8);
+        WslServer.Configuration conf = new WslServer.Configuration("127.0.0.1", 0);
+        conf.proxyUsers = users.getPath();
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+
+        assertEquals("success", connect(server, "127.0.0.1", httpServer.getPort(), "alice", "secret-a"));
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort(), "bob", "secret-a"));
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort(), "carol", "secret-a"));
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort(), null, "secret-a"));
+        assertEquals(1, server.metrics().value("user.alice.tunnels"));
+        assertEquals(0, server.metrics().value("user.bob.tunnels"));
+
+        // Revoke alice on reload
+        Files.write(users.toPath(), Collections.singletonList("bob,secret-b"), StandardCharsets.UTF_8);
+        server.reload(conf);
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort(), "alice", "secret-a"));
+        assertEquals("success", connect(server, "127.0.0.1", httpServer.getPort(), "bob", "secret-b"));
+        assertEquals(1, server.metrics().value("user.bob.tunnels"));
+
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    @Test
+    public void testProxyAuthAlgorithm() throws Exception {
+        MockWebServer httpServer = new MockWebServer();
+        httpServer.start();
+
+        WslServer.Configuration conf = new WslServer.Configuration("127.0.0.1", 0);
+        conf.proxyUid = UUID.randomUUID().toString();
+        conf.proxyAuthAlgorithm = "hs512";
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+        assertEquals("success", connect(server, "127.0.0.1", httpServer.getPort(), null, conf.proxyUid));
+        assertEquals("reject", connect(server, "127.0.0.1", httpServer.getPort(), null, "wrong"));
+
+        // Unsupported algorithm ignored, keep hs512
+        conf.proxyAuthAlgorithm = "md5";
+        server.reload(conf);
+        assertEquals("success", connect(server, "127.0.0.1", httpServer.getPort(), null, conf.proxyUid));
+
+        conf.proxyAuthAlgorithm = "HS384";
+        server.reload(conf);
+        assertEquals("success", connect(server, "127.0.0.1", httpServer.getPort(), null, conf.proxyUid));
+
+        server.stop();
+        httpServer.shutdown();
+    }
+
+    private static String connect(WslServer server, String address, int port) {
+        return connect(server, address, port, null, null);
+    }
+
+    // Open a tunnel, return the action of the response
+    private static String connect(WslServer server, String address, int port, String user, String secret) {
+        Gson gson = new Gson();
+        OkHttpClient client = new OkHttpClient.Builder()
+                .build();
+        WebSocketListener listener = mock(WebSocketListener.class);
+        WebSocket ws = client.newWebSocket(new Request.Builder()
+                .url("ws://127.0.0.1:" + server.port() + "/")
+                .build(), listener);
+        ArgumentCaptor<String> respTextMsg = ArgumentCaptor.forClass(String.class);
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis())).onMessage(eq(ws), respTextMsg.capture());
+        ControlMessage hello = gson.fromJson(respTextMsg.getValue(), ControlMessage.class);
+
+        ControlMessage req = new ControlMessage();
+        req.type = "request";
+        req.action = "connect";
+        req.address = address;
+        req.port = port;
+        if (secret != null) {
+            req.user = user;
+            req.token = new ControlAuthBuilder()
+                    .setAlgorithm(ControlAuthenticator.jceName(hello.action))
+                    .setSecret(secret)
+                    .setNonce(hello.token)
+                    .setAddress(address)
+                    .setPort(port)
+                    .build();
+        }
+        ws.send(gson.toJson(req));
+        verify(listener, timeout(Duration.ofSeconds(1).toMillis()).times(2)).onMessage(eq(ws), respTextMsg.capture());
+        ws.close(1000, "Normal Closure");
+        return gson.fromJson(respTextMsg.getValue(), ControlMessage.class).action;
+    }
+
     @Test
     public void testProxyAuthReject() throws Exception {
         Gson gson = new Gson();
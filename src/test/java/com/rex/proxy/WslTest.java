@@ -6,11 +6,15 @@ import okhttp3.mockwebserver.MockWebServer;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.net.*;
 import java.time.Duration;
 import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -58,4 +62,34 @@ public class WslTest {
 
         local.stop();
     }
+
+    @Test
+    public void testConfigWatcher() throws Exception {
+        File file = File.createTempFile("wsl", ".properties");
+        file.deleteOnExit();
+        Properties config = new Properties();
+        config.setProperty("mode", "server");
+        config.setProperty("proxyUid", "alice");
+        try (OutputStream os = new FileOutputStream(file)) {
+            config.store(os, null);
+        }
+
+        ConfigWatcher.Listener listener = mock(ConfigWatcher.Listener.class);
+        ConfigWatcher watcher = new ConfigWatcher(file, config, listener)
+                .start();
+
+        // Not changed
+        assertFalse(watcher.reload());
+
+        config.setProperty("proxyUid", "bob");
+        try (OutputStream os = new FileOutputStream(file)) {
+            config.store(os, null);
+        }
+        ArgumentCaptor<Properties> captor = ArgumentCaptor.forClass(Properties.class);
+        verify(listener, timeout(Duration.ofSeconds(5).toMillis())).onChanged(captor.capture());
+        assertEquals("bob", captor.getValue().getProperty("proxyUid"));
+
+        watcher.stop();
+        file.delete();
+    }
 }
@@ -0,0 +1,119 @@
+package com.rex.proxy.auth;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UserAccountingTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testUserStore() throws Exception {
+        File file = mFolder.newFile("users.txt");
+        Files.write(file.toPath(), Arrays.asList("# Users", "alice, secret1", "bob,secret2 # comment", ""), StandardCharsets.UTF_8);
+        UserStore users = UserStore.load(file, "hs256");
+        assertEquals(2, users.size());
+        assertEquals("alice", users.get("alice").name);
+        assertEquals("hs256", users.get("bob").auth.name());
+        assertNull(users.get("carol"));
+
+        Files.write(file.toPath(), Arrays.asList("alice,secret1", "alice,secret3"), StandardCharsets.UTF_8);
+        try {
+            UserStore.load(file, "hs256");
+            fail("Duplicated user loaded");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(":2 "));
+        }
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        Metrics metrics = new Metrics();
+        UserAccounting accounting = new UserAccounting(null, metrics);
+        EmbeddedChannel ch = new EmbeddedChannel();
+        accounting.add(ch, "alice");
+        ch.writeInbound(Unpooled.wrappedBuffer(new byte[100]));
+        ch.writeOutbound(Unpooled.wrappedBuffer(new byte[300]));
+        assertEquals(1, metrics.value("user.alice.tunnels"));
+        assertEquals(1, metrics.value("user.alice.active"));
+        assertEquals(100, metrics.value("user.alice.upload"));
+        assertEquals(300, metrics.value("user.alice.download"));
+        ch.finishAndReleaseAll();
+        assertEquals(0, metrics.value("user.alice.active"));
+        accounting.stop();
+    }
+
+    @Test
+    public void testPersist() throws Exception {
+        File file = new File(mFolder.getRoot(), "accounting.db");
+        Metrics metrics = new Metrics();
+        UserAccounting accounting = new UserAccounting(file, metrics);
+        for (int i = 0; i < 100; i++) { // Grow beyond the first mapping
+            EmbeddedChannel ch = new EmbeddedChannel();
+            accounting.add(ch, "user" + i);
+            ch.writeInbound(Unpooled.wrappedBuffer(new byte[i]));
+            ch.finishAndReleaseAll();
+            if (i == 10) {
+                accounting.flush();
+            }
+        }
+        accounting.stop();
+
+        // Restart with the totals restored
+        Metrics restarted = new Metrics();
+        accounting = new UserAccounting(file, restarted);
+        assertEquals(1, restarted.value("user.user7.tunnels"));
+        assertEquals(99, restarted.value("user.user99.upload"));
+        assertEquals(0, restarted.value("user.user99.active"));
+        EmbeddedChannel ch = new EmbeddedChannel();
+        accounting.add(ch, "user7");
+        ch.finishAndReleaseAll();
+        accounting.stop();
+        Metrics again = new Metrics();
+        new UserAccounting(file, again).stop();
+        assertEquals(2, again.value("user.user7.tunnels"));
+    }
+
+    @Test
+    public void testStableSlots() throws Exception {
+        File file = new File(mFolder.getRoot(), "accounting.db");
+        UserAccounting accounting = new UserAccounting(file, new Metrics());
+        for (int i = 0; i < 10; i++) {
+            accounting.add(new EmbeddedChannel(), "user" + i);
+        }
+        accounting.flush();
+        byte[] first = Files.readAllBytes(file.toPath());
+
+        // Users keep their slots as others come, only the count and the new slots change
+        for (int i = 10; i < 40; i++) {
+            accounting.add(new EmbeddedChannel(), "user" + i);
+        }
+        accounting.flush();
+        accounting.stop();
+        byte[] second = Files.readAllBytes(file.toPath());
+        assertEquals(40, ByteBuffer.wrap(second).getInt(8));
+        int slots = 16 + 10 * 96;
+        assertArrayEquals(Arrays.copyOfRange(first, 16, slots), Arrays.copyOfRange(second, 16, slots));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupted() throws Exception {
+        File file = mFolder.newFile("accounting.db");
+        Files.write(file.toPath(), "not an accounting file".getBytes(StandardCharsets.UTF_8));
+        new UserAccounting(file, new Metrics());
+    }
+}
@@ -0,0 +1,55 @@
+package com.rex.proxy.buffer;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AllocatorsTest {
+
+    @Test
+    public void testDefault() {
+        assertSame(ByteBufAllocator.DEFAULT, Allocators.newAllocator(null, null, null, null, null));
+    }
+
+    @Test
+    public void testUnpooled() {
+        ByteBufAllocator allocator = Allocators.newAllocator("unpooled", false, null, null, null);
+        assertTrue(allocator instanceof UnpooledByteBufAllocator);
+        assertFalse(allocator.buffer(16).isDirect());
+    }
+
+    @Test
+    public void testPooled() {
+        ByteBufAllocator allocator = Allocators.newAllocator("pooled", true, 1, 64 << 10, false);
+        assertTrue(allocator instanceof PooledByteBufAllocator);
+        PooledByteBufAllocator pooled = (PooledByteBufAllocator) allocator;
+        assertEquals(1, pooled.metric().numDirectArenas());
+        assertEquals(64 << 10, pooled.metric().chunkSize());
+        assertEquals(0, pooled.metric().smallCacheSize());
+
+        Metrics metrics = new Metrics();
+        Allocators.export(allocator, metrics);
+        ByteBuf buf = allocator.buffer(1024);
+        assertTrue(buf.isDirect());
+        assertEquals(1, metrics.value("allocator.active"));
+        assertEquals(1, metrics.value("allocator.direct.arena.0.active"));
+        assertEquals(64 << 10, metrics.value("allocator.direct.used"));
+        buf.release();
+        assertEquals(0, metrics.value("allocator.active"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkSize() {
+        Allocators.newAllocator(null, null, null, 100000, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testType() {
+        Allocators.newAllocator("arena", null, null, null, null);
+    }
+}
@@ -0,0 +1,121 @@
+package com.rex.proxy.buffer;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BdpTunerTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(10); // Ahead of the clock, reads never evaluate
+
+    @Test
+    public void testPolicy() {
+        assertNull(BdpTuner.newPolicy(null, null, null, new Metrics()));
+        assertNull(BdpTuner.attach(new EmbeddedChannel(), new EmbeddedChannel()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBufferInvalid() {
+        BdpTuner.newPolicy(true, 1024, null, new Metrics());
+    }
+
+    @Test
+    public void testGrowAndShrink() {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel tunnel = new EmbeddedChannel();
+        EmbeddedChannel peer = new EmbeddedChannel();
+        tunnel.attr(BdpTuner.POLICY).set(BdpTuner.newPolicy(true, 1 << 20, null, metrics));
+        BdpTuner tuner = BdpTuner.attach(tunnel, peer);
+        assertSame(tuner, peer.attr(BdpTuner.KEY).get());
+
+        // Not tuned before the round trip time measured
+        long now = System.nanoTime() + WINDOW;
+        tuner.evaluate(now, 0);
+        assertEquals(BdpTuner.BASE, tuner.size());
+
+        // One buffer per round trip, limited by the buffer, doubles up to the max
+        for (int i = 0; i < 5; i++) {
+            tuner.onRead(tunnel, (int) (tuner.size() * (WINDOW / RTT)));
+            now += WINDOW;
+            tuner.evaluate(now, RTT);
+        }
+        assertEquals(1 << 20, tuner.size());
+        assertEquals(4, metrics.value("bdp.grow"));
+        assertEquals(2 * ((1 << 20) - BdpTuner.BASE), metrics.value("bdp.memory"));
+        assertEquals(1 << 20, peer.config().getWriteBufferHighWaterMark());
+
+        // Mostly idle, halves after a few windows
+        for (int i = 0; i < 4; i++) {
+            tuner.onRead(peer, 1024);
+            now += WINDOW;
+            tuner.evaluate(now, RTT);
+        }
+        assertEquals(512 << 10, tuner.size());
+        assertEquals(1, metrics.value("bdp.shrink"));
+        assertEquals(256 << 10, tunnel.config().getWriteBufferLowWaterMark());
+
+        tunnel.close();
+        assertEquals(0, metrics.value("bdp.memory"));
+    }
+
+    @Test
+    public void testHandshakeRtt() {
+        BdpTuner.Policy policy = BdpTuner.newPolicy(true, null, null, new Metrics());
+        EmbeddedChannel unknown = new EmbeddedChannel();
+        unknown.attr(BdpTuner.POLICY).set(policy);
+        assertEquals(0, BdpTuner.attach(unknown, new EmbeddedChannel()).rtt());
+
+        // Tuned by the round trip of the handshake while neither keepalive nor kernel measured
+        EmbeddedChannel tunnel = new EmbeddedChannel();
+        tunnel.attr(BdpTuner.POLICY).set(policy);
+        BdpTuner tuner = BdpTuner.attach(tunnel, new EmbeddedChannel(), RTT);
+        assertEquals(RTT, tuner.rtt());
+
+        // Doubles per window by the estimate, even if the bytes in flight are 16 buffers
+        long now = System.nanoTime() + WINDOW;
+        tuner.onRead(tunnel, (int) (16 * BdpTuner.BASE * (WINDOW / RTT)));
+        tuner.evaluate(now, tuner.rtt(), false);
+        assertEquals(2 * BdpTuner.BASE, tuner.size());
+
+        // By the measured round trip time straight to the bytes in flight
+        tuner.onRead(tunnel, (int) (16 * BdpTuner.BASE * (WINDOW / RTT)));
+        tuner.evaluate(now + WINDOW, RTT);
+        assertEquals(32 * BdpTuner.BASE, tuner.size());
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel tunnel = new EmbeddedChannel();
+        EmbeddedChannel peer = new EmbeddedChannel();
+        long limit = 2 * ((256 << 10) - BdpTuner.BASE);
+        peer.attr(BdpTuner.POLICY).set(BdpTuner.newPolicy(true, null, limit, metrics));
+        BdpTuner tuner = BdpTuner.attach(tunnel, peer);
+
+        long now = System.nanoTime() + WINDOW;
+        tuner.evaluate(now, RTT);
+        for (int i = 0; i < 3; i++) {
+            tuner.onRead(peer, (int) (tuner.size() * (WINDOW / RTT)));
+            now += WINDOW;
+            tuner.evaluate(now, RTT);
+        }
+        assertEquals(256 << 10, tuner.size());
+        assertEquals(limit, metrics.value("bdp.memory"));
+        assertEquals(1, metrics.value("bdp.limited"));
+
+        // Another tunnel stays at the base size
+        EmbeddedChannel other = new EmbeddedChannel();
+        other.attr(BdpTuner.POLICY).set(peer.attr(BdpTuner.POLICY).get());
+        BdpTuner second = BdpTuner.attach(other, new EmbeddedChannel());
+        second.evaluate(now, RTT);
+        second.onRead(other, (int) (BdpTuner.BASE * (WINDOW / RTT)));
+        second.evaluate(now + WINDOW, RTT);
+        assertEquals(BdpTuner.BASE, second.size());
+        assertEquals(2, metrics.value("bdp.limited"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.rex.proxy.limit;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OverloadDetectorTest {
+
+    @Test
+    public void testDisabled() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        OverloadDetector detector = new OverloadDetector(group, group.next(), ByteBufAllocator.DEFAULT, null, null, null, new Metrics())
+                .start();
+        assertFalse(detector.isEnabled());
+        assertFalse(detector.shed());
+        detector.stop();
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testHysteresis() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        Metrics metrics = new Metrics();
+        OverloadDetector detector = new OverloadDetector(group, group.next(), ByteBufAllocator.DEFAULT, null, 100, null, metrics);
+
+        detector.update(0, 50, 0);
+        assertFalse(detector.isOverloaded());
+
+        detector.update(0, 101, 0);
+        assertTrue(detector.isOverloaded());
+        assertTrue(detector.shed());
+
+        // Still above recover threshold
+        detector.update(0, 90, 0);
+        assertTrue(detector.isOverloaded());
+
+        detector.update(0, 70, 0);
+        assertFalse(detector.isOverloaded());
+        assertFalse(detector.shed());
+
+        assertEquals(1, metrics.value("overload.enter"));
+        assertEquals(1, metrics.value("overload.shed"));
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testStuckLoop() throws Exception {
+        EventLoopGroup workers = new NioEventLoopGroup(1);
+        EventLoopGroup scheduler = new NioEventLoopGroup(1);
+        OverloadDetector detector = new OverloadDetector(workers, scheduler.next(), ByteBufAllocator.DEFAULT, 50L, null, null, new Metrics());
+
+        // Block the worker loop
+        final CountDownLatch latch = new CountDownLatch(1);
+        workers.next().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        detector.sample(System.nanoTime()); // Submit probe
+        Thread.sleep(100);
+        detector.sample(System.nanoTime()); // Probe still waiting
+        assertTrue(detector.isOverloaded());
+
+        // Unblock and let the probe run
+        latch.countDown();
+        Thread.sleep(100);
+        detector.sample(System.nanoTime()); // Probe completed with lag, submit next
+        Thread.sleep(100);
+        detector.sample(System.nanoTime());
+        assertFalse(detector.isOverloaded());
+
+        workers.shutdownGracefully();
+        scheduler.shutdownGracefully();
+    }
+}
@@ -0,0 +1,66 @@
+package com.rex.proxy.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testBurst() {
+        RateLimiter limiter = new RateLimiter(1, 3);
+        long now = System.nanoTime();
+        assertTrue(limiter.tryAcquire(now));
+        assertTrue(limiter.tryAcquire(now));
+        assertTrue(limiter.tryAcquire(now));
+        assertFalse(limiter.tryAcquire(now));
+    }
+
+    @Test
+    public void testRefill() {
+        RateLimiter limiter = new RateLimiter(10, 1); // 1 permit every 100ms
+        long now = System.nanoTime();
+        assertTrue(limiter.tryAcquire(now));
+        assertFalse(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertFalse(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(150)));
+        assertFalse(limiter.isIdle(now + TimeUnit.MILLISECONDS.toNanos(150)));
+        assertTrue(limiter.isIdle(now + TimeUnit.MILLISECONDS.toNanos(200)));
+    }
+
+    @Test
+    public void testKeyed() {
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(1, 1);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.size());
+
+        limiter.purge(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void testKeyedBounded() {
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(10, 1, 2, 4); // 1 permit every 100ms
+        long now = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire("key" + i, now));
+        }
+        assertEquals(4, limiter.size());
+
+        // Full of busy keys, new keys share one bucket
+        assertTrue(limiter.tryAcquire("new1", now));
+        assertFalse(limiter.tryAcquire("new2", now));
+        assertEquals(4, limiter.size());
+
+        // Idle already, but purged at most once per second
+        assertTrue(limiter.tryAcquire("new3", now + TimeUnit.MILLISECONDS.toNanos(200)));
+        assertEquals(4, limiter.size());
+
+        assertTrue(limiter.tryAcquire("new4", now + TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(1, limiter.size());
+    }
+}
@@ -0,0 +1,129 @@
+package com.rex.proxy.limit;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficShapingTest {
+
+    @Test
+    public void testUnlimited() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        TrafficShaping shaping = new TrafficShaping(group, null, null, null, null, null, null, new Metrics());
+
+        EmbeddedChannel ch = new EmbeddedChannel();
+        shaping.addGlobal(ch);
+        shaping.addUser(ch, "user");
+        shaping.addTunnel(ch);
+        assertNull(ch.pipeline().first());
+
+        shaping.release();
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testShareUserBudget() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        TrafficShaping shaping = new TrafficShaping(group, 1000L, 1000L, 100L, 100L, 10L, 10L, new Metrics());
+
+        EmbeddedChannel ch1 = new EmbeddedChannel();
+        EmbeddedChannel ch2 = new EmbeddedChannel();
+        EmbeddedChannel ch3 = new EmbeddedChannel();
+        for (EmbeddedChannel ch : new EmbeddedChannel[] { ch1, ch2, ch3 }) {
+            shaping.addGlobal(ch);
+            shaping.addTunnel(ch);
+        }
+        shaping.addUser(ch1, "alice");
+        shaping.addUser(ch2, "alice");
+        shaping.addUser(ch3, "bob");
+
+        // Global and user level share the handler, tunnel level use its own
+        assertSame(ch1.pipeline().get("shapingGlobal"), ch3.pipeline().get("shapingGlobal"));
+        assertSame(ch1.pipeline().get("shapingUser"), ch2.pipeline().get("shapingUser"));
+        assertNotSame(ch1.pipeline().get("shapingUser"), ch3.pipeline().get("shapingUser"));
+        assertNotSame(ch1.pipeline().get("shapingTunnel"), ch2.pipeline().get("shapingTunnel"));
+
+        // Add twice should not duplicate
+        ChannelHandler handler = ch1.pipeline().get("shapingTunnel");
+        shaping.addTunnel(ch1);
+        assertSame(handler, ch1.pipeline().get("shapingTunnel"));
+
+        for (EmbeddedChannel ch : new EmbeddedChannel[] { ch1, ch2, ch3 }) {
+            ch.close();
+        }
+        shaping.release();
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testUpdate() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        TrafficShaping shaping = new TrafficShaping(group, null, null, 100L, 100L, null, null, new Metrics());
+
+        EmbeddedChannel ch1 = new EmbeddedChannel();
+        shaping.addGlobal(ch1);
+        shaping.addUser(ch1, "alice");
+        shaping.addTunnel(ch1);
+        assertNull(ch1.pipeline().get("shapingGlobal"));
+        assertNull(ch1.pipeline().get("shapingTunnel"));
+
+        shaping.update(1000L, 1000L, 200L, 200L, 10L, 10L);
+
+        // Shared user budget follows the new limits
+        GlobalTrafficShapingHandler user = (GlobalTrafficShapingHandler) ch1.pipeline().get("shapingUser");
+        assertEquals(200L, user.getWriteLimit());
+        assertEquals(200L, user.getReadLimit());
+
+        // Global and tunnel limits apply to new connections
+        assertNull(ch1.pipeline().get("shapingGlobal"));
+        EmbeddedChannel ch2 = new EmbeddedChannel();
+        shaping.addGlobal(ch2);
+        shaping.addTunnel(ch2);
+        assertNotNull(ch2.pipeline().get("shapingGlobal"));
+        assertEquals(10L, ((ChannelTrafficShapingHandler) ch2.pipeline().get("shapingTunnel")).getWriteLimit());
+
+        ch1.close();
+        ch2.close();
+        shaping.release();
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void testReleaseUser() {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        Metrics metrics = new Metrics();
+        TrafficShaping shaping = new TrafficShaping(group, null, null, 100L, 100L, null, null, metrics);
+
+        EmbeddedChannel ch1 = new EmbeddedChannel();
+        EmbeddedChannel ch2 = new EmbeddedChannel();
+        shaping.addUser(ch1, "alice");
+        shaping.addUser(ch2, "alice");
+        shaping.addUser(ch1, "alice"); // Counted once per channel
+        assertEquals(1, metrics.value("shaping.users"));
+        ChannelHandler handler = ch1.pipeline().get("shapingUser");
+
+        // Kept while any connection of the user open
+        ch1.close();
+        assertEquals(1, metrics.value("shaping.users"));
+        ch2.close();
+        assertEquals(0, metrics.value("shaping.users"));
+
+        // A new connection gets a new budget
+        EmbeddedChannel ch3 = new EmbeddedChannel();
+        shaping.addUser(ch3, "alice");
+        assertNotNull(ch3.pipeline().get("shapingUser"));
+        assertNotSame(handler, ch3.pipeline().get("shapingUser"));
+        assertEquals(1, metrics.value("shaping.users"));
+
+        ch3.close();
+        shaping.release();
+        group.shutdownGracefully();
+    }
+}
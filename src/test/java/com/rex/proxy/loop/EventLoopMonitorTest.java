@@ -0,0 +1,75 @@
+package com.rex.proxy.loop;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorChooserFactory;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EventLoopMonitorTest {
+
+    @Test
+    public void testHandlerCounts() throws Exception {
+        Metrics metrics = new Metrics();
+        EventLoopMonitor monitor = new EventLoopMonitor(metrics);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        monitor.register(Collections.singletonList(channel.eventLoop()));
+        channel.pipeline().addFirst(monitor.handler());
+        channel.pipeline().fireChannelActive();
+        assertEquals(1, metrics.value("loop.0.channels"));
+
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[100]));
+        channel.writeOutbound(Unpooled.wrappedBuffer(new byte[50]));
+        EventLoopMonitor.LoopStats stats = monitor.find(channel.eventLoop());
+        assertEquals(150, stats.bytes.sum());
+
+        // Added before registered, the stats are looked up once registered
+        EmbeddedChannel later = new EmbeddedChannel(false, false);
+        later.pipeline().addLast(monitor.handler());
+        channel.eventLoop().register(later); // Active once registered
+        assertEquals(2, metrics.value("loop.0.channels"));
+        later.close();
+        assertEquals(1, metrics.value("loop.0.channels"));
+
+        channel.close();
+        assertEquals(0, metrics.value("loop.0.channels"));
+        channel.releaseInbound();
+        channel.releaseOutbound();
+    }
+
+    @Test
+    public void testLeastLoaded() throws Exception {
+        EventLoopMonitor monitor = new EventLoopMonitor(new Metrics());
+        EventLoopGroup group = new DefaultEventLoopGroup(2);
+        EventExecutor[] executors = new EventExecutor[] { group.next(), group.next() };
+        EventExecutorChooserFactory.EventExecutorChooser chooser = new LeastLoadedChooserFactory(monitor).newChooser(executors);
+        EventLoopMonitor.LoopStats busy = monitor.find(executors[0]);
+        EventLoopMonitor.LoopStats idle = monitor.find(executors[1]);
+
+        // One bulk tunnel weighs more than a few idle ones
+        busy.channels.set(1);
+        busy.bytesPerSec = 10 << 20;
+        idle.channels.set(3);
+        for (int i = 0; i < 5; i++) {
+            assertSame(executors[1], chooser.next());
+        }
+        // Assigned ones count until they turn active, loads are equal now, ties alternate
+        assertEquals(5, idle.assigned.get());
+        busy.bytesPerSec = 0;
+        busy.channels.set(8);
+        EventExecutor first = chooser.next();
+        EventExecutor second = chooser.next();
+        assertNotSame(first, second);
+
+        monitor.sample(System.nanoTime());
+        assertEquals(0, idle.assigned.get());
+        group.shutdownGracefully();
+    }
+}
@@ -0,0 +1,154 @@
+package com.rex.proxy.loop;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IdleSweeperTest {
+
+    private static final ChannelInitializer<Channel> NOOP = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+        }
+    };
+
+    private EventLoopGroup mGroup;
+    private HashedWheelTimer mTimer;
+    private Channel mServer;
+    private LocalAddress mAddress;
+
+    @Before
+    public void setUp() {
+        mGroup = new DefaultEventLoopGroup(2);
+        mTimer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+        mAddress = new LocalAddress("idle-" + System.nanoTime());
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(NOOP)
+                .bind(mAddress)
+                .syncUninterruptibly()
+                .channel();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close().syncUninterruptibly();
+        mTimer.stop();
+        mGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    private Channel connect() {
+        return new Bootstrap()
+                .group(mGroup)
+                .channel(LocalChannel.class)
+                .handler(NOOP)
+                .connect(mAddress)
+                .syncUninterruptibly()
+                .channel();
+    }
+
+    // Close listeners may run after the waiters woke up
+    private static void awaitValue(Metrics metrics, String name, long expected) throws InterruptedException {
+        for (int i = 0; i < 100 && metrics.value(name) != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(name, expected, metrics.value(name));
+    }
+
+    @Test
+    public void testCloseIdle() throws Exception {
+        Metrics metrics = new Metrics();
+        IdleSweeper sweeper = new IdleSweeper(mTimer, 20, metrics).start();
+        Channel idle = connect();
+        Channel active = connect();
+        Channel kept = connect();
+        sweeper.track(idle, "test", 200);
+        sweeper.track(active, "test", 200);
+        sweeper.track(kept, "test", 0); // Disabled
+        assertEquals(2, metrics.value("idle.tracked"));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+        while (System.nanoTime() < deadline) {
+            active.writeAndFlush(Unpooled.wrappedBuffer(new byte[1]));
+            Thread.sleep(50);
+        }
+        assertTrue(idle.closeFuture().await(1000));
+        assertTrue(active.isActive());
+        assertTrue(kept.isActive());
+        assertEquals(1, metrics.value("idle.test.closed"));
+        awaitValue(metrics, "idle.tracked", 1);
+
+        // Closed once stopped writing
+        assertTrue(active.closeFuture().await(1000));
+        assertEquals(2, metrics.value("idle.test.closed"));
+        awaitValue(metrics, "idle.tracked", 0);
+
+        kept.close();
+        sweeper.stop();
+    }
+
+    @Test
+    public void testManyChannels() throws Exception {
+        Metrics metrics = new Metrics();
+        IdleSweeper sweeper = new IdleSweeper(mTimer, 5, metrics).start();
+        Channel[] channels = new Channel[200];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = connect();
+            // Spread over the buckets, longer than a round of the wheel for some
+            sweeper.track(channels[i], "test", 100 + i * 15L);
+        }
+        for (Channel ch : channels) {
+            assertTrue(ch.closeFuture().await(10000));
+        }
+        assertEquals(channels.length, metrics.value("idle.test.closed"));
+        sweeper.stop();
+    }
+
+    @Test
+    public void testClosedReleased() throws Exception {
+        Metrics metrics = new Metrics();
+        IdleSweeper sweeper = new IdleSweeper(mTimer, 1000, metrics).start();
+        EmbeddedChannel ch = new EmbeddedChannel();
+        sweeper.track(ch, "test", TimeUnit.MINUTES.toMillis(10)); // Bucket swept in minutes
+        assertEquals(1, metrics.value("idle.tracked"));
+        WeakReference<Channel> ref = new WeakReference<>(ch);
+        ch.close();
+        ch = null;
+        assertEquals(0, metrics.value("idle.tracked"));
+
+        // Collected while its tracker still waits in the wheel
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        sweeper.stop();
+    }
+
+    @Test
+    public void testTimeoutMillis() {
+        assertEquals(TimeUnit.SECONDS.toMillis(IdleSweeper.DEFAULT_TIMEOUT), IdleSweeper.timeoutMillis(null));
+        assertEquals(30000, IdleSweeper.timeoutMillis(30));
+        assertEquals(0, IdleSweeper.timeoutMillis(0));
+        assertEquals(0, IdleSweeper.timeoutMillis(-1));
+    }
+}
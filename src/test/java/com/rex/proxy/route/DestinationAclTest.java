@@ -0,0 +1,162 @@
+package com.rex.proxy.route;
+
+import com.rex.proxy.metrics.Metrics;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DestinationAclTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testCheck() throws Exception {
+        Metrics metrics = new Metrics();
+        DestinationAcl acl = new DestinationAcl.Builder()
+                .suffix(null, "*.internal.net", false)
+                .domain(null, "api.internal.net", true)
+                .cidr(null, "10.0.0.0/8", false)
+                .cidr(null, "127.0.0.0/8", false)
+                .cidr(null, "fd00::/8", false)
+                .port(null, "25", false)
+                .port(null, "20-30", true) // 25 taken by the rule above
+                .defaultAllow(true)
+                .metrics(metrics)
+                .build();
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "db.internal.net", 443));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "api.internal.net", 25)); // Domain first
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "10.1.2.3", 443));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "127.0.0.1", 22)); // CIDR before port
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "fd00::1", 443));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "8.8.8.8", 25));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "8.8.8.8", 22));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "2001:db8::1", 443));
+        assertEquals(DestinationAcl.Decision.RESOLVE, acl.check(null, "example.com", 443));
+        assertEquals(DestinationAcl.Decision.RESOLVE, acl.check(null, "2130706433", 443)); // Decimal 127.0.0.1
+
+        assertFalse(acl.permit(null, "example.com", InetAddress.getByName("10.0.0.1"), 443));
+        assertFalse(acl.permit(null, "2130706433", InetAddress.getByName("127.0.0.1"), 443));
+        assertFalse(acl.permit(null, "example.com", InetAddress.getByName("93.184.216.34"), 25));
+        assertTrue(acl.permit(null, "example.com", InetAddress.getByName("93.184.216.34"), 443));
+        assertFalse(acl.permit(null, "example.com", InetAddress.getByName("fd00::2"), 443));
+        assertTrue(acl.permit(null, "example.com", InetAddress.getByName("2001:db8::2"), 443));
+        assertEquals(5, metrics.value("acl.allow")); // RESOLVE not counted until permit
+        assertEquals(9, metrics.value("acl.deny"));
+        assertEquals(7, acl.size());
+    }
+
+    @Test
+    public void testNoCidr() {
+        // Domains are decided without DNS if no CIDR rules
+        DestinationAcl acl = new DestinationAcl.Builder()
+                .suffix(null, "example.com", true)
+                .port(null, "443", true)
+                .defaultAllow(false)
+                .build();
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "www.example.com", 80));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "other.net", 443));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "other.net", 80));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "1.1.1.1", 80));
+    }
+
+    @Test
+    public void testUser() throws Exception {
+        DestinationAcl acl = new DestinationAcl.Builder()
+                .cidr(null, "10.0.0.0/8", false)
+                .cidr("admin", "10.1.0.0/16", true)
+                .port("guest", "1-65535", false)
+                .suffix("guest", "example.com", true)
+                .build();
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "10.1.0.1", 22));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check("other", "10.1.0.1", 22));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check("admin", "10.1.0.1", 22));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check("admin", "10.2.0.1", 22)); // Falls back to global
+        assertTrue(acl.permit("admin", "db.corp", InetAddress.getByName("10.1.0.1"), 5432));
+        assertFalse(acl.permit("other", "db.corp", InetAddress.getByName("10.1.0.1"), 5432));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check("guest", "8.8.8.8", 53));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check("guest", "www.example.com", 443));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check(null, "8.8.8.8", 53));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File rules = mFolder.newFile("acl.txt");
+        Files.write(rules.toPath(), Arrays.asList(
+                "# Server network",
+                "cidr,10.0.0.0/8,deny",
+                "suffix, *.internal.net, deny  # comment",
+                "port,25,deny",
+                "",
+                "[admin]",
+                "cidr,10.1.0.0/16,allow",
+                "port,25,allow"), StandardCharsets.UTF_8);
+        DestinationAcl acl = DestinationAcl.load(rules, true, null);
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "10.1.0.1", 443));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "www.internal.net", 443));
+        assertEquals(DestinationAcl.Decision.DENY, acl.check(null, "1.1.1.1", 25));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check("admin", "10.1.0.1", 443));
+        assertEquals(DestinationAcl.Decision.ALLOW, acl.check("admin", "1.1.1.1", 25));
+        assertEquals(5, acl.size());
+
+        Files.write(rules.toPath(), Arrays.asList("cidr,10.0.0.0/8,deny", "cidr,10.0.0.0/8,reject"), StandardCharsets.UTF_8);
+        try {
+            DestinationAcl.load(rules, true, null);
+            fail("Invalid rule loaded");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(":2 "));
+        }
+    }
+
+    // Decisions on every tunnel open should not allocate
+    @Test
+    public void testAllocation() throws Exception {
+        DestinationAcl.Builder builder = new DestinationAcl.Builder()
+                .port(null, "25", false)
+                .defaultAllow(true)
+                .metrics(new Metrics());
+        for (int i = 0; i < 1000; i++) {
+            builder.cidr(null, "10." + (i >> 8) + "." + (i & 0xFF) + ".0/24", false);
+            builder.suffix(null, "blocked" + i + ".com", false);
+        }
+        DestinationAcl acl = builder.build();
+        String[] hosts = new String[1000];
+        InetAddress[] addresses = new InetAddress[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = (i % 2 == 0) ? "10.0." + (i % 256) + ".1" : "www.blocked" + i + ".com";
+            addresses[i] = InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 8), (byte) i, 1 });
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        int denied = 0;
+        for (int round = 0; round < 3; round++) { // Warm up, JIT may allocate in the first rounds
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < hosts.length; i++) {
+                if (acl.check(null, hosts[i], 443) == DestinationAcl.Decision.DENY) {
+                    denied++;
+                }
+                if (! acl.permit(null, "example.com", addresses[i], 443)) {
+                    denied++;
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            if (round == 2) {
+                assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+            }
+        }
+        assertEquals(3 * 2 * hosts.length, denied);
+    }
+}
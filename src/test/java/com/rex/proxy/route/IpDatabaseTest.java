@@ -0,0 +1,149 @@
+package com.rex.proxy.route;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class IpDatabaseTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File write(String name, String... lines) throws IOException {
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void testConvert() throws Exception {
+        File cn = write("cn.txt", "# China", "1.0.1.0/24", "1.0.2.0/23", "240e::/20");
+        File mixed = write("mixed.txt", "8.8.8.0/24,US", "8.0.0.0/8,AS3356", "255.255.255.255,US", "2001:4860::/32,US");
+        File output = new File(mFolder.getRoot(), "geo.db");
+        assertEquals(7, IpDatabase.convert(output, Arrays.asList("CN=" + cn.getPath(), mixed.getPath())));
+
+        IpDatabase database = IpDatabase.open(output);
+        assertEquals(3, database.tags());
+        assertEquals(7, database.ranges()); // 8/8 split by 8.8.8/24 into 3, adjacent 1.0.1/24 and 1.0.2/23 merged
+        assertEquals("CN", database.tag(database.lookup("1.0.1.1")));
+        assertEquals("CN", database.tag(database.lookup("1.0.3.255")));
+        assertEquals(-1, database.lookup("1.0.0.255"));
+        assertEquals(-1, database.lookup("1.0.4.0"));
+        assertEquals("US", database.tag(database.lookup("8.8.8.8")));
+        assertEquals("AS3356", database.tag(database.lookup("8.8.9.1")));
+        assertEquals("AS3356", database.tag(database.lookup("8.0.0.0")));
+        assertEquals("US", database.tag(database.lookup("255.255.255.255"))); // Unsigned compare
+        assertEquals("CN", database.tag(database.lookup("240e:1::1")));
+        assertEquals("US", database.tag(database.lookup("2001:4860:4860::8888")));
+        assertEquals(-1, database.lookup("2001:4861::1"));
+        assertEquals(-1, database.lookup("example.com"));
+        assertEquals(-1, database.tagId("JP"));
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        File cn = write("cn.txt", "1.0.1.0/24");
+        File output = new File(mFolder.getRoot(), "geo.db");
+        IpDatabase.convert(output, Collections.singletonList("CN=" + cn.getPath()));
+        byte[] bytes = Files.readAllBytes(output.toPath());
+
+        File truncated = new File(mFolder.getRoot(), "truncated.db");
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        try {
+            IpDatabase.open(truncated);
+            fail("Truncated database opened");
+        } catch (IOException ex) {
+            // Expected
+        }
+        try {
+            IpDatabase.open(cn);
+            fail("Text file opened");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRouter() throws Exception {
+        File cn = write("cn.txt", "1.0.1.0/24");
+        File output = new File(mFolder.getRoot(), "geo.db");
+        IpDatabase.convert(output, Collections.singletonList("CN=" + cn.getPath()));
+        Router router = new Router.Builder()
+                .database(IpDatabase.open(output))
+                .cidr("1.0.1.128/25", RouteAction.BLOCK)
+                .geoip("CN", RouteAction.DIRECT)
+                .geoip("JP", RouteAction.DIRECT) // Not in database, ignored
+                .defaultAction(RouteAction.PROXY)
+                .build();
+        assertEquals(RouteAction.DIRECT, router.route("1.0.1.1", 443));
+        assertEquals(RouteAction.BLOCK, router.route("1.0.1.200", 443)); // CIDR first
+        assertEquals(RouteAction.PROXY, router.route("1.0.2.1", 443));
+        assertEquals(RouteAction.PROXY, router.route("www.example.cn", 443));
+
+        try {
+            new Router.Builder().geoip("CN", RouteAction.DIRECT).build();
+            fail("geoip without database");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    // Large database maps instantly, lookup should not allocate
+    @Test
+    public void testLarge() throws Exception {
+        File list = mFolder.newFile("large.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(list.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 200000; i++) {
+                // Every other /24 from 1.0.0.0, tagged by the 2nd octet
+                int address = 0x01000000 + (i << 9);
+                writer.write(((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + ".0/24,T" + ((address >>> 16) & 0xFF) + "\n");
+            }
+        }
+        File output = new File(mFolder.getRoot(), "large.db");
+        assertEquals(200000, IpDatabase.convert(output, Collections.singletonList(list.getPath())));
+
+        IpDatabase database = IpDatabase.open(output);
+        assertEquals(200000, database.ranges());
+        int[] addresses = new int[10000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = 0x01000000 + ((i * 3) << 8) + 7; // Half of them in the gaps
+        }
+        for (int i = 0; i < addresses.length; i++) {
+            int tag = database.lookupV4(addresses[i]);
+            if (i % 2 == 0) {
+                assertEquals("T" + ((addresses[i] >>> 16) & 0xFF), database.tag(tag));
+            } else {
+                assertEquals(-1, tag);
+            }
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        long found = 0;
+        for (int round = 0; round < 3; round++) { // Warm up, JIT may allocate in the first rounds
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int address : addresses) {
+                found += database.lookupV4(address) >= 0 ? 1 : 0;
+            }
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            if (round == 2) {
+                assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+            }
+        }
+        assertEquals(3 * addresses.length / 2, found);
+    }
+}
@@ -0,0 +1,185 @@
+package com.rex.proxy.route;
+
+import com.rex.proxy.metrics.Metrics;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RouterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testDomain() {
+        DomainTrie trie = new DomainTrie.Builder()
+                .add("example.com", false, RouteAction.DIRECT)
+                .add("google.com", true, RouteAction.PROXY)
+                .add("ads.google.com", true, RouteAction.BLOCK)
+                .add("www.ads.google.com", false, RouteAction.DIRECT)
+                .add(".cn", true, RouteAction.DIRECT)
+                .build();
+        assertEquals(RouteAction.DIRECT, trie.match("example.com"));
+        assertEquals(RouteAction.DIRECT, trie.match("Example.COM."));
+        assertNull(trie.match("www.example.com")); // Exact only
+        assertNull(trie.match("notexample.com"));
+        assertEquals(RouteAction.PROXY, trie.match("google.com"));
+        assertEquals(RouteAction.PROXY, trie.match("mail.google.com"));
+        assertNull(trie.match("notgoogle.com"));
+        assertEquals(RouteAction.BLOCK, trie.match("x.ads.google.com")); // Longest suffix
+        assertEquals(RouteAction.DIRECT, trie.match("www.ads.google.com")); // Exact wins
+        assertEquals(RouteAction.DIRECT, trie.match("baidu.cn"));
+        assertNull(trie.match("com"));
+        assertNull(trie.match(""));
+        assertNull(trie.match("a..google"));
+        assertEquals(5, trie.size());
+    }
+
+    @Test
+    public void testCidr() {
+        CidrTable table = new CidrTable.Builder()
+                .add("10.0.0.0/8", RouteAction.DIRECT)
+                .add("10.1.0.0/16", RouteAction.BLOCK)
+                .add("10.1.2.3", RouteAction.PROXY)
+                .add("192.168.1.77/24", RouteAction.DIRECT) // Host bits ignored
+                .add("255.255.255.0/24", RouteAction.BLOCK)
+                .add("2001:db8::/32", RouteAction.DIRECT)
+                .add("2001:db8:1::/48", RouteAction.BLOCK)
+                .build();
+        assertEquals(RouteAction.DIRECT, table.match("10.0.0.1"));
+        assertEquals(RouteAction.BLOCK, table.match("10.1.0.1"));
+        assertEquals(RouteAction.PROXY, table.match("10.1.2.3"));
+        assertEquals(RouteAction.BLOCK, table.match("10.1.2.4"));
+        assertEquals(RouteAction.DIRECT, table.match("10.2.0.0"));
+        assertEquals(RouteAction.DIRECT, table.match("10.255.255.255"));
+        assertNull(table.match("11.0.0.0"));
+        assertNull(table.match("9.255.255.255"));
+        assertEquals(RouteAction.DIRECT, table.match("192.168.1.0"));
+        assertEquals(RouteAction.BLOCK, table.match("255.255.255.255")); // Unsigned compare
+        assertEquals(RouteAction.DIRECT, table.match("2001:db8::1"));
+        assertEquals(RouteAction.BLOCK, table.match("2001:db8:1::1"));
+        assertNull(table.match("2001:db9::1"));
+        assertNull(table.match("example.com"));
+        assertEquals(7, table.size());
+        assertEquals(10, table.ranges()); // 10/8 split into 5 by the nested ones, 2001:db8::/32 into 3
+    }
+
+    @Test
+    public void testParseIpv4() {
+        assertEquals(0x0A000001L, CidrTable.parseIpv4("10.0.0.1"));
+        assertEquals(0xFFFFFFFFL, CidrTable.parseIpv4("255.255.255.255"));
+        assertEquals(-1, CidrTable.parseIpv4("256.0.0.1"));
+        assertEquals(-1, CidrTable.parseIpv4("1.2.3"));
+        assertEquals(-1, CidrTable.parseIpv4("1.2.3.4.5"));
+        assertEquals(-1, CidrTable.parseIpv4("1..2.3"));
+        assertEquals(-1, CidrTable.parseIpv4("1.2.3.4."));
+        assertEquals(-1, CidrTable.parseIpv4("1.2.3.com"));
+        assertEquals(-1, CidrTable.parseIpv4(""));
+    }
+
+    @Test
+    public void testRouter() {
+        Metrics metrics = new Metrics();
+        Router router = new Router.Builder()
+                .suffix("example.com", RouteAction.DIRECT)
+                .keyword("tracker", RouteAction.BLOCK)
+                .cidr("192.168.0.0/16", RouteAction.DIRECT)
+                .port("25", RouteAction.BLOCK)
+                .port("6881-6889", RouteAction.DIRECT)
+                .defaultAction(RouteAction.PROXY)
+                .metrics(metrics)
+                .build();
+        assertEquals(RouteAction.DIRECT, router.route("www.example.com", 25)); // Domain first
+        assertEquals(RouteAction.BLOCK, router.route("TRACKER.net", 443));
+        assertEquals(RouteAction.DIRECT, router.route("192.168.1.1", 25)); // CIDR before port
+        assertEquals(RouteAction.BLOCK, router.route("smtp.net", 25));
+        assertEquals(RouteAction.DIRECT, router.route("peer.net", 6885));
+        assertEquals(RouteAction.PROXY, router.route("peer.net", 6890));
+        assertEquals(RouteAction.PROXY, router.route("8.8.8.8", 53));
+        assertEquals(3, metrics.value("route.direct"));
+        assertEquals(2, metrics.value("route.block"));
+        assertEquals(2, metrics.value("route.proxy"));
+        assertEquals(5, router.size());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File list = mFolder.newFile("cn.txt");
+        Files.write(list.toPath(), Arrays.asList("# China", "baidu.com", "qq.com  # comment", ""), StandardCharsets.UTF_8);
+        File rules = mFolder.newFile("rules.txt");
+        Files.write(rules.toPath(), Arrays.asList(
+                "# Rules",
+                "domain, login.example.com, block",
+                "suffix,example.com,direct",
+                "keyword,ads,block",
+                "cidr,10.0.0.0/8,direct",
+                "port,22,direct",
+                "suffix-list,cn.txt,direct"), StandardCharsets.UTF_8);
+        Router router = Router.load(rules, null, RouteAction.PROXY, null);
+        assertEquals(RouteAction.BLOCK, router.route("login.example.com", 443));
+        assertEquals(RouteAction.DIRECT, router.route("www.example.com", 443));
+        assertEquals(RouteAction.BLOCK, router.route("ads.net", 443));
+        assertEquals(RouteAction.DIRECT, router.route("10.1.1.1", 443));
+        assertEquals(RouteAction.DIRECT, router.route("github.com", 22));
+        assertEquals(RouteAction.DIRECT, router.route("www.baidu.com", 443));
+        assertEquals(RouteAction.DIRECT, router.route("qq.com", 443));
+        assertEquals(RouteAction.PROXY, router.route("google.com", 443));
+        assertEquals(7, router.size());
+
+        Files.write(rules.toPath(), Arrays.asList("suffix,example.com,direct", "cidr,10.0.0.0/33,direct"), StandardCharsets.UTF_8);
+        try {
+            Router.load(rules, null, RouteAction.PROXY, null);
+            fail("Invalid rule loaded");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(":2 "));
+        }
+    }
+
+    // Large domain list, lookup should not allocate
+    @Test
+    public void testLargeList() throws Exception {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            String domain = "site" + i + ((i % 3 == 0) ? ".com" : (i % 3 == 1) ? ".net" : ".cn");
+            builder.add(domain, true, (i % 2 == 0) ? RouteAction.DIRECT : RouteAction.PROXY);
+            hosts.add("www." + domain);
+        }
+        DomainTrie trie = builder.build();
+        assertEquals(200000, trie.size());
+        for (int i = 0; i < hosts.size(); i++) {
+            assertEquals((i % 2 == 0) ? RouteAction.DIRECT : RouteAction.PROXY, trie.match(hosts.get(i)));
+        }
+        assertNull(trie.match("www.site200000.com"));
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        int matched = 0;
+        for (int round = 0; round < 3; round++) { // Warm up, JIT may allocate in the first rounds
+            long before = threads.getThreadAllocatedBytes(id);
+            for (String host : hosts) {
+                if (trie.match(host) != null) {
+                    matched++;
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            if (round == 2) {
+                assertTrue("Allocated " + allocated + " bytes", allocated < 64 * 1024);
+            }
+        }
+        assertEquals(3 * hosts.size(), matched);
+    }
+}
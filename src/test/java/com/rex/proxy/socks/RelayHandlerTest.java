@@ -1,8 +1,11 @@
 package com.rex.proxy.socks;
 
+import com.rex.proxy.buffer.BufferAccounting;
+import com.rex.proxy.metrics.Metrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
@@ -11,6 +14,7 @@ import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class RelayHandlerTest {
 
@@ -79,4 +83,85 @@ public class RelayHandlerTest {
                 .fireExceptionCaught(new RuntimeException("Mock"));
         assertFalse(outbound.isActive());
     }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new RelayHandler(outbound));
+        outbound.pipeline().addLast(new RelayHandler(inbound));
+
+        // Outbound can not keep up, should stop reading inbound
+        outbound.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+        assertFalse(inbound.config().isAutoRead());
+
+        // Outbound drained, should resume reading inbound
+        outbound.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        outbound.runPendingTasks(); // Writability changed event fired later
+        assertTrue(inbound.config().isAutoRead());
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testInputShutdown() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new RelayHandler(outbound));
+
+        // Embedded channel can not shut down its output only, closed instead
+        inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+        inbound.pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        ByteBuf data = outbound.readOutbound();
+        assertEquals(11, data.readableBytes());
+        data.release();
+        assertFalse(outbound.isActive());
+
+        inbound.close();
+    }
+
+    @Test
+    public void testReferenceHandedOver() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new RelayHandler(outbound));
+
+        // Written as is, only the reader of the peer holds it
+        ByteBuf buf = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        inbound.writeInbound(buf);
+        ByteBuf data = outbound.readOutbound();
+        assertEquals(1, data.refCnt());
+        data.release();
+
+        // Released if the peer is gone
+        outbound.close();
+        buf = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        inbound.writeInbound(buf);
+        assertEquals(0, buf.refCnt());
+
+        inbound.close();
+    }
+
+    @Test
+    public void testAccounting() throws Exception {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        inbound.attr(BufferAccounting.KEY).set(new BufferAccounting(metrics));
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new RelayHandler(outbound));
+
+        for (int i = 0; i < 3; i++) {
+            inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+            ((ByteBuf) outbound.readOutbound()).release();
+        }
+        outbound.close();
+        inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+        assertEquals(4, metrics.value("buffer.relay.retained"));
+        assertEquals(4, metrics.value("buffer.relay.released"));
+        assertEquals(0, metrics.value("buffer.relay.outstanding"));
+
+        inbound.close();
+    }
 }
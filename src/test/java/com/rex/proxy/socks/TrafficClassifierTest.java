@@ -0,0 +1,145 @@
+package com.rex.proxy.socks;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TrafficClassifierTest {
+
+    @Test
+    public void testParsePorts() {
+        Map<Integer, TrafficClassifier.TrafficClass> ports = TrafficClassifier.parsePorts(" 22:interactive, 873:BULK");
+        assertEquals(2, ports.size());
+        assertEquals(TrafficClassifier.TrafficClass.INTERACTIVE, ports.get(22));
+        assertEquals(TrafficClassifier.TrafficClass.BULK, ports.get(873));
+        assertTrue(TrafficClassifier.parsePorts(null).isEmpty());
+        assertNull(TrafficClassifier.newPolicy(false, "", new Metrics()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParsePortsInvalid() {
+        TrafficClassifier.parsePorts("22:fast");
+    }
+
+    @Test
+    public void testNoPolicy() {
+        assertNull(TrafficClassifier.attach(new EmbeddedChannel(), new EmbeddedChannel(), 22));
+    }
+
+    @Test
+    public void testPinned() {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        inbound.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(false, "873:bulk", metrics));
+
+        assertNull(TrafficClassifier.attach(inbound, new EmbeddedChannel(), 22));
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        TrafficClassifier classifier = TrafficClassifier.attach(inbound, outbound, 873);
+        assertNotNull(classifier);
+        assertSame(classifier, outbound.attr(TrafficClassifier.KEY).get());
+        assertEquals(TrafficClassifier.TrafficClass.BULK, classifier.trafficClass());
+        assertEquals(1, metrics.value("traffic.bulk"));
+
+        // Pinned by port, reads do not change it
+        for (int i = 0; i < 100; i++) {
+            assertTrue(classifier.onRead((i % 2 == 0) ? inbound : outbound, 1));
+        }
+        assertEquals(TrafficClassifier.TrafficClass.BULK, classifier.trafficClass());
+    }
+
+    @Test
+    public void testInteractive() {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(true, null, new Metrics()));
+        TrafficClassifier classifier = TrafficClassifier.attach(inbound, outbound, 22);
+
+        // Requests and responses of 2KB in turns, far more than a bulk turn in total
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(classifier.onRead(inbound, 1024));
+            assertFalse(classifier.onRead(inbound, 1024));
+            assertFalse(classifier.onRead(outbound, 2048));
+        }
+        assertEquals(TrafficClassifier.TrafficClass.INTERACTIVE, classifier.trafficClass());
+    }
+
+    @Test
+    public void testBulk() {
+        Metrics metrics = new Metrics();
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(true, null, metrics));
+        TrafficClassifier classifier = TrafficClassifier.attach(inbound, outbound, 80);
+
+        // Download after a short request
+        assertFalse(classifier.onRead(inbound, 200));
+        for (int i = 0; i < 7; i++) {
+            assertFalse(classifier.onRead(outbound, 8192));
+        }
+        assertTrue(classifier.onRead(outbound, 8192));
+        assertEquals(1, metrics.value("traffic.bulk"));
+
+        // Back to small requests and responses, interactive once the average turn shrank
+        for (int i = 0; i < 100; i++) {
+            classifier.onRead(inbound, 64);
+            classifier.onRead(outbound, 64);
+        }
+        assertEquals(TrafficClassifier.TrafficClass.INTERACTIVE, classifier.trafficClass());
+        assertEquals(1, metrics.value("traffic.interactive"));
+    }
+
+    @Test
+    public void testWanPaced() {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(true, null, new Metrics()));
+        TrafficClassifier classifier = TrafficClassifier.attach(inbound, outbound, 80);
+
+        // Download of 2Mbit/s, one segment read every 5ms as a WAN path delivers it
+        long now = System.nanoTime();
+        classifier.onRead(inbound, 200, now);
+        for (int i = 0; i < 44; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(5);
+            assertFalse(classifier.onRead(outbound, 1460, now));
+        }
+        now += TimeUnit.MILLISECONDS.toNanos(5);
+        assertTrue(classifier.onRead(outbound, 1460, now));
+
+        // Keystrokes a few hundred milliseconds apart, each a turn of its own
+        EmbeddedChannel ssh = new EmbeddedChannel();
+        ssh.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(true, null, new Metrics()));
+        TrafficClassifier typing = TrafficClassifier.attach(ssh, new EmbeddedChannel(), 22);
+        for (int i = 0; i < 1000; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(200);
+            assertFalse(typing.onRead(ssh, 36, now));
+        }
+    }
+
+    @Test
+    public void testRelayBatchFlush() {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.attr(TrafficClassifier.POLICY).set(TrafficClassifier.newPolicy(false, "873:bulk", new Metrics()));
+        TrafficClassifier.attach(inbound, outbound, 873);
+        inbound.pipeline().addLast(new RelayHandler(outbound));
+
+        // Bulk written without flush until the read loop completed
+        inbound.pipeline().fireChannelRead(Unpooled.wrappedBuffer(new byte[16]));
+        inbound.pipeline().fireChannelRead(Unpooled.wrappedBuffer(new byte[16]));
+        assertNull(outbound.readOutbound());
+        inbound.pipeline().fireChannelReadComplete();
+        for (int i = 0; i < 2; i++) {
+            ByteBuf buf = outbound.readOutbound();
+            assertEquals(16, buf.readableBytes());
+            buf.release();
+        }
+        assertNull(outbound.readOutbound());
+    }
+}
@@ -1,6 +1,7 @@
 package com.rex.proxy.socks.v5;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.limit.OverloadDetector;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -17,6 +18,8 @@ import java.net.SocketException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class Socks5CommandRequestHandlerTest {
 
@@ -63,6 +66,26 @@ public class Socks5CommandRequestHandlerTest {
         assertEquals(Socks5CommandStatus.FAILURE, response.status());
     }
 
+    @Test
+    public void testConnectShed() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup();
+        OverloadDetector overload = mock(OverloadDetector.class);
+        when(overload.shed()).thenReturn(true);
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(new Socks5CommandRequestHandler(new WslLocal.Configuration())
+                .eventLoop(group.next())
+                .overload(overload));
+        channel.writeInbound(new DefaultSocks5CommandRequest(Socks5CommandType.CONNECT,
+                Socks5AddressType.IPv4,
+                "127.0.0.1",
+                7777));
+
+        DefaultSocks5CommandResponse response = channel.readOutbound();
+        assertEquals(Socks5CommandStatus.FAILURE, response.status());
+        group.shutdownGracefully();
+    }
+
     @Test
     public void testConnectWsProxySuccess() throws Exception {
         // FIXME: Provide test case
@@ -0,0 +1,140 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.metrics.Metrics;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class WsKeepaliveTest {
+
+    // Fire the timer tasks by hand, the embedded event loop is not thread safe
+    private static class ManualTimer implements Timer {
+        final Queue<TimerTask> tasks = new ArrayDeque<>();
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            tasks.add(task);
+            return mock(Timeout.class);
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+
+        void tick(EmbeddedChannel ch) throws Exception {
+            TimerTask task = tasks.poll();
+            assertNotNull(task);
+            task.run(mock(Timeout.class));
+            ch.runPendingTasks();
+        }
+    }
+
+    @Test
+    public void testRtt() throws Exception {
+        ManualTimer timer = new ManualTimer();
+        Metrics metrics = new Metrics();
+        WsUpstream upstream = new WsUpstream(new URI("ws://127.0.0.1:1/"), 0, false, metrics);
+        EmbeddedChannel ch = new EmbeddedChannel();
+        new WsKeepalive(timer, metrics).track(ch, "test", 1000, 3, upstream);
+        assertEquals(0, WsKeepalive.rtt(ch));
+
+        // First ping right away, the next one after the interval
+        PingWebSocketFrame ping = ch.readOutbound();
+        assertEquals(1, timer.tasks.size());
+        assertEquals(Long.BYTES, ping.content().readableBytes());
+        assertEquals(1, metrics.value("keepalive.test.pings"));
+
+        // Peer echoes the payload
+        ch.writeInbound(new PongWebSocketFrame(ping.content()));
+        assertNull(ch.readInbound()); // Consumed
+        assertTrue(WsKeepalive.rtt(ch) > 0);
+        assertTrue(upstream.rtt() > 0);
+        assertEquals(TimeUnit.NANOSECONDS.toMicros(WsKeepalive.rtt(ch)), metrics.value("keepalive.test.rtt.micros"));
+
+        // Other frames pass through
+        ch.writeInbound(new TextWebSocketFrame("{}"));
+        TextWebSocketFrame text = ch.readInbound();
+        assertEquals("{}", text.text());
+        text.release();
+
+        ch.close();
+    }
+
+    // Test the first ping sent by track() itself, the round trip time known before the first interval passed
+    @Test
+    public void testFirstPing() throws Exception {
+        ManualTimer timer = new ManualTimer();
+        Metrics metrics = new Metrics();
+        EmbeddedChannel ch = new EmbeddedChannel();
+        new WsKeepalive(timer, metrics).track(ch, "test", 1000, 3, null);
+        PingWebSocketFrame ping = ch.readOutbound();
+        assertNotNull(ping);
+        assertNull(ch.readOutbound());
+        assertEquals(1, metrics.value("keepalive.test.pings"));
+        ch.writeInbound(new PongWebSocketFrame(ping.content()));
+        assertTrue(WsKeepalive.rtt(ch) > 0);
+
+        // Then one per interval
+        timer.tick(ch);
+        ((PingWebSocketFrame) ch.readOutbound()).release();
+        assertEquals(2, metrics.value("keepalive.test.pings"));
+        ch.close();
+    }
+
+    @Test
+    public void testDead() throws Exception {
+        ManualTimer timer = new ManualTimer();
+        Metrics metrics = new Metrics();
+        EmbeddedChannel ch = new EmbeddedChannel();
+        new WsKeepalive(timer, metrics).track(ch, "test", 1000, 2, null);
+
+        // Pong to the first ping, sent by track(), resets the misses
+        PingWebSocketFrame ping = ch.readOutbound();
+        ch.writeInbound(new PongWebSocketFrame(ping.content()));
+        for (int i = 0; i < 2; i++) {
+            timer.tick(ch);
+            ((PingWebSocketFrame) ch.readOutbound()).release();
+        }
+        assertTrue(ch.isActive());
+
+        // Missed 2 pongs in a row
+        timer.tick(ch);
+        assertNull(ch.readOutbound());
+        assertFalse(ch.isActive());
+        assertEquals(1, metrics.value("keepalive.test.dead"));
+        assertEquals(3, metrics.value("keepalive.test.pings"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ManualTimer timer = new ManualTimer();
+        EmbeddedChannel ch = new EmbeddedChannel();
+        new WsKeepalive(timer, new Metrics()).track(ch, "test", WsKeepalive.intervalMillis(0), 3, null);
+        assertTrue(timer.tasks.isEmpty());
+        assertNull(ch.pipeline().get("keepalive"));
+        ch.close();
+
+        assertEquals(TimeUnit.SECONDS.toMillis(WsKeepalive.DEFAULT_INTERVAL), WsKeepalive.intervalMillis(null));
+        assertEquals(5000, WsKeepalive.intervalMillis(5));
+        assertEquals(0, WsKeepalive.intervalMillis(-1));
+        assertEquals(WsKeepalive.DEFAULT_MISSES, WsKeepalive.misses(null));
+        assertEquals(WsKeepalive.DEFAULT_MISSES, WsKeepalive.misses(0));
+        assertEquals(5, WsKeepalive.misses(5));
+    }
+}
@@ -1,9 +1,12 @@
 package com.rex.proxy.websocket;
 
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
@@ -12,6 +15,7 @@ import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class WsProxyRawToWsTest {
 
@@ -100,4 +104,25 @@ public class WsProxyRawToWsTest {
                 .fireExceptionCaught(new RuntimeException("Mock"));
         assertFalse(outbound.isActive());
     }
+
+    @Test
+    public void testInputShutdown() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel(WsProxyControlCodec.INSTANCE);
+        inbound.pipeline().addLast(new WsProxyRawToWs(outbound));
+
+        // Shutdown message follows the last frame
+        inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+        inbound.pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals(11, frame.content().readableBytes());
+        frame.release();
+        TextWebSocketFrame shutdown = outbound.readOutbound();
+        assertEquals("{\"type\":\"shutdown\"}", shutdown.text());
+        shutdown.release();
+        assertTrue(outbound.isActive());
+
+        inbound.close();
+        outbound.close();
+    }
 }
@@ -0,0 +1,259 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslServer;
+import com.rex.proxy.metrics.Metrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.concurrent.Future;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WsUpstreamGroupTest {
+
+    private static List<URI> uris(int count) {
+        URI[] uris = new URI[count];
+        for (int i = 0; i < count; i++) {
+            uris[i] = URI.create("ws://10.0.0." + (i + 1) + ":8080/");
+        }
+        return Arrays.asList(uris);
+    }
+
+    @Test
+    public void testRoundRobin() {
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(3), null, false, new Metrics());
+        Map<WsUpstream, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            counts.merge(group.choose("example.com", null), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertEquals(10, count);
+        }
+    }
+
+    @Test
+    public void testLeastActive() {
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(3), "leastActive", false, new Metrics());
+        List<WsUpstream> upstreams = group.upstreams();
+        upstreams.get(0).acquire();
+        upstreams.get(1).acquire();
+        upstreams.get(1).acquire();
+        assertSame(upstreams.get(2), group.choose("example.com", null));
+        upstreams.get(2).acquire();
+        upstreams.get(2).acquire();
+        assertSame(upstreams.get(0), group.choose("example.com", null));
+    }
+
+    @Test
+    public void testEwma() {
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(3), "ewma", false, new Metrics());
+        List<WsUpstream> upstreams = group.upstreams();
+        upstreams.get(0).onRtt(TimeUnit.MILLISECONDS.toNanos(50));
+        upstreams.get(1).onRtt(TimeUnit.MILLISECONDS.toNanos(10));
+        // Not measured yet goes first
+        assertSame(upstreams.get(2), group.choose("example.com", null));
+        upstreams.get(2).onRtt(TimeUnit.MILLISECONDS.toNanos(30));
+        assertSame(upstreams.get(1), group.choose("example.com", null));
+        // 10ms with 4 active tunnels costs more than 30ms idle
+        for (int i = 0; i < 4; i++) {
+            upstreams.get(1).acquire();
+        }
+        assertSame(upstreams.get(2), group.choose("example.com", null));
+    }
+
+    @Test
+    public void testRttAverage() {
+        WsUpstream upstream = new WsUpstream(URI.create("ws://127.0.0.1/"), 0, false, new Metrics());
+        assertEquals(0, upstream.rtt());
+        upstream.onRtt(1000);
+        assertEquals(1000, upstream.rtt());
+        upstream.onRtt(2000);
+        assertEquals(1300, upstream.rtt());
+    }
+
+    @Test
+    public void testHash() {
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(4), "hash", false, new Metrics());
+        Map<WsUpstream, Integer> counts = new HashMap<>();
+        Map<String, WsUpstream> owners = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String host = "host" + i + ".example.com";
+            WsUpstream upstream = group.choose(host, null);
+            assertSame(upstream, group.choose(host, null)); // Sticky
+            owners.put(host, upstream);
+            counts.merge(upstream, 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced " + count, count > 150 && count < 350);
+        }
+
+        // Only the destinations of the broken upstream move
+        WsUpstream broken = group.upstreams().get(0);
+        for (int i = 0; i < 3; i++) {
+            broken.onFailure();
+        }
+        for (Map.Entry<String, WsUpstream> entry : owners.entrySet()) {
+            WsUpstream upstream = group.choose(entry.getKey(), null);
+            if (entry.getValue() == broken) {
+                assertNotSame(broken, upstream);
+            } else {
+                assertSame(entry.getValue(), upstream);
+            }
+        }
+    }
+
+    @Test
+    public void testCircuit() throws Exception {
+        Metrics metrics = new Metrics();
+        WsUpstream upstream = new WsUpstream(URI.create("ws://127.0.0.1/"), 0, false, metrics);
+        upstream.onFailure();
+        upstream.onFailure();
+        assertTrue(upstream.isAvailable());
+        upstream.onSuccess(); // Consecutive failures only
+        upstream.onFailure();
+        upstream.onFailure();
+        assertTrue(upstream.isAvailable());
+        upstream.onFailure();
+        assertFalse(upstream.isAvailable());
+        assertFalse(upstream.tryAcquire());
+        assertEquals(1, metrics.value("upstream.0.circuit"));
+        assertEquals(5, metrics.value("upstream.0.failure"));
+
+        upstream.onSuccess();
+        assertTrue(upstream.isAvailable());
+        assertTrue(upstream.tryAcquire());
+        assertEquals(0, metrics.value("upstream.0.circuit"));
+    }
+
+    @Test
+    public void testFailFast() {
+        Metrics metrics = new Metrics();
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(2), null, false, metrics);
+        assertEquals(2, metrics.value("upstream.available"));
+        for (WsUpstream upstream : group.upstreams()) {
+            for (int i = 0; i < 3; i++) {
+                upstream.onFailure();
+            }
+        }
+        assertEquals(0, metrics.value("upstream.available"));
+        assertNull(group.choose("example.com", null));
+        assertEquals(1, metrics.value("upstream.unavailable"));
+    }
+
+    @Test
+    public void testExcluded() {
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(2), "hash", false, new Metrics());
+        WsUpstream first = group.choose("example.com", null);
+        WsUpstream second = group.choose("example.com", Collections.singletonList(first));
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertNull(group.choose("example.com", Arrays.asList(first, second)));
+    }
+
+    @Test
+    public void testDraining() {
+        Metrics metrics = new Metrics();
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(2), null, false, metrics);
+        WsUpstream draining = group.upstreams().get(0);
+        draining.onDrain();
+        assertEquals(1, metrics.value("upstream.draining"));
+        for (int i = 0; i < 4; i++) {
+            assertNotSame(draining, group.choose("example.com", null));
+        }
+        // Still better than fail
+        assertSame(draining, group.choose("example.com", Collections.singletonList(group.upstreams().get(1))));
+    }
+
+    @Test
+    public void testStop() {
+        Metrics metrics = new Metrics();
+        WsUpstreamGroup group = new WsUpstreamGroup(uris(2), null, false, metrics);
+        assertTrue(metrics.snapshot().containsKey("upstream.1.active"));
+        group.stop();
+        assertFalse(metrics.snapshot().containsKey("upstream.1.active"));
+    }
+
+    @Test
+    public void testCloseHttp2() throws Exception {
+        WslServer.Configuration serverConfig = new WslServer.Configuration("127.0.0.1", 0);
+        serverConfig.http2 = true;
+        WslServer server = new WslServer()
+                .config(serverConfig)
+                .start();
+        EventLoopGroup loops = new NioEventLoopGroup(1);
+        try {
+            WsUpstreamGroup group = new WsUpstreamGroup(Collections.singletonList(URI.create("ws://127.0.0.1:" + server.port() + "/")),
+                    null, false, true, new Metrics());
+            WsUpstream upstream = group.upstreams().get(0);
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(loops)
+                    .channel(NioSocketChannel.class);
+            Http2StreamChannel stream = upstream.http2().open(bootstrap, new ChannelInboundHandlerAdapter())
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals(1, upstream.http2().connections());
+
+            // Connection gone with the group, no more stream on it
+            group.stop();
+            group.close();
+            assertTrue(stream.parent().closeFuture().await(5, TimeUnit.SECONDS));
+            assertEquals(0, upstream.http2().connections());
+            Future<Http2StreamChannel> next = upstream.http2().open(bootstrap, new ChannelInboundHandlerAdapter());
+            assertFalse(next.await(5, TimeUnit.SECONDS) && next.isSuccess());
+            assertEquals(0, upstream.http2().connections());
+        } finally {
+            loops.shutdownGracefully().syncUninterruptibly();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCloseQuic() throws Exception {
+        WslServer.Configuration serverConfig = new WslServer.Configuration("127.0.0.1", 0,
+                ClassLoader.getSystemResource("test.cert.pem").getFile(),
+                ClassLoader.getSystemResource("test.key.p8.pem").getFile());
+        serverConfig.quic = true;
+        WslServer server = new WslServer()
+                .config(serverConfig)
+                .start();
+        EventLoopGroup loops = new NioEventLoopGroup(1);
+        try {
+            WsUpstreamGroup group = new WsUpstreamGroup(Collections.singletonList(URI.create("quic://127.0.0.1:" + server.port())),
+                    null, false, new Metrics());
+            WsUpstream upstream = group.upstreams().get(0);
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(loops)
+                    .channel(NioSocketChannel.class);
+            QuicStreamChannel stream = upstream.quic().open(bootstrap, new ChannelInboundHandlerAdapter())
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals(1, upstream.quic().connections());
+
+            // Connection drains the stream open, then closes
+            group.stop();
+            group.close();
+            assertEquals(0, upstream.quic().connections());
+            assertFalse(stream.parent().closeFuture().await(200, TimeUnit.MILLISECONDS));
+            Future<QuicStreamChannel> next = upstream.quic().open(bootstrap, new ChannelInboundHandlerAdapter());
+            assertFalse(next.await(5, TimeUnit.SECONDS) && next.isSuccess());
+            stream.close();
+            assertTrue(stream.parent().closeFuture().await(5, TimeUnit.SECONDS));
+        } finally {
+            loops.shutdownGracefully().syncUninterruptibly();
+            server.stop();
+        }
+    }
+}
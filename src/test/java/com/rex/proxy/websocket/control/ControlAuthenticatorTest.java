@@ -0,0 +1,110 @@
+package com.rex.proxy.websocket.control;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class ControlAuthenticatorTest {
+
+    private final static byte[] NONCE = new byte[] { (byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04, (byte) 0x05, (byte) 0x06 };
+    private final static String SECRET = "SECRET";
+
+    @Test
+    public void testSameAsBuilder() {
+        ControlAuthenticator auth = new ControlAuthenticator("hs256", SECRET);
+        assertEquals("7BOmk0M59hQn210grnwI2ovh83p3NlhTq77pbvKarcg=", auth.sign(NONCE, "www.amazon.com", 443));
+        assertTrue(auth.verify(NONCE, "www.amazon.com", 443, "7BOmk0M59hQn210grnwI2ovh83p3NlhTq77pbvKarcg="));
+
+        ControlAuthenticator uuid = new ControlAuthenticator("HS256", "c5c7c9d7-051c-4356-b133-0d04ba6a0a41");
+        assertTrue(uuid.verify(Base64.getDecoder().decode("/lei32T2SfQI5PXh4ZQpkdXka14T4J5m5QNZWivIgi8="),
+                "www.amazon.com", 443, "GAnwgrevgMdIAmWgzOX+nwWFc4WCJZJQIuhjyQXaed0="));
+    }
+
+    @Test
+    public void testAlgorithms() {
+        String[] names = { "hs256", "hs384", "hs512" };
+        for (String name : names) {
+            ControlAuthenticator auth = new ControlAuthenticator(name, SECRET);
+            String token = new ControlAuthBuilder()
+                    .setAlgorithm(ControlAuthenticator.jceName(name))
+                    .setSecret(SECRET)
+                    .setNonce(NONCE)
+                    .setAddress("\u4f8b\u5b50.\u6d4b\u8bd5") // Non-ASCII in UTF-8
+                    .setPort(65535)
+                    .build();
+            assertEquals(name, token, auth.sign(NONCE, "\u4f8b\u5b50.\u6d4b\u8bd5", 65535));
+            assertTrue(name, auth.verify(NONCE, "\u4f8b\u5b50.\u6d4b\u8bd5", 65535, token));
+        }
+        assertNull(ControlAuthenticator.jceName("md5"));
+        try {
+            new ControlAuthenticator("md5", SECRET);
+            fail("Unsupported algorithm accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReject() {
+        ControlAuthenticator auth = new ControlAuthenticator("hs256", SECRET);
+        String token = auth.sign(NONCE, "www.amazon.com", 443);
+        assertFalse(auth.verify(NONCE, "www.amazon.com", 80, token));
+        assertFalse(auth.verify(NONCE, "www.amazon.org", 443, token));
+        assertFalse(auth.verify(new byte[6], "www.amazon.com", 443, token));
+        assertFalse(auth.verify(NONCE, "www.amazon.com", 443, token.substring(0, token.length() - 1)));
+        assertFalse(auth.verify(NONCE, "www.amazon.com", 443, token + "A"));
+        assertFalse(auth.verify(NONCE, "www.amazon.com", 443, ""));
+        assertFalse(auth.verify(NONCE, "www.amazon.com", 443, null));
+        assertFalse(new ControlAuthenticator("hs256", "OTHER").verify(NONCE, "www.amazon.com", 443, token));
+        // Still valid after the rejects reset nothing wrongly
+        assertTrue(auth.verify(NONCE, "www.amazon.com", 443, token));
+    }
+
+    @Test
+    public void testSharedMac() {
+        // Authenticators of the same algorithm take turns on the Mac of the thread
+        ControlAuthenticator alice = new ControlAuthenticator("hs256", SECRET);
+        ControlAuthenticator bob = new ControlAuthenticator("hs256", "OTHER");
+        String token = alice.sign(NONCE, "www.amazon.com", 443);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(bob.verify(NONCE, "www.amazon.com", 443, token));
+            assertTrue(alice.verify(NONCE, "www.amazon.com", 443, token));
+        }
+        assertEquals(token, new ControlAuthenticator("hs256", SECRET).sign(NONCE, "www.amazon.com", 443));
+    }
+
+    @Test
+    public void testAllocation() {
+        ControlAuthenticator auth = new ControlAuthenticator("hs256", SECRET);
+        String[] hosts = new String[1000];
+        String[] tokens = new String[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = "www.example" + i + ".com";
+            tokens[i] = auth.sign(NONCE, hosts[i], 443);
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        int verified = 0;
+        for (int round = 0; round < 3; round++) { // Warm up, JIT may allocate in the first rounds
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < hosts.length; i++) {
+                if (auth.verify(NONCE, hosts[i], 443, tokens[i])) {
+                    verified++;
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            if (round == 2) {
+                // Only the digest array returned by the JCE MacSpi, a few hundred bytes each by ControlAuthBuilder
+                assertTrue("Allocated " + allocated + " bytes", allocated < 64 * hosts.length);
+            }
+        }
+        assertEquals(3 * hosts.length, verified);
+    }
+}
@@ -0,0 +1,136 @@
+package com.rex.proxy.websocket.control;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RawControlCodecTest {
+
+    private final static byte[] NONCE = new byte[] { (byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04, (byte) 0x05, (byte) 0x06 };
+    private final static String SECRET = "SECRET";
+
+    @Test
+    public void testHandshake() {
+        EmbeddedChannel server = new EmbeddedChannel();
+        RawControlCodec.addCodec(server.pipeline(), true);
+        EmbeddedChannel client = new EmbeddedChannel();
+        RawControlCodec.addCodec(client.pipeline(), false);
+
+        ControlMessage hello = new ControlMessage();
+        hello.type = "hello";
+        hello.action = "hs256";
+        hello.token = Base64.getEncoder().encodeToString(NONCE);
+        server.writeOutbound(hello);
+        ByteBuf bytes = server.readOutbound();
+        assertEquals(4 + NONCE.length, bytes.readableBytes());
+        client.writeInbound(bytes);
+        ControlMessage received = client.readInbound();
+        assertEquals("hello", received.type);
+        assertEquals("hs256", received.action);
+        assertEquals(hello.token, received.token);
+
+        // Token sent as the raw HMAC, verified as the websocket one
+        ControlMessage request = new ControlMessage();
+        request.type = "request";
+        request.action = "connect";
+        request.address = "www.amazon.com";
+        request.port = 443;
+        request.halfClose = true;
+        request.token = new ControlAuthBuilder()
+                .setSecret(SECRET)
+                .setNonce(NONCE)
+                .setAddress(request.address)
+                .setPort(request.port)
+                .build();
+        client.writeOutbound(request);
+        bytes = client.readOutbound();
+        assertEquals(1 + 1 + 1 + 1 + 14 + 2 + 1 + 32, bytes.readableBytes());
+        // Split in two reads, followed by the tunnel data
+        server.writeInbound(bytes.readRetainedSlice(10));
+        assertNull(server.readInbound());
+        server.writeInbound(Unpooled.wrappedBuffer(bytes, Unpooled.copiedBuffer("Hello", StandardCharsets.UTF_8)));
+        received = server.readInbound();
+        assertEquals("connect", received.action);
+        assertEquals("www.amazon.com", received.address);
+        assertEquals(Integer.valueOf(443), received.port);
+        assertEquals(Boolean.TRUE, received.halfClose);
+        assertNull(received.user);
+        assertTrue(new ControlAuthenticator("hs256", SECRET).verify(NONCE, received.address, received.port, received.token));
+        ByteBuf data = server.readInbound();
+        assertEquals("Hello", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testOpen() {
+        EmbeddedChannel server = new EmbeddedChannel();
+        RawControlCodec.addCodec(server.pipeline(), true);
+        EmbeddedChannel client = new EmbeddedChannel();
+        RawControlCodec.addCodec(client.pipeline(), false);
+
+        // Dropped by the server, the echo request after it passes as usual
+        RawControlCodec.writeOpen(client);
+        ControlMessage echo = new ControlMessage();
+        echo.type = "request";
+        echo.action = "echo";
+        client.writeOutbound(echo);
+        ByteBuf bytes = Unpooled.buffer();
+        for (ByteBuf buf; (buf = client.readOutbound()) != null; buf.release()) {
+            bytes.writeBytes(buf);
+        }
+        assertEquals(1 + 1, bytes.readableBytes());
+        server.writeInbound(bytes);
+        ControlMessage received = server.readInbound();
+        assertEquals("request", received.type);
+        assertEquals("echo", received.action);
+        assertNull(server.readInbound());
+
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testResponse() {
+        EmbeddedChannel server = new EmbeddedChannel();
+        RawControlCodec.addCodec(server.pipeline(), true);
+        EmbeddedChannel client = new EmbeddedChannel();
+        RawControlCodec.addCodec(client.pipeline(), false);
+
+        ControlMessage drain = new ControlMessage();
+        drain.type = "drain";
+        ControlMessage success = new ControlMessage();
+        success.type = "response";
+        success.action = "success";
+        server.writeOutbound(drain, success, drain, Unpooled.copiedBuffer("World", StandardCharsets.UTF_8));
+
+        // Drain after the success response is not sent, it would go between the tunnel data
+        ByteBuf bytes = Unpooled.buffer();
+        for (ByteBuf buf; (buf = server.readOutbound()) != null; buf.release()) {
+            bytes.writeBytes(buf);
+        }
+        assertEquals(1 + 3 + 5, bytes.readableBytes());
+        client.writeInbound(bytes);
+        assertEquals("drain", ((ControlMessage) client.readInbound()).type);
+        ControlMessage received = client.readInbound();
+        assertEquals("response", received.type);
+        assertEquals("success", received.action);
+        assertNull(received.halfClose);
+        ByteBuf data = client.readInbound();
+        assertEquals("World", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+}